@@ -1,3 +1,4 @@
+import java.io.OutputStream
 import net.ltgt.gradle.errorprone.errorprone
 import org.gradle.api.tasks.testing.logging.TestExceptionFormat
 
@@ -24,6 +25,9 @@ plugins {
 
   // Checker Framework pluggable type-checking
   alias(libs.plugins.org.checkerframework)
+
+  // JMH benchmarks, in src/jmh/java; run them with "./gradlew jmh"
+  alias(libs.plugins.me.champeau.jmh)
 }
 
 repositories {
@@ -84,6 +88,78 @@ for (taskName in listOf("distTar", "distZip", "shadowDistTar", "shadowDistZip"))
   }
 }
 
+// Fast start
+
+// A typical run is short, so most of its time is spent starting the JVM and loading and
+// initializing classes (ical4j's in particular).  Two tasks reduce that time:
+//  * "appCds" runs the fat jar once, on src/startup/training.ics, and saves the classes that it
+//    loaded to an AppCDS archive.  Use it with the same JDK that built it (the Java 21 toolchain):
+//      java -XX:SharedArchiveFile=build/libs/icalavailable.jsa -XX:TieredStopAtLevel=1 \
+//        -XX:+UseSerialGC -jar build/libs/icalavailable-all.jar ...
+//  * "nativeImage" compiles the fat jar to an executable, build/native/icalavailable, which starts
+//    in milliseconds.  It needs GraalVM:  set GRAALVM_HOME, or put native-image on the PATH.  The
+//    configuration that native-image needs is in src/main/resources/META-INF/native-image/.
+// "startupBenchmark" reports the startup time of each.
+val trainingCalendar = layout.projectDirectory.file("src/startup/training.ics")
+val trainingArgs = listOf("--date=11/16/2020", "--days=10", "--timezone2=Europe/London")
+val shadowJarFile = tasks.named<Jar>("shadowJar").flatMap { it.archiveFile }
+val cdsArchive = layout.buildDirectory.file("libs/icalavailable.jsa")
+val nativeExecutable = layout.buildDirectory.file("native/icalavailable")
+
+val appCds =
+  tasks.register<JavaExec>("appCds") {
+    group = "distribution"
+    description = "Creates an AppCDS archive of the classes that a typical run loads."
+    inputs.file(trainingCalendar)
+    outputs.file(cdsArchive)
+    // An archive can be made only from a class path of jars, so run the fat jar, not the classes.
+    classpath = files(shadowJarFile)
+    mainClass = application.mainClass
+    systemProperty("ical4j.parsing.relaxed", "true")
+    jvmArgumentProviders.add(
+      CommandLineArgumentProvider {
+        listOf("-XX:ArchiveClassesAtExit=" + cdsArchive.get().asFile.path)
+      }
+    )
+    args("--iCal-URL=" + trainingCalendar.asFile.toURI())
+    args(trainingArgs)
+    // The output is of no interest; the run is for its side effect.
+    standardOutput = OutputStream.nullOutputStream()
+  }
+
+val nativeImageCommand =
+  providers
+    .environmentVariable("GRAALVM_HOME")
+    .map { "$it/bin/native-image" }
+    .orElse("native-image")
+val nativeImage =
+  tasks.register<Exec>("nativeImage") {
+    group = "distribution"
+    description = "Compiles the fat jar to a native executable, using GraalVM's native-image."
+    inputs.file(shadowJarFile)
+    outputs.file(nativeExecutable)
+    executable(nativeImageCommand.get())
+    doFirst { nativeExecutable.get().asFile.parentFile.mkdirs() }
+    argumentProviders.add(
+      CommandLineArgumentProvider {
+        listOf("-jar", shadowJarFile.get().asFile.path, "-o", nativeExecutable.get().asFile.path)
+      }
+    )
+  }
+
+tasks.register<Exec>("startupBenchmark") {
+  group = "verification"
+  description = "Reports the startup time of the fat jar, with and without the AppCDS archive."
+  dependsOn(appCds)
+  // Not `dependsOn(nativeImage)`, which would fail where GraalVM is not installed; the script
+  // measures the native executable if an earlier "nativeImage" built it.
+  mustRunAfter(nativeImage)
+  // The archive is usable only by the JDK that created it.
+  val launcher = javaToolchains.launcherFor { languageVersion = JavaLanguageVersion.of(21) }
+  doFirst { environment("JAVA_HOME", launcher.get().metadata.installationPath.asFile.path) }
+  commandLine("src/startup/startup-benchmark.sh")
+}
+
 // Compilation
 
 java {
@@ -170,6 +246,37 @@ tasks.named<JacocoReport>("jacocoTestReport") {
   }
 }
 
+// Benchmarks
+
+// Run every benchmark with `./gradlew jmh`, or a subset with, for example,
+// `./gradlew jmh -PjmhIncludes=ParseBenchmark`.  Add `-PjmhProfilers=gc` to report allocation
+// rates.  Results are written to build/results/jmh/results.json.  Compare them to
+// src/jmh/results/baseline.txt, but only on similar hardware.
+jmh {
+  jmhVersion = libs.versions.jmh.get()
+  resultFormat = "JSON"
+  val jmhIncludes = project.findProperty("jmhIncludes")
+  if (jmhIncludes != null) {
+    includes = listOf(jmhIncludes.toString())
+  }
+  val jmhProfilers = project.findProperty("jmhProfilers")
+  if (jmhProfilers != null) {
+    profilers = jmhProfilers.toString().split(",")
+  }
+}
+
+// JMH generates the benchmark harness, which is not written to satisfy this project's linters.
+// The benchmarks themselves, in compileJmhJava, are checked like the main sources.
+tasks.named<JavaCompile>("jmhCompileGeneratedClasses") {
+  options.errorprone.isEnabled = false
+  options.compilerArgs.remove("-Werror")
+  (options as ExtensionAware).extensions.configure<
+    org.checkerframework.plugin.gradle.CheckerFrameworkCompileExtension
+  > {
+    enabled = false
+  }
+}
+
 // Code formatting
 
 spotless {
@@ -0,0 +1,94 @@
+package org.plumelib.icalavailable;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measures the stages after the busy times are known: finding free times, and formatting them. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+@SuppressWarnings({
+  "PMD", // todo
+  // JMH sets the @Param fields, and then calls the @Setup method, before any @Benchmark method.
+  "initializedfields:contracts.postcondition",
+  "nullness:initialization.fields.uninitialized",
+})
+public class AvailabilityBenchmark {
+
+  /** The number of days to summarize. */
+  @Param({"8", "120", "365"})
+  public int days;
+
+  /** The business hours. */
+  @Param({"9am-5pm", "8am-12pm,1pm-6pm,7pm-9pm"})
+  public String businessHours;
+
+  /** The query. */
+  private AvailabilityQuery query;
+
+  /** The engine, for four calendars of 200 events each. */
+  private AvailabilityEngine engine;
+
+  /** The result of the query, to be formatted. */
+  private List<Slot> available;
+
+  /** Creates a new AvailabilityBenchmark. */
+  public AvailabilityBenchmark() {}
+
+  /** Generates the calendars and computes their busy times. */
+  @Setup
+  public void setup() {
+    query = BenchmarkQueries.query(days, businessHours);
+    engine =
+        new AvailabilityEngine(
+            BusyIndex.compile(
+                CalendarGenerator.calendars(4, 200, 0.02, 365),
+                query.windowStart(),
+                query.windowEnd()));
+    available = engine.available(query);
+  }
+
+  /**
+   * Finds the free times.
+   *
+   * @return the free times
+   */
+  @Benchmark
+  public List<Slot> available() {
+    return engine.available(query);
+  }
+
+  /**
+   * Formats the free times as text.
+   *
+   * @return the formatted free times
+   */
+  @Benchmark
+  public String formatText() {
+    return Renderer.forFormat("text").render(available, query);
+  }
+
+  /**
+   * Formats the free times as JSON.
+   *
+   * @return the formatted free times
+   */
+  @Benchmark
+  public String formatJson() {
+    return Renderer.forFormat("json").render(available, query);
+  }
+}
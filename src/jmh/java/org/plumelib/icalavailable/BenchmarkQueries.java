@@ -0,0 +1,33 @@
+package org.plumelib.icalavailable;
+
+import java.time.ZoneId;
+
+/** Queries shared by the benchmarks. */
+@SuppressWarnings("PMD") // todo
+final class BenchmarkQueries {
+
+  /** The time zone of every query. */
+  static final ZoneId ZONE = ZoneId.of("America/New_York");
+
+  /** This class is a collection of methods; it does not represent anything. */
+  private BenchmarkQueries() {
+    throw new Error("do not instantiate");
+  }
+
+  /**
+   * Returns a query that starts at {@link CalendarGenerator#START}, in {@link #ZONE}.
+   *
+   * @param days the number of days
+   * @param businessHours the business hours, such as "9am-5pm"
+   * @return a query
+   */
+  static AvailabilityQuery query(int days, String businessHours) {
+    return new AvailabilityQuery(
+        CalendarGenerator.START,
+        days,
+        AvailabilityQuery.parseBusinessHours(businessHours),
+        AvailabilityQuery.WEEKDAYS,
+        ZONE,
+        null);
+  }
+}
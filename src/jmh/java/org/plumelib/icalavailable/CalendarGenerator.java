@@ -0,0 +1,121 @@
+package org.plumelib.icalavailable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import net.fortuna.ical4j.data.ParserException;
+import net.fortuna.ical4j.model.Calendar;
+import org.checkerframework.checker.index.qual.NonNegative;
+
+/**
+ * Generates synthetic calendars in iCalendar format, for benchmarks. The calendars are
+ * deterministic: the same arguments always produce the same calendar.
+ *
+ * <p>Events are spread over a history that ends {@link #FUTURE_DAYS} days after {@link #START}, as
+ * in a real calendar that has been in use for a while. One-off events are on weekdays, during
+ * working hours, and last 15 to 90 minutes. Recurring events are daily or weekly standups and
+ * one-on-ones that began during the history and have not ended.
+ */
+@SuppressWarnings("PMD") // todo
+final class CalendarGenerator {
+
+  /** The first date that benchmarks ask about. */
+  static final LocalDate START = LocalDate.of(2026, 10, 19);
+
+  /** How many days after {@link #START} the generated events extend. */
+  static final int FUTURE_DAYS = 120;
+
+  /** The format of a UTC DATE-TIME value. */
+  private static final DateTimeFormatter UTC_FORMAT =
+      DateTimeFormatter.ofPattern("uuuuMMdd'T'HHmmss'Z'");
+
+  /** This class is a collection of methods; it does not represent anything. */
+  private CalendarGenerator() {
+    throw new Error("do not instantiate");
+  }
+
+  /**
+   * Returns a synthetic calendar in iCalendar format.
+   *
+   * @param seed the seed for the random number generator
+   * @param events the number of events
+   * @param recurringFraction the fraction of the events that recur, between 0 and 1
+   * @param historyDays how many days before {@link #START} the events begin
+   * @return the calendar, in iCalendar format
+   */
+  static byte[] generate(
+      long seed, int events, double recurringFraction, @NonNegative int historyDays) {
+    Random random = new Random(seed);
+    StringBuilder sb = new StringBuilder();
+    line(sb, "BEGIN:VCALENDAR");
+    line(sb, "VERSION:2.0");
+    line(sb, "PRODID:-//plumelib//CalendarGenerator//EN");
+    int span = historyDays + FUTURE_DAYS;
+    for (int i = 0; i < events; i++) {
+      boolean recurring = random.nextDouble() < recurringFraction;
+      LocalDate day = START.minusDays(historyDays).plusDays(random.nextInt(span));
+      if (!recurring) {
+        // Move weekend events to Monday.
+        while (day.getDayOfWeek().getValue() > 5) {
+          day = day.plusDays(1);
+        }
+      }
+      // Working hours in UTC-4 or UTC-5 are roughly 13:00 to 22:00 UTC.
+      LocalDateTime start = day.atTime(13 + random.nextInt(9), 15 * random.nextInt(4));
+      int minutes = recurring ? 15 + 15 * random.nextInt(2) : 15 * (1 + random.nextInt(6));
+      line(sb, "BEGIN:VEVENT");
+      line(sb, "UID:event-" + seed + "-" + i + "@generator.invalid");
+      line(sb, "DTSTAMP:20200101T000000Z");
+      line(sb, "DTSTART:" + UTC_FORMAT.format(start));
+      line(sb, "DTEND:" + UTC_FORMAT.format(start.plusMinutes(minutes)));
+      if (recurring) {
+        line(
+            sb,
+            random.nextBoolean() ? "RRULE:FREQ=DAILY;BYDAY=MO,TU,WE,TH,FR" : "RRULE:FREQ=WEEKLY");
+      }
+      line(sb, "SUMMARY:Event " + i);
+      line(sb, "END:VEVENT");
+    }
+    line(sb, "END:VCALENDAR");
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Returns synthetic calendars, parsed.
+   *
+   * @param count the number of calendars
+   * @param events the number of events in each calendar
+   * @param recurringFraction the fraction of the events that recur, between 0 and 1
+   * @param historyDays how many days before {@link #START} the events begin
+   * @return the calendars
+   */
+  static List<Calendar> calendars(
+      @NonNegative int count, int events, double recurringFraction, @NonNegative int historyDays) {
+    CalendarFetcher fetcher = new CalendarFetcher(Duration.ofSeconds(60));
+    List<Calendar> result = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      try {
+        result.add(fetcher.parse(generate(i, events, recurringFraction, historyDays)));
+      } catch (IOException | ParserException e) {
+        throw new Error("generated calendar is malformed", e);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Appends a content line.
+   *
+   * @param sb where to append the line
+   * @param line the content line, which must be short enough not to need folding
+   */
+  private static void line(StringBuilder sb, String line) {
+    sb.append(line).append("\r\n");
+  }
+}
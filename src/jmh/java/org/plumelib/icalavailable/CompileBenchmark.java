@@ -0,0 +1,78 @@
+package org.plumelib.icalavailable;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import net.fortuna.ical4j.model.Calendar;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures computing busy times: expanding every event, including recurrences, over the window and
+ * merging the results into a {@link BusyIndex}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+@SuppressWarnings({
+  "PMD", // todo
+  // JMH sets the @Param fields, and then calls the @Setup method, before any @Benchmark method.
+  "initializedfields:contracts.postcondition",
+  "nullness:initialization.fields.uninitialized",
+})
+public class CompileBenchmark {
+
+  /** The number of calendars. */
+  @Param({"1", "8"})
+  public int calendarCount;
+
+  /** The number of events in each calendar. */
+  @Param({"100", "1000"})
+  public int events;
+
+  /** The fraction of the events that recur. */
+  @Param({"0.0", "0.2"})
+  public double recurringFraction;
+
+  /** The number of days to summarize. */
+  @Param({"8", "120"})
+  public int days;
+
+  /** The calendars. */
+  private List<Calendar> calendars;
+
+  /** The query, which determines the window. */
+  private AvailabilityQuery query;
+
+  /** Creates a new CompileBenchmark. */
+  public CompileBenchmark() {}
+
+  /** Generates the calendars. */
+  @SuppressWarnings("lowerbound:argument") // every @Param value of calendarCount is positive
+  @Setup
+  public void setup() {
+    calendars = CalendarGenerator.calendars(calendarCount, events, recurringFraction, 365);
+    query = BenchmarkQueries.query(days, "9am-5pm");
+  }
+
+  /**
+   * Computes the busy times.
+   *
+   * @return the busy times
+   */
+  @Benchmark
+  public BusyIndex compile() {
+    return BusyIndex.compile(calendars, query.windowStart(), query.windowEnd());
+  }
+}
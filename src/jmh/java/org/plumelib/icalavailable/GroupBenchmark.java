@@ -0,0 +1,91 @@
+package org.plumelib.icalavailable;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import net.fortuna.ical4j.model.Calendar;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures finding times when most of a group of attendees are free: compiling each attendee's busy
+ * times, and sweeping over them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+@SuppressWarnings({
+  "PMD", // todo
+  // JMH sets the @Param fields, and then calls the @Setup method, before any @Benchmark method.
+  "initializedfields:contracts.postcondition",
+  "nullness:initialization.fields.uninitialized",
+})
+public class GroupBenchmark {
+
+  /** The number of attendees, each with one calendar. */
+  @Param({"8", "50"})
+  public int attendees;
+
+  /** The number of days to summarize. */
+  @Param({"30"})
+  public int days;
+
+  /** The length of a slot, in minutes, or 0 to find times to the millisecond. */
+  @Param({"0", "15"})
+  public int slotMinutes;
+
+  /** The calendars, one per attendee, of 200 events each. */
+  private List<Calendar> calendars;
+
+  /** The query. */
+  private AvailabilityQuery query;
+
+  /** The busy times of the attendees. */
+  private GroupFinder finder;
+
+  /** Creates a new GroupBenchmark. */
+  public GroupBenchmark() {}
+
+  /** Generates the calendars and computes their busy times. */
+  @SuppressWarnings("lowerbound:argument") // every @Param value of attendees is positive
+  @Setup
+  public void setup() {
+    calendars = CalendarGenerator.calendars(attendees, 200, 0.02, 365);
+    query = BenchmarkQueries.query(days, "9am-5pm");
+    finder = GroupFinder.compile(calendars, query.windowStart(), query.windowEnd());
+  }
+
+  /**
+   * Computes the busy times of each attendee.
+   *
+   * @return the busy times
+   */
+  @Benchmark
+  public GroupFinder compile() {
+    return GroupFinder.compile(calendars, query.windowStart(), query.windowEnd());
+  }
+
+  /**
+   * Finds the five best 45-minute times when at least four fifths of the attendees are free.
+   *
+   * @return the best times
+   */
+  @Benchmark
+  public List<GroupFinder.GroupSlot> best() {
+    return GroupFinder.best(
+        finder.available(
+            query, Math.max(1, attendees * 4 / 5), 45 * 60 * 1000L, slotMinutes * 60L * 1000L),
+        5);
+  }
+}
@@ -0,0 +1,79 @@
+package org.plumelib.icalavailable;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import net.fortuna.ical4j.data.ParserException;
+import net.fortuna.ical4j.model.Calendar;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measures parsing a calendar, with and without {@link WindowFilterReader}. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+@SuppressWarnings({
+  "PMD", // todo
+  // JMH sets the @Param fields, and then calls the @Setup method, before any @Benchmark method.
+  "initializedfields:contracts.postcondition",
+  "nullness:initialization.fields.uninitialized",
+})
+public class ParseBenchmark {
+
+  /** The number of events in the calendar. */
+  @Param({"100", "1000", "10000"})
+  public int events;
+
+  /** The fraction of the events that recur. */
+  @Param({"0.0", "0.2"})
+  public double recurringFraction;
+
+  /** If true, drop events outside the window while parsing. */
+  @Param({"false", "true"})
+  public boolean windowFilter;
+
+  /** The calendar, in iCalendar format. */
+  private byte[] contents;
+
+  /** The fetcher whose parser is measured. */
+  private CalendarFetcher fetcher;
+
+  /** Creates a new ParseBenchmark. */
+  public ParseBenchmark() {}
+
+  /** Generates the calendar. */
+  @Setup
+  public void setup() {
+    contents = CalendarGenerator.generate(0, events, recurringFraction, 365);
+    AvailabilityQuery query = BenchmarkQueries.query(8, "9am-5pm");
+    fetcher =
+        windowFilter
+            ? new CalendarFetcher(
+                Duration.ofSeconds(60), null, query.windowStart(), query.windowEnd())
+            : new CalendarFetcher(Duration.ofSeconds(60));
+  }
+
+  /**
+   * Parses the calendar.
+   *
+   * @return the calendar
+   * @throws IOException never
+   * @throws ParserException never
+   */
+  @Benchmark
+  public Calendar parse() throws IOException, ParserException {
+    return fetcher.parse(contents);
+  }
+}
@@ -1,4 +1,6 @@
 (defvar ical-business-hours "8:30am-5pm")
+;; If non-nil, a directory in which to cache the calendars between calls.
+(defvar ical-cache-directory nil)
 (defvar ical-business-hours-phone ical-business-hours)
 ;; To permit evening calls.
 ;; (setq ical-business-hours-phone "8:30am-5pm,7:30pm-9:30pm")
@@ -28,6 +30,8 @@ With just C-u prefix argument, prompt for starting date and days."
                         (if (file-exists-p f)
                             (list "--iCal-URL" (bbdb-string-trim (file-contents f))))))
                   '("~/private/iCal-url1" "~/private/iCal-url2" "~/private/iCal-url3")))
+             (if ical-cache-directory
+                 (list "--cache-dir" (expand-file-name ical-cache-directory)))
              (list "--days" (format "%s" days))
              (if start-date
                  (list "--date" start-date))
@@ -0,0 +1,81 @@
+package org.plumelib.icalavailable;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Computes the available times of a set of calendars; {@link Renderer} formats them. An
+ * AvailabilityEngine is immutable, and it uses no mutable static state, so one engine may answer
+ * any number of {@link AvailabilityQuery}s concurrently. An engine may share a {@link ResultCache}
+ * with the engines that replace it, so that days computed from unchanged busy times are reused.
+ */
+@SuppressWarnings("PMD") // todo
+final class AvailabilityEngine {
+
+  /** The shortest free time that is reported, in milliseconds. */
+  static final long MIN_FREE_MILLIS = 1000L * 60;
+
+  /** The busy times of the calendars. */
+  private final BusyIndex busy;
+
+  /** Remembers the available times of recent days, or null to compute every day anew. */
+  private final @Nullable ResultCache cache;
+
+  /** The version of {@link #busy} in {@link #cache}. */
+  private final long version;
+
+  /**
+   * Creates a new AvailabilityEngine.
+   *
+   * @param busy the busy times of the calendars
+   */
+  AvailabilityEngine(BusyIndex busy) {
+    this(busy, null, 0);
+  }
+
+  /**
+   * Creates a new AvailabilityEngine that remembers the available times of recent days.
+   *
+   * @param busy the busy times of the calendars
+   * @param cache remembers the available times of recent days, or null to compute every day anew
+   * @param version the version of the busy times in the cache; see {@link ResultCache#invalidate}
+   */
+  AvailabilityEngine(BusyIndex busy, @Nullable ResultCache cache, long version) {
+    this.busy = busy;
+    this.cache = cache;
+    this.version = version;
+  }
+
+  /**
+   * Returns the available times on each day of the query. The computation is on primitive arrays:
+   * the query's business hours, as instants, less the busy times. Slots are created only for the
+   * result.
+   *
+   * @param query the query
+   * @return the available times, in order
+   */
+  // TODO:  don't propose times that are before the current moment.
+  // Problem:  any all-day events will be treated as UTC.
+  // Instead, they should be converted to local time (tz1).
+  @SuppressWarnings("index") // free has even length
+  List<Slot> available(AvailabilityQuery query) {
+    Stats.Span span = Stats.start(Stats.Stage.AVAILABLE);
+    // Business hours, rather than whole days, exclude weekends and evenings.
+    long[] free;
+    if (cache == null) {
+      free = busy.free(query.businessIntervals(), MIN_FREE_MILLIS);
+    } else {
+      int[] dayEnds = new int[query.days()];
+      long[] ranges = query.businessIntervals(dayEnds);
+      free = cache.free(busy, version, ranges, dayEnds, MIN_FREE_MILLIS);
+    }
+    List<Slot> result = new ArrayList<>(free.length / 2);
+    for (int i = 0; i < free.length; i += 2) {
+      result.add(new Slot(free[i], free[i + 1]));
+    }
+    span.stop();
+    Stats.count(Stats.Counter.SLOTS, result.size());
+    return result;
+  }
+}
@@ -0,0 +1,508 @@
+package org.plumelib.icalavailable;
+
+import java.time.DateTimeException;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.format.ResolverStyle;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.checkerframework.checker.index.qual.NonNegative;
+import org.checkerframework.checker.lock.qual.GuardSatisfied;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.checker.regex.qual.Regex;
+
+/**
+ * A question about availability: which times, on which dates, are candidates for a meeting, and in
+ * which time zones the answer should be given. An AvailabilityQuery is immutable, so it may be
+ * shared freely between threads.
+ */
+@SuppressWarnings("PMD") // todo
+final class AvailabilityQuery {
+
+  /** The number of milliseconds in one day. */
+  static final long MILLIS_PER_DAY = 1000L * 60 * 60 * 24;
+
+  /** The number of minutes in one day. */
+  static final int MINUTES_PER_DAY = 60 * 24;
+
+  /** The greatest UTC offset that any time zone may have, in seconds. */
+  private static final long MAX_OFFSET_SECONDS = 18 * 60 * 60;
+
+  /** Monday through Friday. */
+  static final Set<DayOfWeek> WEEKDAYS =
+      Set.of(
+          DayOfWeek.MONDAY,
+          DayOfWeek.TUESDAY,
+          DayOfWeek.WEDNESDAY,
+          DayOfWeek.THURSDAY,
+          DayOfWeek.FRIDAY);
+
+  /** A range of times within a day, such as 9am to 5pm. */
+  static final class TimeRange {
+
+    /** The start of the range. */
+    final LocalTime start;
+
+    /** The end of the range. Midnight means the end of the day. */
+    final LocalTime end;
+
+    /**
+     * Creates a new TimeRange.
+     *
+     * @param start the start of the range
+     * @param end the end of the range; midnight means the end of the day
+     */
+    TimeRange(LocalTime start, LocalTime end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public String toString(@GuardSatisfied TimeRange this) {
+      return start + "-" + end;
+    }
+  }
+
+  /** The first date to summarize. */
+  private final LocalDate startDate;
+
+  /** The number of calendar days to summarize. */
+  private final @NonNegative int days;
+
+  /** The business hours, outside of which all times are unavailable. */
+  private final List<TimeRange> businessHours;
+
+  /**
+   * The business hours, as alternating start and end minutes of the day, sorted and with
+   * overlapping ranges merged. An end of {@link #MINUTES_PER_DAY} is midnight at the end of the
+   * day.
+   */
+  private final int[] businessMinutes;
+
+  /** The business days, outside of which all times are unavailable. */
+  private final Set<DayOfWeek> businessDays;
+
+  /** The time zone in which dates and business hours are interpreted, and times are printed. */
+  private final ZoneId zone1;
+
+  /** An optional second time zone in which times are printed, or null. */
+  private final @Nullable ZoneId zone2;
+
+  /**
+   * Creates a new AvailabilityQuery.
+   *
+   * @param startDate the first date to summarize
+   * @param days the number of calendar days to summarize
+   * @param businessHours the business hours, outside of which all times are unavailable
+   * @param businessDays the business days, outside of which all times are unavailable
+   * @param zone1 the time zone in which dates and business hours are interpreted, and times are
+   *     printed
+   * @param zone2 an optional second time zone in which times are printed, or null
+   * @throws IllegalArgumentException if {@code days} is negative
+   */
+  AvailabilityQuery(
+      LocalDate startDate,
+      int days,
+      List<TimeRange> businessHours,
+      Set<DayOfWeek> businessDays,
+      ZoneId zone1,
+      @Nullable ZoneId zone2) {
+    if (days < 0) {
+      throw new IllegalArgumentException("Bad number of days: " + days);
+    }
+    this.startDate = startDate;
+    this.days = days;
+    this.businessHours = List.copyOf(businessHours);
+    this.businessMinutes = businessMinutes(businessHours);
+    this.businessDays = Set.copyOf(businessDays);
+    this.zone1 = zone1;
+    this.zone2 = zone2;
+  }
+
+  /**
+   * Creates a new AvailabilityQuery from strings such as those given on the command line. The
+   * business days are Monday through Friday.
+   *
+   * @param date the first date to summarize, such as "today" or "11/17/2020"
+   * @param days the number of calendar days to summarize
+   * @param businessHours the business hours, such as "9am-5pm,7:30pm-9:30pm"
+   * @param timezone1 the time zone in which dates and business hours are interpreted, and times are
+   *     printed
+   * @param timezone2 an optional second time zone in which times are printed, or null
+   * @return the query
+   * @throws IllegalArgumentException if any argument is malformed
+   */
+  static AvailabilityQuery parse(
+      String date, int days, String businessHours, String timezone1, @Nullable String timezone2) {
+    ZoneId zone1 = TimeZones.zone(timezone1);
+    ZoneId zone2 = timezone2 == null ? null : TimeZones.zone(timezone2);
+    return new AvailabilityQuery(
+        parseDate(date, zone1), days, parseBusinessHours(businessHours), WEEKDAYS, zone1, zone2);
+  }
+
+  /**
+   * Returns the first date to summarize.
+   *
+   * @return the first date to summarize
+   */
+  LocalDate startDate() {
+    return startDate;
+  }
+
+  /**
+   * Returns the number of calendar days to summarize.
+   *
+   * @return the number of calendar days to summarize
+   */
+  @NonNegative
+  int days() {
+    return days;
+  }
+
+  /**
+   * Returns the business hours, outside of which all times are unavailable.
+   *
+   * @return the business hours
+   */
+  List<TimeRange> businessHours() {
+    return businessHours;
+  }
+
+  /**
+   * Returns the business days, outside of which all times are unavailable.
+   *
+   * @return the business days
+   */
+  Set<DayOfWeek> businessDays() {
+    return businessDays;
+  }
+
+  /**
+   * Returns the time zone in which dates and business hours are interpreted, and times are printed.
+   *
+   * @return the primary time zone
+   */
+  ZoneId zone1() {
+    return zone1;
+  }
+
+  /**
+   * Returns the optional second time zone in which times are printed.
+   *
+   * @return the second time zone, or null
+   */
+  @Nullable ZoneId zone2() {
+    return zone2;
+  }
+
+  /**
+   * Returns the start of the window of time that the query covers. The window is padded by a day on
+   * each side, so that it covers the whole of every day in any time zone.
+   *
+   * @return the start of the window, in milliseconds since the epoch
+   */
+  long windowStart() {
+    return startDate.atStartOfDay(zone1).toInstant().toEpochMilli() - MILLIS_PER_DAY;
+  }
+
+  /**
+   * Returns the end of the window of time that the query covers. See {@link #windowStart}.
+   *
+   * @return the end of the window, in milliseconds since the epoch
+   */
+  long windowEnd() {
+    return startDate.plusDays(days).atStartOfDay(zone1).toInstant().toEpochMilli() + MILLIS_PER_DAY;
+  }
+
+  /**
+   * Converts business hours to minutes of the day. Ranges are sorted by their start; ranges that
+   * overlap are merged, and empty ranges are dropped. Ranges that merely touch, such as 9am-12pm
+   * and 12pm-5pm, are kept separate.
+   *
+   * @param businessHours the business hours
+   * @return the business hours, as alternating start and end minutes of the day
+   */
+  @SuppressWarnings("index") // the result has at most two elements per business hour range
+  private static int[] businessMinutes(List<TimeRange> businessHours) {
+    int[] ranges = new int[2 * businessHours.size()];
+    int i = 0;
+    for (TimeRange bh : businessHours) {
+      ranges[i++] = bh.start.toSecondOfDay() / 60;
+      ranges[i++] =
+          bh.end.equals(LocalTime.MIDNIGHT) ? MINUTES_PER_DAY : bh.end.toSecondOfDay() / 60;
+    }
+    // Each range is encoded in one long, so that sorting the ranges is a primitive sort.
+    long[] keys = new long[businessHours.size()];
+    for (int r = 0; r < keys.length; r++) {
+      keys[r] = ((long) ranges[2 * r] << 32) | ranges[2 * r + 1];
+    }
+    Arrays.sort(keys);
+    int length = 0;
+    for (long key : keys) {
+      int start = (int) (key >>> 32);
+      int end = (int) key;
+      if (end <= start) {
+        continue;
+      }
+      if (length > 0 && start < ranges[length - 1]) {
+        ranges[length - 1] = Math.max(ranges[length - 1], end);
+      } else {
+        ranges[length++] = start;
+        ranges[length++] = end;
+      }
+    }
+    return Arrays.copyOf(ranges, length);
+  }
+
+  /**
+   * Returns the business hours of every day of the query, as instants. A business hour range that
+   * ends at midnight ends at the start of the next day.
+   *
+   * <p>Local times are converted to instants as by {@link java.time.ZonedDateTime#of}: a time in a
+   * daylight-saving gap is moved later by the length of the gap, and a time in an overlap gets the
+   * earlier offset. Rather than creating objects for each day, one pass walks the time zone's
+   * offset transitions in step with the days, so a year of business hours costs a few microseconds.
+   *
+   * @return the business hours, as alternating start and end times, in milliseconds since the
+   *     epoch; sorted and disjoint, though consecutive ranges may touch
+   */
+  long[] businessIntervals() {
+    return businessIntervals(new int[days]);
+  }
+
+  /**
+   * Returns the business hours of every day of the query, as instants, and where each day's
+   * business hours end in the result. Like {@link #businessIntervals()}, but the result can be
+   * split into days.
+   *
+   * @param dayEnds an array of length {@link #days()}; on return, {@code dayEnds[d]} is the index
+   *     in the result just past the business hours of day {@code d}
+   * @return the business hours, as alternating start and end times, in milliseconds since the
+   *     epoch; sorted and disjoint, though consecutive ranges may touch
+   */
+  @SuppressWarnings("index") // the result has at most two elements per business hour per day
+  long[] businessIntervals(int[] dayEnds) {
+    long[] result = new long[days * businessMinutes.length];
+    int length = 0;
+    long firstDay = startDate.toEpochDay();
+    OffsetSweep offsets = new OffsetSweep(zone1.getRules(), firstDay * MINUTES_PER_DAY * 60);
+    DayOfWeek dayOfWeek = startDate.getDayOfWeek();
+    for (int d = 0; d < days; d++, dayOfWeek = dayOfWeek.plus(1)) {
+      if (!businessDays.contains(dayOfWeek)) {
+        dayEnds[d] = length;
+        continue;
+      }
+      long dayMinute = (firstDay + d) * MINUTES_PER_DAY;
+      for (int b = 0; b < businessMinutes.length; b += 2) {
+        long start = offsets.toEpochMilli((dayMinute + businessMinutes[b]) * 60);
+        long end = offsets.toEpochMilli((dayMinute + businessMinutes[b + 1]) * 60);
+        // A daylight-saving gap moves a time later, possibly past the start of the next range.
+        if (length > 0) {
+          start = Math.max(start, result[length - 1]);
+        }
+        if (start < end) {
+          result[length++] = start;
+          result[length++] = end;
+        }
+      }
+      dayEnds[d] = length;
+    }
+    return Arrays.copyOf(result, length);
+  }
+
+  /**
+   * Converts local times to instants in one time zone. The local times must be given in
+   * non-decreasing order; each offset transition is then looked up once.
+   */
+  private static final class OffsetSweep {
+
+    /** The rules of the time zone. */
+    private final ZoneRules rules;
+
+    /** The UTC offset of local times before {@link #nextLocal}, in seconds. */
+    private int offsetSeconds;
+
+    /** The next transition, or null if there are no more. */
+    private @Nullable ZoneOffsetTransition next;
+
+    /**
+     * The first local time, in seconds since the local epoch, that gets the offset after {@link
+     * #next}; {@code Long.MAX_VALUE} if there is no next transition.
+     */
+    private long nextLocal;
+
+    /**
+     * Creates a new OffsetSweep.
+     *
+     * @param rules the rules of the time zone
+     * @param firstLocal the first local time to be converted, in seconds since the local epoch
+     */
+    OffsetSweep(ZoneRules rules, long firstLocal) {
+      this.rules = rules;
+      // No instant earlier than this one can have the local time firstLocal.
+      Instant earliest = Instant.ofEpochSecond(firstLocal - MAX_OFFSET_SECONDS);
+      this.offsetSeconds = rules.getOffset(earliest).getTotalSeconds();
+      this.next = rules.nextTransition(earliest);
+      this.nextLocal = firstLocalAfter(next);
+    }
+
+    /**
+     * Returns the first local time that gets the offset after a transition: the end of its gap, or
+     * the end of its overlap.
+     *
+     * @param transition a transition, or null
+     * @return the first local time that gets the offset after the transition, in seconds since the
+     *     local epoch; {@code Long.MAX_VALUE} if the transition is null
+     */
+    private static long firstLocalAfter(@Nullable ZoneOffsetTransition transition) {
+      if (transition == null) {
+        return Long.MAX_VALUE;
+      }
+      return transition.toEpochSecond()
+          + Math.max(
+              transition.getOffsetBefore().getTotalSeconds(),
+              transition.getOffsetAfter().getTotalSeconds());
+    }
+
+    /**
+     * Converts a local time to an instant.
+     *
+     * @param local a local time, in seconds since the local epoch; no less than the previous one
+     * @return the instant, in milliseconds since the epoch
+     */
+    long toEpochMilli(long local) {
+      ZoneOffsetTransition transition = next;
+      while (transition != null && local >= nextLocal) {
+        offsetSeconds = transition.getOffsetAfter().getTotalSeconds();
+        transition = rules.nextTransition(transition.getInstant());
+        next = transition;
+        nextLocal = firstLocalAfter(transition);
+      }
+      return (local - offsetSeconds) * 1000;
+    }
+  }
+
+  @Override
+  public String toString(@GuardSatisfied AvailabilityQuery this) {
+    return String.format(
+        "AvailabilityQuery(%s, %d days, %s, %s, %s, %s)",
+        startDate, days, businessHours, businessDays, zone1, zone2);
+  }
+
+  // Parsing
+
+  /** The date formats supported by {@link #parseDate}. */
+  static final List<DateTimeFormatter> dateFormats =
+      List.of(
+          DateTimeFormatter.ofPattern("uuuu/M/d", Locale.US)
+              .withResolverStyle(ResolverStyle.STRICT),
+          DateTimeFormatter.ofPattern("M/d/uuuu", Locale.US)
+              .withResolverStyle(ResolverStyle.STRICT),
+          DateTimeFormatter.ofPattern("M/d/uu", Locale.US).withResolverStyle(ResolverStyle.STRICT));
+
+  /**
+   * Parses a date that is in one of several common formats, or "today". A date with no year, such
+   * as "11/17", is in the current year.
+   *
+   * @param date the string to parse as a date
+   * @param zone the time zone that determines what "today" is
+   * @return the date
+   * @throws IllegalArgumentException when the argument does not represent a date, in one of the
+   *     supported formats
+   * @see #dateFormats
+   */
+  static LocalDate parseDate(String date, ZoneId zone) {
+    if (date.equals("today")) {
+      return LocalDate.now(zone);
+    }
+    String withYear = date;
+    if (Pattern.matches("^[0-9][0-9]?/[0-9][0-9]?$", date)) {
+      withYear = date + "/" + LocalDate.now(zone).getYear();
+    }
+    for (DateTimeFormatter dateFormat : dateFormats) {
+      try {
+        return LocalDate.parse(withYear, dateFormat);
+      } catch (DateTimeParseException e) {
+        // Try the next format in the list.
+      }
+    }
+    if (date.indexOf('/') != -1 && date.indexOf('/') == date.lastIndexOf('/')) {
+      throw new IllegalArgumentException("Could not parse date (missing year?): " + date);
+    }
+    throw new IllegalArgumentException("Could not parse date: " + date);
+  }
+
+  /**
+   * Parses business hours, such as "9am-5pm,7:30pm-9:30pm".
+   *
+   * @param ranges a comma-separated list of time ranges
+   * @return the time ranges
+   * @throws IllegalArgumentException if {@code ranges} is malformed
+   */
+  static List<TimeRange> parseBusinessHours(String ranges) {
+    List<TimeRange> result = new ArrayList<>();
+    for (String range : ranges.split(",", -1)) {
+      String[] startEnd = range.split("-", -1);
+      if (startEnd.length != 2) {
+        throw new IllegalArgumentException("Bad time range: " + range);
+      }
+      result.add(new TimeRange(parseTime(startEnd[0]), parseTime(startEnd[1])));
+    }
+    return result;
+  }
+
+  /** Matches a printed representation of a time. */
+  static final @Regex(4) Pattern timeRegexp =
+      Pattern.compile("([0-2]?[0-9])(:([0-5][0-9]))?([aApP][mM])?");
+
+  /**
+   * Parses a time like "9:30pm". "12am" is midnight and "12pm" is noon.
+   *
+   * @param time the string to parse as a time
+   * @return the time represented by {@code time}
+   * @throws IllegalArgumentException if {@code time} is not a time
+   */
+  static LocalTime parseTime(String time) {
+    Matcher m = timeRegexp.matcher(time);
+    if (!m.matches()) {
+      throw new IllegalArgumentException("Bad time: " + time);
+    }
+    @SuppressWarnings("nullness") // for this regex, matches() guarantees that group 1 matched
+    @NonNull String hourString = m.group(1);
+    String minuteString = m.group(3);
+    String ampmString = m.group(4);
+
+    int hour = Integer.parseInt(hourString);
+    if (ampmString != null) {
+      if (hour < 1 || hour > 12) {
+        throw new IllegalArgumentException("Bad time: " + time);
+      }
+      hour %= 12;
+      if (ampmString.equalsIgnoreCase("pm")) {
+        hour += 12;
+      }
+    }
+    int minute = 0;
+    if (minuteString != null) {
+      minute = Integer.parseInt(minuteString);
+    }
+    try {
+      return LocalTime.of(hour, minute);
+    } catch (DateTimeException e) {
+      throw new IllegalArgumentException("Bad time: " + time, e);
+    }
+  }
+}
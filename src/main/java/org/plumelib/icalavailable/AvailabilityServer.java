@@ -0,0 +1,365 @@
+package org.plumelib.icalavailable;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import net.fortuna.ical4j.model.Calendar;
+import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Answers availability questions over HTTP, from calendars that are held in memory. The calendars
+ * are fetched once at startup and then refreshed periodically in the background, so a question is
+ * answered without any network traffic or parsing.
+ *
+ * <p>The server listens only on the loopback interface. It answers requests of the form
+ *
+ * <pre>
+ * GET /available?date=11/17/2020&amp;days=5&amp;business-hours=9am-5pm&amp;tz1=Eastern&amp;tz2=Pacific&amp;format=json
+ * </pre>
+ *
+ * Every parameter is optional; a missing parameter defaults to the corresponding command-line
+ * option. The format is "text" (the same as the command-line output), "json", or "vfreebusy"; see
+ * {@link Renderer}.
+ *
+ * <p>Requests are answered concurrently: each request builds its own {@link AvailabilityQuery}, and
+ * all requests share the current, immutable {@link AvailabilityEngine}.
+ */
+@SuppressWarnings("PMD") // todo
+final class AvailabilityServer {
+
+  /** The busy times of the calendars, and the window of time that they cover. Immutable. */
+  private static final class Snapshot {
+
+    /** The busy times of the calendars. */
+    final BusyIndex busy;
+
+    /** Computes the available times within the window. */
+    final AvailabilityEngine engine;
+
+    /** The start of the window, in milliseconds since the epoch. */
+    final long windowStart;
+
+    /** The end of the window, in milliseconds since the epoch. */
+    final long windowEnd;
+
+    /**
+     * Creates a new Snapshot.
+     *
+     * @param busy the busy times of the calendars
+     * @param engine computes the available times within the window
+     * @param windowStart the start of the window, in milliseconds since the epoch
+     * @param windowEnd the end of the window, in milliseconds since the epoch
+     */
+    Snapshot(BusyIndex busy, AvailabilityEngine engine, long windowStart, long windowEnd) {
+      this.busy = busy;
+      this.engine = engine;
+      this.windowStart = windowStart;
+      this.windowEnd = windowEnd;
+    }
+  }
+
+  /** The URLs of the calendars. */
+  private final List<String> urls;
+
+  /** How many days, starting today, the server can answer questions about. */
+  private final int horizonDays;
+
+  /** How often to re-read the calendars. */
+  private final Duration refreshInterval;
+
+  /** The largest buffer that a request-handling thread keeps for the next request, in chars. */
+  static final int MAX_RETAINED_BUFFER = 1 << 20;
+
+  /**
+   * A buffer for each request-handling thread, in which answers are rendered. Reused from one
+   * request to the next.
+   */
+  private static final ThreadLocal<@Nullable StringBuilder> buffers = new ThreadLocal<>();
+
+  /**
+   * Expands recurring events, remembering their instances from one refresh to the next. Each
+   * refresh moves the window forward only a little, so little is expanded anew.
+   */
+  private final RecurrenceExpander expander = new RecurrenceExpander();
+
+  /**
+   * Remembers the available times of recent days, across refreshes that leave them unchanged; null
+   * if the server does not cache results.
+   */
+  private final @Nullable ResultCache resultCache;
+
+  /**
+   * The most recently read calendars. Replaced, never mutated, so a request that reads this field
+   * once sees a consistent snapshot even while a refresh is in progress.
+   */
+  private volatile @MonotonicNonNull Snapshot snapshot;
+
+  /**
+   * Creates a new AvailabilityServer.
+   *
+   * @param urls the URLs of the calendars
+   * @param horizonDays how many days, starting today, the server can answer questions about
+   * @param refreshInterval how often to re-read the calendars
+   * @param resultCacheDays how many days of available times to remember; 0 for none
+   */
+  AvailabilityServer(
+      List<String> urls, int horizonDays, Duration refreshInterval, int resultCacheDays) {
+    this.urls = urls;
+    this.horizonDays = horizonDays;
+    this.refreshInterval = refreshInterval;
+    this.resultCache = resultCacheDays == 0 ? null : new ResultCache(resultCacheDays);
+  }
+
+  /**
+   * Reads the calendars, then starts answering requests and refreshing the calendars in the
+   * background. Returns once the server has started.
+   *
+   * @param port the local port on which to listen
+   * @throws IOException if the calendars cannot be read, or the server cannot be started
+   */
+  @SuppressWarnings("FutureReturnValueIgnored") // the refresh task runs until the JVM exits
+  void start(int port) throws IOException {
+    refresh();
+
+    ScheduledExecutorService refresher =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread t = new Thread(r, "calendar-refresh");
+              t.setDaemon(true);
+              return t;
+            });
+    long seconds = Math.max(1, refreshInterval.toSeconds());
+    refresher.scheduleWithFixedDelay(this::refreshQuietly, seconds, seconds, TimeUnit.SECONDS);
+
+    HttpServer server =
+        HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext("/available", this::handle);
+    if (Stats.enabled()) {
+      server.createContext("/stats", AvailabilityServer::handleStats);
+    }
+    server.setExecutor(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()));
+    server.start();
+    System.err.printf("Listening on http://localhost:%d/available%n", port);
+  }
+
+  /**
+   * Re-reads the calendars and replaces {@link #snapshot}.
+   *
+   * @throws IOException if the calendars cannot be read
+   */
+  void refresh() throws IOException {
+    long now = System.currentTimeMillis();
+    long windowStart = now - 2 * AvailabilityQuery.MILLIS_PER_DAY;
+    long windowEnd = now + (horizonDays + 2) * AvailabilityQuery.MILLIS_PER_DAY;
+    Stats.Span span = Stats.start(Stats.Stage.REFRESH);
+    List<Calendar> calendars = ICalAvailable.fetcher(windowStart, windowEnd).fetchAll(urls);
+    BusyIndex busy = BusyIndex.compile(calendars, windowStart, windowEnd, expander);
+    Snapshot previous = snapshot;
+    long version = 0;
+    if (resultCache != null && previous != null) {
+      version = resultCache.invalidate(previous.busy.symmetricDifference(busy));
+    }
+    snapshot =
+        new Snapshot(
+            busy, new AvailabilityEngine(busy, resultCache, version), windowStart, windowEnd);
+    span.stop();
+  }
+
+  /**
+   * Re-reads the calendars. If they cannot be read, reports why and keeps the previous snapshot.
+   */
+  private void refreshQuietly() {
+    try {
+      refresh();
+    } catch (IOException | RuntimeException e) {
+      System.err.println("Could not refresh calendars; continuing to use the previous ones.");
+      if (e instanceof IOException ioe) {
+        ICalAvailable.reportFetchFailure(ioe);
+      } else {
+        e.printStackTrace(System.err);
+      }
+    }
+  }
+
+  /**
+   * Answers one HTTP request.
+   *
+   * @param exchange the request and response
+   * @throws IOException if the response cannot be sent
+   */
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      int status;
+      String contentType = "text/plain; charset=utf-8";
+      String body;
+      if (!exchange.getRequestMethod().equals("GET")) {
+        status = 405;
+        body = "Only GET is supported.\n";
+      } else {
+        try {
+          Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+          Renderer renderer =
+              Renderer.forFormat(params.getOrDefault("format", ICalAvailable.format));
+          body = answer(params, renderer);
+          status = 200;
+          contentType = renderer.contentType();
+        } catch (IllegalArgumentException e) {
+          status = 400;
+          body = e.getMessage() + "\n";
+        } catch (RuntimeException e) {
+          // A bug, not a bad request.  Answer, so that the client is not left waiting, and keep
+          // serving.
+          status = 500;
+          body = "Internal error; see the server's log.\n";
+          System.err.println("Could not answer " + exchange.getRequestURI() + ":");
+          e.printStackTrace(System.err);
+        }
+      }
+      Stats.count(Stats.Counter.REQUESTS, 1);
+      send(exchange, status, contentType, body);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * Answers a request for the statistics; see {@link Stats}.
+   *
+   * @param exchange the request and response
+   * @throws IOException if the response cannot be sent
+   */
+  private static void handleStats(HttpExchange exchange) throws IOException {
+    try {
+      send(exchange, 200, "text/plain; charset=utf-8", Stats.report());
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * Sends a response.
+   *
+   * @param exchange the request and response
+   * @param status the HTTP status code
+   * @param contentType the MIME type of the body
+   * @param body the body
+   * @throws IOException if the response cannot be sent
+   */
+  private static void send(HttpExchange exchange, int status, String contentType, String body)
+      throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  /**
+   * Computes the available times requested by the given query parameters.
+   *
+   * @param params the query parameters
+   * @param renderer formats the result
+   * @return the available times, formatted
+   * @throws IllegalArgumentException if a parameter is malformed, or the requested dates are
+   *     outside the window of the calendars
+   */
+  private String answer(Map<String, String> params, Renderer renderer) {
+    Snapshot current = snapshot;
+    if (current == null) {
+      throw new IllegalArgumentException("The calendars have not been read yet.");
+    }
+    AvailabilityQuery query = query(params);
+    if (query.windowStart() < current.windowStart || query.windowEnd() > current.windowEnd) {
+      throw new IllegalArgumentException(
+          "The server only answers questions about the next " + horizonDays + " days.");
+    }
+    List<Slot> available = current.engine.available(query);
+    StringBuilder buffer = buffers.get();
+    if (buffer == null) {
+      buffer = new StringBuilder(4096);
+      buffers.set(buffer);
+    }
+    buffer.setLength(0);
+    Stats.Span span = Stats.start(Stats.Stage.RENDER);
+    renderer.render(available, query, buffer);
+    span.stop();
+    String result = buffer.toString();
+    if (buffer.capacity() > MAX_RETAINED_BUFFER) {
+      // Don't hold on to the memory used by an unusually large answer.
+      buffers.remove();
+    }
+    return result;
+  }
+
+  /**
+   * Returns the query described by the given parameters. A missing parameter defaults to the
+   * corresponding command-line option, except that the date defaults to today.
+   *
+   * @param params the parameters: date, days, business-hours, tz1, and tz2
+   * @return the query
+   * @throws IllegalArgumentException if a parameter is malformed
+   */
+  static AvailabilityQuery query(Map<String, String> params) {
+    int days;
+    try {
+      days = Integer.parseInt(params.getOrDefault("days", Integer.toString(ICalAvailable.days)));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Bad number of days: " + params.get("days"), e);
+    }
+    return AvailabilityQuery.parse(
+        params.getOrDefault("date", "today"),
+        days,
+        params.getOrDefault("business-hours", ICalAvailable.business_hours),
+        params.getOrDefault("tz1", ICalAvailable.timezone1),
+        params.containsKey("tz2") ? params.get("tz2") : ICalAvailable.timezone2);
+  }
+
+  /**
+   * Parses a URL query string, such as "date=11/17/2020&amp;days=5".
+   *
+   * @param rawQuery the raw (still percent-encoded) query string, or null if there is none
+   * @return a map from each parameter name to its value; if a parameter appears more than once, the
+   *     last value is used
+   */
+  static Map<String, String> parseQuery(@Nullable String rawQuery) {
+    Map<String, String> result = new HashMap<>();
+    parseQuery(rawQuery, (name, value) -> result.put(name, value));
+    return result;
+  }
+
+  /**
+   * Parses a URL query string, such as "date=11/17/2020&amp;days=5", and passes each parameter to a
+   * consumer, in order.
+   *
+   * @param rawQuery the raw (still percent-encoded) query string, or null if there is none
+   * @param consumer is given the name and value of each parameter
+   */
+  static void parseQuery(@Nullable String rawQuery, BiConsumer<String, String> consumer) {
+    if (rawQuery == null || rawQuery.isEmpty()) {
+      return;
+    }
+    for (String pair : rawQuery.split("&", -1)) {
+      int eq = pair.indexOf('=');
+      String name = eq == -1 ? pair : pair.substring(0, eq);
+      String value = eq == -1 ? "" : pair.substring(eq + 1);
+      consumer.accept(
+          URLDecoder.decode(name, StandardCharsets.UTF_8),
+          URLDecoder.decode(value, StandardCharsets.UTF_8));
+    }
+  }
+}
@@ -0,0 +1,347 @@
+package org.plumelib.icalavailable;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Answers many availability questions in one run, such as one for each member of a team. Each
+ * calendar is fetched, parsed, and compiled once, however many questions use it, and the questions
+ * are answered concurrently; the answers are written in the order of the questions.
+ *
+ * <p>Each non-blank line of a batch file is one question, written like the query string of a
+ * request to {@link AvailabilityServer}, with two more parameters: {@code url}, which may be
+ * repeated, gives the calendars, and {@code id} labels the answer. For example:
+ *
+ * <pre>
+ * id=alice&amp;url=https://example.com/alice.ics&amp;date=11/17/2020&amp;days=5&amp;tz1=America/New_York
+ * id=bob&amp;url=https://example.com/bob.ics&amp;url=https://example.com/team.ics&amp;format=json
+ * </pre>
+ *
+ * A missing parameter defaults to the corresponding command-line option; the id defaults to the
+ * line number. Lines that start with "#" are comments. Values are percent-encoded, as in a URL, so
+ * a "&amp;" within a calendar's URL is written "%26".
+ *
+ * <p>In JSON format, each answer is one line: the JSON object of {@link Renderer}, with an "id"
+ * member. In the other formats, each answer is preceded by a line such as "==&gt; alice &lt;==". A
+ * question that cannot be answered, because it is malformed or one of its calendars cannot be read,
+ * gets an answer with an error message instead of times.
+ */
+@SuppressWarnings("PMD") // todo
+final class BatchRunner {
+
+  /** One question: a line of the batch file. Immutable. */
+  private static final class Question {
+
+    /** The label of the answer. */
+    final String id;
+
+    /** The URLs of the calendars. */
+    final List<String> urls;
+
+    /** The query, or null if the line is malformed. */
+    final @Nullable AvailabilityQuery query;
+
+    /** The name of the output format. */
+    final String format;
+
+    /** The output format, or null if the line is malformed. */
+    final @Nullable Renderer renderer;
+
+    /** Why the line is malformed, or null if it is not. */
+    final @Nullable String error;
+
+    /**
+     * Creates a new Question.
+     *
+     * @param id the label of the answer
+     * @param urls the URLs of the calendars
+     * @param query the query, or null if the line is malformed
+     * @param format the name of the output format
+     * @param renderer the output format, or null if the line is malformed
+     * @param error why the line is malformed, or null if it is not
+     */
+    Question(
+        String id,
+        List<String> urls,
+        @Nullable AvailabilityQuery query,
+        String format,
+        @Nullable Renderer renderer,
+        @Nullable String error) {
+      this.id = id;
+      this.urls = urls;
+      this.query = query;
+      this.format = format;
+      this.renderer = renderer;
+      this.error = error;
+    }
+
+    /**
+     * Returns true if the answer is in JSON format, whose answers are written differently.
+     *
+     * @return true if the answer is in JSON format
+     */
+    boolean isJson() {
+      return format.equals("json");
+    }
+  }
+
+  /** The questions, in the order of the batch file. */
+  private final List<Question> questions;
+
+  /**
+   * Creates a new BatchRunner.
+   *
+   * @param questions the questions, in the order of the batch file
+   */
+  private BatchRunner(List<Question> questions) {
+    this.questions = questions;
+  }
+
+  /**
+   * Reads a batch file. Malformed lines are not reported until {@link #run}, which answers them
+   * with an error message.
+   *
+   * @param file the batch file
+   * @return a BatchRunner for the questions in the file
+   * @throws IOException if the file could not be read
+   */
+  static BatchRunner read(Path file) throws IOException {
+    List<Question> questions = new ArrayList<>();
+    List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+    for (int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i).trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      questions.add(parseLine(line, i + 1));
+    }
+    return new BatchRunner(questions);
+  }
+
+  /**
+   * Parses one line of a batch file.
+   *
+   * @param line a line of a batch file
+   * @param lineNumber the line number, from 1
+   * @return the question on the line
+   */
+  private static Question parseLine(String line, int lineNumber) {
+    Map<String, String> params = new HashMap<>();
+    List<String> urls = new ArrayList<>();
+    AvailabilityServer.parseQuery(
+        line,
+        (name, value) -> {
+          if (name.equals("url")) {
+            urls.add(value);
+          } else {
+            params.put(name, value);
+          }
+        });
+    String id = params.getOrDefault("id", Integer.toString(lineNumber));
+    String format = params.getOrDefault("format", ICalAvailable.format);
+    if (urls.isEmpty()) {
+      urls.addAll(ICalAvailable.iCal_URL);
+    }
+    try {
+      if (urls.isEmpty()) {
+        throw new IllegalArgumentException("No url parameter, and no --iCal-URL option");
+      }
+      AvailabilityQuery query = AvailabilityServer.query(params);
+      Renderer renderer = Renderer.forFormat(format);
+      return new Question(id, List.copyOf(urls), query, format, renderer, null);
+    } catch (IllegalArgumentException e) {
+      return new Question(
+          id, List.copyOf(urls), null, format, null, "line " + lineNumber + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Answers the questions, and writes the answers in order. Each answer is written as soon as it
+   * and every earlier answer are ready.
+   *
+   * @param out where to write the answers
+   * @return the number of questions that could not be answered
+   * @throws InterruptedException if interrupted while waiting for the calendars or the answers
+   */
+  int run(PrintStream out) throws InterruptedException {
+    long windowStart = Long.MAX_VALUE;
+    long windowEnd = Long.MIN_VALUE;
+    // Each calendar once, in the order in which they first appear.
+    Set<String> urls = new LinkedHashSet<>();
+    for (Question question : questions) {
+      AvailabilityQuery query = question.query;
+      if (query != null) {
+        windowStart = Math.min(windowStart, query.windowStart());
+        windowEnd = Math.max(windowEnd, query.windowEnd());
+        urls.addAll(question.urls);
+      }
+    }
+
+    ExecutorService fetchers = Executors.newFixedThreadPool(CalendarFetcher.MAX_CONCURRENT_FETCHES);
+    int processors = Runtime.getRuntime().availableProcessors();
+    ExecutorService answerers = Executors.newFixedThreadPool(processors);
+    try {
+      CalendarFetcher fetcher = ICalAvailable.fetcher(windowStart, windowEnd);
+      long start = windowStart;
+      long end = windowEnd;
+      Map<String, Future<BusyIndex>> calendars = new HashMap<>();
+      for (String url : urls) {
+        calendars.put(
+            url,
+            fetchers.submit(() -> BusyIndex.compile(fetcher.fetchAll(List.of(url)), start, end)));
+      }
+
+      // Enough answers in progress to keep every processor busy, but not so many that a large
+      // batch holds all of its answers in memory at once.
+      int maxInProgress = 4 * processors;
+      Queue<Future<Answer>> inProgress = new ArrayDeque<>();
+      int failures = 0;
+      for (Question question : questions) {
+        if (inProgress.size() >= maxInProgress) {
+          failures += write(inProgress.remove(), out);
+        }
+        inProgress.add(answerers.submit(() -> answer(question, calendars)));
+      }
+      while (!inProgress.isEmpty()) {
+        failures += write(inProgress.remove(), out);
+      }
+      out.flush();
+      return failures;
+    } finally {
+      fetchers.shutdownNow();
+      answerers.shutdownNow();
+    }
+  }
+
+  /**
+   * Waits for an answer, and writes it. If the question could not be answered, also reports why to
+   * standard error.
+   *
+   * @param answer the answer, perhaps not yet computed
+   * @param out where to write the answer
+   * @return 1 if the question could not be answered, and 0 if it was
+   * @throws InterruptedException if interrupted while waiting for the answer
+   */
+  private static int write(Future<Answer> answer, PrintStream out) throws InterruptedException {
+    Answer result;
+    try {
+      result = answer.get();
+    } catch (ExecutionException e) {
+      // answer() reports failures in its result, so this is a bug.
+      throw new Error(e);
+    }
+    out.print(result.text);
+    if (result.error == null) {
+      return 0;
+    }
+    System.err.println(result.error);
+    return 1;
+  }
+
+  /** The answer to one question. Immutable. */
+  private static final class Answer {
+
+    /** The answer, formatted. */
+    final String text;
+
+    /** Why the question could not be answered, or null if it was answered. */
+    final @Nullable String error;
+
+    /**
+     * Creates a new Answer.
+     *
+     * @param text the answer, formatted
+     * @param error why the question could not be answered, or null if it was answered
+     */
+    Answer(String text, @Nullable String error) {
+      this.text = text;
+      this.error = error;
+    }
+  }
+
+  /**
+   * Answers one question.
+   *
+   * @param question the question
+   * @param calendars the busy times of each calendar, by URL; contains every URL of the question if
+   *     the question is well-formed
+   * @return the answer
+   * @throws InterruptedException if interrupted while waiting for the calendars
+   */
+  private static Answer answer(Question question, Map<String, Future<BusyIndex>> calendars)
+      throws InterruptedException {
+    AvailabilityQuery query = question.query;
+    Renderer renderer = question.renderer;
+    if (query == null || renderer == null) {
+      return error(question, String.valueOf(question.error));
+    }
+    List<BusyIndex> busyTimes = new ArrayList<>(question.urls.size());
+    for (String url : question.urls) {
+      Future<BusyIndex> busy = calendars.get(url);
+      if (busy == null) {
+        throw new Error("No calendar for " + url);
+      }
+      try {
+        busyTimes.add(busy.get());
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        return error(question, cause == null ? e.toString() : String.valueOf(cause.getMessage()));
+      }
+    }
+    List<Slot> available = new AvailabilityEngine(BusyIndex.union(busyTimes)).available(query);
+    StringBuilder out = new StringBuilder(64 + 40 * available.size());
+    Stats.Span span = Stats.start(Stats.Stage.RENDER);
+    if (question.isJson()) {
+      // Insert the id as the first member of the object.
+      out.append("{\"id\":");
+      Renderer.appendJsonString(question.id, out);
+      out.append(',');
+      int start = out.length();
+      renderer.render(available, query, out);
+      out.deleteCharAt(start);
+    } else {
+      out.append("==> ").append(question.id).append(" <==").append(System.lineSeparator());
+      renderer.render(available, query, out);
+    }
+    span.stop();
+    return new Answer(out.toString(), null);
+  }
+
+  /**
+   * Returns the answer to a question that could not be answered.
+   *
+   * @param question the question
+   * @param message why the question could not be answered
+   * @return an answer that contains the message
+   */
+  private static Answer error(Question question, String message) {
+    StringBuilder out = new StringBuilder();
+    if (question.isJson()) {
+      out.append("{\"id\":");
+      Renderer.appendJsonString(question.id, out);
+      out.append(",\"error\":");
+      Renderer.appendJsonString(message, out);
+      out.append("}\n");
+    } else {
+      out.append("==> ").append(question.id).append(" <==").append(System.lineSeparator());
+      out.append("error: ").append(message).append(System.lineSeparator());
+    }
+    return new Answer(out.toString(), question.id + ": " + message);
+  }
+}
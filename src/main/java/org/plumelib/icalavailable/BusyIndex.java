@@ -0,0 +1,483 @@
+package org.plumelib.icalavailable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.DateTime;
+import net.fortuna.ical4j.model.Period;
+import net.fortuna.ical4j.model.PeriodList;
+import net.fortuna.ical4j.model.component.VEvent;
+import net.fortuna.ical4j.model.property.Status;
+
+/**
+ * The busy times of one or more calendars, within a window of time. The busy times are stored as
+ * sorted, disjoint intervals, so finding the free times within a range is a binary search followed
+ * by a walk over just the intervals that overlap the range.
+ *
+ * <p>A BusyIndex is immutable.
+ */
+@SuppressWarnings("PMD") // todo
+final class BusyIndex {
+
+  /**
+   * The number of series of events at or above which {@link #compile} expands them in parallel.
+   * Below it, the cost of splitting the work exceeds the saving.
+   */
+  static final int PARALLEL_THRESHOLD = 256;
+
+  /** The start of each busy interval, in milliseconds since the epoch. Sorted. */
+  private final long[] starts;
+
+  /**
+   * The end (exclusive) of each busy interval, in milliseconds since the epoch. Sorted. {@code
+   * ends[i]} is greater than {@code starts[i]} and less than {@code starts[i+1]}.
+   */
+  private final long[] ends;
+
+  /**
+   * Creates a new BusyIndex.
+   *
+   * @param starts the start of each busy interval; sorted; not copied
+   * @param ends the end of each busy interval; sorted; not copied
+   */
+  private BusyIndex(long[] starts, long[] ends) {
+    this.starts = starts;
+    this.ends = ends;
+  }
+
+  /**
+   * Returns the busy times of the given calendars that overlap the given window. Recurring events
+   * are expanded over the window, and their instances are replaced by any overrides. Transparent
+   * events (shown as "available" in Google Calendar) and cancelled events are not busy. When there
+   * are many events, they are expanded in parallel.
+   *
+   * @param calendars the calendars
+   * @param windowStart the start of the window, in milliseconds since the epoch
+   * @param windowEnd the end of the window, in milliseconds since the epoch
+   * @return the busy times of the calendars within the window
+   */
+  static BusyIndex compile(List<Calendar> calendars, long windowStart, long windowEnd) {
+    return compile(calendars, windowStart, windowEnd, new RecurrenceExpander());
+  }
+
+  /**
+   * Returns the busy times of the given calendars that overlap the given window, like {@link
+   * #compile(List, long, long)}. Recurring events that {@code expander} has already expanded over
+   * part of the window are expanded only over the rest of it.
+   *
+   * @param calendars the calendars
+   * @param windowStart the start of the window, in milliseconds since the epoch
+   * @param windowEnd the end of the window, in milliseconds since the epoch
+   * @param expander expands recurring events, and remembers their instances for next time
+   * @return the busy times of the calendars within the window
+   */
+  static BusyIndex compile(
+      List<Calendar> calendars, long windowStart, long windowEnd, RecurrenceExpander expander) {
+    Stats.Span span = Stats.start(Stats.Stage.COMPILE);
+    List<RecurrenceExpander.Series> series = RecurrenceExpander.series(calendars);
+    expander.retainAll(series);
+    // Expanding a series over the window is independent of every other series, and for recurring
+    // events it is the most expensive part of the whole computation.
+    Builder result;
+    if (series.size() < PARALLEL_THRESHOLD) {
+      result = new Builder();
+      for (RecurrenceExpander.Series s : series) {
+        expander.addBusyTime(s, result, windowStart, windowEnd);
+      }
+    } else {
+      result =
+          series.parallelStream()
+              .collect(
+                  Builder::new,
+                  (builder, s) -> expander.addBusyTime(s, builder, windowStart, windowEnd),
+                  Builder::addAll);
+    }
+    BusyIndex busy = result.build();
+    span.stop();
+    Stats.count(Stats.Counter.SERIES, series.size());
+    Stats.count(Stats.Counter.BUSY_INTERVALS, busy.size());
+    return busy;
+  }
+
+  /**
+   * Returns the busy times of each of the given calendars, separately. The calendars are compiled
+   * in parallel.
+   *
+   * @param calendars the calendars
+   * @param windowStart the start of the window, in milliseconds since the epoch
+   * @param windowEnd the end of the window, in milliseconds since the epoch
+   * @return the busy times of each calendar within the window, in the same order as {@code
+   *     calendars}
+   */
+  static List<BusyIndex> compileEach(List<Calendar> calendars, long windowStart, long windowEnd) {
+    return calendars.parallelStream()
+        .map(c -> compile(List.of(c), windowStart, windowEnd))
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Returns the union of the given busy times: a time is busy if it is busy in any of them.
+   *
+   * @param indexes busy times
+   * @return the union of the busy times
+   */
+  @SuppressWarnings("index") // starts and ends have the same length
+  static BusyIndex union(List<BusyIndex> indexes) {
+    if (indexes.size() == 1) {
+      return indexes.get(0);
+    }
+    Builder builder = new Builder();
+    for (BusyIndex index : indexes) {
+      for (int i = 0; i < index.starts.length; i++) {
+        builder.add(index.starts[i], index.ends[i]);
+      }
+    }
+    return builder.build();
+  }
+
+  /**
+   * Returns true if the given event has been cancelled.
+   *
+   * @param event an event
+   * @return true if the event has been cancelled
+   */
+  static boolean isCancelled(VEvent event) {
+    Status status = event.getStatus();
+    return status != null && Status.VEVENT_CANCELLED.getValue().equals(status.getValue());
+  }
+
+  /**
+   * Returns the number of disjoint busy intervals.
+   *
+   * @return the number of disjoint busy intervals
+   */
+  int size() {
+    return starts.length;
+  }
+
+  /**
+   * Returns the number of bytes that {@link #write} puts.
+   *
+   * @return the number of bytes that {@link #write} puts
+   */
+  int serializedSize() {
+    return Integer.BYTES + 2 * Long.BYTES * starts.length;
+  }
+
+  /**
+   * Writes this BusyIndex to a buffer: the number of intervals, then the starts, then the ends.
+   *
+   * @param out where to write this BusyIndex
+   */
+  void write(ByteBuffer out) {
+    out.putInt(starts.length);
+    out.asLongBuffer().put(starts).put(ends);
+    out.position(out.position() + 2 * Long.BYTES * starts.length);
+  }
+
+  /**
+   * Reads a BusyIndex that was written by {@link #write}. The intervals are copied out of the
+   * buffer with two bulk reads.
+   *
+   * @param in the buffer to read from
+   * @return the BusyIndex
+   * @throws IOException if the buffer does not hold a well-formed BusyIndex
+   */
+  static BusyIndex read(ByteBuffer in) throws IOException {
+    int size = in.getInt();
+    if (size < 0 || 2L * Long.BYTES * size > in.remaining()) {
+      throw new IOException("Truncated busy index of " + size + " intervals");
+    }
+    long[] starts = new long[size];
+    long[] ends = new long[size];
+    in.asLongBuffer().get(starts).get(ends);
+    in.position(in.position() + 2 * Long.BYTES * size);
+    for (int i = 0; i < size; i++) {
+      if (ends[i] <= starts[i] || (i + 1 < size && starts[i + 1] <= ends[i])) {
+        throw new IOException("Busy intervals are not sorted and disjoint at index " + i);
+      }
+    }
+    return new BusyIndex(starts, ends);
+  }
+
+  /**
+   * Returns the free times within the given range: that is, the parts of the range that are not
+   * busy. Free times shorter than {@code minLength} are omitted.
+   *
+   * @param from the start of the range, in milliseconds since the epoch
+   * @param to the end of the range, in milliseconds since the epoch
+   * @param minLength the shortest free time to report, in milliseconds
+   * @return the free times, as alternating start and end times, in milliseconds since the epoch
+   */
+  long[] free(long from, long to, long minLength) {
+    return free(new long[] {from, to}, minLength);
+  }
+
+  /**
+   * Returns the free times within the given ranges: that is, the parts of the ranges that are not
+   * busy. Free times shorter than {@code minLength} are omitted. A free time never spans two
+   * ranges, even if they touch.
+   *
+   * <p>The ranges and the busy intervals are walked together, so the cost is one binary search per
+   * range plus the number of busy intervals that overlap the ranges, and the only allocation is the
+   * result.
+   *
+   * @param ranges alternating start and end times, in milliseconds since the epoch; sorted and
+   *     disjoint, though consecutive ranges may touch
+   * @param minLength the shortest free time to report, in milliseconds
+   * @return the free times, as alternating start and end times, in milliseconds since the epoch
+   */
+  @SuppressWarnings("index") // starts and ends have the same length; result grows before writes
+  long[] free(long[] ranges, long minLength) {
+    long[] result = new long[Math.max(8, ranges.length)];
+    int resultLength = 0;
+    // The first busy interval that ends after the current range starts.  Ranges are sorted, so it
+    // never moves backward.
+    int first = 0;
+    for (int r = 0; r + 1 < ranges.length; r += 2) {
+      long from = ranges[r];
+      long to = ranges[r + 1];
+      first = firstEndingAfter(from, first);
+      long freeStart = from;
+      for (int i = first; i < starts.length && starts[i] < to; i++) {
+        if (starts[i] - freeStart >= minLength) {
+          if (resultLength + 2 > result.length) {
+            result = Arrays.copyOf(result, result.length * 2);
+          }
+          result[resultLength++] = freeStart;
+          result[resultLength++] = starts[i];
+        }
+        freeStart = Math.max(freeStart, ends[i]);
+      }
+      if (to - freeStart >= minLength) {
+        if (resultLength + 2 > result.length) {
+          result = Arrays.copyOf(result, result.length * 2);
+        }
+        result[resultLength++] = freeStart;
+        result[resultLength++] = to;
+      }
+    }
+    return Arrays.copyOf(result, resultLength);
+  }
+
+  /**
+   * Returns the times that are busy in exactly one of this BusyIndex and another: that is, the
+   * times whose availability differs between them.
+   *
+   * @param other another BusyIndex
+   * @return the times that are busy in exactly one of the two, as alternating start and end times,
+   *     in milliseconds since the epoch; sorted and disjoint
+   */
+  @SuppressWarnings("index") // i and j index the endpoints; the result has room for all of them
+  long[] symmetricDifference(BusyIndex other) {
+    // Endpoint k of a BusyIndex is starts[k / 2] if k is even, and ends[k / 2] if k is odd.  The
+    // time is busy in a BusyIndex just when an odd number of its endpoints are at or before it.
+    int thisEndpoints = 2 * starts.length;
+    int otherEndpoints = 2 * other.starts.length;
+    long[] result = new long[thisEndpoints + otherEndpoints];
+    int resultLength = 0;
+    int i = 0;
+    int j = 0;
+    while (i < thisEndpoints || j < otherEndpoints) {
+      long time =
+          Math.min(
+              i < thisEndpoints ? endpoint(i) : Long.MAX_VALUE,
+              j < otherEndpoints ? other.endpoint(j) : Long.MAX_VALUE);
+      boolean differedBefore = i % 2 != j % 2;
+      while (i < thisEndpoints && endpoint(i) == time) {
+        i++;
+      }
+      while (j < otherEndpoints && other.endpoint(j) == time) {
+        j++;
+      }
+      if (differedBefore != (i % 2 != j % 2)) {
+        // A difference starts or ends here.
+        result[resultLength++] = time;
+      }
+    }
+    return Arrays.copyOf(result, resultLength);
+  }
+
+  /**
+   * Returns the ranges that overlap any of the given times.
+   *
+   * @param ranges alternating start and end times; sorted and disjoint, though consecutive ranges
+   *     may touch
+   * @param times alternating start and end times, such as the changed times returned by {@link
+   *     #symmetricDifference}; sorted and disjoint
+   * @return the ranges that overlap any of the times, as alternating start and end times
+   */
+  @SuppressWarnings("index") // both arrays have even length
+  static long[] overlapping(long[] ranges, long[] times) {
+    long[] result = new long[ranges.length];
+    int resultLength = 0;
+    int t = 0;
+    for (int r = 0; r < ranges.length; r += 2) {
+      // Skip the times that end before this range starts; they end before later ranges, too.
+      while (t < times.length && times[t + 1] <= ranges[r]) {
+        t += 2;
+      }
+      if (t < times.length && times[t] < ranges[r + 1]) {
+        result[resultLength++] = ranges[r];
+        result[resultLength++] = ranges[r + 1];
+      }
+    }
+    return Arrays.copyOf(result, resultLength);
+  }
+
+  /**
+   * Returns one endpoint of the busy intervals.
+   *
+   * @param k the index of an endpoint: {@code 2 * i} for the start of interval {@code i}, and
+   *     {@code 2 * i + 1} for its end
+   * @return the endpoint, in milliseconds since the epoch
+   */
+  @SuppressWarnings("index") // k < 2 * starts.length
+  private long endpoint(int k) {
+    return k % 2 == 0 ? starts[k / 2] : ends[k / 2];
+  }
+
+  /**
+   * Returns the index of the first busy interval that ends after the given time.
+   *
+   * @param time a time, in milliseconds since the epoch
+   * @param lo an index at or before the result
+   * @return the index of the first busy interval that ends after {@code time}, or {@link #size} if
+   *     there is none
+   */
+  @SuppressWarnings("index") // binary search: lo <= mid < hi <= ends.length
+  private int firstEndingAfter(long time, int lo) {
+    int hi = ends.length;
+    while (lo < hi) {
+      int mid = lo + (hi - lo) / 2;
+      if (ends[mid] <= time) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  /** Accumulates busy intervals, in any order, and then builds a BusyIndex from them. */
+  static final class Builder {
+
+    /** The start of each interval added so far. Only the first {@link #size} are meaningful. */
+    private long[] starts = new long[64];
+
+    /** The end of each interval added so far. Only the first {@link #size} are meaningful. */
+    private long[] ends = new long[64];
+
+    /** The number of intervals added so far. */
+    private int size = 0;
+
+    /** Creates a new, empty Builder. */
+    Builder() {}
+
+    /**
+     * Adds a busy interval. Empty intervals are ignored.
+     *
+     * @param start the start of the interval, in milliseconds since the epoch
+     * @param end the end (exclusive) of the interval, in milliseconds since the epoch
+     */
+    @SuppressWarnings("index") // starts and ends have the same length; size < length after growth
+    void add(long start, long end) {
+      if (end <= start) {
+        return;
+      }
+      if (size == starts.length) {
+        starts = Arrays.copyOf(starts, size * 2);
+        ends = Arrays.copyOf(ends, size * 2);
+      }
+      starts[size] = start;
+      ends[size] = end;
+      size++;
+    }
+
+    /**
+     * Adds the times that the given event makes busy within the given window. Recurring events are
+     * expanded over the window. Transparent events add nothing.
+     *
+     * @param event an event
+     * @param windowStart the start of the window, in milliseconds since the epoch
+     * @param windowEnd the end of the window, in milliseconds since the epoch
+     */
+    void addConsumedTime(VEvent event, long windowStart, long windowEnd) {
+      // getConsumedTime ignores transparent events.  Its arguments are mutable, so each call gets
+      // its own, in case calls run concurrently.
+      PeriodList periods =
+          event.getConsumedTime(new DateTime(windowStart), new DateTime(windowEnd), false);
+      // "Object" because PeriodList extends raw TreeSet.
+      for (Object o : periods) {
+        assert o != null
+            : "@AssumeAssertion(nullness): non-generic container class; elements are non-null";
+        Period p = (Period) o;
+        add(p.getStart().getTime(), p.getEnd().getTime());
+      }
+    }
+
+    /**
+     * Adds all the intervals of another Builder to this one.
+     *
+     * @param other the Builder whose intervals to add
+     */
+    @SuppressWarnings("index") // the arrays are grown to hold both sets of intervals
+    void addAll(Builder other) {
+      if (size + other.size > starts.length) {
+        int newLength = Math.max(size + other.size, starts.length * 2);
+        starts = Arrays.copyOf(starts, newLength);
+        ends = Arrays.copyOf(ends, newLength);
+      }
+      System.arraycopy(other.starts, 0, starts, size, other.size);
+      System.arraycopy(other.ends, 0, ends, size, other.size);
+      size += other.size;
+    }
+
+    /**
+     * Returns a BusyIndex for the union of the intervals added so far.
+     *
+     * @return a BusyIndex for the union of the intervals added so far
+     */
+    @SuppressWarnings("index") // the sweep takes an end only when fewer ends than starts are taken
+    BusyIndex build() {
+      // The union of a set of intervals depends only on the multiset of start points and the
+      // multiset of end points, so the two can be sorted independently.  A sweep then counts how
+      // many intervals cover each point.
+      long[] sortedStarts = Arrays.copyOf(starts, size);
+      long[] sortedEnds = Arrays.copyOf(ends, size);
+      Arrays.sort(sortedStarts);
+      Arrays.sort(sortedEnds);
+      long[] unionStarts = new long[size];
+      long[] unionEnds = new long[size];
+      int unionSize = 0;
+      int depth = 0;
+      int i = 0;
+      int j = 0;
+      while (i < size) {
+        // At equal times, process starts first, so that touching intervals are merged.
+        if (sortedStarts[i] <= sortedEnds[j]) {
+          if (depth == 0) {
+            unionStarts[unionSize] = sortedStarts[i];
+          }
+          depth++;
+          i++;
+        } else {
+          depth--;
+          if (depth == 0) {
+            unionEnds[unionSize++] = sortedEnds[j];
+          }
+          j++;
+        }
+      }
+      // All starts have been processed, so the remaining ends close the last interval.
+      if (size > 0) {
+        unionEnds[unionSize++] = sortedEnds[size - 1];
+      }
+      return new BusyIndex(
+          Arrays.copyOf(unionStarts, unionSize), Arrays.copyOf(unionEnds, unionSize));
+    }
+  }
+}
@@ -0,0 +1,347 @@
+package org.plumelib.icalavailable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import org.checkerframework.checker.index.qual.IndexOrHigh;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * The busy times of some calendars, saved to a file so that a later run can skip parsing and
+ * expanding the calendars. Parsing dominates the time of a run whose calendars come from the cache,
+ * and a snapshot replaces it with one memory-mapped read.
+ *
+ * <p>A snapshot records, for each calendar, its URL, a hash of its contents, and its busy times
+ * over a window. It is valid for a run whose calendars hash to the same values and whose window
+ * lies within the snapshot's. The window extends {@link #LOOKAHEAD_MILLIS} past the window of the
+ * run that wrote it, so that the snapshot remains valid for the next few days.
+ *
+ * <p>The file is big-endian and consists of:
+ *
+ * <ul>
+ *   <li>the magic number {@link #MAGIC} and the format version {@link #VERSION}
+ *   <li>the start and end of the window, as longs
+ *   <li>the number of calendars, as an int, and then for each calendar: the length of its URL and
+ *       the URL in UTF-8, the {@value #HASH_LENGTH}-byte hash, and the busy times as written by
+ *       {@link BusyIndex#write}
+ *   <li>a CRC-32 of everything before it, as an int
+ * </ul>
+ *
+ * <p>A BusySnapshot is immutable.
+ */
+@SuppressWarnings("PMD") // todo
+final class BusySnapshot {
+
+  /** The first bytes of every snapshot file: "ICALSNAP" in ASCII. */
+  static final long MAGIC = 0x4943414C534E4150L;
+
+  /** The version of the file format. Files of any other version are ignored. */
+  static final int VERSION = 1;
+
+  /** How far past the window of the run that writes a snapshot it extends, in milliseconds. */
+  static final long LOOKAHEAD_MILLIS = 30 * AvailabilityQuery.MILLIS_PER_DAY;
+
+  /** The length of a hash of a calendar, in bytes. */
+  static final int HASH_LENGTH = 32;
+
+  /** The prefix of the lines that {@link #hash} skips. */
+  private static final byte[] DTSTAMP = "DTSTAMP".getBytes(StandardCharsets.US_ASCII);
+
+  /** The initial size of the buffer with which {@link #hash(InputStream)} reads a calendar. */
+  private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+  /** The start of the window, in milliseconds since the epoch. */
+  private final long windowStart;
+
+  /** The end of the window, in milliseconds since the epoch. */
+  private final long windowEnd;
+
+  /** The URL of each calendar. */
+  private final List<String> urls;
+
+  /** The hash of each calendar, as returned by {@link #hash}. */
+  private final List<byte[]> hashes;
+
+  /** The busy times of each calendar, within the window. */
+  private final List<BusyIndex> busyTimes;
+
+  /**
+   * Creates a new BusySnapshot.
+   *
+   * @param windowStart the start of the window, in milliseconds since the epoch
+   * @param windowEnd the end of the window, in milliseconds since the epoch
+   * @param urls the URL of each calendar
+   * @param hashes the hash of each calendar, as returned by {@link #hash}
+   * @param busyTimes the busy times of each calendar, within the window
+   */
+  BusySnapshot(
+      long windowStart,
+      long windowEnd,
+      List<String> urls,
+      List<byte[]> hashes,
+      List<BusyIndex> busyTimes) {
+    if (urls.size() != hashes.size() || urls.size() != busyTimes.size()) {
+      throw new IllegalArgumentException(
+          "Mismatched sizes: " + urls.size() + ", " + hashes.size() + ", " + busyTimes.size());
+    }
+    this.windowStart = windowStart;
+    this.windowEnd = windowEnd;
+    this.urls = List.copyOf(urls);
+    this.hashes = List.copyOf(hashes);
+    this.busyTimes = List.copyOf(busyTimes);
+  }
+
+  /**
+   * Returns the busy times of each calendar, within the window.
+   *
+   * @return the busy times of each calendar, in the same order as the URLs
+   */
+  List<BusyIndex> busyTimes() {
+    return busyTimes;
+  }
+
+  /**
+   * Returns true if this snapshot can stand in for the given calendars over the given window.
+   *
+   * @param urls the URL of each calendar
+   * @param hashes the hash of each calendar, as returned by {@link #hash}
+   * @param windowStart the start of the window, in milliseconds since the epoch
+   * @param windowEnd the end of the window, in milliseconds since the epoch
+   * @return true if this snapshot has the same calendars, and its window contains the given one
+   */
+  boolean matches(List<String> urls, List<byte[]> hashes, long windowStart, long windowEnd) {
+    if (windowStart < this.windowStart
+        || windowEnd > this.windowEnd
+        || !urls.equals(this.urls)
+        || hashes.size() != this.hashes.size()) {
+      return false;
+    }
+    for (int i = 0; i < hashes.size(); i++) {
+      if (!Arrays.equals(hashes.get(i), this.hashes.get(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns a SHA-256 hash of a calendar. Lines that start with "DTSTAMP" are skipped, because some
+   * servers (Google Calendar's among them) set every DTSTAMP to the time of the download, so that
+   * otherwise no two downloads of an unchanged calendar would hash the same.
+   *
+   * @param contents a calendar, in iCalendar format
+   * @return a hash of the calendar, {@value #HASH_LENGTH} bytes long
+   */
+  static byte[] hash(byte[] contents) {
+    MessageDigest sha256 = sha256();
+    update(sha256, contents, contents.length);
+    return sha256.digest();
+  }
+
+  /**
+   * Returns a SHA-256 hash of a calendar, which is read in pieces so that it need not fit in
+   * memory. The hash is the same as that of {@link #hash(byte[])}.
+   *
+   * @param in a calendar, in iCalendar format
+   * @return a hash of the calendar, {@value #HASH_LENGTH} bytes long
+   * @throws IOException if the calendar cannot be read
+   */
+  @SuppressWarnings("index") // 0 <= length <= lineEnd <= end <= buffer.length
+  static byte[] hash(InputStream in) throws IOException {
+    MessageDigest sha256 = sha256();
+    byte[] buffer = new byte[HASH_BUFFER_SIZE];
+    // buffer[0, length) has been read but not hashed; it holds at most a partial line.
+    int length = 0;
+    while (true) {
+      if (length == buffer.length) {
+        // A line longer than the buffer.
+        buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+      }
+      int n = in.read(buffer, length, buffer.length - length);
+      if (n < 0) {
+        break;
+      }
+      int end = length + n;
+      // Hash whole lines only, so that a skipped line is never split between two pieces.
+      int lineEnd = end;
+      while (lineEnd > length && buffer[lineEnd - 1] != '\n') {
+        lineEnd--;
+      }
+      if (lineEnd > length) {
+        update(sha256, buffer, lineEnd);
+        System.arraycopy(buffer, lineEnd, buffer, 0, end - lineEnd);
+        length = end - lineEnd;
+      } else {
+        length = end;
+      }
+    }
+    update(sha256, buffer, length);
+    return sha256.digest();
+  }
+
+  /**
+   * Returns a new SHA-256 digest.
+   *
+   * @return a new SHA-256 digest
+   */
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new Error("SHA-256 is required of every Java implementation", e);
+    }
+  }
+
+  /**
+   * Hashes whole lines of a calendar, skipping those that start with "DTSTAMP".
+   *
+   * @param sha256 the digest to update
+   * @param contents the start of the lines
+   * @param length the length of the lines; either {@code contents.length}, or the index just past a
+   *     newline
+   */
+  private static void update(MessageDigest sha256, byte[] contents, @IndexOrHigh("#2") int length) {
+    // The hashed bytes run from runStart up to the start of the next skipped line.
+    int runStart = 0;
+    int lineStart = 0;
+    while (lineStart < length) {
+      int lineEnd = lineStart;
+      while (lineEnd < length && contents[lineEnd] != '\n') {
+        lineEnd++;
+      }
+      lineEnd = Math.min(lineEnd + 1, length);
+      if (startsWith(contents, lineStart, length, DTSTAMP)) {
+        sha256.update(contents, runStart, lineStart - runStart);
+        runStart = lineEnd;
+      }
+      lineStart = lineEnd;
+    }
+    sha256.update(contents, runStart, length - runStart);
+  }
+
+  /**
+   * Returns true if the given bytes occur at the given index of an array, before the given end.
+   *
+   * @param array an array
+   * @param index an index into the array
+   * @param end the end of the part of the array to search
+   * @param prefix the bytes to look for
+   * @return true if {@code prefix} occurs in {@code array} at {@code index}
+   */
+  private static boolean startsWith(byte[] array, int index, int end, byte[] prefix) {
+    return end - index >= prefix.length
+        && Arrays.equals(array, index, index + prefix.length, prefix, 0, prefix.length);
+  }
+
+  /**
+   * Reads a snapshot from a file, by memory-mapping it.
+   *
+   * @param file the snapshot file
+   * @return the snapshot, or null if the file does not exist or is not a well-formed snapshot of
+   *     the current version
+   * @throws IOException if the file exists but could not be read
+   */
+  static @Nullable BusySnapshot read(Path file) throws IOException {
+    MappedByteBuffer in;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      // The mapping remains valid after the channel is closed.
+      in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+    try {
+      if (in.getLong() != MAGIC || in.getInt() != VERSION) {
+        return null;
+      }
+      CRC32 crc = new CRC32();
+      crc.update(in.duplicate().position(0).limit(in.limit() - Integer.BYTES));
+      if ((int) crc.getValue() != in.getInt(in.limit() - Integer.BYTES)) {
+        return null;
+      }
+      long windowStart = in.getLong();
+      long windowEnd = in.getLong();
+      int count = in.getInt();
+      if (count < 0 || count > in.remaining()) {
+        return null;
+      }
+      List<String> urls = new ArrayList<>(count);
+      List<byte[]> hashes = new ArrayList<>(count);
+      List<BusyIndex> busyTimes = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        int urlLength = in.getInt();
+        if (urlLength < 0 || urlLength > in.remaining()) {
+          return null;
+        }
+        byte[] url = new byte[urlLength];
+        in.get(url);
+        urls.add(new String(url, StandardCharsets.UTF_8));
+        byte[] hash = new byte[HASH_LENGTH];
+        in.get(hash);
+        hashes.add(hash);
+        busyTimes.add(BusyIndex.read(in));
+      }
+      return new BusySnapshot(windowStart, windowEnd, urls, hashes, busyTimes);
+    } catch (BufferUnderflowException | IOException e) {
+      // A truncated or corrupt file, which the checksum did not catch.
+      return null;
+    }
+  }
+
+  /**
+   * Writes this snapshot to a file. The file is replaced atomically, so a concurrent reader sees
+   * either the old snapshot or the new one.
+   *
+   * @param file the snapshot file
+   * @throws IOException if the file could not be written
+   */
+  void write(Path file) throws IOException {
+    List<byte[]> encodedUrls = new ArrayList<>(urls.size());
+    int size = Long.BYTES + Integer.BYTES + 2 * Long.BYTES + Integer.BYTES + Integer.BYTES;
+    for (int i = 0; i < urls.size(); i++) {
+      byte[] url = urls.get(i).getBytes(StandardCharsets.UTF_8);
+      encodedUrls.add(url);
+      size += Integer.BYTES + url.length + HASH_LENGTH + busyTimes.get(i).serializedSize();
+    }
+    ByteBuffer out = ByteBuffer.allocate(size);
+    out.putLong(MAGIC).putInt(VERSION).putLong(windowStart).putLong(windowEnd).putInt(urls.size());
+    for (int i = 0; i < urls.size(); i++) {
+      out.putInt(encodedUrls.get(i).length).put(encodedUrls.get(i)).put(hashes.get(i));
+      busyTimes.get(i).write(out);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(out.duplicate().flip());
+    out.putInt((int) crc.getValue());
+    out.flip();
+
+    Path directory = file.toAbsolutePath().getParent();
+    if (directory == null) {
+      throw new IOException("Not a file: " + file);
+    }
+    Path tmp = Files.createTempFile(directory, "snapshot", ".tmp");
+    try {
+      try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+        while (out.hasRemaining()) {
+          channel.write(out);
+        }
+      }
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+}
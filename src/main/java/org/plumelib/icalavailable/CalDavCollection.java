@@ -0,0 +1,673 @@
+package org.plumelib.icalavailable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import net.fortuna.ical4j.data.CalendarBuilder;
+import net.fortuna.ical4j.data.ParserException;
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.Component;
+import net.fortuna.ical4j.model.component.CalendarComponent;
+import net.fortuna.ical4j.model.component.VEvent;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * A calendar collection on a CalDAV server (RFC 4791), kept in step with the server by WebDAV
+ * sync-collection reports (RFC 6578). The first sync lists every resource in the collection; each
+ * later one sends the sync token that the server returned the time before, and the server lists
+ * only the resources that have been added, changed, or deleted since. Only those resources are then
+ * fetched, with a calendar-multiget report, and only they are parsed, so a refresh costs time and
+ * bandwidth in proportion to what changed rather than to the size of the collection.
+ *
+ * <p>A collection is named like any other calendar, by its URL prefixed with {@code caldav:}, such
+ * as {@code caldav:https://example.com/dav/alice/calendar/}. A user name and password in the URL
+ * are sent with Basic authentication.
+ *
+ * <p>The resources of each collection are held in memory, parsed, for the life of the process; the
+ * collection is neither cached on disk nor filtered to the summarized dates. So it is the server
+ * and {@code --watch}, which refresh the calendars again and again, that gain from it. If the
+ * server no longer accepts the sync token, for instance because it has discarded old changes, or
+ * cannot list the changes since it, the collection is listed in full again.
+ *
+ * <p>A collection is thread-safe.
+ */
+@SuppressWarnings("PMD") // todo
+final class CalDavCollection {
+
+  /** The prefix of a URL that names a CalDAV collection. */
+  static final String PREFIX = "caldav:";
+
+  /** The XML namespace of WebDAV. */
+  private static final String DAV = "DAV:";
+
+  /** The XML namespace of CalDAV. */
+  private static final String CALDAV = "urn:ietf:params:xml:ns:caldav";
+
+  /** The most resources to ask for in one calendar-multiget report. */
+  static final int MAX_MULTIGET = 100;
+
+  /**
+   * The most sync-collection reports in one sync. A server that limits the size of its responses
+   * lists the changes a part at a time.
+   */
+  static final int MAX_SYNC_REPORTS = 100;
+
+  /** The collections, by URL, including the prefix. */
+  private static final Map<String, CalDavCollection> collections = new ConcurrentHashMap<>();
+
+  /** One calendar resource in the collection. */
+  private static final class Resource {
+
+    /** The ETag of the resource, or null if the server did not report one. */
+    final @Nullable String etag;
+
+    /** The resource, an iCalendar object, as UTF-8 with CRLF line endings. Not mutated. */
+    final byte[] data;
+
+    /** The events of the resource, or null if it has not been parsed yet. */
+    @Nullable List<VEvent> events;
+
+    /**
+     * Creates a new Resource.
+     *
+     * @param etag the ETag of the resource, or null if the server did not report one
+     * @param data the resource, as UTF-8 with CRLF line endings; not copied
+     */
+    Resource(@Nullable String etag, byte[] data) {
+      this.etag = etag;
+      this.data = data;
+    }
+  }
+
+  /** One member of a multistatus response. */
+  private static final class Member {
+
+    /** The href of the member, as sent by the server. */
+    final String href;
+
+    /** The HTTP status of the member, such as 200, or 404 if it has been deleted. */
+    final int status;
+
+    /** The ETag of the member, or null if the response does not include it. */
+    final @Nullable String etag;
+
+    /** The calendar data of the member, or null if the response does not include it. */
+    final @Nullable String calendarData;
+
+    /**
+     * Creates a new Member.
+     *
+     * @param href the href of the member, as sent by the server
+     * @param status the HTTP status of the member
+     * @param etag the ETag of the member, or null if the response does not include it
+     * @param calendarData the calendar data of the member, or null if the response does not include
+     *     it
+     */
+    Member(String href, int status, @Nullable String etag, @Nullable String calendarData) {
+      this.href = href;
+      this.status = status;
+      this.etag = etag;
+      this.calendarData = calendarData;
+    }
+  }
+
+  /** The URL of the collection, including the prefix. */
+  private final String url;
+
+  /** The URL of the collection on the server, without any user name and password. */
+  private final URI collection;
+
+  /** The value of the Authorization header, or null if the URL names no user. */
+  private final @Nullable String authorization;
+
+  /**
+   * The sync token that the server returned last, or null before the first sync. Guarded by this.
+   */
+  private @Nullable String syncToken;
+
+  /** The resources of the collection, by {@linkplain #key key}. Guarded by this. */
+  private final TreeMap<String, Resource> resources = new TreeMap<>();
+
+  /**
+   * The resources of the collection, concatenated, or null if they have changed since they were
+   * last concatenated. Guarded by this.
+   */
+  private @Nullable FeedContents contents;
+
+  /**
+   * Creates a new CalDavCollection.
+   *
+   * @param url the URL of the collection, including the prefix
+   */
+  @SuppressWarnings({
+    "index", // isCalDav(url) is checked first
+    "nullness:argument" // the URI constructor accepts null for a missing component
+  })
+  private CalDavCollection(String url) {
+    if (!isCalDav(url)) {
+      throw new IllegalArgumentException("Not a CalDAV URL: " + url);
+    }
+    this.url = url;
+    URI uri = URI.create(url.substring(PREFIX.length()));
+    String scheme = uri.getScheme();
+    if (scheme == null
+        || !(scheme.equalsIgnoreCase("http") || scheme.equalsIgnoreCase("https"))
+        || uri.getHost() == null) {
+      throw new IllegalArgumentException(
+          "A CalDAV URL must be caldav: followed by an http or https URL: " + url);
+    }
+    String userInfo = uri.getUserInfo();
+    if (userInfo == null) {
+      this.collection = uri;
+      this.authorization = null;
+    } else {
+      try {
+        this.collection =
+            new URI(
+                uri.getScheme(),
+                null,
+                uri.getHost(),
+                uri.getPort(),
+                uri.getPath(),
+                uri.getQuery(),
+                null);
+      } catch (URISyntaxException e) {
+        throw new IllegalArgumentException("Malformed CalDAV URL: " + url, e);
+      }
+      this.authorization =
+          "Basic " + Base64.getEncoder().encodeToString(userInfo.getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  /**
+   * Returns true if the given URL names a CalDAV collection.
+   *
+   * @param url the URL of a calendar
+   * @return true if the URL names a CalDAV collection
+   */
+  static boolean isCalDav(String url) {
+    return url.regionMatches(true, 0, PREFIX, 0, PREFIX.length());
+  }
+
+  /**
+   * Returns the collection with the given URL, creating it if necessary. The collection, and what
+   * it has fetched, lasts as long as the process.
+   *
+   * @param url the URL of the collection, including the prefix
+   * @return the collection with the given URL
+   * @throws IllegalArgumentException if the URL is malformed
+   */
+  static CalDavCollection forUrl(String url) {
+    return collections.computeIfAbsent(url, CalDavCollection::new);
+  }
+
+  /**
+   * Brings the collection up to date with the server, fetching the resources that have been added
+   * or changed since the previous sync and forgetting those that have been deleted.
+   *
+   * @param fetcher the fetcher whose HTTP client and timeouts to use
+   * @return the resources of the collection, concatenated in the order of their hrefs; an iCalendar
+   *     stream that holds one iCalendar object per resource
+   * @throws IOException if the server could not be reached, or reported an error
+   */
+  synchronized FeedContents sync(CalendarFetcher fetcher) throws IOException {
+    // The members that have been added or changed, with their ETags, and those that have been
+    // deleted, by key; and the href of each member, as the server wrote it.
+    Map<String, @Nullable String> changed = new HashMap<>();
+    Set<String> deleted = new HashSet<>();
+    Map<String, String> hrefs = new HashMap<>();
+    String token = syncToken;
+    boolean full = token == null;
+    for (int reports = 0; ; reports++) {
+      if (reports == MAX_SYNC_REPORTS) {
+        throw new IOException(
+            "Server did not finish listing changes in " + MAX_SYNC_REPORTS + " reports");
+      }
+      Document response = report(fetcher, "0", syncCollection(token));
+      if (response == null) {
+        if (full) {
+          throw new IOException(
+              "Server refused the sync-collection report, or sent a malformed response");
+        }
+        // The server no longer accepts the token, or could not list the changes since it; list
+        // the whole collection again.
+        token = null;
+        full = true;
+        changed.clear();
+        deleted.clear();
+        hrefs.clear();
+        reports = -1;
+        continue;
+      }
+      boolean truncated = false;
+      for (Member member : members(response)) {
+        if (isCollection(member.href)) {
+          // The server lists the changes a part at a time; ask again with the new token.
+          truncated |= member.status == 507;
+        } else if (member.status == 404) {
+          String key = key(member.href);
+          changed.remove(key);
+          deleted.add(key);
+        } else {
+          String key = key(member.href);
+          deleted.remove(key);
+          changed.put(key, member.etag);
+          hrefs.put(key, member.href);
+        }
+      }
+      Element tokenElement = first(response.getDocumentElement(), DAV, "sync-token");
+      if (tokenElement == null || text(tokenElement).isBlank()) {
+        throw new IOException("Server did not return a sync token");
+      }
+      token = text(tokenElement).trim();
+      if (!truncated) {
+        break;
+      }
+    }
+
+    if (full) {
+      // Every resource that a full listing omits has been deleted.
+      for (String href : resources.keySet()) {
+        if (!changed.containsKey(href)) {
+          deleted.add(href);
+        }
+      }
+    }
+    for (String href : deleted) {
+      if (resources.remove(href) != null) {
+        contents = null;
+      }
+    }
+    List<String> stale = new ArrayList<>();
+    for (Map.Entry<String, @Nullable String> change : changed.entrySet()) {
+      Resource resource = resources.get(change.getKey());
+      String etag = change.getValue();
+      // Without an ETag, there is no telling whether the resource has changed.
+      if (resource == null || etag == null || !etag.equals(resource.etag)) {
+        stale.add(change.getKey());
+      }
+    }
+    for (int i = 0; i < stale.size(); i += MAX_MULTIGET) {
+      fetch(fetcher, stale.subList(i, Math.min(stale.size(), i + MAX_MULTIGET)), hrefs);
+    }
+    Stats.count(url, Stats.Counter.SYNCED_RESOURCES, stale.size());
+    syncToken = token;
+
+    FeedContents result = contents;
+    if (result == null) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      for (Resource resource : resources.values()) {
+        out.write(resource.data);
+      }
+      result = FeedContents.of(out.toByteArray());
+      contents = result;
+    }
+    return result;
+  }
+
+  /**
+   * Returns the events of the collection as of the most recent sync, in one calendar. Only the
+   * resources that have been fetched since the previous call are parsed.
+   *
+   * @param maxEvents the most events to return
+   * @return the events of the collection, in one calendar
+   * @throws IOException if a resource could not be parsed, or there are more than {@code maxEvents}
+   *     events
+   */
+  synchronized Calendar calendar(int maxEvents) throws IOException {
+    Calendar result = new Calendar();
+    List<CalendarComponent> components = result.getComponents();
+    // Building a CalendarBuilder costs more than parsing a typical resource.
+    CalendarBuilder builder = null;
+    for (Map.Entry<String, Resource> entry : resources.entrySet()) {
+      Resource resource = entry.getValue();
+      List<VEvent> events = resource.events;
+      if (events == null) {
+        try (Reader in =
+            new InputStreamReader(
+                new ByteArrayInputStream(resource.data), StandardCharsets.UTF_8)) {
+          if (builder == null) {
+            builder = new CalendarBuilder(TimeZones.registry());
+          }
+          events = builder.build(in).getComponents(Component.VEVENT);
+        } catch (ParserException e) {
+          throw new IOException("Could not parse " + entry.getKey() + ": " + e.getMessage(), e);
+        }
+        resource.events = events;
+      }
+      if (components.size() + events.size() > maxEvents) {
+        throw new IOException("More than " + maxEvents + " events; see --max-events");
+      }
+      components.addAll(events);
+    }
+    return result;
+  }
+
+  /**
+   * Fetches the given resources, and replaces the remembered ones. A resource that the server
+   * reports as not found (404) has been deleted since it was listed, and is forgotten. If the
+   * server leaves out any resource, or sends one without its calendar data, no resource is
+   * replaced.
+   *
+   * @param fetcher the fetcher whose HTTP client and timeouts to use
+   * @param keys the {@linkplain #key keys} of the resources
+   * @param hrefs the href of each resource, by key, as the server wrote it
+   * @throws IOException if the server could not be reached, reported an error, or did not report on
+   *     every resource
+   */
+  private void fetch(CalendarFetcher fetcher, List<String> keys, Map<String, String> hrefs)
+      throws IOException {
+    StringBuilder body = new StringBuilder();
+    body.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n")
+        .append("<C:calendar-multiget xmlns:D=\"DAV:\" xmlns:C=\"")
+        .append(CALDAV)
+        .append("\">\n")
+        .append("  <D:prop><D:getetag/><C:calendar-data/></D:prop>\n");
+    for (String key : keys) {
+      body.append("  <D:href>").append(escape(hrefs.getOrDefault(key, key))).append("</D:href>\n");
+    }
+    body.append("</C:calendar-multiget>\n");
+    Document response = report(fetcher, "1", body.toString());
+    if (response == null) {
+      throw new IOException(
+          "Server refused the calendar-multiget report, or sent a malformed response");
+    }
+    Map<String, Member> members = new HashMap<>();
+    for (Member member : members(response)) {
+      members.put(key(member.href), member);
+    }
+    List<Member> fetched = new ArrayList<>(keys.size());
+    for (String key : keys) {
+      Member member = members.get(key);
+      if (member == null) {
+        throw new IOException(
+            "Server did not return " + hrefs.getOrDefault(key, key) + " in a calendar-multiget");
+      }
+      if (member.status != 404 && member.calendarData == null) {
+        throw new IOException(
+            "Server returned no calendar data for "
+                + member.href
+                + " (status "
+                + member.status
+                + ")");
+      }
+      fetched.add(member);
+    }
+    for (int i = 0; i < keys.size(); i++) {
+      Member member = fetched.get(i);
+      String calendarData = member.calendarData;
+      if (calendarData == null) {
+        // Deleted since it was listed.
+        resources.remove(keys.get(i));
+      } else {
+        resources.put(keys.get(i), new Resource(member.etag, crlf(calendarData)));
+      }
+    }
+    contents = null;
+  }
+
+  /**
+   * Sends a REPORT request to the collection.
+   *
+   * @param fetcher the fetcher whose HTTP client and timeouts to use
+   * @param depth the value of the Depth header
+   * @param body the body of the request, an XML document
+   * @return the multistatus response, or null if the server refused the report because a
+   *     precondition failed (status 403 or 409), such as that the sync token is valid; could not
+   *     produce it (507); or sent a response that is cut short or otherwise malformed
+   * @throws IOException if the server could not be reached, or reported any other error
+   */
+  @SuppressWarnings("mustcall:type.argument") // HttpResponse's type parameter is not annotated
+  private @Nullable Document report(CalendarFetcher fetcher, String depth, String body)
+      throws IOException {
+    HttpRequest.Builder request =
+        HttpRequest.newBuilder(collection)
+            .method("REPORT", BodyPublishers.ofString(body, StandardCharsets.UTF_8))
+            .header("Content-Type", "application/xml; charset=utf-8")
+            .header("Depth", depth)
+            .header("Accept-Encoding", "gzip, deflate");
+    if (authorization != null) {
+      request.header("Authorization", authorization);
+    }
+    HttpResponse<InputStream> response = fetcher.send(request);
+    int status = response.statusCode();
+    if (status != 207) {
+      response.body().close();
+      if (status == 403 || status == 409 || status == 507) {
+        return null;
+      }
+      throw new IOException("Server returned HTTP response code: " + status);
+    }
+    try (InputStream in = fetcher.decode(response)) {
+      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+      factory.setNamespaceAware(true);
+      // A multistatus response has no DTD, and refusing one rules out entity expansion.
+      factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+      return factory.newDocumentBuilder().parse(in);
+    } catch (SAXException e) {
+      return null;
+    } catch (ParserConfigurationException e) {
+      throw new IOException("Cannot parse XML: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Returns the body of a sync-collection report.
+   *
+   * @param token the sync token of the previous sync, or null to list the whole collection
+   * @return the body of a sync-collection report
+   */
+  private static String syncCollection(@Nullable String token) {
+    return "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+        + "<D:sync-collection xmlns:D=\"DAV:\">\n"
+        + "  <D:sync-token>"
+        + (token == null ? "" : escape(token))
+        + "</D:sync-token>\n"
+        + "  <D:sync-level>1</D:sync-level>\n"
+        + "  <D:prop><D:getetag/></D:prop>\n"
+        + "</D:sync-collection>\n";
+  }
+
+  /**
+   * Returns the members of a multistatus response.
+   *
+   * @param response a multistatus response
+   * @return the members of the response, in order
+   */
+  private static List<Member> members(Document response) {
+    List<Member> result = new ArrayList<>();
+    NodeList responses = response.getElementsByTagNameNS(DAV, "response");
+    for (int i = 0; i < responses.getLength(); i++) {
+      if (!(responses.item(i) instanceof Element element)) {
+        continue;
+      }
+      Element href = child(element, DAV, "href");
+      if (href == null) {
+        continue;
+      }
+      // A member that is gone has a status of its own; one that exists has a status per property.
+      Element status = child(element, DAV, "status");
+      String etag = null;
+      String calendarData = null;
+      int code = status == null ? 0 : statusCode(text(status));
+      for (Node n = element.getFirstChild(); n != null; n = n.getNextSibling()) {
+        if (n instanceof Element propstat && isElement(propstat, DAV, "propstat")) {
+          Element propstatStatus = child(propstat, DAV, "status");
+          int propstatCode = propstatStatus == null ? 200 : statusCode(text(propstatStatus));
+          if (propstatCode / 100 != 2) {
+            continue;
+          }
+          code = 200;
+          Element etagElement = first(propstat, DAV, "getetag");
+          if (etagElement != null) {
+            etag = text(etagElement).trim();
+          }
+          Element dataElement = first(propstat, CALDAV, "calendar-data");
+          if (dataElement != null) {
+            calendarData = text(dataElement);
+          }
+        }
+      }
+      result.add(new Member(text(href).trim(), code, etag, calendarData));
+    }
+    return result;
+  }
+
+  /**
+   * Returns the key by which a member of the collection is remembered: the path of its href,
+   * resolved against the collection and decoded. A server may write the same member's href
+   * differently in different responses, such as a full URL in one and an absolute path in the
+   * other, or with different characters escaped.
+   *
+   * @param href an href from a multistatus response
+   * @return the key of the member, or the href itself if it is malformed
+   */
+  private String key(String href) {
+    String path;
+    try {
+      path = collection.resolve(href).getPath();
+    } catch (IllegalArgumentException e) {
+      return href;
+    }
+    return path == null ? href : path;
+  }
+
+  /**
+   * Returns true if the given href names this collection, rather than one of its members.
+   *
+   * @param href an href from a multistatus response
+   * @return true if the href names this collection
+   */
+  private boolean isCollection(String href) {
+    String collectionPath = collection.getPath();
+    return collectionPath != null && stripSlash(key(href)).equals(stripSlash(collectionPath));
+  }
+
+  /**
+   * Returns a path without its trailing slash, if any.
+   *
+   * @param path a path
+   * @return the path without its trailing slash
+   */
+  private static String stripSlash(String path) {
+    return path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+  }
+
+  /**
+   * Returns the status code of an HTTP status line, such as 404 for "HTTP/1.1 404 Not Found".
+   *
+   * @param statusLine an HTTP status line
+   * @return the status code, or 0 if the line is malformed
+   */
+  private static int statusCode(String statusLine) {
+    String[] parts = statusLine.trim().split("\\s+", 3);
+    if (parts.length < 2) {
+      return 0;
+    }
+    try {
+      return Integer.parseInt(parts[1]);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Returns true if the given element has the given name.
+   *
+   * @param element an element
+   * @param namespace the namespace of the name
+   * @param localName the local part of the name
+   * @return true if the element has the given name
+   */
+  private static boolean isElement(Element element, String namespace, String localName) {
+    return namespace.equals(element.getNamespaceURI()) && localName.equals(element.getLocalName());
+  }
+
+  /**
+   * Returns the first child of an element that has the given name.
+   *
+   * @param parent an element
+   * @param namespace the namespace of the name
+   * @param localName the local part of the name
+   * @return the first child of the element that has the given name, or null if there is none
+   */
+  private static @Nullable Element child(Element parent, String namespace, String localName) {
+    for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+      if (n instanceof Element element && isElement(element, namespace, localName)) {
+        return element;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the first descendant of an element that has the given name.
+   *
+   * @param ancestor an element
+   * @param namespace the namespace of the name
+   * @param localName the local part of the name
+   * @return the first descendant of the element that has the given name, or null if there is none
+   */
+  private static @Nullable Element first(Element ancestor, String namespace, String localName) {
+    NodeList elements = ancestor.getElementsByTagNameNS(namespace, localName);
+    return elements.getLength() == 0 ? null : (Element) elements.item(0);
+  }
+
+  /**
+   * Returns the text content of an element.
+   *
+   * @param element an element
+   * @return the text content of the element, or the empty string if it has none
+   */
+  private static String text(Element element) {
+    String result = element.getTextContent();
+    return result == null ? "" : result;
+  }
+
+  /**
+   * Escapes text for use as the content of an XML element.
+   *
+   * @param text some text
+   * @return the text, with the characters that are special in XML escaped
+   */
+  private static String escape(String text) {
+    return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+  }
+
+  /**
+   * Returns calendar data as UTF-8 with CRLF line endings. An XML parser turns every line ending
+   * into LF, but an iCalendar object ends its lines with CRLF.
+   *
+   * @param calendarData the text of a calendar-data element
+   * @return the calendar data, as UTF-8 with CRLF line endings
+   */
+  private static byte[] crlf(String calendarData) {
+    String text = calendarData.strip().replace("\r\n", "\n").replace("\n", "\r\n") + "\r\n";
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,241 @@
+package org.plumelib.icalavailable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Properties;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * An on-disk cache of calendar feeds. For each URL, the cache holds the raw bytes of the feed and
+ * the HTTP validators (ETag and Last-Modified) that the server sent with them.
+ *
+ * <p>A cached feed that is younger than the time-to-live is used without contacting the server.
+ * Otherwise, the cache makes a conditional request, and the server re-sends the feed only if it has
+ * changed. In offline mode, the cache never contacts the server and serves whatever it has, however
+ * stale.
+ */
+@SuppressWarnings("PMD") // todo
+final class CalendarCache {
+
+  /** Requests feeds from their servers. */
+  @FunctionalInterface
+  interface Opener {
+    /**
+     * Requests a feed. If the request names a cached copy of the feed by its validators, the server
+     * may reply that the feed has not changed.
+     *
+     * @param url the URL of the feed
+     * @param etag the ETag validator of the cached copy, or null
+     * @param ifModifiedSince the Last-Modified validator of the cached copy, in milliseconds since
+     *     the epoch, or 0
+     * @return the response, which the caller must close
+     * @throws IOException if the URL is malformed, or the feed cannot be requested
+     */
+    FeedResponse open(String url, @Nullable String etag, long ifModifiedSince) throws IOException;
+  }
+
+  /** The metadata key for the URL, to detect (astronomically unlikely) hash collisions. */
+  private static final String URL_KEY = "url";
+
+  /** The metadata key for the ETag validator. */
+  private static final String ETAG_KEY = "etag";
+
+  /** The metadata key for the Last-Modified validator, in milliseconds since the epoch. */
+  private static final String LAST_MODIFIED_KEY = "last-modified";
+
+  /** The metadata key for the time the feed was last fetched or revalidated. */
+  private static final String FETCHED_KEY = "fetched";
+
+  /** The directory that holds the cache files. */
+  private final Path directory;
+
+  /** How long a cached feed is used without revalidating it. */
+  private final Duration ttl;
+
+  /** If true, never contact the server. */
+  private final boolean offline;
+
+  /** The clock, for determining whether a cached feed has expired. */
+  private final Clock clock;
+
+  /**
+   * Creates a new CalendarCache.
+   *
+   * @param directory the directory that holds the cache files; it is created if necessary
+   * @param ttl how long a cached feed is used without revalidating it
+   * @param offline if true, never contact the server
+   */
+  CalendarCache(Path directory, Duration ttl, boolean offline) {
+    this(directory, ttl, offline, Clock.systemUTC());
+  }
+
+  /**
+   * Creates a new CalendarCache.
+   *
+   * @param directory the directory that holds the cache files; it is created if necessary
+   * @param ttl how long a cached feed is used without revalidating it
+   * @param offline if true, never contact the server
+   * @param clock the clock, for determining whether a cached feed has expired
+   */
+  CalendarCache(Path directory, Duration ttl, boolean offline, Clock clock) {
+    this.directory = directory;
+    this.ttl = ttl;
+    this.offline = offline;
+    this.clock = clock;
+  }
+
+  /**
+   * Returns the contents of the given feed, from the cache if possible and otherwise from the
+   * server. Updates the cache. A feed is written straight to the cache as it arrives, and a feed
+   * that is too large to hold in memory is then read from the cache each time it is used.
+   *
+   * @param url the URL of the feed
+   * @param opener opens connections to the server
+   * @param maxInMemory the most bytes of the feed to hold in memory
+   * @return the contents of the feed
+   * @throws IOException if the feed is not cached and cannot be fetched
+   */
+  FeedContents read(String url, Opener opener, long maxInMemory) throws IOException {
+    String key = key(url);
+    Path dataFile = directory.resolve(key + ".ics");
+    Path metaFile = directory.resolve(key + ".properties");
+    Properties meta = Files.isRegularFile(dataFile) ? readMeta(metaFile, url) : null;
+
+    if (offline) {
+      if (meta == null) {
+        throw new IOException("Offline, and no cached copy of " + url);
+      }
+      return FeedContents.of(dataFile, maxInMemory);
+    }
+
+    long now = clock.millis();
+    if (meta != null && now - Long.parseLong(meta.getProperty(FETCHED_KEY, "0")) < ttl.toMillis()) {
+      return FeedContents.of(dataFile, maxInMemory);
+    }
+
+    String etag = meta == null ? null : meta.getProperty(ETAG_KEY);
+    String lastModified = meta == null ? null : meta.getProperty(LAST_MODIFIED_KEY);
+    try (FeedResponse response =
+        opener.open(url, etag, lastModified == null ? 0 : Long.parseLong(lastModified))) {
+      if (meta != null && response.notModified) {
+        meta.setProperty(FETCHED_KEY, Long.toString(now));
+        writeMeta(metaFile, meta);
+        return FeedContents.of(dataFile, maxInMemory);
+      }
+      Properties newMeta = new Properties();
+      newMeta.setProperty(URL_KEY, url);
+      newMeta.setProperty(FETCHED_KEY, Long.toString(now));
+      if (response.etag != null) {
+        newMeta.setProperty(ETAG_KEY, response.etag);
+      }
+      if (response.lastModified != 0) {
+        newMeta.setProperty(LAST_MODIFIED_KEY, Long.toString(response.lastModified));
+      }
+      Files.createDirectories(directory);
+      writeAtomically(dataFile, response.body());
+      writeMeta(metaFile, newMeta);
+      return FeedContents.of(dataFile, maxInMemory);
+    }
+  }
+
+  /**
+   * Returns the name of the cache files for the given URL, without extension.
+   *
+   * @param url a URL
+   * @return the name of the cache files for the URL
+   */
+  static String key(String url) {
+    try {
+      MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+      return HexFormat.of().formatHex(sha256.digest(url.getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new Error("SHA-256 is required of every Java implementation", e);
+    }
+  }
+
+  /**
+   * Reads the metadata of a cached feed.
+   *
+   * @param metaFile the metadata file
+   * @param url the URL of the feed
+   * @return the metadata, or null if the feed is not cached or the metadata is unusable, as when
+   *     the file is corrupt
+   */
+  private static @Nullable Properties readMeta(Path metaFile, String url) {
+    if (!Files.isRegularFile(metaFile)) {
+      return null;
+    }
+    Properties result = new Properties();
+    try (Reader reader = Files.newBufferedReader(metaFile, StandardCharsets.UTF_8)) {
+      result.load(reader);
+    } catch (IOException | IllegalArgumentException e) {
+      return null;
+    }
+    if (!url.equals(result.getProperty(URL_KEY))
+        || !isLong(result.getProperty(FETCHED_KEY, "0"))
+        || !isLong(result.getProperty(LAST_MODIFIED_KEY, "0"))) {
+      return null;
+    }
+    return result;
+  }
+
+  /**
+   * Returns true if the given string is a decimal long, as written by {@link Long#toString}.
+   *
+   * @param s a string
+   * @return true if {@code s} can be parsed by {@link Long#parseLong}
+   */
+  private static boolean isLong(String s) {
+    try {
+      Long.parseLong(s);
+      return true;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Writes the metadata of a cached feed.
+   *
+   * @param metaFile the metadata file, in {@link #directory}
+   * @param meta the metadata
+   * @throws IOException if the file cannot be written
+   */
+  private void writeMeta(Path metaFile, Properties meta) throws IOException {
+    Path tmp = Files.createTempFile(directory, "meta", ".tmp");
+    try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+      meta.store(writer, null);
+    }
+    Files.move(tmp, metaFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Writes a file, such that a concurrent reader sees either the old or the new contents.
+   *
+   * @param file the file to write, in {@link #directory}
+   * @param contents the new contents of the file
+   * @throws IOException if the contents cannot be read, or the file cannot be written
+   */
+  private void writeAtomically(Path file, InputStream contents) throws IOException {
+    Path tmp = Files.createTempFile(directory, "data", ".tmp");
+    try (OutputStream out = Files.newOutputStream(tmp)) {
+      contents.transferTo(out);
+    } catch (IOException e) {
+      Files.deleteIfExists(tmp);
+      throw e;
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
@@ -0,0 +1,610 @@
+package org.plumelib.icalavailable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import net.fortuna.ical4j.data.CalendarBuilder;
+import net.fortuna.ical4j.data.ParserException;
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.Component;
+import org.checkerframework.checker.mustcall.qual.Owning;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Fetches and parses calendars in iCalendar format. When given several URLs, the fetches run
+ * concurrently, so the total time is close to that of the slowest feed rather than the sum of all
+ * of them.
+ *
+ * <p>Memory is bounded however large a feed is. A feed larger than the fetcher's maximum size is
+ * streamed to a file (the cache, if there is one, and otherwise a temporary file), never held in
+ * memory, and parsed from the file with events outside the window dropped. A feed that has more
+ * events than the fetcher's maximum is likewise truncated to the window. The size of the file is
+ * bounded separately: a feed, or a CalDAV response, that decompresses to more than the fetcher's
+ * maximum download size fails as soon as it passes that size; see {@link FeedResponse#limit}.
+ *
+ * <p>Feeds at http and https URLs are fetched with an {@link HttpClient} that is shared by every
+ * fetcher, so feeds on the same host (as most Google calendars are) share one HTTP/2 connection,
+ * and a server refresh reuses the connections of the previous one. The client asks for the feed to
+ * be compressed, which makes a typical feed about ten times smaller on the wire, and decompresses
+ * it as it is read. Other URLs, such as file: URLs, are read with a {@link URLConnection}.
+ *
+ * <p>A URL that starts with {@code caldav:} names a calendar collection on a CalDAV server. It is
+ * not fetched whole: each fetch asks the server what has changed since the previous one, and
+ * fetches and parses only that; see {@link CalDavCollection}.
+ */
+@SuppressWarnings("PMD") // todo
+final class CalendarFetcher {
+
+  /** The maximum number of calendars that are fetched at the same time. */
+  static final int MAX_CONCURRENT_FETCHES = 8;
+
+  /** The maximum number of bytes of an unparseable response to show in an error message. */
+  static final int MAX_DUMPED_BYTES = 4096;
+
+  /**
+   * The HTTP clients, by connect timeout; in practice there is only one. A client is created when
+   * it is first needed, and keeps its connections open between fetches.
+   */
+  private static final Map<Duration, HttpClient> httpClients = new ConcurrentHashMap<>();
+
+  /**
+   * How long one call of {@link #fetchAll}, {@link #readAll}, or {@link #parseAll} may take, for
+   * all of its calendars together.
+   */
+  private final Duration timeout;
+
+  /** How long to wait to connect to a server. */
+  private final Duration connectTimeout;
+
+  /** The on-disk cache of feeds, or null if feeds are not cached. */
+  private final @Nullable CalendarCache cache;
+
+  /**
+   * The start of the window of interest, in milliseconds since the epoch. Events that lie wholly
+   * outside the window are dropped while parsing; see {@link WindowFilterReader}.
+   */
+  private final long windowStart;
+
+  /** The end of the window of interest, in milliseconds since the epoch. */
+  private final long windowEnd;
+
+  /**
+   * If true, drop events outside the window from every feed. If false, only from a feed that is
+   * larger than {@link #maxFeedSize} or has more than {@link #maxEvents} events.
+   */
+  private final boolean windowFilter;
+
+  /** The most bytes of a feed to hold in memory. A larger feed is read from a file. */
+  private final long maxFeedSize;
+
+  /**
+   * The most bytes of a feed, or of a CalDAV response, to read, after decompression. A larger one
+   * cannot be read.
+   */
+  private final long maxDownloadSize;
+
+  /** The most events to keep from a feed. */
+  private final int maxEvents;
+
+  /**
+   * Creates a new CalendarFetcher that does not cache feeds.
+   *
+   * @param timeout how long to wait for the calendars; bounds connecting, and the whole of each
+   *     call of {@link #fetchAll}, {@link #readAll}, and {@link #parseAll}
+   */
+  CalendarFetcher(Duration timeout) {
+    this(timeout, null, Long.MIN_VALUE, Long.MAX_VALUE);
+  }
+
+  /**
+   * Creates a new CalendarFetcher.
+   *
+   * @param timeout how long to wait for the calendars; bounds connecting, and the whole of each
+   *     call of {@link #fetchAll}, {@link #readAll}, and {@link #parseAll}
+   * @param cache the on-disk cache of feeds, or null if feeds should not be cached
+   * @param windowStart the start of the window of interest, in milliseconds since the epoch; use
+   *     {@code Long.MIN_VALUE} to keep all events
+   * @param windowEnd the end of the window of interest, in milliseconds since the epoch; use {@code
+   *     Long.MAX_VALUE} to keep all events
+   */
+  CalendarFetcher(
+      Duration timeout, @Nullable CalendarCache cache, long windowStart, long windowEnd) {
+    this(
+        timeout,
+        timeout,
+        cache,
+        windowStart,
+        windowEnd,
+        true,
+        Long.MAX_VALUE,
+        Long.MAX_VALUE,
+        Integer.MAX_VALUE);
+  }
+
+  /**
+   * Creates a new CalendarFetcher with limits on the size of each feed.
+   *
+   * @param timeout how long to wait for the calendars; bounds the wait for a server's response
+   *     headers, and the whole of each call of {@link #fetchAll}, {@link #readAll}, and {@link
+   *     #parseAll}
+   * @param connectTimeout how long to wait to connect to a server
+   * @param cache the on-disk cache of feeds, or null if feeds should not be cached
+   * @param windowStart the start of the window of interest, in milliseconds since the epoch
+   * @param windowEnd the end of the window of interest, in milliseconds since the epoch
+   * @param windowFilter if true, drop events outside the window from every feed; if false, only
+   *     from a feed that exceeds one of the limits
+   * @param maxFeedSize the most bytes of a feed to hold in memory; a larger feed is read from a
+   *     file
+   * @param maxDownloadSize the most bytes of a feed to read, after decompression; a larger feed
+   *     cannot be read
+   * @param maxEvents the most events to keep from a feed
+   */
+  CalendarFetcher(
+      Duration timeout,
+      Duration connectTimeout,
+      @Nullable CalendarCache cache,
+      long windowStart,
+      long windowEnd,
+      boolean windowFilter,
+      long maxFeedSize,
+      long maxDownloadSize,
+      int maxEvents) {
+    this.timeout = timeout;
+    this.connectTimeout = connectTimeout;
+    this.cache = cache;
+    this.windowStart = windowStart;
+    this.windowEnd = windowEnd;
+    this.windowFilter = windowFilter;
+    this.maxFeedSize = maxFeedSize;
+    this.maxDownloadSize = maxDownloadSize;
+    this.maxEvents = maxEvents;
+  }
+
+  /** A task for one URL. */
+  @FunctionalInterface
+  private interface UrlTask<T> {
+    /**
+     * Performs the task for one URL.
+     *
+     * @param i the index of the URL
+     * @return the result of the task
+     * @throws IOException if the task fails; the message should name the URL
+     */
+    T run(int i) throws IOException;
+  }
+
+  /**
+   * Fetches and parses each of the given calendars. The fetches run concurrently.
+   *
+   * @param urls the URLs of the calendars
+   * @return the calendars, in the same order as {@code urls}
+   * @throws IOException if any calendar could not be read. Each failing URL is described by one
+   *     suppressed exception of the thrown exception.
+   */
+  List<Calendar> fetchAll(List<String> urls) throws IOException {
+    return forEachUrl(urls, i -> parseOrWrap(urls.get(i), readOrWrap(urls.get(i))));
+  }
+
+  /**
+   * Fetches, but does not parse, each of the given calendars. The fetches run concurrently.
+   *
+   * @param urls the URLs of the calendars
+   * @return the contents of the calendars, in the same order as {@code urls}
+   * @throws IOException if any calendar could not be read. Each failing URL is described by one
+   *     suppressed exception of the thrown exception.
+   */
+  List<FeedContents> readAll(List<String> urls) throws IOException {
+    return forEachUrl(urls, i -> readOrWrap(urls.get(i)));
+  }
+
+  /**
+   * Parses each of the given calendars, which were read by {@link #readAll}. The calendars are
+   * parsed concurrently.
+   *
+   * @param urls the URLs of the calendars
+   * @param contents the contents of the calendars, in the same order as {@code urls}
+   * @return the calendars, in the same order as {@code urls}
+   * @throws IOException if any calendar could not be parsed. Each failing URL is described by one
+   *     suppressed exception of the thrown exception.
+   */
+  List<Calendar> parseAll(List<String> urls, List<FeedContents> contents) throws IOException {
+    return forEachUrl(urls, i -> parseOrWrap(urls.get(i), contents.get(i)));
+  }
+
+  /**
+   * Performs a task for each of the given URLs, concurrently. All the tasks must finish within this
+   * fetcher's timeout of the start of the call; any that has not is interrupted (or, if it has not
+   * started, never runs) and fails. So however many URLs there are, and however many of them stall,
+   * the call takes at most about the timeout. This deadline is the only bound on reading the body
+   * of an HTTP response, which the timeout of the request does not cover, so every task runs on a
+   * pool thread, even when there is only one URL.
+   *
+   * @param <T> the type of the result of the task
+   * @param urls the URLs
+   * @param task the task, which is given the index of a URL
+   * @return the results of the task, in the same order as {@code urls}
+   * @throws IOException if the task failed for any URL. Each failing URL is described by one
+   *     suppressed exception of the thrown exception.
+   */
+  private <T> List<T> forEachUrl(List<String> urls, UrlTask<T> task) throws IOException {
+    int threads = Math.max(1, Math.min(urls.size(), MAX_CONCURRENT_FETCHES));
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    long deadline = System.nanoTime() + timeout.toNanos();
+    try {
+      List<Future<T>> futures = new ArrayList<>(urls.size());
+      for (int i = 0; i < urls.size(); i++) {
+        int index = i;
+        futures.add(executor.submit(() -> task.run(index)));
+      }
+      List<T> result = new ArrayList<>(urls.size());
+      IOException failures = null;
+      for (int i = 0; i < urls.size(); i++) {
+        String url = urls.get(i);
+        try {
+          result.add(
+              futures.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          failures = addFailure(failures, urls.size(), cause == null ? e : cause);
+        } catch (TimeoutException e) {
+          futures.get(i).cancel(true);
+          failures =
+              addFailure(
+                  failures,
+                  urls.size(),
+                  new IOException(
+                      "Could not read calendar from "
+                          + url
+                          + ": timed out after "
+                          + timeout.toSeconds()
+                          + " seconds",
+                      e));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while reading calendars", e);
+        }
+      }
+      if (failures != null) {
+        Throwable[] each = failures.getSuppressed();
+        // The failure of the only URL needs no summary.
+        throw urls.size() == 1 && each.length == 1 && each[0] instanceof IOException only
+            ? only
+            : failures;
+      }
+      return result;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Records that one calendar could not be read.
+   *
+   * @param failures the exception that collects the failures so far, or null if there are none
+   * @param total the number of calendars being fetched
+   * @param failure why one calendar could not be read
+   * @return the exception that collects the failures, including {@code failure}
+   */
+  private static IOException addFailure(
+      @Nullable IOException failures, int total, Throwable failure) {
+    if (failures == null) {
+      failures = new IOException("Could not read all " + total + " calendars");
+    }
+    failures.addSuppressed(failure);
+    return failures;
+  }
+
+  /**
+   * Fetches one calendar. Any failure is reported as an IOException whose message names the URL.
+   *
+   * @param url the URL of the calendar
+   * @return the contents of the calendar
+   * @throws IOException if the calendar could not be read
+   */
+  private FeedContents readOrWrap(String url) throws IOException {
+    try {
+      Stats.Span span = Stats.start(Stats.Stage.FETCH);
+      FeedContents result = read(url);
+      span.stop(url);
+      Stats.count(url, Stats.Counter.BYTES, result.size());
+      if (!result.inMemory()) {
+        Stats.count(url, Stats.Counter.SPILLED_FEEDS, 1);
+      }
+      return result;
+    } catch (IOException | RuntimeException e) {
+      throw new IOException("Could not read calendar from " + url + ": " + e, e);
+    }
+  }
+
+  /**
+   * Parses one calendar. Any failure is reported as an IOException whose message names the URL.
+   *
+   * @param url the URL of the calendar
+   * @param contents the contents of the calendar
+   * @return the calendar
+   * @throws IOException if the calendar could not be parsed
+   */
+  private Calendar parseOrWrap(String url, FeedContents contents) throws IOException {
+    try {
+      Stats.Span span = Stats.start(Stats.Stage.PARSE);
+      Calendar result =
+          CalDavCollection.isCalDav(url)
+              ? CalDavCollection.forUrl(url).calendar(maxEvents)
+              : parse(contents);
+      span.stop(url);
+      if (Stats.enabled()) {
+        Stats.count(url, Stats.Counter.EVENTS, result.getComponents(Component.VEVENT).size());
+      }
+      return result;
+    } catch (ParserException pe) {
+      // The message is "Error at line 1:Expected [BEGIN], read [<HTML>]" or similar.
+      String message = pe.getMessage();
+      if (message != null && message.contains("Expected [BEGIN], read [<")) {
+        throw new IOException(
+            "Could not read calendar from "
+                + url
+                + "\nIt is possible that the calendar has moved."
+                + "\nContents:\n"
+                + new String(contents.head(MAX_DUMPED_BYTES), StandardCharsets.UTF_8),
+            pe);
+      }
+      throw new IOException("Could not read calendar from " + url + ": " + pe.getMessage(), pe);
+    } catch (IOException | RuntimeException e) {
+      throw new IOException("Could not read calendar from " + url + ": " + e, e);
+    }
+  }
+
+  /**
+   * Fetches and parses one calendar, within this fetcher's timeout.
+   *
+   * @param url the URL of the calendar
+   * @return the calendar
+   * @throws IOException if the calendar could not be read or parsed, or took too long
+   */
+  Calendar fetch(String url) throws IOException {
+    return fetchAll(List.of(url)).get(0);
+  }
+
+  /**
+   * Parses a calendar, omitting events that lie wholly outside this fetcher's window.
+   *
+   * @param contents the calendar, in iCalendar format
+   * @return the calendar
+   * @throws IOException if the calendar could not be read
+   * @throws ParserException if the calendar could not be parsed
+   */
+  Calendar parse(byte[] contents) throws IOException, ParserException {
+    return parse(FeedContents.of(contents));
+  }
+
+  /**
+   * Parses a calendar. Events that lie wholly outside this fetcher's window are omitted if the
+   * fetcher filters every calendar, if the calendar is too large to hold in memory, or if it has
+   * too many events.
+   *
+   * @param contents the calendar, in iCalendar format
+   * @return the calendar
+   * @throws IOException if the calendar could not be read, or has too many events in the window
+   * @throws ParserException if the calendar could not be parsed
+   */
+  Calendar parse(FeedContents contents) throws IOException, ParserException {
+    Calendar result =
+        windowFilter || !contents.inMemory()
+            ? null
+            : parseAtMost(contents, Long.MIN_VALUE, Long.MAX_VALUE);
+    if (result == null) {
+      result = parseAtMost(contents, windowStart, windowEnd);
+      if (result == null) {
+        throw new IOException(
+            "More than " + maxEvents + " events in the summarized dates; see --max-events");
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Parses a calendar, omitting events that lie wholly outside a window, unless it has more than
+   * {@link #maxEvents} events in the window.
+   *
+   * @param contents the calendar, in iCalendar format
+   * @param start the start of the window, in milliseconds since the epoch
+   * @param end the end of the window, in milliseconds since the epoch
+   * @return the calendar, or null if it has too many events in the window
+   * @throws IOException if the calendar could not be read
+   * @throws ParserException if the calendar could not be parsed
+   */
+  private @Nullable Calendar parseAtMost(FeedContents contents, long start, long end)
+      throws IOException, ParserException {
+    if (start == Long.MIN_VALUE && end == Long.MAX_VALUE && maxEvents == Integer.MAX_VALUE) {
+      try (InputStream in = contents.open()) {
+        return new CalendarBuilder(TimeZones.registry()).build(in);
+      }
+    }
+    try (InputStream in = contents.open();
+        WindowFilterReader filtered =
+            new WindowFilterReader(
+                new InputStreamReader(in, StandardCharsets.UTF_8), start, end, maxEvents)) {
+      try {
+        return new CalendarBuilder(TimeZones.registry()).build(filtered);
+      } catch (IOException | ParserException e) {
+        // The reader throws once it passes the limit, and ical4j may wrap that exception.
+        if (filtered.eventsKept() > maxEvents) {
+          return null;
+        }
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Returns the contents of the given feed, from the cache if there is one. Only connecting and the
+   * wait for the response headers are bounded by this fetcher's timeouts; the read of the body is
+   * bounded only by the deadline of the {@link #readAll} or {@link #fetchAll} call that this runs
+   * within, which is shared by all the feeds of the call.
+   *
+   * @param url the URL of the feed
+   * @return the contents of the feed; held in memory unless the feed is larger than {@link
+   *     #maxFeedSize}
+   * @throws IOException if the feed could not be read
+   */
+  FeedContents read(String url) throws IOException {
+    if (CalDavCollection.isCalDav(url)) {
+      return CalDavCollection.forUrl(url).sync(this);
+    }
+    if (cache != null) {
+      return cache.read(url, this::open, maxFeedSize);
+    }
+    try (FeedResponse response = open(url, null, 0)) {
+      return FeedContents.read(response.body(), maxFeedSize, url);
+    }
+  }
+
+  /**
+   * Requests a feed, with this fetcher's timeouts. If the request names a copy of the feed by its
+   * validators, an HTTP server may reply that the feed has not changed.
+   *
+   * @param url the URL of the feed
+   * @param etag the ETag validator of a copy of the feed, or null
+   * @param ifModifiedSince the Last-Modified validator of a copy of the feed, in milliseconds since
+   *     the epoch, or 0
+   * @return the response
+   * @throws IOException if the feed could not be requested, or the server reported an error
+   */
+  @SuppressWarnings({
+    "mustcall:type.argument", // HttpResponse's type parameter is not annotated
+    "mustcall:type.arguments.not.inferred"
+  })
+  private FeedResponse open(String url, @Nullable String etag, long ifModifiedSince)
+      throws IOException {
+    String lowerCaseUrl = url.toLowerCase(Locale.ROOT);
+    if (!lowerCaseUrl.startsWith("http://") && !lowerCaseUrl.startsWith("https://")) {
+      URLConnection connection = new URL(url).openConnection();
+      connection.setConnectTimeout((int) Math.min(Integer.MAX_VALUE, connectTimeout.toMillis()));
+      connection.setReadTimeout((int) Math.min(Integer.MAX_VALUE, timeout.toMillis()));
+      return new FeedResponse(
+          false, null, 0, FeedResponse.limit(connection.getInputStream(), maxDownloadSize));
+    }
+
+    HttpRequest.Builder request =
+        HttpRequest.newBuilder(URI.create(url)).header("Accept-Encoding", "gzip, deflate");
+    if (etag != null) {
+      request.header("If-None-Match", etag);
+    }
+    if (ifModifiedSince != 0) {
+      request.header(
+          "If-Modified-Since",
+          DateTimeFormatter.RFC_1123_DATE_TIME.format(
+              Instant.ofEpochMilli(ifModifiedSince).atOffset(ZoneOffset.UTC)));
+    }
+    HttpResponse<InputStream> response = send(request);
+    HttpHeaders headers = response.headers();
+    int status = response.statusCode();
+    if (status == 304 || status < 200 || status >= 300) {
+      response.body().close();
+      if (status != 304) {
+        throw new IOException("Server returned HTTP response code: " + status);
+      }
+    }
+    long lastModified = 0;
+    String lastModifiedHeader = headers.firstValue("Last-Modified").orElse(null);
+    if (lastModifiedHeader != null) {
+      try {
+        lastModified =
+            Instant.from(DateTimeFormatter.RFC_1123_DATE_TIME.parse(lastModifiedHeader))
+                .toEpochMilli();
+      } catch (DateTimeParseException e) {
+        // Ignore a malformed validator, as java.net.URLConnection does.
+      }
+    }
+    return new FeedResponse(
+        status == 304,
+        headers.firstValue("ETag").orElse(null),
+        lastModified,
+        status == 304 ? InputStream.nullInputStream() : decode(response));
+  }
+
+  /**
+   * Sends a request with the shared HTTP client and this fetcher's timeouts. The body of the
+   * response is not read until the caller reads it, and the timeout does not apply to reading it;
+   * the caller must run within {@link #fetchAll} or {@link #readAll}, which interrupt a read that
+   * is still going at the deadline of the call.
+   *
+   * @param request the request, which is given this fetcher's timeout and then built
+   * @return the response
+   * @throws IOException if the request could not be sent, or no response arrived in time
+   */
+  @SuppressWarnings({
+    "mustcall:type.argument", // HttpResponse's type parameter is not annotated
+    "mustcall:type.arguments.not.inferred"
+  })
+  HttpResponse<InputStream> send(HttpRequest.Builder request) throws IOException {
+    HttpRequest built = request.timeout(timeout).build();
+    try {
+      return httpClient(connectTimeout).send(built, BodyHandlers.ofInputStream());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while requesting " + built.uri());
+    }
+  }
+
+  /**
+   * Returns the body of a response, decoded, and limited to this fetcher's maximum download size.
+   *
+   * @param response a successful response
+   * @return the body of the response, decoded, which throws an IOException once more than the
+   *     maximum download size has been read from it
+   * @throws IOException if the content coding is not supported
+   */
+  @SuppressWarnings("mustcall:type.argument") // HttpResponse's type parameter is not annotated
+  @Owning
+  InputStream decode(HttpResponse<InputStream> response) throws IOException {
+    @SuppressWarnings("resourceleak:required.method.not.called") // decode() takes ownership
+    InputStream body = response.body();
+    return FeedResponse.limit(
+        FeedResponse.decode(body, response.headers().firstValue("Content-Encoding").orElse(null)),
+        maxDownloadSize);
+  }
+
+  /**
+   * Returns the shared HTTP client with the given connect timeout, creating it if necessary.
+   *
+   * @param connectTimeout how long the client waits to connect to a server
+   * @return the shared HTTP client with the given connect timeout
+   */
+  private static HttpClient httpClient(Duration connectTimeout) {
+    return httpClients.computeIfAbsent(
+        connectTimeout,
+        t ->
+            HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(t)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build());
+  }
+}
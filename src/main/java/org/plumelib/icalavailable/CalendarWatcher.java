@@ -0,0 +1,521 @@
+package org.plumelib.icalavailable;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.Property;
+import net.fortuna.ical4j.model.component.VEvent;
+
+/**
+ * Prints the available times, then keeps watching the calendars and prints the times that become
+ * available or unavailable as the calendars change. The calendars are re-read periodically; a
+ * calendar that is a local file is also re-read as soon as it changes.
+ *
+ * <p>Each refresh does work in proportion to what changed, not to the whole calendar:
+ *
+ * <ul>
+ *   <li>A calendar whose contents are unchanged (ignoring DTSTAMP lines, as in {@link
+ *       BusySnapshot#hash}) is not parsed.
+ *   <li>In a calendar that has changed, an event whose UID, SEQUENCE, and LAST-MODIFIED are all
+ *       unchanged keeps its busy times from the previous refresh, without being expanded again.
+ *   <li>Free times are recomputed only within the business hours that overlap a time whose busyness
+ *       changed, and only the free times that differ are printed.
+ * </ul>
+ *
+ * <p>A CalendarWatcher is used by one thread.
+ */
+@SuppressWarnings("PMD") // todo
+final class CalendarWatcher {
+
+  /** The busy times of one series of events, and the version of the series that they are for. */
+  private static final class SeriesBusy {
+
+    /** The version of the series, as returned by {@link #version}. */
+    final String version;
+
+    /** The busy times of the series. */
+    final BusyIndex busy;
+
+    /**
+     * Creates a new SeriesBusy.
+     *
+     * @param version the version of the series, as returned by {@link #version}
+     * @param busy the busy times of the series
+     */
+    SeriesBusy(String version, BusyIndex busy) {
+      this.version = version;
+      this.busy = busy;
+    }
+  }
+
+  /** What is known about one calendar as of the previous refresh. */
+  private static final class Feed {
+
+    /**
+     * Expands the recurring events of this calendar. Each calendar has its own, because the keys of
+     * its series are unique only within the calendar.
+     */
+    final RecurrenceExpander expander = new RecurrenceExpander();
+
+    /** The hash of the contents of the calendar, as returned by {@link BusySnapshot#hash}. */
+    byte[] hash = new byte[0];
+
+    /** The start of the window over which {@link #series} was computed. */
+    long windowStart;
+
+    /** The end of the window over which {@link #series} was computed. */
+    long windowEnd;
+
+    /** The busy times of each series that has a key, by {@link RecurrenceExpander.Series#key}. */
+    Map<String, SeriesBusy> series = new HashMap<>();
+
+    /** The busy times of the calendar. */
+    BusyIndex busy = BusyIndex.union(List.of());
+
+    /** Creates a new Feed, for a calendar that has not been read yet. */
+    Feed() {}
+  }
+
+  /** The URLs of the calendars. */
+  private final List<String> urls;
+
+  /**
+   * Returns the current query. Called on each refresh, so that a query for "today" moves forward
+   * with the date.
+   */
+  private final Supplier<AvailabilityQuery> queries;
+
+  /** How often to re-read the calendars. */
+  private final Duration refreshInterval;
+
+  /** What is known about each calendar, in the same order as {@link #urls}. */
+  private final List<Feed> feeds = new ArrayList<>();
+
+  /**
+   * The business hours of the previous query, as returned by {@link
+   * AvailabilityQuery#businessIntervals}.
+   */
+  private long[] businessIntervals = new long[0];
+
+  /** The busy times of all the calendars, as of the previous refresh. */
+  private BusyIndex busy = BusyIndex.union(List.of());
+
+  /** The free times, as of the previous refresh, as alternating start and end times. */
+  private long[] free = new long[0];
+
+  /**
+   * Creates a new CalendarWatcher.
+   *
+   * @param urls the URLs of the calendars
+   * @param queries returns the current query; called on each refresh
+   * @param refreshInterval how often to re-read the calendars
+   */
+  CalendarWatcher(
+      List<String> urls, Supplier<AvailabilityQuery> queries, Duration refreshInterval) {
+    this.urls = urls;
+    this.queries = queries;
+    this.refreshInterval = refreshInterval;
+    for (int i = 0; i < urls.size(); i++) {
+      feeds.add(new Feed());
+    }
+  }
+
+  /**
+   * Prints the available times, and then the changes to them, until the thread is interrupted.
+   *
+   * @throws IOException if the calendars cannot be read the first time
+   */
+  void run() throws IOException {
+    AvailabilityQuery query = queries.get();
+    refresh(query);
+    System.out.print(Renderer.forFormat("text").render(slots(free), query));
+    System.out.flush();
+    ICalAvailable.printStats();
+
+    Map<Path, Set<Path>> localFiles = localFiles();
+    try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+      for (Path directory : localFiles.keySet()) {
+        directory.register(
+            watchService,
+            StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY);
+      }
+      while (true) {
+        try {
+          await(watchService, localFiles);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        long now = System.currentTimeMillis();
+        try {
+          query = queries.get();
+          long[] previous = free;
+          refresh(query);
+          String changes = formatChanges(previous, free, now, query);
+          System.out.print(changes);
+          System.out.flush();
+        } catch (IOException | RuntimeException e) {
+          System.err.println("Could not refresh calendars; continuing to use the previous ones.");
+          if (e instanceof IOException ioe) {
+            ICalAvailable.reportFetchFailure(ioe);
+          } else {
+            e.printStackTrace(System.err);
+          }
+        }
+        ICalAvailable.printStats();
+      }
+    }
+  }
+
+  /**
+   * Returns the calendars that are local files.
+   *
+   * @return the names of the calendars that are local files, by the directory that contains them
+   */
+  private Map<Path, Set<Path>> localFiles() {
+    Map<Path, Set<Path>> result = new HashMap<>();
+    for (String url : urls) {
+      if (!url.startsWith("file:")) {
+        continue;
+      }
+      try {
+        Path file = Path.of(new URI(url)).toAbsolutePath();
+        Path directory = file.getParent();
+        Path name = file.getFileName();
+        if (directory != null && name != null) {
+          result.computeIfAbsent(directory, d -> new HashSet<>()).add(name);
+        }
+      } catch (URISyntaxException | IllegalArgumentException e) {
+        // Not a file URL that can be watched; it is still re-read periodically.
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Waits until it is time to refresh: until the refresh interval has passed, or a local calendar
+   * has changed.
+   *
+   * @param watchService the service that watches the directories of the local calendars
+   * @param localFiles the names of the local calendars, by the directory that contains them
+   * @throws InterruptedException if the thread is interrupted while waiting
+   */
+  private void await(WatchService watchService, Map<Path, Set<Path>> localFiles)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + refreshInterval.toNanos();
+    boolean changed = false;
+    while (!changed) {
+      long remaining = deadline - System.nanoTime();
+      WatchKey key = remaining <= 0 ? null : watchService.poll(remaining, TimeUnit.NANOSECONDS);
+      if (key == null) {
+        return;
+      }
+      // Other files in the same directories, such as this program's output, are ignored.  An
+      // editor that saves a file may cause several events; handle all that have arrived.
+      while (key != null) {
+        Set<Path> names = localFiles.get((Path) key.watchable());
+        for (WatchEvent<?> event : key.pollEvents()) {
+          // The context of an OVERFLOW event, which means that events were lost, is null.
+          Object name = event.context();
+          if (name == null || (names != null && names.contains(name))) {
+            changed = true;
+          }
+        }
+        key.reset();
+        key = watchService.poll();
+      }
+    }
+  }
+
+  /**
+   * Re-reads the calendars, and updates {@link #busy} and {@link #free}.
+   *
+   * @param query the current query
+   * @throws IOException if any calendar cannot be read
+   */
+  void refresh(AvailabilityQuery query) throws IOException {
+    Stats.Span span = Stats.start(Stats.Stage.REFRESH);
+    long windowStart = query.windowStart();
+    long windowEnd = query.windowEnd();
+    CalendarFetcher fetcher = ICalAvailable.fetcher(windowStart, windowEnd);
+    List<FeedContents> contents = fetcher.readAll(urls);
+
+    List<String> changedUrls = new ArrayList<>();
+    List<FeedContents> changedContents = new ArrayList<>();
+    List<Feed> changedFeeds = new ArrayList<>();
+    List<byte[]> changedHashes = new ArrayList<>();
+    for (int i = 0; i < urls.size(); i++) {
+      Feed feed = feeds.get(i);
+      byte[] hash = contents.get(i).hash();
+      if (!Arrays.equals(hash, feed.hash)
+          || feed.windowStart != windowStart
+          || feed.windowEnd != windowEnd) {
+        changedUrls.add(urls.get(i));
+        changedContents.add(contents.get(i));
+        changedFeeds.add(feed);
+        changedHashes.add(hash);
+      }
+    }
+    if (!changedUrls.isEmpty()) {
+      List<Calendar> calendars = fetcher.parseAll(changedUrls, changedContents);
+      for (int i = 0; i < calendars.size(); i++) {
+        update(changedFeeds.get(i), calendars.get(i), windowStart, windowEnd);
+        changedFeeds.get(i).hash = changedHashes.get(i);
+      }
+    }
+
+    List<BusyIndex> feedBusy = new ArrayList<>(feeds.size());
+    for (Feed feed : feeds) {
+      feedBusy.add(feed.busy);
+    }
+    BusyIndex newBusy = BusyIndex.union(feedBusy);
+    long[] newBusinessIntervals = query.businessIntervals();
+    if (Arrays.equals(newBusinessIntervals, businessIntervals)) {
+      // Only the business hours that overlap a change can have different free times.
+      long[] affected = BusyIndex.overlapping(businessIntervals, busy.symmetricDifference(newBusy));
+      free =
+          merge(
+              outside(free, affected), newBusy.free(affected, AvailabilityEngine.MIN_FREE_MILLIS));
+    } else {
+      businessIntervals = newBusinessIntervals;
+      free = newBusy.free(businessIntervals, AvailabilityEngine.MIN_FREE_MILLIS);
+    }
+    busy = newBusy;
+    span.stop();
+  }
+
+  /**
+   * Returns the free times as of the previous refresh.
+   *
+   * @return the free times, as alternating start and end times
+   */
+  long[] free() {
+    return free.clone();
+  }
+
+  /**
+   * Updates what is known about a calendar that has changed. Series whose version is unchanged keep
+   * their busy times; others are expanded again.
+   *
+   * @param feed what is known about the calendar
+   * @param calendar the new version of the calendar
+   * @param windowStart the start of the window, in milliseconds since the epoch
+   * @param windowEnd the end of the window, in milliseconds since the epoch
+   */
+  private static void update(Feed feed, Calendar calendar, long windowStart, long windowEnd) {
+    boolean sameWindow = feed.windowStart == windowStart && feed.windowEnd == windowEnd;
+    List<RecurrenceExpander.Series> series = RecurrenceExpander.series(List.of(calendar));
+    feed.expander.retainAll(series);
+    Map<String, SeriesBusy> newSeries = new HashMap<>();
+    List<BusyIndex> busyTimes = new ArrayList<>(series.size());
+    for (RecurrenceExpander.Series s : series) {
+      String version = version(s);
+      SeriesBusy previous = s.key == null ? null : feed.series.get(s.key);
+      BusyIndex busy;
+      if (sameWindow && previous != null && previous.version.equals(version)) {
+        busy = previous.busy;
+      } else {
+        BusyIndex.Builder builder = new BusyIndex.Builder();
+        feed.expander.addBusyTime(s, builder, windowStart, windowEnd);
+        busy = builder.build();
+      }
+      if (s.key != null) {
+        newSeries.put(s.key, new SeriesBusy(version, busy));
+      }
+      busyTimes.add(busy);
+    }
+    feed.series = newSeries;
+    feed.busy = BusyIndex.union(busyTimes);
+    feed.windowStart = windowStart;
+    feed.windowEnd = windowEnd;
+  }
+
+  /**
+   * Returns a string that changes whenever any event of a series changes: the RECURRENCE-ID,
+   * SEQUENCE, and LAST-MODIFIED of each event. An event that has neither a SEQUENCE nor a
+   * LAST-MODIFIED is represented by all of its properties except DTSTAMP.
+   *
+   * @param series a series of events
+   * @return the version of the series
+   */
+  static String version(RecurrenceExpander.Series series) {
+    StringBuilder result = new StringBuilder();
+    VEvent master = series.master;
+    if (master != null) {
+      appendVersion(master, result);
+    }
+    for (VEvent override : series.overrides) {
+      appendVersion(override, result);
+    }
+    return result.toString();
+  }
+
+  /**
+   * Appends the version of one event; see {@link #version}.
+   *
+   * @param event an event
+   * @param out where to append the version of the event
+   */
+  private static void appendVersion(VEvent event, StringBuilder out) {
+    if (event.getSequence() == null && event.getLastModified() == null) {
+      for (Property property : event.getProperties()) {
+        if (!property.getName().equals(Property.DTSTAMP)) {
+          out.append(property);
+        }
+      }
+    } else {
+      out.append(event.getRecurrenceId())
+          .append(event.getSequence())
+          .append(event.getLastModified());
+    }
+    out.append('\n');
+  }
+
+  /**
+   * Returns the slots that do not lie within any of the given ranges.
+   *
+   * @param slots alternating start and end times; sorted and disjoint; each within one business
+   *     hour range
+   * @param ranges alternating start and end times; sorted and disjoint, though consecutive ranges
+   *     may touch
+   * @return the slots that lie within none of the ranges
+   */
+  @SuppressWarnings("index") // both arrays have even length
+  static long[] outside(long[] slots, long[] ranges) {
+    long[] result = new long[slots.length];
+    int resultLength = 0;
+    int r = 0;
+    for (int s = 0; s < slots.length; s += 2) {
+      // Skip the ranges that end before this slot does; they cannot contain later slots, either.
+      while (r < ranges.length && ranges[r + 1] < slots[s + 1]) {
+        r += 2;
+      }
+      if (r >= ranges.length || slots[s] < ranges[r]) {
+        result[resultLength++] = slots[s];
+        result[resultLength++] = slots[s + 1];
+      }
+    }
+    return Arrays.copyOf(result, resultLength);
+  }
+
+  /**
+   * Merges two sets of disjoint slots into one.
+   *
+   * @param a alternating start and end times; sorted; disjoint from each other and from {@code b}
+   * @param b alternating start and end times; sorted; disjoint from each other and from {@code a}
+   * @return the slots of both, sorted
+   */
+  @SuppressWarnings("index") // both arrays have even length
+  static long[] merge(long[] a, long[] b) {
+    long[] result = new long[a.length + b.length];
+    int i = 0;
+    int j = 0;
+    int k = 0;
+    while (i < a.length || j < b.length) {
+      if (j >= b.length || (i < a.length && a[i] < b[j])) {
+        result[k++] = a[i++];
+        result[k++] = a[i++];
+      } else {
+        result[k++] = b[j++];
+        result[k++] = b[j++];
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns slots for the given times.
+   *
+   * @param times alternating start and end times
+   * @return a slot for each pair of times
+   */
+  @SuppressWarnings("index") // times has even length
+  private static List<Slot> slots(long[] times) {
+    List<Slot> result = new ArrayList<>(times.length / 2);
+    for (int i = 0; i < times.length; i += 2) {
+      result.add(new Slot(times[i], times[i + 1]));
+    }
+    return result;
+  }
+
+  /**
+   * Formats the differences between two sets of free times, as text grouped by date. Each time that
+   * is no longer free is preceded by "-", and each time that has become free by "+". For example:
+   *
+   * <pre>
+   * Changes at Tue Nov 17, 2020 10:32am:
+   *
+   * Wed Nov 18, 2020:
+   * - 9:00am to 5:00pm
+   * + 9:00am to 10:00am
+   * + 11:00am to 5:00pm
+   * </pre>
+   *
+   * @param before the free times before, as alternating start and end times; sorted
+   * @param after the free times after, as alternating start and end times; sorted
+   * @param now the time of the change, in milliseconds since the epoch
+   * @param query the query, which supplies the time zones
+   * @return the differences, or the empty string if there are none
+   */
+  @SuppressWarnings("index") // both arrays have even length
+  static String formatChanges(long[] before, long[] after, long now, AvailabilityQuery query) {
+    ZoneFormatter f1 = Renderer.formatter1(query);
+    ZoneFormatter f2 = Renderer.formatter2(query);
+    StringBuilder out = new StringBuilder();
+    long day = Long.MIN_VALUE;
+    int i = 0;
+    int j = 0;
+    while (i < before.length || j < after.length) {
+      boolean same =
+          i < before.length
+              && j < after.length
+              && before[i] == after[j]
+              && before[i + 1] == after[j + 1];
+      if (same) {
+        i += 2;
+        j += 2;
+        continue;
+      }
+      if (out.length() == 0) {
+        out.append(System.lineSeparator()).append("Changes at ");
+        f1.appendDate(now, out);
+        out.append(' ');
+        f1.appendTime(now, out);
+        out.append(':').append(System.lineSeparator());
+        Renderer.appendTimezones(f1, f2, out);
+      }
+      // At the same start time, the removal is printed first.
+      boolean removed = j >= after.length || (i < before.length && before[i] <= after[j]);
+      long[] times = removed ? before : after;
+      int k = removed ? i : j;
+      day = Renderer.appendDateLine(times[k], day, f1, out);
+      out.append(removed ? "- " : "+ ");
+      Renderer.appendRanges(times[k], times[k + 1], f1, f2, out);
+      out.append(System.lineSeparator());
+      if (removed) {
+        i += 2;
+      } else {
+        j += 2;
+      }
+    }
+    return out.toString();
+  }
+}
@@ -0,0 +1,200 @@
+package org.plumelib.icalavailable;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * The raw contents of a calendar feed. A feed that is no larger than a limit is held in memory; a
+ * larger one is left in (or streamed to) a file, and is read from the file each time it is used, so
+ * that its size does not affect the size of the heap.
+ *
+ * <p>A FeedContents is immutable, but one that refers to a file sees any later change to the file.
+ */
+@SuppressWarnings("PMD") // todo
+final class FeedContents {
+
+  /** The largest array that the JVM can allocate. */
+  private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+  /**
+   * The directory that holds the feeds that {@link #read} could not hold in memory; created when it
+   * is first needed, and deleted on exit.
+   */
+  private static @MonotonicNonNull Path spillDirectory;
+
+  /** The contents, or null if they are in {@link #file}. */
+  private final byte @Nullable [] bytes;
+
+  /** The file that holds the contents, or null if they are in {@link #bytes}. */
+  private final @Nullable Path file;
+
+  /** The size of the contents, in bytes. */
+  private final long size;
+
+  /**
+   * Creates a new FeedContents. Exactly one of the arguments is non-null.
+   *
+   * @param bytes the contents, or null if they are in {@code file}
+   * @param file the file that holds the contents, or null if they are in {@code bytes}
+   * @param size the size of the contents, in bytes
+   */
+  private FeedContents(byte @Nullable [] bytes, @Nullable Path file, long size) {
+    this.bytes = bytes;
+    this.file = file;
+    this.size = size;
+  }
+
+  /**
+   * Returns contents that are held in memory.
+   *
+   * @param bytes the contents
+   * @return contents that are held in memory
+   */
+  static FeedContents of(byte[] bytes) {
+    return new FeedContents(bytes, null, bytes.length);
+  }
+
+  /**
+   * Returns the contents of a file: read into memory if they are no larger than {@code
+   * maxInMemory}, and otherwise left in the file.
+   *
+   * @param file a file
+   * @param maxInMemory the most bytes to hold in memory
+   * @return the contents of the file
+   * @throws IOException if the file cannot be read
+   */
+  static FeedContents of(Path file, long maxInMemory) throws IOException {
+    long size = Files.size(file);
+    if (size <= Math.min(maxInMemory, MAX_ARRAY_SIZE)) {
+      return of(Files.readAllBytes(file));
+    }
+    return new FeedContents(null, file, size);
+  }
+
+  /**
+   * Reads a feed to its end: into memory if it is no larger than {@code maxInMemory}, and otherwise
+   * into a temporary file. Once the feed has proved too large, the rest of it is copied straight to
+   * the file, and never held in memory. Each URL has one such file, which a later read of the URL
+   * replaces atomically, so that a concurrent reader of the file sees either the old or the new
+   * contents.
+   *
+   * <p>This method does not limit the size of the feed, only how much of it is held in memory: the
+   * file is as large as the feed. To bound it, limit {@code in}, as {@link CalendarFetcher} does
+   * with {@link FeedResponse#limit}.
+   *
+   * @param in the feed
+   * @param maxInMemory the most bytes to hold in memory
+   * @param url the URL of the feed
+   * @return the contents of the feed
+   * @throws IOException if the feed cannot be read, or the file cannot be written
+   */
+  static FeedContents read(InputStream in, long maxInMemory, String url) throws IOException {
+    int limit = (int) Math.min(maxInMemory, MAX_ARRAY_SIZE);
+    byte[] head = in.readNBytes(limit + 1);
+    if (head.length <= limit) {
+      return of(head);
+    }
+    Path directory = spillDirectory();
+    Path spillFile = directory.resolve(CalendarCache.key(url) + ".ics");
+    // Files are deleted in the reverse of the order in which they are registered, so this file is
+    // deleted before its directory. Registering a file again has no effect.
+    spillFile.toFile().deleteOnExit();
+    Path tmp = Files.createTempFile(directory, "spill", ".tmp");
+    long size;
+    try (OutputStream out = Files.newOutputStream(tmp)) {
+      out.write(head);
+      size = head.length + in.transferTo(out);
+    } catch (IOException e) {
+      Files.deleteIfExists(tmp);
+      throw e;
+    }
+    Files.move(tmp, spillFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return new FeedContents(null, spillFile, size);
+  }
+
+  /**
+   * Returns the directory that holds the feeds that are too large to hold in memory, creating it if
+   * necessary.
+   *
+   * @return the directory that holds the feeds that are too large to hold in memory
+   * @throws IOException if the directory could not be created
+   */
+  private static synchronized Path spillDirectory() throws IOException {
+    if (spillDirectory == null) {
+      spillDirectory = Files.createTempDirectory("icalavailable");
+      spillDirectory.toFile().deleteOnExit();
+    }
+    return spillDirectory;
+  }
+
+  /**
+   * Returns the size of the contents.
+   *
+   * @return the size of the contents, in bytes
+   */
+  long size() {
+    return size;
+  }
+
+  /**
+   * Returns true if the contents are held in memory, and false if they are too large and are read
+   * from a file each time they are used.
+   *
+   * @return true if the contents are held in memory
+   */
+  boolean inMemory() {
+    return bytes != null;
+  }
+
+  /**
+   * Returns a new stream of the contents.
+   *
+   * @return a new stream of the contents, which the caller must close
+   * @throws IOException if the file that holds the contents cannot be read
+   */
+  InputStream open() throws IOException {
+    if (bytes != null) {
+      return new ByteArrayInputStream(bytes);
+    }
+    if (file == null) {
+      throw new Error("no contents");
+    }
+    return Files.newInputStream(file);
+  }
+
+  /**
+   * Returns the first bytes of the contents, for an error message.
+   *
+   * @param length the most bytes to return
+   * @return the first {@code length} bytes of the contents, or all of them if there are fewer
+   * @throws IOException if the file that holds the contents cannot be read
+   */
+  byte[] head(int length) throws IOException {
+    try (InputStream in = open()) {
+      return in.readNBytes(length);
+    }
+  }
+
+  /**
+   * Returns a hash of the contents; see {@link BusySnapshot#hash(byte[])}. The hash does not depend
+   * on whether the contents are held in memory.
+   *
+   * @return a hash of the contents
+   * @throws IOException if the file that holds the contents cannot be read
+   */
+  byte[] hash() throws IOException {
+    if (bytes != null) {
+      return BusySnapshot.hash(bytes);
+    }
+    try (InputStream in = open()) {
+      return BusySnapshot.hash(in);
+    }
+  }
+}
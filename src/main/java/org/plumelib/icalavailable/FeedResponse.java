@@ -0,0 +1,198 @@
+package org.plumelib.icalavailable;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import org.checkerframework.checker.calledmethods.qual.EnsuresCalledMethods;
+import org.checkerframework.checker.lock.qual.GuardSatisfied;
+import org.checkerframework.checker.mustcall.qual.NotOwning;
+import org.checkerframework.checker.mustcall.qual.Owning;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * A server's response to a request for a calendar feed: whether the feed has changed, the HTTP
+ * validators of the feed, and the feed itself, already decoded if the server compressed it. A feed
+ * that is not fetched over HTTP, such as a local file, always has changed and has no validators.
+ *
+ * <p>The caller must close the response.
+ */
+@SuppressWarnings("PMD") // todo
+final class FeedResponse implements Closeable {
+
+  /** If true, the feed has not changed since the copy named in the request's validators. */
+  final boolean notModified;
+
+  /** The ETag validator of the feed, or null if there is none. */
+  final @Nullable String etag;
+
+  /** The Last-Modified validator of the feed, in milliseconds since the epoch, or 0 if none. */
+  final long lastModified;
+
+  /** The feed, decoded; empty if {@link #notModified} is true. */
+  private final @Owning InputStream body;
+
+  /**
+   * Creates a new FeedResponse.
+   *
+   * @param notModified if true, the feed has not changed since the copy named in the request's
+   *     validators
+   * @param etag the ETag validator of the feed, or null if there is none
+   * @param lastModified the Last-Modified validator of the feed, in milliseconds since the epoch,
+   *     or 0 if none
+   * @param body the feed, decoded
+   */
+  FeedResponse(
+      boolean notModified, @Nullable String etag, long lastModified, @Owning InputStream body) {
+    this.notModified = notModified;
+    this.etag = etag;
+    this.lastModified = lastModified;
+    this.body = body;
+  }
+
+  /**
+   * Returns the feed, decoded. It is read straight off the connection, decompressing as it goes.
+   *
+   * @return the feed, decoded; the response, not the caller, closes it
+   */
+  @NotOwning
+  InputStream body() {
+    return body;
+  }
+
+  @Override
+  @EnsuresCalledMethods(value = "body", methods = "close")
+  public void close(@GuardSatisfied FeedResponse this) throws IOException {
+    body.close();
+  }
+
+  /**
+   * Returns a stream that decodes a body that was encoded with the given HTTP content coding.
+   *
+   * @param in the body, as sent
+   * @param contentEncoding the value of the Content-Encoding header, or null if there is none
+   * @return the body, decoded
+   * @throws IOException if the content coding is not supported, or the body is malformed
+   */
+  static @Owning InputStream decode(@Owning InputStream in, @Nullable String contentEncoding)
+      throws IOException {
+    if (contentEncoding == null) {
+      return in;
+    }
+    switch (contentEncoding.trim().toLowerCase(Locale.ROOT)) {
+      case "", "identity" -> {
+        return in;
+      }
+      case "gzip", "x-gzip" -> {
+        return new GZIPInputStream(in, 8192);
+      }
+      case "deflate" -> {
+        return inflate(in);
+      }
+      default -> {
+        in.close();
+        throw new IOException("Unsupported Content-Encoding: " + contentEncoding);
+      }
+    }
+  }
+
+  /**
+   * Returns a stream that reads at most a given number of bytes. Reading past them throws, rather
+   * than ending the stream, so that a feed that is too large is never mistaken for a shorter one.
+   * Applied to a decoded body, this bounds what a server can make the reader write to memory or
+   * disk, whether by an endless response or by one that decompresses to far more than was sent.
+   *
+   * @param in a stream
+   * @param maxBytes the most bytes to read
+   * @return a stream of the same bytes, which throws an IOException once more than {@code maxBytes}
+   *     have been read
+   */
+  @SuppressWarnings({
+    "index", // the overrides pass on the arguments and results of FilterInputStream
+    "resourceleak:required.method.not.called" // the returned stream closes in
+  })
+  static @Owning InputStream limit(@Owning InputStream in, long maxBytes) {
+    return new FilterInputStream(in) {
+      // The number of bytes read so far.
+      private long count = 0;
+
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+          count(1);
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+          count(n);
+        }
+        return n;
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        if (skipped > 0) {
+          count(skipped);
+        }
+        return skipped;
+      }
+
+      // Records that n more bytes have been read, and throws if that is too many.
+      private void count(long n) throws IOException {
+        count += n;
+        if (count > maxBytes) {
+          throw new IOException("Feed is larger than the limit of " + maxBytes + " bytes");
+        }
+      }
+    };
+  }
+
+  /**
+   * Returns a stream that decodes a body that was encoded with the "deflate" content coding.
+   *
+   * @param in the body, as sent
+   * @return the body, decoded
+   * @throws IOException if the body cannot be read
+   */
+  @SuppressWarnings("resourceleak:required.method.not.called") // the returned stream closes in
+  private static @Owning InputStream inflate(@Owning InputStream in) throws IOException {
+    // "deflate" means the zlib format, but some servers send raw deflate data instead.
+    BufferedInputStream buffered = new BufferedInputStream(in);
+    int cmf;
+    int flg;
+    try {
+      buffered.mark(2);
+      cmf = buffered.read();
+      flg = buffered.read();
+      buffered.reset();
+    } catch (IOException e) {
+      buffered.close();
+      throw e;
+    }
+    boolean zlib = (cmf & 0x0f) == 8 && flg != -1 && (cmf * 256 + flg) % 31 == 0;
+    Inflater inflater = new Inflater(!zlib);
+    return new InflaterInputStream(buffered, inflater, 8192) {
+      @Override
+      @SuppressWarnings("lock:override.receiver") // the stream is used by one thread
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          // An InflaterInputStream frees only an Inflater that it created itself.
+          inflater.end();
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,373 @@
+package org.plumelib.icalavailable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import net.fortuna.ical4j.model.Calendar;
+
+/**
+ * Finds times when enough of a group of attendees are free. Each attendee has a separate {@link
+ * BusyIndex}. A time is reported if at least the quorum are free throughout it, it is long enough,
+ * and it is maximal: it cannot be extended at either end without losing one of the attendees who
+ * are free throughout it. So if A and B are free from 9 to 12 and C from 10 to 11, with a quorum of
+ * two, both 9 to 12 (A and B) and 10 to 11 (all three) are reported, but not the pieces of 9 to 12
+ * before, during, and after C's free time. Times may therefore overlap.
+ *
+ * <p>A maximal time starts when one of its attendees becomes free. So for each such start, the
+ * attendees who are free then are ordered by when they stop being free, and each point at which one
+ * of them stops ends a maximal time for those who remain, until fewer than the quorum remain or
+ * none of them became free at the start; see {@link #addRuns}.
+ *
+ * <p>Alternatively, the business hours can be divided into slots of a fixed length, such as 15
+ * minutes, and the attendees counted slot by slot with bitwise operations; see {@link SlotGrid}.
+ * That is much faster for many attendees or a long horizon, but reports only whole slots.
+ *
+ * <p>A GroupFinder is immutable.
+ */
+@SuppressWarnings("PMD") // todo
+final class GroupFinder {
+
+  /** A time when some of the attendees are free. A GroupSlot is immutable. */
+  static final class GroupSlot {
+
+    /** The start of the time, in milliseconds since the epoch. */
+    private final long start;
+
+    /** The end (exclusive) of the time, in milliseconds since the epoch. */
+    private final long end;
+
+    /**
+     * The indices of the attendees who are free throughout the time, in increasing order. Others
+     * may be free during part of it.
+     */
+    private final int[] free;
+
+    /**
+     * Creates a new GroupSlot.
+     *
+     * @param start the start of the time, in milliseconds since the epoch
+     * @param end the end (exclusive) of the time, in milliseconds since the epoch
+     * @param free the indices of the attendees who are free, in increasing order; not copied
+     */
+    GroupSlot(long start, long end, int[] free) {
+      this.start = start;
+      this.end = end;
+      this.free = free;
+    }
+
+    /**
+     * Returns the start of the time.
+     *
+     * @return the start of the time, in milliseconds since the epoch
+     */
+    long start() {
+      return start;
+    }
+
+    /**
+     * Returns the end (exclusive) of the time.
+     *
+     * @return the end of the time, in milliseconds since the epoch
+     */
+    long end() {
+      return end;
+    }
+
+    /**
+     * Returns the number of attendees who are free throughout the time.
+     *
+     * @return the number of attendees who are free
+     */
+    int freeCount() {
+      return free.length;
+    }
+
+    /**
+     * Returns true if the given attendee is free throughout the time.
+     *
+     * @param attendee the index of an attendee
+     * @return true if the attendee is free
+     */
+    boolean isFree(int attendee) {
+      return Arrays.binarySearch(free, attendee) >= 0;
+    }
+  }
+
+  /**
+   * Orders slots from best to worst: first those when the most attendees are free, then the
+   * longest, then the earliest.
+   */
+  static final Comparator<GroupSlot> BEST_FIRST =
+      Comparator.comparingInt(GroupSlot::freeCount)
+          .thenComparingLong(s -> s.end() - s.start())
+          .reversed()
+          .thenComparingLong(GroupSlot::start);
+
+  /** The busy times of each attendee. */
+  private final List<BusyIndex> attendees;
+
+  /**
+   * Creates a new GroupFinder.
+   *
+   * @param attendees the busy times of each attendee
+   */
+  GroupFinder(List<BusyIndex> attendees) {
+    this.attendees = attendees;
+  }
+
+  /**
+   * Returns a GroupFinder for the given calendars, one per attendee. The calendars are compiled in
+   * parallel.
+   *
+   * @param calendars the calendars, one per attendee
+   * @param windowStart the start of the window, in milliseconds since the epoch
+   * @param windowEnd the end of the window, in milliseconds since the epoch
+   * @return a GroupFinder for the calendars
+   */
+  static GroupFinder compile(List<Calendar> calendars, long windowStart, long windowEnd) {
+    return new GroupFinder(BusyIndex.compileEach(calendars, windowStart, windowEnd));
+  }
+
+  /**
+   * Returns the number of attendees.
+   *
+   * @return the number of attendees
+   */
+  int size() {
+    return attendees.size();
+  }
+
+  /**
+   * Returns the times, within the query's business hours, when at least {@code quorum} attendees
+   * are free.
+   *
+   * @param query the query
+   * @param quorum the minimum number of attendees who must be free
+   * @param minLength the shortest time to report, in milliseconds
+   * @return the times when at least {@code quorum} attendees are free, in order of start and then
+   *     end
+   */
+  List<GroupSlot> available(AvailabilityQuery query, int quorum, long minLength) {
+    return available(query, quorum, minLength, 0);
+  }
+
+  /**
+   * Returns the times, within the query's business hours, when at least {@code quorum} attendees
+   * are free, either exactly or in whole slots.
+   *
+   * @param query the query
+   * @param quorum the minimum number of attendees who must be free; at most the number of attendees
+   * @param minLength the shortest time to report, in milliseconds
+   * @param slotMillis the length of a slot, in milliseconds; if 0, times are exact
+   * @return the times when at least {@code quorum} attendees are free, in order of start and then
+   *     end
+   */
+  @SuppressWarnings("index") // businessIntervals has even length
+  List<GroupSlot> available(AvailabilityQuery query, int quorum, long minLength, long slotMillis) {
+    List<GroupSlot> result = new ArrayList<>();
+    Stats.Span span = Stats.start(Stats.Stage.AVAILABLE);
+    long[] businessIntervals = query.businessIntervals();
+    if (slotMillis > 0) {
+      SlotGrid grid = new SlotGrid(businessIntervals, slotMillis);
+      List<long[]> free = new ArrayList<>(attendees.size());
+      for (BusyIndex attendee : attendees) {
+        free.add(grid.rasterize(attendee));
+      }
+      grid.atLeast(free, Math.max(1, quorum), minLength, result);
+    } else {
+      for (int b = 0; b < businessIntervals.length; b += 2) {
+        sweep(
+            businessIntervals[b], businessIntervals[b + 1], Math.max(1, quorum), minLength, result);
+      }
+    }
+    span.stop();
+    Stats.count(Stats.Counter.SLOTS, result.size());
+    return result;
+  }
+
+  /**
+   * Finds the maximal times within a range when at least {@code quorum} attendees are free.
+   *
+   * @param from the start of the range, in milliseconds since the epoch
+   * @param to the end of the range, in milliseconds since the epoch
+   * @param quorum the minimum number of attendees who must be free; positive
+   * @param minLength the shortest time to report, in milliseconds
+   * @param result where to add the times, in order of start and then end
+   */
+  @SuppressWarnings("index") // free arrays have even length
+  private void sweep(long from, long to, int quorum, long minLength, List<GroupSlot> result) {
+    int n = attendees.size();
+    long[][] free = new long[n][];
+    int intervals = 0;
+    for (int a = 0; a < n; a++) {
+      free[a] = attendees.get(a).free(from, to, 1);
+      intervals += free[a].length / 2;
+    }
+    // Every maximal time starts when some attendee becomes free.
+    long[] starts = new long[intervals];
+    int k = 0;
+    for (int a = 0; a < n; a++) {
+      for (int i = 0; i < free[a].length; i += 2) {
+        starts[k++] = free[a][i];
+      }
+    }
+    Arrays.sort(starts);
+
+    long[] until = new long[n];
+    boolean[] anchored = new boolean[n];
+    for (int s = 0; s < starts.length; s++) {
+      long start = starts[s];
+      if (s > 0 && start == starts[s - 1]) {
+        continue;
+      }
+      for (int a = 0; a < n; a++) {
+        int i = containing(free[a], start);
+        until[a] = i < 0 ? start : free[a][i + 1];
+        anchored[a] = i >= 0 && free[a][i] == start;
+      }
+      addRuns(start, until, anchored, quorum, minLength, result);
+    }
+  }
+
+  /**
+   * Returns the range that contains a time.
+   *
+   * @param ranges alternating start and end times; sorted, disjoint, and not touching
+   * @param time a time
+   * @return the index of the start of the range that contains the time, or -1 if none does
+   */
+  private static int containing(long[] ranges, long time) {
+    int i = Arrays.binarySearch(ranges, time);
+    if (i >= 0) {
+      // The time is an endpoint; a range contains its start but not its end.
+      return i % 2 == 0 ? i : -1;
+    }
+    int insertion = -(i + 1);
+    return insertion % 2 == 1 ? insertion - 1 : -1;
+  }
+
+  /**
+   * Adds the maximal times that begin at a given start. Those free at the start are ordered by when
+   * they stop being free; the time up to each point at which some of them stop is maximal for those
+   * who remain, provided that one of them became free exactly at the start (otherwise the time
+   * could be extended earlier).
+   *
+   * @param start the start, in milliseconds since the epoch
+   * @param until when each attendee stops being free; at most {@code start} for an attendee who is
+   *     not free at the start
+   * @param anchored whether each attendee becomes free exactly at the start; for {@link SlotGrid},
+   *     also true for every attendee free at the start of a business-hour range
+   * @param quorum the minimum number of attendees who must be free; positive
+   * @param minLength the shortest time to report, in milliseconds
+   * @param result where to add the times, in order of end
+   */
+  @SuppressWarnings("index") // attendee indices are < n; j < count <= n
+  static void addRuns(
+      long start,
+      long[] until,
+      boolean[] anchored,
+      int quorum,
+      long minLength,
+      List<GroupSlot> result) {
+    int n = until.length;
+    // Each attendee who is free at the start is encoded in one long, so that sorting them by when
+    // they stop being free is a primitive sort:  until * n + attendee.
+    long[] order = new long[n];
+    int count = 0;
+    int anchoredCount = 0;
+    for (int a = 0; a < n; a++) {
+      if (until[a] > start) {
+        order[count++] = until[a] * n + a;
+        if (anchored[a]) {
+          anchoredCount++;
+        }
+      }
+    }
+    Arrays.sort(order, 0, count);
+    int j = 0;
+    while (count - j >= quorum && anchoredCount > 0) {
+      long end = order[j] / n;
+      if (end - start >= minLength) {
+        int[] free = new int[count - j];
+        for (int i = j; i < count; i++) {
+          free[i - j] = (int) (order[i] % n);
+        }
+        Arrays.sort(free);
+        result.add(new GroupSlot(start, end, free));
+      }
+      for (; j < count && order[j] / n == end; j++) {
+        if (anchored[(int) (order[j] % n)]) {
+          anchoredCount--;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the best of the given slots, according to {@link #BEST_FIRST}.
+   *
+   * @param slots the slots
+   * @param count how many slots to return
+   * @return the best {@code count} slots, best first
+   */
+  static List<GroupSlot> best(List<GroupSlot> slots, int count) {
+    if (count <= 0) {
+      return new ArrayList<>();
+    }
+    // A heap of the best slots so far, with the worst of them at the head.
+    PriorityQueue<GroupSlot> heap = new PriorityQueue<>(count + 1, BEST_FIRST.reversed());
+    for (GroupSlot slot : slots) {
+      heap.add(slot);
+      if (heap.size() > count) {
+        heap.poll();
+      }
+    }
+    List<GroupSlot> result = new ArrayList<>(heap);
+    result.sort(BEST_FIRST);
+    return result;
+  }
+
+  /**
+   * Formats group availability as text, grouped by date, in the query's time zone or zones. After
+   * each time is the number of attendees who are free and, if not all of them are, the numbers
+   * (starting from 1) of those who are not.
+   *
+   * @param available the times, in chronological order
+   * @param attendeeCount the number of attendees
+   * @param query the query, which supplies the time zones
+   * @return the times, as text
+   */
+  static String formatText(List<GroupSlot> available, int attendeeCount, AvailabilityQuery query) {
+    ZoneFormatter f1 = Renderer.formatter1(query);
+    ZoneFormatter f2 = Renderer.formatter2(query);
+    StringBuilder out = new StringBuilder(64 + 60 * available.size());
+    Renderer.appendTimezones(f1, f2, out);
+    long day = Long.MIN_VALUE;
+    for (GroupSlot slot : available) {
+      day = Renderer.appendDateLine(slot.start(), day, f1, out);
+      int lineStart = out.length();
+      Renderer.appendRanges(slot.start(), slot.end(), f1, f2, out);
+      Renderer.pad(out, lineStart, 20);
+      out.append("  ")
+          .append(slot.freeCount())
+          .append(" of ")
+          .append(attendeeCount)
+          .append(" free");
+      if (slot.freeCount() < attendeeCount) {
+        out.append(" (busy: ");
+        String separator = "";
+        for (int a = 0; a < attendeeCount; a++) {
+          if (!slot.isFree(a)) {
+            out.append(separator).append('#').append(a + 1);
+            separator = ", ";
+          }
+        }
+        out.append(')');
+      }
+      out.append(System.lineSeparator());
+    }
+    return out.toString();
+  }
+}
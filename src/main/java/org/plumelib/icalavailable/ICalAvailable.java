@@ -1,41 +1,17 @@
 package org.plumelib.icalavailable;
 
-import java.io.InputStream;
-import java.net.URL;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Locale;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import net.fortuna.ical4j.data.CalendarBuilder;
-import net.fortuna.ical4j.data.ParserException;
+import java.util.stream.Collectors;
+import javax.management.JMException;
 import net.fortuna.ical4j.model.Calendar;
-import net.fortuna.ical4j.model.ComponentList;
-import net.fortuna.ical4j.model.Date;
-import net.fortuna.ical4j.model.DateTime;
-import net.fortuna.ical4j.model.Dur;
-import net.fortuna.ical4j.model.Parameter;
-import net.fortuna.ical4j.model.Period;
-import net.fortuna.ical4j.model.PeriodList;
-import net.fortuna.ical4j.model.TimeZone;
-import net.fortuna.ical4j.model.TimeZoneRegistry;
-import net.fortuna.ical4j.model.TimeZoneRegistryFactory;
-import net.fortuna.ical4j.model.component.CalendarComponent;
-import net.fortuna.ical4j.model.component.VFreeBusy;
-import net.fortuna.ical4j.model.parameter.FbType;
-import net.fortuna.ical4j.model.property.FreeBusy;
-import org.checkerframework.checker.nullness.qual.EnsuresNonNull;
-import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
-import org.checkerframework.checker.nullness.qual.NonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
-import org.checkerframework.checker.nullness.qual.RequiresNonNull;
-import org.checkerframework.checker.regex.qual.Regex;
-import org.checkerframework.dataflow.qual.Pure;
 import org.plumelib.options.Option;
 import org.plumelib.options.Options;
 
@@ -55,14 +31,100 @@ import org.plumelib.options.Options;
  *   <li id="option:days"><b>--days=</b><i>int</i>. Number of calendar days to summarize. [default:
  *       8]
  *   <li id="option:iCal-URL"><b>--iCal-URL=</b><i>url</i> {@code [+]}. For a Google Calendar: go to
- *       settings, then click on the green "ICAL" icon for the "private address".
+ *       settings, then click on the green "ICAL" icon for the "private address". For a calendar
+ *       collection on a CalDAV server, {@code caldav:} followed by the URL of the collection; each
+ *       refresh then fetches only the events that have changed. See {@link CalDavCollection}.
+ *   <li id="option:fetch-timeout"><b>--fetch-timeout=</b><i>seconds</i>. The longest time that
+ *       fetching and parsing all the calendars can take, in seconds. They are fetched concurrently;
+ *       any that has not been read when the time is up fails. When the calendars are hashed before
+ *       they are parsed (with --snapshot or --watch), fetching and parsing each get this long.
+ *       [default: 60]
+ *   <li id="option:connect-timeout"><b>--connect-timeout=</b><i>seconds</i>. How long to wait to
+ *       connect to the server of a calendar, in seconds. [default: 10]
+ *   <li id="option:cache-dir"><b>--cache-dir=</b><i>directory</i>. Directory in which to cache
+ *       calendars. If set, each calendar is re-sent by the server only if it has changed since it
+ *       was cached.
+ *   <li id="option:cache-ttl"><b>--cache-ttl=</b><i>seconds</i>. How long to use a cached calendar
+ *       without asking the server whether it has changed, in seconds. [default: 0]
+ *   <li id="option:offline"><b>--offline=</b><i>boolean</i>. If true, use only cached calendars,
+ *       however old, and never contact the server. [default: false]
+ *   <li id="option:snapshot"><b>--snapshot=</b><i>file</i>. File in which to save the busy times of
+ *       the calendars. If the file holds busy times for the same calendars, unchanged, then they
+ *       are used instead of parsing the calendars; otherwise the calendars are parsed and the file
+ *       is rewritten. Not used with --serve, --watch, or --batch. See {@link BusySnapshot}.
+ *   <li id="option:window-filter"><b>--window-filter=</b><i>boolean</i>. If true, skip events that
+ *       lie wholly outside the summarized dates while parsing calendars. This makes parsing a
+ *       calendar with a long history much faster and smaller. [default: true]
+ *   <li id="option:max-feed-size"><b>--max-feed-size=</b><i>megabytes</i>. The largest calendar to
+ *       hold in memory, in megabytes. A larger calendar is saved to a file (in the cache directory,
+ *       if there is one) as it is read, and is parsed from the file, skipping events outside the
+ *       summarized dates even if --window-filter is false. This is not a limit on the size of a
+ *       calendar; see --max-download-size. [default: 16]
+ *   <li id="option:max-download-size"><b>--max-download-size=</b><i>megabytes</i>. The largest
+ *       calendar to read, in megabytes, after decompression. A larger calendar cannot be read; this
+ *       bounds the file that --max-feed-size saves it to, even if the server sends without end or
+ *       sends a small compressed body that decompresses to a huge one. [default: 1024]
+ *   <li id="option:max-events"><b>--max-events=</b><i>n</i>. The most events to keep from one
+ *       calendar. A calendar with more events is parsed again, skipping events outside the
+ *       summarized dates even if --window-filter is false; if it still has more, it cannot be read.
+ *       [default: 100000]
+ *   <li id="option:serve"><b>--serve=</b><i>boolean</i>. If true, run as a server: keep the
+ *       calendars in memory, refresh them periodically, and answer HTTP requests such as {@code GET
+ *       /available?date=...&days=...} on a local port. See {@link AvailabilityServer}. [default:
+ *       false]
+ *   <li id="option:port"><b>--port=</b><i>port</i>. The local port on which the server listens.
+ *       [default: 8123]
+ *   <li id="option:watch"><b>--watch=</b><i>boolean</i>. If true, print the available times, then
+ *       keep running: re-read the calendars periodically (and a calendar that is a local file as
+ *       soon as it changes), and print the times that have become available or unavailable. See
+ *       {@link CalendarWatcher}. [default: false]
+ *   <li id="option:batch"><b>--batch=</b><i>file</i>. File of questions, one per line, such as
+ *       {@code id=alice&url=...&date=11/17/2020&days=5}. Each calendar is read once, the questions
+ *       are answered concurrently, and the answers are printed in order. See {@link BatchRunner}.
+ *   <li id="option:refresh"><b>--refresh=</b><i>seconds</i>. How often the server, or --watch,
+ *       re-reads the calendars, in seconds. [default: 300]
+ *   <li id="option:serve-days"><b>--serve-days=</b><i>days</i>. How many days, starting today, the
+ *       server can answer questions about. [default: 90]
+ *   <li id="option:result-cache-days"><b>--result-cache-days=</b><i>days</i>. How many days of
+ *       available times the server remembers, so that a question that overlaps an earlier one is
+ *       answered from the days already computed. If 0, every day is computed anew. [default: 10000]
  *   <li id="option:business-hours"><b>--business-hours=</b><i>string</i>. A list of time ranges,
  *       expressed as a String. Example: 9am-5pm,7:30pm-9:30pm [default: 9am-5pm]
+ *   <li id="option:timezone-aliases"><b>--timezone-aliases=</b><i>file</i>. File of additional time
+ *       zone aliases, each a line such as {@code eastern=America/New_York}. The aliases apply to
+ *       the time zone options and to the TZIDs of calendars. See {@link TimeZones}.
  *   <li id="option:timezone1"><b>--timezone1=</b><i>timezone</i>. Time zone as an Olson timezone
  *       ID, e.g.: America/New_York. Available times are printed in this time zone. It defaults to
  *       the system time zone.
  *   <li id="option:timezone2"><b>--timezone2=</b><i>timezone</i>. Time zone as an Olson timezone
  *       ID, e.g.: America/New_York. If set, then free times are printed in two time zones.
+ *   <li id="option:format"><b>--format=</b><i>format</i>. The output format: "text", "json" (an
+ *       object with a list of times), or "vfreebusy" (an iCalendar VFREEBUSY component, which
+ *       calendar clients can import). [default: text]
+ *   <li id="option:quorum"><b>--quorum=</b><i>n</i>. If positive, treat each calendar as a separate
+ *       attendee, and find times when at least this many of them are free. Each time is printed
+ *       with the number of attendees who are free and, if not all of them are, which ones are not.
+ *       Each time is as long as possible for those attendees, so times may overlap: one when two
+ *       are free and, within it, one when all three are. If 0, find times when all the calendars
+ *       are free. [default: 0]
+ *   <li id="option:meeting-length"><b>--meeting-length=</b><i>minutes</i>. With --quorum or
+ *       --first, the shortest time to report, in minutes. [default: 1]
+ *   <li id="option:best"><b>--best=</b><i>n</i>. With --quorum, report only this many times: those
+ *       when the most attendees are free, then the longest, then the earliest. They are printed in
+ *       chronological order. If 0, report every time. [default: 0]
+ *   <li id="option:slot-minutes"><b>--slot-minutes=</b><i>minutes</i>. With --quorum, if positive,
+ *       divide the business hours into slots of this many minutes and report only whole slots. This
+ *       is much faster for many calendars or many days. If 0, report exact times. [default: 0]
+ *   <li id="option:first"><b>--first=</b><i>n</i>. If positive, report only the first this many
+ *       free times, searching day by day from --date and stopping as soon as they are found; --days
+ *       is ignored. See {@link SlotSearch}. [default: 0]
+ *   <li id="option:horizon"><b>--horizon=</b><i>days</i>. With --first, the most days to search.
+ *       [default: 366]
+ *   <li id="option:stats"><b>--stats=</b><i>boolean</i>. If true, record how long each stage of the
+ *       computation takes and how much it allocates, and count events, recurrence instances, and
+ *       the like. The command line prints a summary to standard error; the server answers {@code
+ *       GET /stats} with it, and publishes the counts through JMX. See {@link Stats}. [default:
+ *       false]
  *   <li id="option:debug"><b>--debug=</b><i>boolean</i>. If true, enable debugging output.
  *       [default: false]
  * </ul>
@@ -86,32 +148,143 @@ public final class ICalAvailable {
   @Option("first date to summarize")
   public static String date = "today";
 
-  /** First date to summarize, parsed. */
-  public static DateTime start_date = new DateTime();
-
   /** Number of calendar days to summarize. */
   @Option("number of calendar days to summarize")
   public static int days = 8;
 
   /**
    * For a Google Calendar: go to settings, then click on the green "ICAL" icon for the "private
-   * address".
+   * address". For a calendar collection on a CalDAV server, {@code caldav:} followed by the URL of
+   * the collection; each refresh then fetches only the events that have changed. See {@link
+   * CalDavCollection}.
    */
   @Option("<url> schedule in iCal format")
   public static List<String> iCal_URL = new ArrayList<>();
 
+  /**
+   * The longest time that fetching and parsing all the calendars can take, in seconds. They are
+   * fetched concurrently; any that has not been read when the time is up fails. When the calendars
+   * are hashed before they are parsed (with --snapshot or --watch), fetching and parsing each get
+   * this long.
+   */
+  @Option("<seconds> how long fetching all the calendars can take")
+  public static int fetch_timeout = 60;
+
+  /** How long to wait to connect to the server of a calendar, in seconds. */
+  @Option("<seconds> how long to wait to connect to each calendar's server")
+  public static int connect_timeout = 10;
+
+  /**
+   * Directory in which to cache calendars. If set, each calendar is re-sent by the server only if
+   * it has changed since it was cached.
+   */
+  @Option("<directory> where to cache calendars")
+  public static @Nullable String cache_dir;
+
+  /**
+   * How long to use a cached calendar without asking the server whether it has changed, in seconds.
+   */
+  @Option("<seconds> how long to use a cached calendar without revalidating it")
+  public static int cache_ttl = 0;
+
+  /** If true, use only cached calendars, however old, and never contact the server. */
+  @Option("use only cached calendars")
+  public static boolean offline = false;
+
+  /**
+   * File in which to save the busy times of the calendars. If the file holds busy times for the
+   * same calendars, unchanged, then they are used instead of parsing the calendars; otherwise the
+   * calendars are parsed and the file is rewritten. Not used with --serve, --watch, or --batch. See
+   * {@link BusySnapshot}.
+   */
+  @Option("<file> where to save the busy times of the calendars, to skip parsing next time")
+  public static @Nullable String snapshot;
+
+  /**
+   * If true, skip events that lie wholly outside the summarized dates while parsing calendars. This
+   * makes parsing a calendar with a long history much faster and smaller.
+   */
+  @Option("skip events outside the summarized dates while parsing")
+  public static boolean window_filter = true;
+
+  /**
+   * The largest calendar to hold in memory, in megabytes. A larger calendar is saved to a file (in
+   * the cache directory, if there is one) as it is read, and is parsed from the file, skipping
+   * events outside the summarized dates even if --window-filter is false. This is not a limit on
+   * the size of a calendar; see --max-download-size.
+   */
+  @Option("<megabytes> the largest calendar to hold in memory")
+  public static int max_feed_size = 16;
+
+  /**
+   * The largest calendar to read, in megabytes, after decompression. A larger calendar cannot be
+   * read; this bounds the file that --max-feed-size saves it to, even if the server sends without
+   * end or sends a small compressed body that decompresses to a huge one.
+   */
+  @Option("<megabytes> the largest calendar to read")
+  public static int max_download_size = 1024;
+
+  /**
+   * The most events to keep from one calendar. A calendar with more events is parsed again,
+   * skipping events outside the summarized dates even if --window-filter is false; if it still has
+   * more, it cannot be read.
+   */
+  @Option("<n> the most events to keep from one calendar")
+  public static int max_events = 100_000;
+
+  /**
+   * If true, run as a server: keep the calendars in memory, refresh them periodically, and answer
+   * HTTP requests such as {@code GET /available?date=...&days=...} on a local port. See {@link
+   * AvailabilityServer}.
+   */
+  @Option("run as a local HTTP server")
+  public static boolean serve = false;
+
+  /** The local port on which the server listens. */
+  @Option("<port> the local port on which the server listens")
+  public static int port = 8123;
+
+  /**
+   * If true, print the available times, then keep running: re-read the calendars periodically (and
+   * a calendar that is a local file as soon as it changes), and print the times that have become
+   * available or unavailable. See {@link CalendarWatcher}.
+   */
+  @Option("keep running, and print changes to the available times")
+  public static boolean watch = false;
+
+  /**
+   * File of questions, one per line, such as {@code id=alice&url=...&date=11/17/2020&days=5}. Each
+   * calendar is read once, the questions are answered concurrently, and the answers are printed in
+   * order. See {@link BatchRunner}.
+   */
+  @Option("<file> answer the questions in a file, one per line")
+  public static @Nullable String batch;
+
+  /** How often the server, or --watch, re-reads the calendars, in seconds. */
+  @Option("<seconds> how often the server, or --watch, re-reads the calendars")
+  public static int refresh = 300;
+
+  /** How many days, starting today, the server can answer questions about. */
+  @Option("<days> how many days the server can answer questions about")
+  public static int serve_days = 90;
+
+  /**
+   * How many days of available times the server remembers, so that a question that overlaps an
+   * earlier one is answered from the days already computed. If 0, every day is computed anew.
+   */
+  @Option("<days> how many days of answers the server remembers")
+  public static int result_cache_days = 10_000;
+
   /** A list of time ranges, expressed as a String. Example: 9am-5pm,7:30pm-9:30pm. */
   @Option("time ranges during which appointments are permitted")
   public static String business_hours = "9am-5pm";
 
-  /** The business hours, outside of which all times are unavailable. */
-  static List<Period> businessHours = new ArrayList<>();
-
-  /** The business days, outside of which all times are unavailable. */
-  static List<Integer> businessDays = List.of(1, 2, 3, 4, 5);
-
-  /** The time zone registry, for looking up time zone names. */
-  static TimeZoneRegistry tzRegistry = TimeZoneRegistryFactory.getInstance().createRegistry();
+  /**
+   * File of additional time zone aliases, each a line such as {@code eastern=America/New_York}. The
+   * aliases apply to the time zone options and to the TZIDs of calendars. See {@link TimeZones}.
+   */
+  @Option("<file> additional time zone aliases")
+  public static @Nullable String timezone_aliases;
 
   /**
    * Time zone as an Olson timezone ID, e.g.: America/New_York. Available times are printed in this
@@ -119,14 +292,7 @@ public final class ICalAvailable {
    */
   // don't need "e.g.: America/New_York" in message:  the default is an example
   @Option(value = "<timezone> time zone, e.g.: America/New_York", noDocDefault = true)
-  public static String timezone1 = TimeZone.getDefault().getID();
-
-  // Either of these initializations causes a NullPointerException
-  // at net.fortuna.ical4j.model.TimeZone.<init>(TimeZone.java:67)
-  // static TimeZone tz1 = new TimeZone(new VTimeZone());
-  // static TimeZone tz1 = tzRegistry.getTimeZone(canonicalizeTimezone(timezone1));
-  /** The TimeZone represented by string {@link #timezone1}. */
-  static @MonotonicNonNull TimeZone tz1;
+  public static String timezone1 = ZoneId.systemDefault().getId();
 
   // If I'm outputting in a different timezone, then my notion of a "day"
   // may be different than the other timezone's notion of a "day".  This
@@ -138,245 +304,327 @@ public final class ICalAvailable {
   @Option("<timezone> optional second time zone, e.g.: America/New_York")
   public static @Nullable String timezone2;
 
-  /** The TimeZone represented by string {@link #timezone2}. */
-  static @Nullable TimeZone tz2;
+  /**
+   * The output format: "text", "json" (an object with a list of times), or "vfreebusy" (an
+   * iCalendar VFREEBUSY component, which calendar clients can import).
+   */
+  @Option("<format> output format: text, json, or vfreebusy")
+  public static String format = "text";
+
+  /**
+   * If positive, treat each calendar as a separate attendee, and find times when at least this many
+   * of them are free. Each time is printed with the number of attendees who are free and, if not
+   * all of them are, which ones are not. Each time is as long as possible for those attendees, so
+   * times may overlap: one when two are free and, within it, one when all three are. If 0, find
+   * times when all the calendars are free.
+   */
+  @Option("<n> find times when at least n of the calendars are free")
+  public static int quorum = 0;
 
-  // Other variables
+  /** With --quorum or --first, the shortest time to report, in minutes. */
+  @Option("<minutes> with --quorum or --first, the shortest time to report")
+  public static int meeting_length = 1;
 
-  /** The number of milliseconds in one day. */
-  static final long MILLIS_PER_DAY = 1000L * 60 * 60 * 24;
+  /**
+   * With --quorum, report only this many times: those when the most attendees are free, then the
+   * longest, then the earliest. They are printed in chronological order. If 0, report every time.
+   */
+  @Option("<n> with --quorum, report only the n best times")
+  public static int best = 0;
 
-  /** If true, enable debugging output. */
-  @Option("enable debugging output")
-  public static boolean debug = false;
+  /**
+   * With --quorum, if positive, divide the business hours into slots of this many minutes and
+   * report only whole slots. This is much faster for many calendars or many days. If 0, report
+   * exact times.
+   */
+  @Option("<minutes> with --quorum, find free times in slots of this length")
+  public static int slot_minutes = 0;
 
-  /** The appointments (the times that are unavailable for a meeting). */
-  static List<Calendar> calendars = new ArrayList<>();
+  /**
+   * If positive, report only the first this many free times, searching day by day from --date and
+   * stopping as soon as they are found; --days is ignored. See {@link SlotSearch}.
+   */
+  @Option("<n> report only the first n free times")
+  public static int first = 0;
 
-  /** The time format. */
-  static DateFormat tf = DateFormat.getTimeInstance(DateFormat.SHORT, Locale.US);
+  /** With --first, the most days to search. */
+  @Option("<days> with --first, the most days to search")
+  public static int horizon = 366;
 
-  /** The date format. */
-  static DateFormat df = DateFormat.getDateInstance(DateFormat.MEDIUM, Locale.US);
+  /**
+   * If true, record how long each stage of the computation takes and how much it allocates, and
+   * count events, recurrence instances, and the like. The command line prints a summary to standard
+   * error; the server answers {@code GET /stats} with it, and publishes the counts through JMX. See
+   * {@link Stats}.
+   */
+  @Option("print timings and counts to standard error")
+  public static boolean stats = false;
 
-  /** The day-of-week format. */
-  static DateFormat dfDayOfWeek = new SimpleDateFormat("EEE");
+  /** If true, enable debugging output. */
+  @Option("enable debugging output")
+  public static boolean debug = false;
 
   // Procedures
 
   /**
-   * Reads command-line options and sets fields.
+   * Reads command-line options, and returns the query that they describe.
    *
    * @param args the command-line options
+   * @return the query that the options describe
    */
-  @SuppressWarnings({
-    "deprecation", // for iCal4j's use of Date.{get,set}Minutes
-  })
-  @EnsuresNonNull("tz1")
-  static void processOptions(String[] args) {
+  static AvailabilityQuery processOptions(String[] args) {
     Options options = new Options("ICalAvailable [options]", ICalAvailable.class);
     String[] remainingArgs = options.parse(true, args);
     if (remainingArgs.length != 0) {
       System.err.println("Unrecognized arguments: " + Arrays.toString(remainingArgs));
       System.exit(1);
     }
-    if (iCal_URL.isEmpty()) {
+    if (iCal_URL.isEmpty() && batch == null) {
       System.err.println("Option iCal_URL must be specified.");
       System.exit(1);
     }
-
-    // Convert Strings to TimeZones
-    tz1 = tzRegistry.getTimeZone(canonicalizeTimezone(timezone1));
-    if (tz1 == null) {
-      System.err.println(
-          "Unrecognized time zone (see http://php.net/manual/en/timezones.php): " + timezone1);
+    if (fetch_timeout < 1 || connect_timeout < 1) {
+      System.err.println("Options fetch_timeout and connect_timeout must be positive.");
       System.exit(1);
     }
-    if (timezone2 != null) {
-      tz2 = tzRegistry.getTimeZone(canonicalizeTimezone(timezone2));
-      if (tz2 == null) {
-        System.err.println(
-            "Unrecognized time zone (see http://php.net/manual/en/timezones.php): " + timezone2);
-        System.exit(1);
-      }
+    if (offline && cache_dir == null) {
+      System.err.println("Option offline requires option cache_dir.");
+      System.exit(1);
     }
-
-    try {
-      if (!date.equals("today")) {
-        start_date = new DateTime(parseDate(date));
-      }
-    } catch (Exception e) {
-      if (date.contains("/") && date.indexOf('/') == date.lastIndexOf('/')) {
-        System.err.println("Could not parse date (missing year?): " + date);
-        System.exit(1);
-      } else {
-        System.err.println("Could not parse date: " + date);
-        System.exit(1);
+    for (String url : iCal_URL) {
+      if (CalDavCollection.isCalDav(url)) {
+        if (offline) {
+          System.err.println("Option offline cannot be used with a caldav: calendar: " + url);
+          System.exit(1);
+        }
+        try {
+          CalDavCollection.forUrl(url);
+        } catch (IllegalArgumentException e) {
+          System.err.println(e.getMessage());
+          System.exit(1);
+        }
       }
     }
-    if (start_date == null) {
-      System.err.println("Could not parse date: " + date);
+    if (quorum < 0 || quorum > iCal_URL.size()) {
+      System.err.printf(
+          "Option quorum must be between 0 and the number of calendars (%d).%n", iCal_URL.size());
+      System.exit(1);
+    }
+    if (!Renderer.FORMATS.contains(format)) {
+      System.err.println(
+          "Option format must be one of " + String.join(", ", Renderer.FORMATS) + ".");
+      System.exit(1);
+    }
+    if (quorum > 0 && !format.equals("text")) {
+      System.err.println("Option quorum requires option format to be text.");
+      System.exit(1);
+    }
+    if (watch && (serve || quorum > 0 || !format.equals("text"))) {
+      System.err.println(
+          "Option watch cannot be used with option serve or quorum, and requires format text.");
+      System.exit(1);
+    }
+    if (batch != null && (serve || watch || quorum > 0)) {
+      System.err.println("Option batch cannot be used with option serve, watch, or quorum.");
+      System.exit(1);
+    }
+    if (max_feed_size < 0 || max_download_size < 1 || max_events < 1) {
+      System.err.println(
+          "Option max_feed_size must be non-negative, and options max_download_size and max_events"
+              + " positive.");
+      System.exit(1);
+    }
+    if (result_cache_days < 0) {
+      System.err.println("Option result_cache_days must be non-negative.");
+      System.exit(1);
+    }
+    if (meeting_length < 1 || best < 0) {
+      System.err.println("Option meeting_length must be positive, and option best non-negative.");
+      System.exit(1);
+    }
+    if (slot_minutes < 0 || slot_minutes > 24 * 60) {
+      System.err.println("Option slot_minutes must be between 0 and 1440.");
+      System.exit(1);
+    }
+    if (first < 0 || horizon < 1) {
+      System.err.println("Option first must be non-negative, and option horizon positive.");
+      System.exit(1);
+    }
+    if (first > 0
+        && (serve || watch || batch != null || quorum > 0 || format.equals("vfreebusy"))) {
+      System.err.println(
+          "Option first cannot be used with option serve, watch, batch, or quorum, or with format"
+              + " vfreebusy.");
       System.exit(1);
     }
 
-    // Problem:  this may change the actual time?
-    start_date.setTimeZone(tz1);
-    start_date.setMinutes((start_date.getMinutes() / 15) * 15);
-
-    for (String iCalUrl : iCal_URL) {
+    if (timezone_aliases != null) {
       try {
-        URL url = new URL(iCalUrl);
-        CalendarBuilder builder = new CalendarBuilder();
-        Calendar c;
-        try (InputStream urlStream = url.openStream()) {
-          try {
-            c = builder.build(urlStream);
-          } catch (ParserException pe) {
-            if ("Error at line 1: Expected [BEGIN], read [<HTML>]".equals(pe.getMessage())) {
-              System.out.println();
-              System.out.println("It is possible that the calendar has moved.");
-              // Debugging: write the URL contents to standard output
-              try (InputStream contentStream = url.openStream()) {
-                System.out.printf("URL: %s%n", url);
-                System.out.println("Contents:");
-                byte[] buffer = new byte[1024];
-                int len = contentStream.read(buffer);
-                while (len != -1) {
-                  System.out.write(buffer, 0, len);
-                  len = contentStream.read(buffer);
-                }
-                System.out.println();
-              }
-            }
-            throw pe;
-          }
-        }
-        calendars.add(c);
-      } catch (Exception e) {
-        e.printStackTrace(System.err);
-        System.err.println("Could not read calendar from " + iCalUrl);
+        TimeZones.addAliases(Path.of(timezone_aliases));
+      } catch (IOException e) {
+        System.err.println("Could not read time zone aliases: " + e.getMessage());
         System.exit(1);
       }
     }
 
-    for (String range : business_hours.split(",", -1)) {
-      String[] startEnd = range.split("-", -1);
-      if (startEnd.length != 2) {
-        System.err.println("Bad time range: " + range);
-        System.exit(1);
-      }
-      DateTime busStart = parseTime(startEnd[0]);
-      DateTime busEnd = parseTime(startEnd[1]);
-      businessHours.add(new Period(busStart, busEnd));
+    try {
+      return AvailabilityQuery.parse(
+          date, first > 0 ? horizon : days, business_hours, timezone1, timezone2);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.exit(1);
+      throw new Error("unreachable");
     }
   }
 
-  // Yuck, this should really be a separate configuration file.
-  /** Maps a short name to a canonical name, for commonly-used time zones. */
-  static final Map<String, String> canonicalTimezones =
-      Map.ofEntries(
-          Map.entry("eastern", "America/New_York"),
-          Map.entry("est", "America/New_York"),
-          Map.entry("edt", "America/New_York"),
-          Map.entry("boston", "America/New_York"),
-          Map.entry("america/boston", "America/New_York"),
-          Map.entry("central", "America/Chicago"),
-          Map.entry("mountain", "America/Denver"),
-          Map.entry("arizona", "America/Phoenix"),
-          Map.entry("pacific", "America/Los_Angeles"),
-          Map.entry("pst", "America/Los_Angeles"),
-          Map.entry("pacific standard time", "America/Los_Angeles"),
-          Map.entry("pdt", "America/Los_Angeles"),
-          Map.entry("india", "Asia/Calcutta"),
-          Map.entry("china", "Asia/Shanghai"),
-          Map.entry("berlin", "Europe/Berlin"),
-          Map.entry("israel", "Asia/Tel_Aviv"),
-          Map.entry("art", "America/Buenos_Aires"));
-
-  // Don't include "Mountain Standard Time" due to Arizona weirdness; we want to know MST vs. MDT.
-  /** Maps a long time zone name to a shorter one. */
-  static final Map<String, String> printedTimezones =
-      Map.of(
-          "Eastern Standard Time", "Eastern",
-          "Central Standard Time", "Central",
-          "Pacific Standard Time", "Pacific");
-
   /**
-   * Converts a time zone abbreviation to a canonical form, if possible.
+   * Reads the calendars. Exits if any calendar cannot be read.
    *
-   * @param timezone a time zone abbreviation to canonicalize
-   * @return either the argument, or its canonical name if possible
+   * @param fetcher the fetcher to use
+   * @return the calendars
    */
-  static String canonicalizeTimezone(String timezone) {
-    // Use Locale.ROOT, not the default locale, so that the lookup keys (which are ASCII) match
-    // regardless of the user's locale; e.g., in a Turkish locale "IST".toLowerCase() is "ıst".
-    return canonicalTimezones.getOrDefault(timezone.toLowerCase(Locale.ROOT), timezone);
+  static List<Calendar> readCalendars(CalendarFetcher fetcher) {
+    try {
+      return fetcher.fetchAll(iCal_URL);
+    } catch (IOException e) {
+      reportFetchFailure(e);
+      System.exit(1);
+      throw new Error("unreachable");
+    }
   }
 
   /**
-   * Converts a time zone's printed representation to a shorter one, if possible.
+   * Returns the busy times of each calendar, from the snapshot file if it is up to date. Otherwise,
+   * parses the calendars and rewrites the snapshot file. Exits if any calendar cannot be read.
    *
-   * @param tz a printed representation to canonicalize
-   * @return either the argument, or a shorter representation if possible
+   * @param snapshotFile the snapshot file
+   * @param windowStart the start of the window, in milliseconds since the epoch
+   * @param windowEnd the end of the window, in milliseconds since the epoch
+   * @return the busy times of each calendar, in the same order as {@link #iCal_URL}
    */
-  @Pure
-  static String printedTimezone(TimeZone tz) {
-    String tzString = tz.getDisplayName();
-    return printedTimezones.getOrDefault(tzString, tzString);
-  }
+  static List<BusyIndex> readBusyTimes(Path snapshotFile, long windowStart, long windowEnd) {
+    long snapshotEnd = windowEnd + BusySnapshot.LOOKAHEAD_MILLIS;
+    CalendarFetcher fetcher = fetcher(windowStart, snapshotEnd);
+    List<FeedContents> contents;
+    List<byte[]> hashes = new ArrayList<>(iCal_URL.size());
+    try {
+      contents = fetcher.readAll(iCal_URL);
+      for (FeedContents c : contents) {
+        hashes.add(c.hash());
+      }
+    } catch (IOException e) {
+      reportFetchFailure(e);
+      System.exit(1);
+      throw new Error("unreachable");
+    }
+
+    try {
+      BusySnapshot saved = BusySnapshot.read(snapshotFile);
+      if (saved != null && saved.matches(iCal_URL, hashes, windowStart, windowEnd)) {
+        if (debug) {
+          System.err.println("Using snapshot " + snapshotFile);
+        }
+        Stats.count(Stats.Counter.SNAPSHOT_HITS, 1);
+        return saved.busyTimes();
+      }
+    } catch (IOException e) {
+      System.err.println("Could not read snapshot " + snapshotFile + ": " + e.getMessage());
+    }
 
-  /** Matches a printed representation of a time. */
-  static @Regex(4) Pattern timeRegexp =
-      Pattern.compile("([0-2]?[0-9])(:([0-5][0-9]))?([aApP][mM])?");
+    List<BusyIndex> busyTimes;
+    try {
+      busyTimes =
+          BusyIndex.compileEach(fetcher.parseAll(iCal_URL, contents), windowStart, snapshotEnd);
+    } catch (IOException e) {
+      reportFetchFailure(e);
+      System.exit(1);
+      throw new Error("unreachable");
+    }
+    try {
+      new BusySnapshot(windowStart, snapshotEnd, iCal_URL, hashes, busyTimes).write(snapshotFile);
+    } catch (IOException e) {
+      // The snapshot only saves time, so carry on without it.
+      System.err.println("Could not write snapshot " + snapshotFile + ": " + e.getMessage());
+    }
+    return busyTimes;
+  }
 
   /**
-   * Parses a time like "9:30pm". The result's time zone is {@code tz1}.
+   * Returns a CalendarFetcher configured by the command-line options.
    *
-   * @param time the string to parse as a time
-   * @return the time represented by {@code time}
+   * @param windowStart the start of the window of interest, in milliseconds since the epoch
+   * @param windowEnd the end of the window of interest, in milliseconds since the epoch
+   * @return a CalendarFetcher configured by the command-line options
    */
-  @SuppressWarnings("deprecation") // for iCal4j
-  @RequiresNonNull("tz1")
-  static DateTime parseTime(String time) {
+  static CalendarFetcher fetcher(long windowStart, long windowEnd) {
+    CalendarCache cache =
+        cache_dir == null
+            ? null
+            : new CalendarCache(Path.of(cache_dir), Duration.ofSeconds(cache_ttl), offline);
+    return new CalendarFetcher(
+        Duration.ofSeconds(fetch_timeout),
+        Duration.ofSeconds(connect_timeout),
+        cache,
+        windowStart,
+        windowEnd,
+        window_filter,
+        max_feed_size * 1024L * 1024L,
+        max_download_size * 1024L * 1024L,
+        max_events);
+  }
 
-    Matcher m = timeRegexp.matcher(time);
-    if (!m.matches()) {
-      System.err.println("Bad time: " + time);
-      System.exit(1);
+  /**
+   * Reports to standard error why calendars could not be read.
+   *
+   * @param e the exception thrown by {@link CalendarFetcher#fetchAll}
+   */
+  static void reportFetchFailure(IOException e) {
+    if (debug) {
+      e.printStackTrace(System.err);
     }
-    @SuppressWarnings("nullness") // for this regex, matches() guarantees that group 1 matched
-    @NonNull String hourString = m.group(1);
-    String minuteString = m.group(3);
-    String ampmString = m.group(4);
-
-    int hour = Integer.parseInt(hourString);
-    if ((ampmString != null) && ampmString.equalsIgnoreCase("pm")) {
-      hour += 12;
+    Throwable[] failures = e.getSuppressed();
+    if (failures.length == 0) {
+      System.err.println(e.getMessage());
     }
-    int minute = 0;
-    if (minuteString != null) {
-      minute = Integer.parseInt(minuteString);
+    for (Throwable failure : failures) {
+      System.err.println(failure.getMessage());
     }
-
-    DateTime result = new DateTime();
-    result.setTimeZone(tz1);
-    result.setHours(hour);
-    result.setMinutes(minute);
-    result.setSeconds(0);
-
-    return result;
   }
 
   /** Dumps the options. For debugging. */
   static void printOptions() {
+    System.out.println("date: " + date);
     System.out.println("business_hours: " + business_hours);
-    System.out.println("businessHours: " + businessHours);
-    System.out.println("businessDays: " + businessDays);
     System.out.println("timezone1: " + timezone1);
     System.out.println("timezone2: " + timezone2);
-    System.out.println("start_date: " + start_date);
+    System.out.println("timezone_aliases: " + timezone_aliases);
     System.out.println("days: " + days);
     System.out.println("iCal_URL: " + iCal_URL);
+    System.out.println("fetch_timeout: " + fetch_timeout);
+    System.out.println("connect_timeout: " + connect_timeout);
+    System.out.println("cache_dir: " + cache_dir);
+    System.out.println("cache_ttl: " + cache_ttl);
+    System.out.println("offline: " + offline);
+    System.out.println("snapshot: " + snapshot);
+    System.out.println("window_filter: " + window_filter);
+    System.out.println("max_feed_size: " + max_feed_size);
+    System.out.println("max_download_size: " + max_download_size);
+    System.out.println("max_events: " + max_events);
+    System.out.println("serve: " + serve);
+    System.out.println("port: " + port);
+    System.out.println("watch: " + watch);
+    System.out.println("batch: " + batch);
+    System.out.println("refresh: " + refresh);
+    System.out.println("serve_days: " + serve_days);
+    System.out.println("result_cache_days: " + result_cache_days);
+    System.out.println("format: " + format);
+    System.out.println("quorum: " + quorum);
+    System.out.println("meeting_length: " + meeting_length);
+    System.out.println("best: " + best);
+    System.out.println("slot_minutes: " + slot_minutes);
+    System.out.println("first: " + first);
+    System.out.println("horizon: " + horizon);
+    System.out.println("stats: " + stats);
   }
 
   /**
@@ -386,236 +634,134 @@ public final class ICalAvailable {
    */
   public static void main(String[] args) {
 
-    processOptions(args);
-
+    AvailabilityQuery query = processOptions(args);
     if (debug) {
-      System.err.printf("Testing %d days%n", days);
-    }
-
-    List<Period> available = new ArrayList<>();
-    DateTime day = start_date;
-    for (int i = 0; i < days; i++) {
-      available.addAll(oneDayAvailable(day, calendars));
-      // Advancing by exactly 24 hours can land on the wrong wall-clock time across a
-      // daylight-saving-time transition, but that does not affect the day being summarized.
-      day = new DateTime(day.getTime() + MILLIS_PER_DAY);
-      day.setTimeZone(tz1);
-    }
-
-    if (tz2 != null) {
-      System.out.printf(
-          "Timezone: %s  [Timezone: %s]%n", printedTimezone(tz1), printedTimezone(tz2));
-    }
-    String lastDateString = null;
-    for (Period p : available) {
-      String dateString = formatDate(p.getStart(), tz1);
-      if (!dateString.equals(lastDateString)) {
-        lastDateString = dateString;
-        System.out.println();
-        System.out.println(dateString + ":");
-      }
-
-      String rangeString = rangeString(p, tz1);
+      System.err.println(query);
+    }
+    if (stats) {
+      Stats.enable();
+    }
 
-      if (tz2 == null) {
-        System.out.println(rangeString);
-      } else {
-        String rangeString2 = rangeString(p, tz2);
-        System.out.printf("%-20s[%s]%n", rangeString, rangeString2);
+    if (serve) {
+      try {
+        if (stats) {
+          Stats.register();
+        }
+        new AvailabilityServer(iCal_URL, serve_days, Duration.ofSeconds(refresh), result_cache_days)
+            .start(port);
+      } catch (IOException e) {
+        reportFetchFailure(e);
+        System.exit(1);
+      } catch (JMException e) {
+        System.err.println("Could not publish statistics: " + e.getMessage());
+        System.exit(1);
       }
+      return;
     }
-  }
 
-  /**
-   * Formats a period as a range of times.
-   *
-   * @param p the period to format
-   * @param tz the time zone
-   * @return a range of times, from the beginning to the end of {@code p}
-   */
-  static String rangeString(Period p, TimeZone tz) {
-    tf.setTimeZone(tz);
-    DateTime pstart = p.getStart();
-    DateTime pend = p.getEnd();
-    String rangeString = tf.format(pstart) + " to " + tf.format(pend);
-    rangeString = rangeString.replace(" AM", "am");
-    rangeString = rangeString.replace(" PM", "pm");
-    return rangeString;
-  }
-
-  /**
-   * Formats a period as multiple time ranges.
-   *
-   * @param pl the periods
-   * @param tz the time zone
-   * @return a string representing multiple ranges of times
-   */
-  static String periodListString(PeriodList pl, TimeZone tz) {
-    tf.setTimeZone(tz);
-    StringBuilder result = new StringBuilder();
-    // "Object" because PeriodList extends raw TreeSet, but it really ought to
-    // extend TreeSet<@NonNull Period>
-    for (Object p : pl) {
-      assert p != null
-          : "@AssumeAssertion(nullness): non-generic container class; elements are non-null";
-      result.append(rangeString((Period) p, tz));
-      result.append('\n');
-    }
-    return result.toString();
-  }
-
-  /**
-   * Creates a new DateTime with date taken from the first argument and time taken from the second
-   * argument.
-   *
-   * @param date supplies the date for the result
-   * @param time supplies the time for the result
-   * @return the merged DateTime
-   */
-  @SuppressWarnings("deprecation") // for iCal4j
-  static DateTime mergeDateAndTime(DateTime date, DateTime time) {
-    TimeZone dateTz = date.getTimeZone();
-    TimeZone timeTz = time.getTimeZone();
-    if (!dateTz.equals(timeTz)) {
-      throw new Error(
-          "non-matching timezones: %s %s"
-              .formatted(dateTz.getDisplayName(), timeTz.getDisplayName()));
-    }
-    DateTime result = new DateTime(date);
-    result.setHours(time.getHours());
-    result.setMinutes(time.getMinutes());
-    result.setSeconds(time.getSeconds());
-    return result;
-  }
-
-  // TODO:  don't propose times that are before the current moment.
-
-  /**
-   * Returns all the times that are available on a single day.
-   *
-   * @param day the day on which to look for availability
-   * @param calendars the calendars that might contain conflicts
-   * @return the available times on the given day
-   */
-  // Process day-by-day because otherwise weekends and evenings are included.
-  @SuppressWarnings("unchecked") // for iCal4j
-  @RequiresNonNull("tz1")
-  static List<Period> oneDayAvailable(DateTime day, List<Calendar> calendars) {
-    if (debug) {
-      System.err.printf("oneDayAvailable(%s, ...)%n", day);
-    }
-    List<Period> result = new ArrayList<>();
-    @SuppressWarnings("deprecation") // for iCal4j
-    int dayOfWeek = day.getDay();
-    if (!businessDays.contains(dayOfWeek)) {
-      return result;
-    }
-
-    ComponentList<CalendarComponent> busyTimes = new ComponentList<>();
-    // Problem:  any all-day events will be treated as UTC.
-    // Instead, they should be converted to local time (tz1).
-    // But VFreeBusy does not support this, so I may need to convert
-    // daily events into a different format before inserting them.
-    for (Calendar calendar : calendars) {
-      // getComponents() returns a raw ArrayList.  Expose its element type.
-      ArrayList<@NonNull CalendarComponent> clist = calendar.getComponents();
-      for (CalendarComponent c : clist) {
-        /* TODO
-        if (c instanceof VEvent) {
-          VEvent v = (VEvent) c;
-          DtStart dts = v.getStartDate();
-          Parameter dtsValue = dts.getParameter("VALUE");
-          boolean allDay = (dtsValue != null) && dtsValue.getValue().equals("DATE");
-          // TODO: convert to the proper timezone.
-          // Tricky: must deal with the possibility of RRULE:FREQ=
-        }
-        */
-        busyTimes.add(c);
+    if (watch) {
+      try {
+        new CalendarWatcher(
+                iCal_URL,
+                () -> AvailabilityQuery.parse(date, days, business_hours, timezone1, timezone2),
+                Duration.ofSeconds(refresh))
+            .run();
+      } catch (IOException e) {
+        reportFetchFailure(e);
+        System.exit(1);
       }
+      return;
     }
-    for (Period bh : businessHours) {
-      DateTime start = mergeDateAndTime(day, bh.getStart());
-      DateTime end = mergeDateAndTime(day, bh.getEnd());
 
-      VFreeBusy request = new VFreeBusy(start, end, new Dur(0, 0, 0, 1));
-      if (debug) {
-        System.out.println("Request = " + request);
+    if (batch != null) {
+      int failures = 0;
+      try {
+        failures = BatchRunner.read(Path.of(batch)).run(System.out);
+      } catch (IOException e) {
+        System.err.println("Could not read batch file: " + e.getMessage());
+        System.exit(1);
+      } catch (InterruptedException e) {
+        System.err.println("Interrupted");
+        System.exit(1);
       }
-      VFreeBusy response = new VFreeBusy(request, busyTimes);
-      if (debug) {
-        System.out.println("Response = " + response);
+      printStats();
+      if (failures > 0) {
+        System.exit(1);
       }
-      FreeBusy freefb = (FreeBusy) response.getProperty("FREEBUSY");
-      if (freefb == null) {
-        if (debug) {
-          System.out.println("FREEBUSY property is null");
-        }
-        continue;
+      return;
+    }
+
+    long windowStart = query.windowStart();
+    long windowEnd = query.windowEnd();
+    // With a snapshot, the busy times of each calendar; otherwise, null.
+    List<BusyIndex> busyTimes =
+        snapshot == null ? null : readBusyTimes(Path.of(snapshot), windowStart, windowEnd);
+
+    if (quorum > 0) {
+      GroupFinder finder =
+          busyTimes != null
+              ? new GroupFinder(busyTimes)
+              : GroupFinder.compile(
+                  readCalendars(fetcher(windowStart, windowEnd)), windowStart, windowEnd);
+      List<GroupFinder.GroupSlot> available =
+          finder.available(query, quorum, meeting_length * 60L * 1000L, slot_minutes * 60L * 1000L);
+      if (best > 0) {
+        available = GroupFinder.best(available, best);
+        available.sort(Comparator.comparingLong(GroupFinder.GroupSlot::start));
+      }
+      Stats.Span span = Stats.start(Stats.Stage.RENDER);
+      String text = GroupFinder.formatText(available, finder.size(), query);
+      span.stop();
+      System.out.print(text);
+      printStats();
+      return;
+    }
+
+    if (first > 0) {
+      long minLength = meeting_length * 60L * 1000L;
+      SlotSearch search;
+      if (busyTimes != null) {
+        BusyIndex busy = BusyIndex.union(busyTimes);
+        search = new SlotSearch(query, minLength, (start, end) -> busy);
+      } else {
+        search = SlotSearch.of(query, minLength, readCalendars(fetcher(windowStart, windowEnd)));
       }
-      @SuppressWarnings("interning") // interned fields from a library, but not annotated so
-      boolean isFree = (freefb.getParameter(Parameter.FBTYPE) == FbType.FREE);
-      assert isFree;
-      PeriodList freePeriods = freefb.getPeriods();
+      List<Slot> available = search.stream().limit(first).collect(Collectors.toList());
       if (debug) {
-        System.out.printf("Free periods: %n%s%n", periodListString(freePeriods, tz1));
+        System.err.printf("searched %d days%n", search.daysSearched());
       }
-      result.addAll(freePeriods);
+      Stats.Span span = Stats.start(Stats.Stage.RENDER);
+      String text = Renderer.forFormat(format).render(available, query);
+      span.stop();
+      System.out.print(text);
+      printStats();
+      return;
     }
+
+    BusyIndex busy =
+        busyTimes != null
+            ? BusyIndex.union(busyTimes)
+            : BusyIndex.compile(
+                readCalendars(fetcher(windowStart, windowEnd)), windowStart, windowEnd);
     if (debug) {
-      System.err.printf("oneDayAvailable(%s, ...) => %s elements%n", day, result.size());
+      System.err.printf("%d busy intervals%n", busy.size());
     }
-    return result;
-  }
-
-  /** The date formats supported by {@link #parseDate}. */
-  static SimpleDateFormat[] dateFormats = {
-    new SimpleDateFormat("yyyy/MM/dd"),
-    new SimpleDateFormat("MM/dd/yyyy"),
-    new SimpleDateFormat("MM/dd/yy"),
-    // Bad idea:  sets year to 1970.  So require the year, at least for now.
-    // new SimpleDateFormat("MM/dd"),
-  };
 
-  /**
-   * Parses a date that is in one of several common formats.
-   *
-   * @param strDate the string to parse as a date
-   * @return a Date read from the given string
-   * @throws ParseException when the argument does not represent a date, in one of the supported
-   *     formats
-   * @see dateFormats
-   */
-  static java.util.Date parseDate(String strDate) throws ParseException {
-    if (Pattern.matches("^[0-9][0-9]?/[0-9][0-9]?$", strDate)) {
-      @SuppressWarnings("deprecation") // for iCal4j
-      int year = new Date().getYear() + 1900;
-      strDate = strDate + "/" + year;
-    }
-    for (DateFormat dateFormat : dateFormats) {
-      dateFormat.setLenient(false);
-      try {
-        java.util.Date result = dateFormat.parse(strDate);
-        return result;
-      } catch (ParseException e) {
-        // Try the next format in the list.
-      }
-    }
-    throw new ParseException("bad date " + strDate, 0);
+    AvailabilityEngine engine = new AvailabilityEngine(busy);
+    List<Slot> available = engine.available(query);
+    // Render the whole answer, then write it at once.
+    Stats.Span span = Stats.start(Stats.Stage.RENDER);
+    String text = Renderer.forFormat(format).render(available, query);
+    span.stop();
+    System.out.print(text);
+    printStats();
   }
 
-  /**
-   * Formats a date.
-   *
-   * @param d the date
-   * @param tz the time zone
-   * @return a formatted representation of the date
-   */
-  static String formatDate(DateTime d, TimeZone tz) {
-    df.setTimeZone(tz);
-    String result = df.format(d);
-    // Don't remove trailing year; it's a good double-check.
-    // Prepend day of week.
-    result = dfDayOfWeek.format(d) + " " + result;
-    return result;
+  /** If statistics are enabled, prints them to standard error. */
+  static void printStats() {
+    if (stats) {
+      System.out.flush();
+      System.err.print(Stats.report());
+    }
   }
 }
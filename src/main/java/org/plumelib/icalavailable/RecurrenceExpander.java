@@ -0,0 +1,378 @@
+package org.plumelib.icalavailable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.Component;
+import net.fortuna.ical4j.model.DateTime;
+import net.fortuna.ical4j.model.Period;
+import net.fortuna.ical4j.model.PeriodList;
+import net.fortuna.ical4j.model.Property;
+import net.fortuna.ical4j.model.PropertyList;
+import net.fortuna.ical4j.model.component.VEvent;
+import net.fortuna.ical4j.model.property.RecurrenceId;
+import net.fortuna.ical4j.model.property.Transp;
+import net.fortuna.ical4j.model.property.Uid;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Expands recurring events into their instances within a window of time, and remembers the
+ * instances, so that expanding the same series again, over the same or an overlapping window,
+ * expands only the part of the window that was not expanded before.
+ *
+ * <p>Events are grouped into series by UID. A series is a master event, which may recur, and any
+ * number of overrides: events with the same UID and a RECURRENCE-ID, each of which replaces one
+ * instance of the master. An override that is cancelled or transparent removes its instance without
+ * adding any busy time. (RANGE=THISANDFUTURE is not supported; such an override replaces only its
+ * own instance.)
+ *
+ * <p>A RecurrenceExpander is meant to live as long as the process, and to be given each new version
+ * of the calendars. It may be used by several threads at once, provided that they expand different
+ * series.
+ */
+@SuppressWarnings("PMD") // todo
+final class RecurrenceExpander {
+
+  /** The properties of a master event that determine when its instances are. */
+  private static final List<String> TIMING_PROPERTIES =
+      List.of(
+          Property.DTSTART,
+          Property.DTEND,
+          Property.DURATION,
+          Property.RRULE,
+          Property.RDATE,
+          Property.EXRULE,
+          Property.EXDATE,
+          Property.TRANSP,
+          Property.STATUS);
+
+  /**
+   * How far beyond the end of the window to expand a recurring series. Expanding a recurrence rule
+   * costs about the same however short the window is, because ical4j always starts from the first
+   * instance; expanding a little ahead means that a window that has moved forward a little, as in
+   * {@link AvailabilityServer}, needs no expansion at all.
+   */
+  static final long LOOKAHEAD_MILLIS = 7 * AvailabilityQuery.MILLIS_PER_DAY;
+
+  /** The instances of each recurring series, by {@link Series#key}. */
+  private final Map<String, Expansion> expansions = new ConcurrentHashMap<>();
+
+  /** Creates a new RecurrenceExpander, which remembers nothing yet. */
+  RecurrenceExpander() {}
+
+  /** A master event and the events that override some of its instances. */
+  static final class Series {
+
+    /**
+     * Identifies the series across versions of the calendars: the index of its calendar and its
+     * UID. Null if the series cannot be identified, because it has no UID or its UID is repeated.
+     */
+    final @Nullable String key;
+
+    /** The master event, or null if the calendar contains only overrides. */
+    @Nullable VEvent master;
+
+    /** The events that override instances of the master. */
+    final List<VEvent> overrides = new ArrayList<>(0);
+
+    /**
+     * Creates a new Series.
+     *
+     * @param key identifies the series across versions of the calendars, or null
+     */
+    Series(@Nullable String key) {
+      this.key = key;
+    }
+  }
+
+  /**
+   * The instances of a master event within a window, which may be larger than the window that was
+   * asked for. Immutable.
+   */
+  private static final class Expansion {
+
+    /**
+     * The timing properties of the master, and the RECURRENCE-ID of each override. If they change,
+     * the instances must be expanded again.
+     */
+    final String fingerprint;
+
+    /** The start of the window, in milliseconds since the epoch. */
+    final long windowStart;
+
+    /** The end of the window, in milliseconds since the epoch. */
+    final long windowEnd;
+
+    /**
+     * The start of each instance that overlaps the window and is not overridden, in milliseconds
+     * since the epoch. Sorted.
+     */
+    final long[] starts;
+
+    /** The end of each instance, in milliseconds since the epoch. */
+    final long[] ends;
+
+    /**
+     * Creates a new Expansion.
+     *
+     * @param fingerprint the timing properties of the master, and the RECURRENCE-ID of each
+     *     override
+     * @param windowStart the start of the window, in milliseconds since the epoch
+     * @param windowEnd the end of the window, in milliseconds since the epoch
+     * @param starts the start of each instance; sorted; not copied
+     * @param ends the end of each instance; not copied
+     */
+    Expansion(String fingerprint, long windowStart, long windowEnd, long[] starts, long[] ends) {
+      this.fingerprint = fingerprint;
+      this.windowStart = windowStart;
+      this.windowEnd = windowEnd;
+      this.starts = starts;
+      this.ends = ends;
+    }
+  }
+
+  /**
+   * Groups the events of the given calendars into series. Cancelled events are retained, because a
+   * cancelled override still removes an instance of its master.
+   *
+   * @param calendars the calendars
+   * @return the series of all the calendars
+   */
+  static List<Series> series(List<Calendar> calendars) {
+    List<Series> result = new ArrayList<>();
+    for (int i = 0; i < calendars.size(); i++) {
+      Map<String, Series> byUid = new LinkedHashMap<>();
+      List<VEvent> events = calendars.get(i).getComponents(Component.VEVENT);
+      for (VEvent event : events) {
+        Uid uid = event.getUid();
+        if (uid == null) {
+          Series single = new Series(null);
+          single.master = event;
+          result.add(single);
+          continue;
+        }
+        Series series = byUid.get(uid.getValue());
+        if (series == null) {
+          series = new Series(i + " " + uid.getValue());
+          byUid.put(uid.getValue(), series);
+        }
+        if (event.getRecurrenceId() != null) {
+          series.overrides.add(event);
+        } else if (series.master == null) {
+          series.master = event;
+        } else {
+          // A malformed calendar: two masters with the same UID.  Treat this one on its own.
+          Series single = new Series(null);
+          single.master = event;
+          result.add(single);
+        }
+      }
+      result.addAll(byUid.values());
+    }
+    return result;
+  }
+
+  /**
+   * Forgets the instances of every series that is not in the given list, such as series that have
+   * been deleted from the calendars.
+   *
+   * @param current the series of the current version of the calendars
+   */
+  void retainAll(List<Series> current) {
+    Set<String> keys = new HashSet<>();
+    for (Series series : current) {
+      if (series.key != null) {
+        keys.add(series.key);
+      }
+    }
+    expansions.keySet().retainAll(keys);
+  }
+
+  /**
+   * Adds the times that the given series makes busy within the given window.
+   *
+   * @param series a series
+   * @param builder where to add the busy times
+   * @param windowStart the start of the window, in milliseconds since the epoch
+   * @param windowEnd the end of the window, in milliseconds since the epoch
+   */
+  @SuppressWarnings("index") // starts and ends have the same length
+  void addBusyTime(Series series, BusyIndex.Builder builder, long windowStart, long windowEnd) {
+    VEvent master = series.master;
+    if (master != null && !BusyIndex.isCancelled(master)) {
+      Set<Long> overridden = new HashSet<>();
+      for (VEvent override : series.overrides) {
+        RecurrenceId recurrenceId = override.getRecurrenceId();
+        if (recurrenceId != null) {
+          overridden.add(recurrenceId.getDate().getTime());
+        }
+      }
+      Expansion expansion = expansion(series.key, master, overridden, windowStart, windowEnd);
+      // The expansion may cover more than the window.
+      for (int i = 0; i < expansion.starts.length; i++) {
+        if (expansion.starts[i] < windowEnd && expansion.ends[i] > windowStart) {
+          builder.add(expansion.starts[i], expansion.ends[i]);
+        }
+      }
+    }
+    for (VEvent override : series.overrides) {
+      if (!BusyIndex.isCancelled(override)) {
+        builder.addConsumedTime(override, windowStart, windowEnd);
+      }
+    }
+  }
+
+  /**
+   * Returns the instances of the given master within (at least) the given window, reusing and
+   * extending a previous expansion if possible.
+   *
+   * @param key identifies the series across versions of the calendars, or null
+   * @param master the master event
+   * @param overridden the original start time of each overridden instance
+   * @param windowStart the start of the window, in milliseconds since the epoch
+   * @param windowEnd the end of the window, in milliseconds since the epoch
+   * @return the instances of the master that are not overridden, within a window that includes the
+   *     given one
+   */
+  @SuppressWarnings("index") // starts and ends have the same length
+  private Expansion expansion(
+      @Nullable String key, VEvent master, Set<Long> overridden, long windowStart, long windowEnd) {
+    boolean recurs =
+        master.getProperty(Property.RRULE) != null || master.getProperty(Property.RDATE) != null;
+    if (key == null || !recurs) {
+      // Not worth remembering.
+      TreeMap<Long, Long> instances = new TreeMap<>();
+      expand(master, overridden, windowStart, windowEnd, instances);
+      return toExpansion("", instances, windowStart, windowEnd);
+    }
+
+    String fingerprint = fingerprint(master, overridden);
+    Expansion previous = expansions.get(key);
+    TreeMap<Long, Long> instances = new TreeMap<>();
+    long expandedEnd = windowEnd + LOOKAHEAD_MILLIS;
+    if (previous == null
+        || !previous.fingerprint.equals(fingerprint)
+        || previous.windowEnd <= windowStart
+        || windowEnd <= previous.windowStart) {
+      expand(master, overridden, windowStart, expandedEnd, instances);
+    } else if (previous.windowStart <= windowStart && windowEnd <= previous.windowEnd) {
+      Stats.count(Stats.Counter.REUSED_EXPANSIONS, 1);
+      return previous;
+    } else {
+      // Reuse the instances in the overlap of the two windows, and expand only the rest.
+      for (int i = 0; i < previous.starts.length; i++) {
+        instances.put(previous.starts[i], previous.ends[i]);
+      }
+      if (windowStart < previous.windowStart) {
+        expand(master, overridden, windowStart, previous.windowStart, instances);
+      }
+      if (previous.windowEnd < windowEnd) {
+        expand(master, overridden, previous.windowEnd, expandedEnd, instances);
+      } else {
+        expandedEnd = previous.windowEnd;
+      }
+    }
+    Expansion result = toExpansion(fingerprint, instances, windowStart, expandedEnd);
+    expansions.put(key, result);
+    return result;
+  }
+
+  /**
+   * Expands a master event over a window, omitting overridden instances.
+   *
+   * @param master the master event
+   * @param overridden the original start time of each overridden instance
+   * @param windowStart the start of the window, in milliseconds since the epoch
+   * @param windowEnd the end of the window, in milliseconds since the epoch
+   * @param instances where to put the instances that overlap the window: a map from the start of
+   *     each instance to its end
+   */
+  private static void expand(
+      VEvent master,
+      Set<Long> overridden,
+      long windowStart,
+      long windowEnd,
+      SortedMap<Long, Long> instances) {
+    if (Transp.TRANSPARENT.equals(master.getProperty(Property.TRANSP))) {
+      return;
+    }
+    // The arguments of calculateRecurrenceSet are mutable, so each call gets its own, in case
+    // calls run concurrently.
+    PeriodList periods =
+        master.calculateRecurrenceSet(
+            new Period(new DateTime(windowStart), new DateTime(windowEnd)));
+    Stats.count(Stats.Counter.INSTANCES, periods.size());
+    // "Object" because PeriodList extends raw TreeSet.
+    for (Object o : periods) {
+      assert o != null
+          : "@AssumeAssertion(nullness): non-generic container class; elements are non-null";
+      Period p = (Period) o;
+      long start = p.getStart().getTime();
+      if (!overridden.contains(start)) {
+        instances.put(start, p.getEnd().getTime());
+      }
+    }
+  }
+
+  /**
+   * Returns an Expansion of the given instances, omitting those that do not overlap the window.
+   *
+   * @param fingerprint the timing properties of the master, and the RECURRENCE-ID of each override
+   * @param instances a map from the start of each instance to its end
+   * @param windowStart the start of the window, in milliseconds since the epoch
+   * @param windowEnd the end of the window, in milliseconds since the epoch
+   * @return an Expansion of the instances that overlap the window
+   */
+  @SuppressWarnings("index") // starts and ends have the same length
+  private static Expansion toExpansion(
+      String fingerprint, SortedMap<Long, Long> instances, long windowStart, long windowEnd) {
+    long[] starts = new long[instances.size()];
+    long[] ends = new long[instances.size()];
+    int size = 0;
+    for (Map.Entry<Long, Long> instance : instances.entrySet()) {
+      long start = instance.getKey();
+      long end = instance.getValue();
+      if (start < windowEnd && end > windowStart) {
+        starts[size] = start;
+        ends[size] = end;
+        size++;
+      }
+    }
+    return new Expansion(
+        fingerprint,
+        windowStart,
+        windowEnd,
+        Arrays.copyOf(starts, size),
+        Arrays.copyOf(ends, size));
+  }
+
+  /**
+   * Returns a string that changes whenever the instances of a master event may change. The DTSTAMP,
+   * which some servers update on every download, is deliberately omitted.
+   *
+   * @param master the master event
+   * @param overridden the original start time of each overridden instance
+   * @return the timing properties of the master, and the overridden start times
+   */
+  private static String fingerprint(VEvent master, Set<Long> overridden) {
+    StringBuilder result = new StringBuilder();
+    for (String name : TIMING_PROPERTIES) {
+      PropertyList<Property> properties = master.getProperties(name);
+      for (Property property : properties) {
+        result.append(property);
+      }
+    }
+    Long[] sorted = overridden.toArray(new Long[0]);
+    Arrays.sort(sorted);
+    result.append(Arrays.toString(sorted));
+    return result.toString();
+  }
+}
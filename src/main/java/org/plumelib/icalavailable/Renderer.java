@@ -0,0 +1,332 @@
+package org.plumelib.icalavailable;
+
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Locale;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Writes available times in one output format. Each renderer appends to a caller-supplied
+ * StringBuilder, which the caller may reuse from one rendering to the next, and formats times with
+ * a cached {@link ZoneFormatter}; so rendering creates few objects beyond the output itself.
+ *
+ * <p>Renderers have no state, so one renderer may be used by several threads at once.
+ */
+@SuppressWarnings("PMD") // todo
+abstract class Renderer {
+
+  /** The names of the output formats, as accepted by {@link #forFormat}. */
+  static final List<String> FORMATS = List.of("text", "json", "vfreebusy");
+
+  /** The locale of day and month names. */
+  static final Locale LOCALE = Locale.US;
+
+  /** The same as the original command-line output. */
+  private static final Renderer TEXT = new Text();
+
+  /** A JSON object; see {@link Json}. */
+  private static final Renderer JSON = new Json();
+
+  /** An iCalendar VFREEBUSY component; see {@link FreeBusy}. */
+  private static final Renderer FREE_BUSY = new FreeBusy();
+
+  /** Creates a new Renderer. */
+  Renderer() {}
+
+  /**
+   * Returns the renderer for the given output format.
+   *
+   * @param format the name of an output format, one of {@link #FORMATS}
+   * @return the renderer for the output format
+   * @throws IllegalArgumentException if the format is not recognized
+   */
+  static Renderer forFormat(String format) {
+    return switch (format) {
+      case "text" -> TEXT;
+      case "json" -> JSON;
+      case "vfreebusy" -> FREE_BUSY;
+      default ->
+          throw new IllegalArgumentException(
+              "Unknown format: "
+                  + format
+                  + " (expected one of "
+                  + String.join(", ", FORMATS)
+                  + ")");
+    };
+  }
+
+  /**
+   * Returns the MIME type of this format.
+   *
+   * @return the MIME type of this format
+   */
+  abstract String contentType();
+
+  /**
+   * Appends available times, in this format, to a StringBuilder.
+   *
+   * @param available the available times, in order
+   * @param query the query, which supplies the time zones
+   * @param out where to append the available times
+   */
+  abstract void render(List<Slot> available, AvailabilityQuery query, StringBuilder out);
+
+  /**
+   * Returns available times, in this format.
+   *
+   * @param available the available times, in order
+   * @param query the query, which supplies the time zones
+   * @return the available times, formatted
+   */
+  final String render(List<Slot> available, AvailabilityQuery query) {
+    StringBuilder out = new StringBuilder(64 + 40 * available.size());
+    render(available, query, out);
+    return out.toString();
+  }
+
+  /**
+   * Returns the formatter for the first time zone of the query.
+   *
+   * @param query a query
+   * @return the formatter for the first time zone of the query
+   */
+  static ZoneFormatter formatter1(AvailabilityQuery query) {
+    return ZoneFormatter.of(query.zone1(), LOCALE);
+  }
+
+  /**
+   * Returns the formatter for the second time zone of the query, if any.
+   *
+   * @param query a query
+   * @return the formatter for the second time zone of the query, or null if it has none
+   */
+  static @Nullable ZoneFormatter formatter2(AvailabilityQuery query) {
+    ZoneId zone2 = query.zone2();
+    return zone2 == null ? null : ZoneFormatter.of(zone2, LOCALE);
+  }
+
+  /**
+   * Appends spaces until the text appended since {@code start} is at least {@code width} long.
+   *
+   * @param out a StringBuilder
+   * @param start an index into {@code out}
+   * @param width the width to pad to
+   */
+  static void pad(StringBuilder out, int start, int width) {
+    for (int i = out.length() - start; i < width; i++) {
+      out.append(' ');
+    }
+  }
+
+  /**
+   * Appends a header line that names the time zones, if there are two of them. For example:
+   * "Timezone: Eastern [Timezone: Pacific]".
+   *
+   * @param f1 the formatter for the first time zone
+   * @param f2 the formatter for the second time zone, or null
+   * @param out where to append the header line
+   */
+  static void appendTimezones(ZoneFormatter f1, @Nullable ZoneFormatter f2, StringBuilder out) {
+    if (f2 != null) {
+      out.append("Timezone: ")
+          .append(f1.printedName())
+          .append("  [Timezone: ")
+          .append(f2.printedName())
+          .append(']')
+          .append(System.lineSeparator());
+    }
+  }
+
+  /**
+   * Appends a date line, such as "Tue Nov 17, 2020:", preceded by a blank line, if the given time
+   * is on a different day than the previous one.
+   *
+   * @param time a time, in milliseconds since the epoch
+   * @param previousDay the local date of the previous time, as returned by {@link
+   *     ZoneFormatter#epochDay}, or {@code Long.MIN_VALUE} if there is none
+   * @param f1 the formatter for the time zone in which days are reckoned
+   * @param out where to append the date line
+   * @return the local date of {@code time}
+   */
+  static long appendDateLine(long time, long previousDay, ZoneFormatter f1, StringBuilder out) {
+    long day = f1.epochDay(time);
+    if (day != previousDay) {
+      out.append(System.lineSeparator());
+      f1.appendDate(time, out);
+      out.append(':').append(System.lineSeparator());
+    }
+    return day;
+  }
+
+  /**
+   * Appends a range of times in one or two time zones, such as "9:30am to 11:00am" or "9:30am to
+   * 11:00am [6:30am to 8:00am]".
+   *
+   * @param start the start of the range, in milliseconds since the epoch
+   * @param end the end of the range, in milliseconds since the epoch
+   * @param f1 the formatter for the first time zone
+   * @param f2 the formatter for the second time zone, or null
+   * @param out where to append the range
+   */
+  static void appendRanges(
+      long start, long end, ZoneFormatter f1, @Nullable ZoneFormatter f2, StringBuilder out) {
+    int lineStart = out.length();
+    f1.appendRange(start, end, out);
+    if (f2 != null) {
+      pad(out, lineStart, 20);
+      out.append('[');
+      f2.appendRange(start, end, out);
+      out.append(']');
+    }
+  }
+
+  /**
+   * Appends a JSON string literal.
+   *
+   * @param s a string
+   * @param out where to append a JSON string literal whose value is {@code s}
+   */
+  static void appendJsonString(String s, StringBuilder out) {
+    out.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '"' -> out.append("\\\"");
+        case '\\' -> out.append("\\\\");
+        case '\n' -> out.append("\\n");
+        case '\r' -> out.append("\\r");
+        case '\t' -> out.append("\\t");
+        default -> {
+          if (c < 0x20) {
+            out.append("\\u00")
+                .append(Character.forDigit(c >> 4, 16))
+                .append(Character.forDigit(c & 0xF, 16));
+          } else {
+            out.append(c);
+          }
+        }
+      }
+    }
+    out.append('"');
+  }
+
+  /** Text, grouped by date, in one or two time zones; the original command-line output. */
+  private static final class Text extends Renderer {
+
+    @Override
+    String contentType() {
+      return "text/plain; charset=utf-8";
+    }
+
+    @Override
+    void render(List<Slot> available, AvailabilityQuery query, StringBuilder out) {
+      ZoneFormatter f1 = formatter1(query);
+      ZoneFormatter f2 = formatter2(query);
+      appendTimezones(f1, f2, out);
+      long day = Long.MIN_VALUE;
+      for (Slot slot : available) {
+        day = appendDateLine(slot.start(), day, f1, out);
+        appendRanges(slot.start(), slot.end(), f1, f2, out);
+        out.append(System.lineSeparator());
+      }
+    }
+  }
+
+  /**
+   * A JSON object. Each time has its start and end as UTC instants, and the date and time range as
+   * formatted for text output.
+   */
+  private static final class Json extends Renderer {
+
+    @Override
+    String contentType() {
+      return "application/json";
+    }
+
+    @Override
+    void render(List<Slot> available, AvailabilityQuery query, StringBuilder out) {
+      ZoneFormatter f1 = formatter1(query);
+      ZoneFormatter f2 = formatter2(query);
+      out.append("{\"timezone1\":");
+      appendJsonString(f1.printedName(), out);
+      if (f2 != null) {
+        out.append(",\"timezone2\":");
+        appendJsonString(f2.printedName(), out);
+      }
+      out.append(",\"available\":[");
+      boolean first = true;
+      // Dates, times, and instants contain no characters that need escaping.
+      for (Slot slot : available) {
+        if (!first) {
+          out.append(',');
+        }
+        first = false;
+        out.append("{\"date\":\"");
+        f1.appendDate(slot.start(), out);
+        out.append("\",\"start\":\"");
+        ZoneFormatter.appendIsoUtc(slot.start(), out);
+        out.append("\",\"end\":\"");
+        ZoneFormatter.appendIsoUtc(slot.end(), out);
+        out.append("\",\"range\":\"");
+        f1.appendRange(slot.start(), slot.end(), out);
+        if (f2 != null) {
+          out.append("\",\"range2\":\"");
+          f2.appendRange(slot.start(), slot.end(), out);
+        }
+        out.append("\"}");
+      }
+      out.append("]}\n");
+    }
+  }
+
+  /**
+   * An iCalendar (RFC 5545) calendar containing one VFREEBUSY component, which covers the days of
+   * the query and lists each available time as a FREEBUSY;FBTYPE=FREE period. Calendar clients can
+   * import it, or overlay it on another calendar.
+   */
+  private static final class FreeBusy extends Renderer {
+
+    /** The line terminator required by iCalendar. */
+    private static final String CRLF = "\r\n";
+
+    @Override
+    String contentType() {
+      return "text/calendar; charset=utf-8";
+    }
+
+    @Override
+    void render(List<Slot> available, AvailabilityQuery query, StringBuilder out) {
+      long now = System.currentTimeMillis();
+      long start = query.startDate().atStartOfDay(query.zone1()).toInstant().toEpochMilli();
+      long end =
+          query
+              .startDate()
+              .plusDays(query.days())
+              .atStartOfDay(query.zone1())
+              .toInstant()
+              .toEpochMilli();
+      out.append("BEGIN:VCALENDAR").append(CRLF);
+      out.append("VERSION:2.0").append(CRLF);
+      out.append("PRODID:-//plumelib//ICalAvailable//EN").append(CRLF);
+      out.append("BEGIN:VFREEBUSY").append(CRLF);
+      out.append("UID:ical-available-").append(now).append("@plumelib.org").append(CRLF);
+      out.append("DTSTAMP:");
+      ZoneFormatter.appendICalUtc(now, out);
+      out.append(CRLF).append("DTSTART:");
+      ZoneFormatter.appendICalUtc(start, out);
+      out.append(CRLF).append("DTEND:");
+      ZoneFormatter.appendICalUtc(end, out);
+      out.append(CRLF);
+      // One period per line keeps every line well under the 75-octet limit, so none need folding.
+      for (Slot slot : available) {
+        out.append("FREEBUSY;FBTYPE=FREE:");
+        ZoneFormatter.appendICalUtc(slot.start(), out);
+        out.append('/');
+        ZoneFormatter.appendICalUtc(slot.end(), out);
+        out.append(CRLF);
+      }
+      out.append("END:VFREEBUSY").append(CRLF);
+      out.append("END:VCALENDAR").append(CRLF);
+    }
+  }
+}
@@ -0,0 +1,196 @@
+package org.plumelib.icalavailable;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.checkerframework.checker.lock.qual.GuardSatisfied;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Remembers the available times of recent days, so that a question that overlaps an earlier one
+ * reuses the days that were already computed. It is used by {@link AvailabilityServer}, whose users
+ * often ask the same or overlapping questions, such as "the next 8 days" again and again.
+ *
+ * <p>An entry is keyed by the business hours of one day, as instants. The available times of a day
+ * depend on nothing else but the busy times, so two questions that spell the same time zone or
+ * business hours differently share entries.
+ *
+ * <p>The busy times are identified by a version, which {@link #invalidate} advances whenever they
+ * change; it also discards just the days that the change affects, so that an event added next month
+ * does not discard today. Each entry records the first version for which it is valid. An engine
+ * that still holds an older version, because it was answering a question while the calendars were
+ * refreshed, neither uses newer entries nor adds its own.
+ *
+ * <p>The cache holds at most a given number of days, and evicts the least recently used. It is
+ * thread-safe.
+ */
+@SuppressWarnings("PMD") // todo
+final class ResultCache {
+
+  /** No free times. */
+  private static final long[] NONE = new long[0];
+
+  /** The business hours of one day. Immutable. */
+  private static final class Key {
+
+    /** The business hours of the day, as alternating start and end times. Not mutated. */
+    final long[] ranges;
+
+    /** The hash code of this key. */
+    final int hashCode;
+
+    /**
+     * Creates a new Key.
+     *
+     * @param ranges the business hours of the day, as alternating start and end times; not copied
+     */
+    Key(long[] ranges) {
+      this.ranges = ranges;
+      this.hashCode = Arrays.hashCode(ranges);
+    }
+
+    @Override
+    @SuppressWarnings("lock:instanceof.pattern.unsafe") // a Key is immutable
+    public boolean equals(@GuardSatisfied Key this, @GuardSatisfied @Nullable Object other) {
+      return other instanceof Key key && Arrays.equals(ranges, key.ranges);
+    }
+
+    @Override
+    public int hashCode(@GuardSatisfied Key this) {
+      return hashCode;
+    }
+  }
+
+  /** The free times of one day. Immutable. */
+  private static final class FreeTimes {
+
+    /** The first version of the busy times for which the free times are valid. */
+    final long version;
+
+    /** The free times, as alternating start and end times. Not mutated. */
+    final long[] free;
+
+    /**
+     * Creates a new FreeTimes.
+     *
+     * @param version the first version of the busy times for which the free times are valid
+     * @param free the free times, as alternating start and end times; not copied
+     */
+    FreeTimes(long version, long[] free) {
+      this.version = version;
+      this.free = free;
+    }
+  }
+
+  /** The free times of each day, from least to most recently used. Guarded by this. */
+  private final LinkedHashMap<Key, FreeTimes> days;
+
+  /** The current version of the busy times. Guarded by this. */
+  private long version = 0;
+
+  /**
+   * Creates a new ResultCache.
+   *
+   * @param maxDays the most days to remember; positive
+   */
+  ResultCache(int maxDays) {
+    this.days =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          private static final long serialVersionUID = 1L;
+
+          @Override
+          @SuppressWarnings("lock:override.receiver") // called by put(), under the same lock
+          protected boolean removeEldestEntry(Map.Entry<Key, FreeTimes> eldest) {
+            return size() > maxDays;
+          }
+        };
+  }
+
+  /**
+   * Records that the busy times have changed, and discards the days that the change affects.
+   *
+   * @param changed the times whose availability changed, as alternating start and end times, as
+   *     returned by {@link BusyIndex#symmetricDifference}
+   * @return the new version of the busy times
+   */
+  synchronized long invalidate(long[] changed) {
+    if (changed.length == 0) {
+      return version;
+    }
+    days.keySet().removeIf(key -> BusyIndex.overlapping(key.ranges, changed).length != 0);
+    return ++version;
+  }
+
+  /**
+   * Returns the free times within the given business hours, as {@link BusyIndex#free(long[], long)}
+   * does, but day by day, using remembered days where possible.
+   *
+   * @param busy the busy times
+   * @param busyVersion the version of the busy times, as returned by {@link #invalidate}
+   * @param ranges the business hours, as returned by {@link
+   *     AvailabilityQuery#businessIntervals(int[])}
+   * @param dayEnds the index in {@code ranges} just past the business hours of each day
+   * @param minLength the shortest free time to report, in milliseconds
+   * @return the free times, as alternating start and end times, in milliseconds since the epoch
+   */
+  @SuppressWarnings("index") // dayEnds is non-decreasing, and at most ranges.length
+  long[] free(BusyIndex busy, long busyVersion, long[] ranges, int[] dayEnds, long minLength) {
+    long[][] free = new long[dayEnds.length][];
+    int length = 0;
+    int dayStart = 0;
+    for (int d = 0; d < dayEnds.length; d++) {
+      int dayEnd = dayEnds[d];
+      if (dayStart == dayEnd) {
+        // Not a business day; nothing to look up.
+        free[d] = NONE;
+      } else {
+        Key key = new Key(Arrays.copyOfRange(ranges, dayStart, dayEnd));
+        long[] dayFree = get(key, busyVersion);
+        if (dayFree == null) {
+          Stats.count(Stats.Counter.RESULT_CACHE_MISSES, 1);
+          dayFree = busy.free(key.ranges, minLength);
+          put(key, busyVersion, dayFree);
+        } else {
+          Stats.count(Stats.Counter.RESULT_CACHE_HITS, 1);
+        }
+        free[d] = dayFree;
+      }
+      length += free[d].length;
+      dayStart = dayEnd;
+    }
+    long[] result = new long[length];
+    int position = 0;
+    for (long[] dayFree : free) {
+      System.arraycopy(dayFree, 0, result, position, dayFree.length);
+      position += dayFree.length;
+    }
+    return result;
+  }
+
+  /**
+   * Returns the remembered free times of a day, and marks them as most recently used.
+   *
+   * @param key the day
+   * @param busyVersion the version of the busy times
+   * @return the free times of the day, or null if they are not remembered for that version
+   */
+  private synchronized long @Nullable [] get(Key key, long busyVersion) {
+    FreeTimes entry = days.get(key);
+    // An entry that has survived every invalidation since busyVersion is valid for busyVersion.
+    return entry == null || entry.version > busyVersion ? null : entry.free;
+  }
+
+  /**
+   * Remembers the free times of a day, evicting the least recently used day if the cache is full.
+   * Does nothing if the busy times have changed since they were computed.
+   *
+   * @param key the day
+   * @param busyVersion the version of the busy times from which the free times were computed
+   * @param free the free times of the day; not copied, and must not be mutated
+   */
+  private synchronized void put(Key key, long busyVersion, long[] free) {
+    if (busyVersion == version) {
+      days.put(key, new FreeTimes(busyVersion, free));
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package org.plumelib.icalavailable;
+
+/** A span of free time. A Slot is immutable. */
+@SuppressWarnings("PMD") // todo
+final class Slot {
+
+  /** The start of the free time, in milliseconds since the epoch. */
+  private final long start;
+
+  /** The end (exclusive) of the free time, in milliseconds since the epoch. */
+  private final long end;
+
+  /**
+   * Creates a new Slot.
+   *
+   * @param start the start of the free time, in milliseconds since the epoch
+   * @param end the end (exclusive) of the free time, in milliseconds since the epoch
+   */
+  Slot(long start, long end) {
+    this.start = start;
+    this.end = end;
+  }
+
+  /**
+   * Returns the start of the free time.
+   *
+   * @return the start of the free time, in milliseconds since the epoch
+   */
+  long start() {
+    return start;
+  }
+
+  /**
+   * Returns the end (exclusive) of the free time.
+   *
+   * @return the end of the free time, in milliseconds since the epoch
+   */
+  long end() {
+    return end;
+  }
+}
@@ -0,0 +1,252 @@
+package org.plumelib.icalavailable;
+
+import java.util.Arrays;
+import java.util.List;
+import org.checkerframework.checker.index.qual.NonNegative;
+
+/**
+ * Business hours divided into slots of a fixed length, and the attendees' free times as bitmaps
+ * over the slots. Each business-hour range is divided into slots from its start; a partial slot at
+ * its end is dropped. An attendee is free in a slot only if free throughout it.
+ *
+ * <p>Once the attendees are rasterized, finding the slots when at least k of n attendees are free
+ * takes a few word-wide operations per 64 slots and attendee: the attendees' bits are summed into a
+ * bit-sliced counter (one word per bit of the count), which is then compared with k. The same pass
+ * marks the slots in which some attendee becomes free. As in {@link GroupFinder}, a maximal time
+ * starts at such a slot or at the start of a business-hour range, so only those slots when at least
+ * k are free are turned back into times, by {@link GroupFinder#addRuns}.
+ *
+ * <p>A SlotGrid is immutable.
+ */
+@SuppressWarnings("PMD") // todo
+final class SlotGrid {
+
+  /** The length of a slot, in milliseconds. */
+  private final long slotMillis;
+
+  /** The business hours, as alternating start and end times, in milliseconds since the epoch. */
+  private final long[] ranges;
+
+  /**
+   * The index of the first slot of each business-hour range, and finally the number of slots. The
+   * slots of range {@code r} are {@code firstSlots[r]} (inclusive) to {@code firstSlots[r + 1]}.
+   */
+  private final int[] firstSlots;
+
+  /** The number of words in a bitmap. */
+  private final @NonNegative int words;
+
+  /**
+   * Creates a new SlotGrid.
+   *
+   * @param ranges the business hours, as alternating start and end times, in milliseconds since the
+   *     epoch; sorted and disjoint
+   * @param slotMillis the length of a slot, in milliseconds; positive
+   */
+  @SuppressWarnings("index") // ranges has even length
+  SlotGrid(long[] ranges, long slotMillis) {
+    this.slotMillis = slotMillis;
+    this.ranges = ranges;
+    this.firstSlots = new int[ranges.length / 2 + 1];
+    int slots = 0;
+    for (int r = 0; r < ranges.length / 2; r++) {
+      firstSlots[r] = slots;
+      slots = Math.addExact(slots, (int) ((ranges[2 * r + 1] - ranges[2 * r]) / slotMillis));
+    }
+    firstSlots[ranges.length / 2] = slots;
+    this.words = (slots + 63) >> 6;
+  }
+
+  /**
+   * Returns the slots in which an attendee is free.
+   *
+   * @param busy the busy times of the attendee
+   * @return a bitmap of the slots in which the attendee is free throughout
+   */
+  @SuppressWarnings("index") // free and ranges have even length; slot indices are < the count
+  long[] rasterize(BusyIndex busy) {
+    long[] result = new long[words];
+    for (int r = 0; r < ranges.length / 2; r++) {
+      long from = ranges[2 * r];
+      int first = firstSlots[r];
+      int count = firstSlots[r + 1] - first;
+      long[] free = busy.free(from, from + count * slotMillis, slotMillis);
+      for (int i = 0; i < free.length; i += 2) {
+        // The slots that lie wholly within the free time.
+        int lo = (int) ((free[i] - from + slotMillis - 1) / slotMillis);
+        int hi = (int) ((free[i + 1] - from) / slotMillis);
+        if (lo < hi) {
+          setBits(result, first + lo, first + hi);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the maximal times, within the business hours, when at least {@code quorum} of the
+   * attendees are free; see {@link GroupFinder}.
+   *
+   * @param free the slots in which each attendee is free, as returned by {@link #rasterize}
+   * @param quorum the minimum number of attendees who must be free; positive, and at most the
+   *     number of attendees
+   * @param minLength the shortest time to report, in milliseconds
+   * @param result where to add the times, in order of start and then end
+   */
+  @SuppressWarnings("index") // every bitmap has words words; slot indices are < the count
+  void atLeast(List<long[]> free, int quorum, long minLength, List<GroupFinder.GroupSlot> result) {
+    int n = free.size();
+    // The counter has one plane per bit of n.
+    int bits = 32 - Integer.numberOfLeadingZeros(n);
+    long[] planes = new long[bits];
+    // Bit i is set if at least quorum attendees are free in slot i.
+    long[] enough = new long[words];
+    // Bit i is set if at least quorum attendees are free in slot i, and some attendee is free in
+    // slot i but not in slot i - 1.
+    long[] starts = new long[words];
+    for (int w = 0; w < words; w++) {
+      Arrays.fill(planes, 0);
+      long started = 0;
+      for (int a = 0; a < n; a++) {
+        long[] bitmap = free.get(a);
+        long word = bitmap[w];
+        // The word shifted by one slot, with the top bit of the previous word at the bottom.
+        long previous = (word << 1) | (w > 0 && bitmap[w - 1] < 0 ? 1 : 0);
+        started |= word & ~previous;
+        // Add the word to the counter, with a ripple carry.
+        long carry = word;
+        for (int b = 0; carry != 0 && b < bits; b++) {
+          long next = planes[b] & carry;
+          planes[b] ^= carry;
+          carry = next;
+        }
+      }
+      // Compare the counter with quorum, from the most significant bit down.
+      long greater = 0;
+      long equal = -1L;
+      for (int b = bits - 1; b >= 0; b--) {
+        if ((quorum >> b & 1) != 0) {
+          equal &= planes[b];
+        } else {
+          greater |= equal & planes[b];
+          equal &= ~planes[b];
+        }
+      }
+      enough[w] = greater | equal;
+      starts[w] = enough[w] & started;
+    }
+
+    long[] until = new long[n];
+    boolean[] anchored = new boolean[n];
+    for (int r = 0; r < ranges.length / 2; r++) {
+      long from = ranges[2 * r];
+      int first = firstSlots[r];
+      int end = firstSlots[r + 1];
+      int i = first < end && isSet(enough, first) ? first : nextSetBit(starts, first + 1, end);
+      while (i < end) {
+        long start = from + (i - first) * slotMillis;
+        for (int a = 0; a < n; a++) {
+          long[] bitmap = free.get(a);
+          if (isSet(bitmap, i)) {
+            until[a] = from + (nextClearBit(bitmap, i, end) - first) * slotMillis;
+            anchored[a] = i == first || !isSet(bitmap, i - 1);
+          } else {
+            until[a] = start;
+          }
+        }
+        GroupFinder.addRuns(start, until, anchored, quorum, minLength, result);
+        i = nextSetBit(starts, i + 1, end);
+      }
+    }
+  }
+
+  /**
+   * Returns true if a bit is set.
+   *
+   * @param bitmap a bitmap
+   * @param i the index of a bit
+   * @return true if bit {@code i} is set
+   */
+  @SuppressWarnings("index") // i is within the bitmap
+  private static boolean isSet(long[] bitmap, int i) {
+    return (bitmap[i >> 6] & (1L << i)) != 0;
+  }
+
+  /**
+   * Returns the index of the first set bit in a span of a bitmap.
+   *
+   * @param bitmap a bitmap
+   * @param from the first index to examine
+   * @param to the end (exclusive) of the span
+   * @return the index of the first set bit at or after {@code from}, or {@code to} if there is none
+   *     before {@code to}
+   */
+  @SuppressWarnings("index") // from and to are within the bitmap
+  private static int nextSetBit(long[] bitmap, int from, int to) {
+    if (from >= to) {
+      return to;
+    }
+    int w = from >> 6;
+    long word = bitmap[w] & (-1L << from);
+    while (true) {
+      if (word != 0) {
+        return Math.min(to, (w << 6) + Long.numberOfTrailingZeros(word));
+      }
+      if (++w << 6 >= to) {
+        return to;
+      }
+      word = bitmap[w];
+    }
+  }
+
+  /**
+   * Returns the index of the first clear bit in a span of a bitmap.
+   *
+   * @param bitmap a bitmap
+   * @param from the first index to examine
+   * @param to the end (exclusive) of the span
+   * @return the index of the first clear bit at or after {@code from}, or {@code to} if there is
+   *     none before {@code to}
+   */
+  @SuppressWarnings("index") // from and to are within the bitmap
+  private static int nextClearBit(long[] bitmap, int from, int to) {
+    if (from >= to) {
+      return to;
+    }
+    int w = from >> 6;
+    long word = ~bitmap[w] & (-1L << from);
+    while (true) {
+      if (word != 0) {
+        return Math.min(to, (w << 6) + Long.numberOfTrailingZeros(word));
+      }
+      if (++w << 6 >= to) {
+        return to;
+      }
+      word = ~bitmap[w];
+    }
+  }
+
+  /**
+   * Sets a span of bits.
+   *
+   * @param bitmap a bitmap
+   * @param from the first bit to set
+   * @param to the end (exclusive) of the span; greater than {@code from}
+   */
+  @SuppressWarnings("index") // from and to are within the bitmap
+  private static void setBits(long[] bitmap, int from, int to) {
+    int first = from >> 6;
+    int last = (to - 1) >> 6;
+    long firstMask = -1L << from;
+    long lastMask = -1L >>> -to;
+    if (first == last) {
+      bitmap[first] |= firstMask & lastMask;
+      return;
+    }
+    bitmap[first] |= firstMask;
+    for (int w = first + 1; w < last; w++) {
+      bitmap[w] = -1L;
+    }
+    bitmap[last] |= lastMask;
+  }
+}
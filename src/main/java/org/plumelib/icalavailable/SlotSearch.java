@@ -0,0 +1,174 @@
+package org.plumelib.icalavailable;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import net.fortuna.ical4j.model.Calendar;
+import org.checkerframework.checker.index.qual.NonNegative;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Finds free times lazily, day by day, from the first day of a query. It is meant for questions
+ * such as "the first 5 times of at least 30 minutes", whose answer usually lies in the first day or
+ * two: the free times of the days after the one that yields the last time that is wanted are never
+ * computed.
+ *
+ * <p>The busy times are compiled a chunk of days at a time, just before the first day of the chunk
+ * is searched. Compiling costs a pass over every event, however short the chunk, so the first chunk
+ * is a week long, which answers most questions, and each chunk is twice as long as the one before,
+ * so a search that runs to the end of a long query compiles only a few times.
+ *
+ * <p>A SlotSearch is a {@link Spliterator}, which {@link #stream} wraps in a sequential stream. It
+ * is not thread-safe.
+ */
+@SuppressWarnings("PMD") // todo
+final class SlotSearch extends Spliterators.AbstractSpliterator<Slot> {
+
+  /** No free times. */
+  private static final long[] NONE = new long[0];
+
+  /** The length of the first chunk, in days. */
+  private static final int FIRST_CHUNK_DAYS = 7;
+
+  /** Returns the busy times within a window. */
+  @FunctionalInterface
+  interface BusyTimes {
+
+    /**
+     * Returns the busy times within the given window.
+     *
+     * @param windowStart the start of the window, in milliseconds since the epoch
+     * @param windowEnd the end of the window, in milliseconds since the epoch
+     * @return busy times that include all those within the window
+     */
+    BusyIndex within(long windowStart, long windowEnd);
+  }
+
+  /** Returns the busy times within a window. */
+  private final BusyTimes busyTimes;
+
+  /** The business hours of every day of the query, as alternating start and end times. */
+  private final long[] ranges;
+
+  /** The index in {@link #ranges} just past the business hours of each day. */
+  private final int[] dayEnds;
+
+  /** The shortest free time to report, in milliseconds. */
+  private final long minLength;
+
+  /** The next day to search. */
+  private @NonNegative int day = 0;
+
+  /** The busy times of the current chunk, or null before the first chunk. */
+  private @Nullable BusyIndex busy = null;
+
+  /** The day just past the current chunk. */
+  private int chunkEnd = 0;
+
+  /** The length of the next chunk, in days. */
+  private int chunkDays = FIRST_CHUNK_DAYS;
+
+  /** The free times of the day before {@link #day}, as alternating start and end times. */
+  private long[] free = NONE;
+
+  /** The index in {@link #free} of the next free time to return. */
+  private @NonNegative int next = 0;
+
+  /**
+   * Creates a new SlotSearch.
+   *
+   * @param query the query, whose days are searched in order
+   * @param minLength the shortest free time to report, in milliseconds
+   * @param busyTimes returns the busy times within a window
+   */
+  SlotSearch(AvailabilityQuery query, long minLength, BusyTimes busyTimes) {
+    super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.IMMUTABLE);
+    this.busyTimes = busyTimes;
+    this.dayEnds = new int[query.days()];
+    this.ranges = query.businessIntervals(dayEnds);
+    this.minLength = minLength;
+  }
+
+  /**
+   * Creates a new SlotSearch that compiles the busy times of the given calendars as it goes.
+   *
+   * @param query the query, whose days are searched in order
+   * @param minLength the shortest free time to report, in milliseconds
+   * @param calendars the calendars
+   * @return a search of the free times of the calendars
+   */
+  static SlotSearch of(AvailabilityQuery query, long minLength, List<Calendar> calendars) {
+    RecurrenceExpander expander = new RecurrenceExpander();
+    return new SlotSearch(
+        query,
+        minLength,
+        (windowStart, windowEnd) -> BusyIndex.compile(calendars, windowStart, windowEnd, expander));
+  }
+
+  /**
+   * Returns the remaining free times as a sequential stream. A short-circuiting operation such as
+   * {@link Stream#limit} ends the search.
+   *
+   * @return the remaining free times, in order
+   */
+  Stream<Slot> stream() {
+    return StreamSupport.stream(this, false);
+  }
+
+  /**
+   * Returns the number of days searched so far.
+   *
+   * @return the number of days searched so far
+   */
+  @NonNegative
+  int daysSearched() {
+    return day;
+  }
+
+  @Override
+  @SuppressWarnings({
+    "index", // free has even length, and next is even
+    // These checkers default the lower bound of the wildcard to their bottom types.
+    "interning:argument",
+    "signature:argument"
+  })
+  public boolean tryAdvance(Consumer<? super Slot> action) {
+    while (next >= free.length) {
+      if (day >= dayEnds.length) {
+        return false;
+      }
+      searchDay();
+    }
+    action.accept(new Slot(free[next], free[next + 1]));
+    next += 2;
+    return true;
+  }
+
+  /** Finds the free times of the next day, compiling the busy times of a new chunk if needed. */
+  @SuppressWarnings("index") // dayEnds is non-decreasing, and at most ranges.length
+  private void searchDay() {
+    int dayStart = day == 0 ? 0 : dayEnds[day - 1];
+    int dayEnd = dayEnds[day];
+    free = NONE;
+    next = 0;
+    if (dayStart < dayEnd) {
+      BusyIndex chunk = busy;
+      if (chunk == null || day >= chunkEnd) {
+        chunkEnd = Math.min(dayEnds.length, day + chunkDays);
+        chunkDays = Math.min(chunkDays * 2, dayEnds.length);
+        chunk = busyTimes.within(ranges[dayStart], ranges[dayEnds[chunkEnd - 1] - 1]);
+        busy = chunk;
+      }
+      Stats.Span span = Stats.start(Stats.Stage.AVAILABLE);
+      free = chunk.free(Arrays.copyOfRange(ranges, dayStart, dayEnd), minLength);
+      span.stop();
+      Stats.count(Stats.Counter.SLOTS, free.length / 2);
+    }
+    Stats.count(Stats.Counter.SEARCHED_DAYS, 1);
+    day++;
+  }
+}
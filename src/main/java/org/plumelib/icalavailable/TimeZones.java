@@ -0,0 +1,228 @@
+package org.plumelib.icalavailable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.DateTimeException;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import net.fortuna.ical4j.model.TimeZone;
+import net.fortuna.ical4j.model.TimeZoneRegistry;
+import net.fortuna.ical4j.model.TimeZoneRegistryFactory;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Resolves time zone names, with process-wide caches, for both the command line and the parser.
+ *
+ * <p>A name that is not an Olson ID, such as "Eastern" or Outlook's "Eastern Standard Time", is
+ * first mapped through an alias table. The table is read from the resource {@value
+ * #ALIASES_RESOURCE}, and {@link #addAliases} can add to it.
+ *
+ * <p>When parsing, each calendar gets its own {@link #registry}, which resolves TZIDs through
+ * process-wide caches: a time zone that a calendar defines in a VTIMEZONE is shared with every
+ * other calendar (or later version of the calendar) that defines it identically, and a TZID that a
+ * calendar does not define is looked up once per process, whether or not it is found. Without the
+ * caches, ical4j creates a new time zone for every VTIMEZONE that it parses, and searches its
+ * resources anew for every date whose TZID it does not know.
+ */
+@SuppressWarnings("PMD") // todo
+final class TimeZones {
+
+  /** This class is a collection of methods; it does not represent anything. */
+  private TimeZones() {
+    throw new Error("do not instantiate");
+  }
+
+  /** The name of the resource that holds the built-in aliases. */
+  static final String ALIASES_RESOURCE = "timezone-aliases.properties";
+
+  /**
+   * The most entries that each cache holds. A long-running server may be asked about any number of
+   * misspelled time zones, and may read any number of calendars; past this size, results are
+   * computed afresh each time.
+   */
+  static final int MAX_CACHED = 4096;
+
+  /** Maps a lower-case alias to an Olson ID. */
+  private static final Map<String, String> aliases = new ConcurrentHashMap<>();
+
+  /** The time zones returned by {@link #zone}, by name. */
+  private static final Map<String, ZoneId> zones = new ConcurrentHashMap<>();
+
+  /** The time zones defined by calendars, by the text of the VTIMEZONE that defines them. */
+  private static final Map<String, TimeZone> definitions = new ConcurrentHashMap<>();
+
+  /** The time zones known to ical4j, by TZID; empty if a TZID is unknown. */
+  private static final Map<String, Optional<TimeZone>> known = new ConcurrentHashMap<>();
+
+  /** The registry of the time zones known to ical4j. */
+  private static final TimeZoneRegistry defaultRegistry =
+      TimeZoneRegistryFactory.getInstance().createRegistry();
+
+  static {
+    try (InputStream in = TimeZones.class.getResourceAsStream(ALIASES_RESOURCE)) {
+      if (in == null) {
+        throw new Error("Missing resource " + ALIASES_RESOURCE);
+      }
+      Properties properties = new Properties();
+      properties.load(in);
+      putAliases(properties);
+    } catch (IOException e) {
+      throw new Error("Could not read resource " + ALIASES_RESOURCE, e);
+    }
+  }
+
+  /**
+   * Adds the aliases in the given file, which is in the same format as {@value #ALIASES_RESOURCE}.
+   * An alias in the file replaces any existing alias with the same name.
+   *
+   * @param file a file of aliases
+   * @throws IOException if the file could not be read
+   */
+  static void addAliases(Path file) throws IOException {
+    Properties properties = new Properties();
+    try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      properties.load(reader);
+    }
+    putAliases(properties);
+    zones.clear();
+    known.clear();
+  }
+
+  /**
+   * Adds aliases.
+   *
+   * @param properties maps each alias to an Olson ID
+   */
+  private static void putAliases(Properties properties) {
+    for (String alias : properties.stringPropertyNames()) {
+      String id = properties.getProperty(alias);
+      if (id != null) {
+        // Use Locale.ROOT, not the default locale, so that the lookup keys (which are ASCII) match
+        // regardless of the user's locale; e.g., in a Turkish locale "IST".toLowerCase() is "ıst".
+        aliases.put(alias.toLowerCase(Locale.ROOT), id.trim());
+      }
+    }
+  }
+
+  /**
+   * Converts a time zone name or alias to a canonical form, if possible.
+   *
+   * @param timezone a time zone name or alias
+   * @return either the argument, or the Olson ID for which it is an alias
+   */
+  static String canonicalize(String timezone) {
+    return aliases.getOrDefault(timezone.toLowerCase(Locale.ROOT), timezone);
+  }
+
+  /**
+   * Parses a time zone name, such as "America/New_York", or alias, such as "Eastern".
+   *
+   * @param timezone a time zone name or alias
+   * @return the time zone
+   * @throws IllegalArgumentException if there is no such time zone
+   */
+  static ZoneId zone(String timezone) {
+    ZoneId result = zones.get(timezone);
+    if (result != null) {
+      return result;
+    }
+    try {
+      result = ZoneId.of(canonicalize(timezone));
+    } catch (DateTimeException e) {
+      throw new IllegalArgumentException(
+          "Unrecognized time zone (see http://php.net/manual/en/timezones.php): " + timezone, e);
+    }
+    if (zones.size() < MAX_CACHED) {
+      zones.put(timezone, result);
+    }
+    return result;
+  }
+
+  /**
+   * Returns a registry for parsing one calendar. Time zones that the calendar defines are shared
+   * with other calendars that define them identically; other TZIDs are resolved by ical4j, or
+   * through the aliases.
+   *
+   * @return a registry for parsing one calendar
+   */
+  static TimeZoneRegistry registry() {
+    return new CalendarRegistry();
+  }
+
+  /**
+   * Returns the time zone that ical4j knows by the given TZID or, failing that, by the Olson ID for
+   * which the TZID is an alias.
+   *
+   * @param tzid a TZID
+   * @return the time zone, or null if there is none
+   */
+  private static @Nullable TimeZone knownTimeZone(String tzid) {
+    Optional<TimeZone> result = known.get(tzid);
+    if (result == null) {
+      TimeZone tz = defaultRegistry.getTimeZone(tzid);
+      if (tz == null) {
+        String canonical = canonicalize(tzid);
+        if (!canonical.equals(tzid)) {
+          tz = defaultRegistry.getTimeZone(canonical);
+        }
+      }
+      result = Optional.ofNullable(tz);
+      if (known.size() < MAX_CACHED) {
+        known.put(tzid, result);
+      }
+    }
+    return result.orElse(null);
+  }
+
+  /**
+   * The time zones of one calendar. Used by one parser, and so by one thread; but the time zones it
+   * returns may be shared with other calendars.
+   */
+  private static final class CalendarRegistry implements TimeZoneRegistry {
+
+    /** The time zones that the calendar defines, by TZID. */
+    private final Map<String, TimeZone> defined = new HashMap<>();
+
+    /** Creates a new CalendarRegistry. */
+    CalendarRegistry() {}
+
+    @Override
+    public void register(TimeZone timezone) {
+      register(timezone, false);
+    }
+
+    @Override
+    public void register(TimeZone timezone, boolean update) {
+      String text = timezone.getVTimeZone().toString();
+      TimeZone shared = definitions.get(text);
+      if (shared == null) {
+        shared = timezone;
+        if (definitions.size() < MAX_CACHED) {
+          definitions.putIfAbsent(text, timezone);
+        }
+      }
+      defined.put(timezone.getID(), shared);
+    }
+
+    @Override
+    public void clear() {
+      defined.clear();
+    }
+
+    @Override
+    @SuppressWarnings("nullness:override.return") // ical4j returns null for an unknown TZID
+    public @Nullable TimeZone getTimeZone(String id) {
+      TimeZone result = defined.get(id);
+      return result != null ? result : knownTimeZone(id);
+    }
+  }
+}
@@ -0,0 +1,379 @@
+package org.plumelib.icalavailable;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import org.checkerframework.checker.index.qual.IndexOrHigh;
+import org.checkerframework.checker.index.qual.NonNegative;
+import org.checkerframework.checker.lock.qual.GuardSatisfied;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * A reader of iCalendar text that omits events that lie wholly outside a window of time. Parsing
+ * the filtered text takes time and memory proportional to the events in the window, rather than to
+ * the whole history of the calendar.
+ *
+ * <p>Recurring events (those with RRULE or RDATE), overrides of recurring events (those with
+ * RECURRENCE-ID), and events whose times cannot be determined are always kept. All other
+ * components, such as VTIMEZONE, are passed through unchanged.
+ *
+ * <p>Times are compared as if they were in UTC, and the window is widened by a day on each side, so
+ * that an event's time zone never causes it to be dropped wrongly. The output is unfolded: each
+ * content line is on a single physical line.
+ *
+ * <p>The reader can also limit the number of events that it keeps. Once the limit is exceeded, it
+ * throws an IOException, and {@link #eventsKept} exceeds the limit.
+ */
+@SuppressWarnings("PMD") // todo
+final class WindowFilterReader extends Reader {
+
+  /**
+   * How much to widen the window on each side: more than the largest UTC offset, so that an event
+   * in any time zone is kept if it might overlap the window.
+   */
+  static final Duration SLACK = Duration.ofDays(1);
+
+  /** The line terminator that iCalendar requires. */
+  private static final String CRLF = "\r\n";
+
+  /** The underlying source of iCalendar text. */
+  private final BufferedReader in;
+
+  /** The start of the widened window, in milliseconds since the epoch. */
+  private final long windowStart;
+
+  /** The end of the widened window, in milliseconds since the epoch. */
+  private final long windowEnd;
+
+  /** The most events to keep. */
+  private final int maxEvents;
+
+  /** The next physical line of {@link #in}, read ahead to detect folding; null at end of input. */
+  private @Nullable String lookahead;
+
+  /** Filtered text that has not yet been returned by {@link #read(char[], int, int)}. */
+  private final StringBuilder pending = new StringBuilder();
+
+  /** The number of characters of {@link #pending} that have already been returned. */
+  private @IndexOrHigh("pending") int pendingPos = 0;
+
+  /** The number of events that have been kept. */
+  private @NonNegative int eventsKept = 0;
+
+  /** The number of events that have been dropped. */
+  private @NonNegative int eventsDropped = 0;
+
+  /**
+   * Creates a new WindowFilterReader.
+   *
+   * @param in the iCalendar text to filter
+   * @param windowStart the start of the window, in milliseconds since the epoch
+   * @param windowEnd the end of the window, in milliseconds since the epoch
+   * @throws IOException if the text cannot be read
+   */
+  WindowFilterReader(Reader in, long windowStart, long windowEnd) throws IOException {
+    this(in, windowStart, windowEnd, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Creates a new WindowFilterReader that keeps a limited number of events.
+   *
+   * @param in the iCalendar text to filter
+   * @param windowStart the start of the window, in milliseconds since the epoch
+   * @param windowEnd the end of the window, in milliseconds since the epoch
+   * @param maxEvents the most events to keep; reading past the next one throws an IOException
+   * @throws IOException if the text cannot be read
+   */
+  WindowFilterReader(Reader in, long windowStart, long windowEnd, int maxEvents)
+      throws IOException {
+    this.in = in instanceof BufferedReader br ? br : new BufferedReader(in);
+    this.windowStart = saturatedAdd(windowStart, -SLACK.toMillis());
+    this.windowEnd = saturatedAdd(windowEnd, SLACK.toMillis());
+    this.maxEvents = maxEvents;
+    this.lookahead = this.in.readLine();
+  }
+
+  /**
+   * Returns the number of events that have been kept so far.
+   *
+   * @return the number of events that have been kept so far
+   */
+  int eventsKept() {
+    return eventsKept;
+  }
+
+  /**
+   * Returns the number of events that have been dropped so far.
+   *
+   * @return the number of events that have been dropped so far
+   */
+  int eventsDropped() {
+    return eventsDropped;
+  }
+
+  @Override
+  @SuppressWarnings("index") // Reader's contract guarantees that off and len are within cbuf
+  public int read(@GuardSatisfied WindowFilterReader this, char[] cbuf, int off, int len)
+      throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    while (pendingPos == pending.length()) {
+      pending.setLength(0);
+      pendingPos = 0;
+      if (!fill()) {
+        return -1;
+      }
+    }
+    int n = Math.min(len, pending.length() - pendingPos);
+    pending.getChars(pendingPos, pendingPos + n, cbuf, off);
+    pendingPos += n;
+    return n;
+  }
+
+  @Override
+  public void close(@GuardSatisfied WindowFilterReader this) throws IOException {
+    in.close();
+  }
+
+  /**
+   * Appends the next content line, or the next whole event if it is to be kept, to {@link
+   * #pending}.
+   *
+   * @return false if the input is exhausted
+   * @throws IOException if the input cannot be read, or has too many events to keep
+   */
+  private boolean fill(@GuardSatisfied WindowFilterReader this) throws IOException {
+    String line = readContentLine();
+    if (line == null) {
+      return false;
+    }
+    if (!line.equalsIgnoreCase("BEGIN:VEVENT")) {
+      pending.append(line).append(CRLF);
+      return true;
+    }
+
+    // Buffer the whole event, noting the properties that determine whether to keep it.
+    StringBuilder event = new StringBuilder();
+    event.append(line).append(CRLF);
+    int depth = 1;
+    boolean recurring = false;
+    String dtstart = null;
+    String dtend = null;
+    String duration = null;
+    while (depth > 0) {
+      line = readContentLine();
+      if (line == null) {
+        // Truncated input; let the parser report it.
+        break;
+      }
+      event.append(line).append(CRLF);
+      String name = propertyName(line);
+      if (name.equals("BEGIN")) {
+        depth++;
+      } else if (name.equals("END")) {
+        depth--;
+      } else if (depth == 1) {
+        switch (name) {
+          case "RRULE", "RDATE", "RECURRENCE-ID" -> recurring = true;
+          case "DTSTART" -> dtstart = propertyValue(line);
+          case "DTEND" -> dtend = propertyValue(line);
+          case "DURATION" -> duration = propertyValue(line);
+          default -> {}
+        }
+      }
+    }
+
+    if (recurring || overlapsWindow(dtstart, dtend, duration)) {
+      eventsKept++;
+      if (eventsKept > maxEvents) {
+        throw new IOException("More than " + maxEvents + " events");
+      }
+      pending.append(event);
+    } else {
+      eventsDropped++;
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if an event with the given properties might overlap the window.
+   *
+   * @param dtstart the value of the DTSTART property, or null if absent
+   * @param dtend the value of the DTEND property, or null if absent
+   * @param duration the value of the DURATION property, or null if absent
+   * @return true unless the event certainly lies outside the window
+   */
+  private boolean overlapsWindow(
+      @GuardSatisfied WindowFilterReader this,
+      @Nullable String dtstart,
+      @Nullable String dtend,
+      @Nullable String duration) {
+    if (dtstart == null) {
+      return true;
+    }
+    try {
+      long start = parseDateTime(dtstart);
+      long end;
+      if (dtend != null) {
+        end = parseDateTime(dtend);
+      } else if (duration != null) {
+        end = start + parseDuration(duration).toMillis();
+      } else {
+        // RFC 5545: an all-day event without DTEND lasts one day; any other event, no time.
+        end = dtstart.length() == 8 ? start + Duration.ofDays(1).toMillis() : start;
+      }
+      return start <= windowEnd && end >= windowStart;
+    } catch (DateTimeException | ArithmeticException e) {
+      return true;
+    }
+  }
+
+  /**
+   * Reads one content line, unfolding any continuation lines.
+   *
+   * @return the next content line, or null at end of input
+   * @throws IOException if the input cannot be read
+   */
+  @SuppressWarnings("index") // a continuation line is non-empty
+  private @Nullable String readContentLine(@GuardSatisfied WindowFilterReader this)
+      throws IOException {
+    String result = lookahead;
+    if (result == null) {
+      return null;
+    }
+    String next = in.readLine();
+    if (next != null && isContinuation(next)) {
+      StringBuilder unfolded = new StringBuilder(result);
+      while (next != null && isContinuation(next)) {
+        unfolded.append(next, 1, next.length());
+        next = in.readLine();
+      }
+      result = unfolded.toString();
+    }
+    lookahead = next;
+    return result;
+  }
+
+  /**
+   * Returns true if the given physical line continues the previous one.
+   *
+   * @param line a physical line
+   * @return true if the line is a continuation line
+   */
+  private static boolean isContinuation(String line) {
+    return !line.isEmpty() && (line.charAt(0) == ' ' || line.charAt(0) == '\t');
+  }
+
+  /**
+   * Returns the name of the property on the given content line, in upper case.
+   *
+   * @param line a content line
+   * @return the name of the property, in upper case
+   */
+  @SuppressWarnings("index") // the loop stops when end == line.length()
+  static String propertyName(String line) {
+    int end = 0;
+    while (end < line.length() && line.charAt(end) != ':' && line.charAt(end) != ';') {
+      end++;
+    }
+    return line.substring(0, end).toUpperCase(Locale.ROOT);
+  }
+
+  /**
+   * Returns the value of the property on the given content line: the text after the first colon
+   * that is not inside a quoted parameter value.
+   *
+   * @param line a content line
+   * @return the value of the property, or the empty string if there is no value
+   */
+  static String propertyValue(String line) {
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (c == '"') {
+        quoted = !quoted;
+      } else if (c == ':' && !quoted) {
+        return line.substring(i + 1);
+      }
+    }
+    return "";
+  }
+
+  /**
+   * Parses an iCalendar DATE or DATE-TIME value, treating it as UTC.
+   *
+   * @param value a value such as "20201117", "20201117T093000", or "20201117T093000Z"
+   * @return the time, in milliseconds since the epoch
+   * @throws DateTimeException if the value cannot be parsed
+   */
+  static long parseDateTime(String value) {
+    String v = value.endsWith("Z") ? value.substring(0, value.length() - 1) : value;
+    if (v.length() == 8) {
+      return LocalDate.parse(v, DateTimeFormatter.BASIC_ISO_DATE).toEpochDay()
+          * Duration.ofDays(1).toMillis();
+    }
+    if (v.length() == 15 && v.charAt(8) == 'T') {
+      try {
+        LocalDateTime ldt =
+            LocalDateTime.of(
+                Integer.parseInt(v, 0, 4, 10),
+                Integer.parseInt(v, 4, 6, 10),
+                Integer.parseInt(v, 6, 8, 10),
+                Integer.parseInt(v, 9, 11, 10),
+                Integer.parseInt(v, 11, 13, 10),
+                // RFC 5545 permits a leap second, 60.
+                Math.min(59, Integer.parseInt(v, 13, 15, 10)));
+        return ldt.toInstant(ZoneOffset.UTC).toEpochMilli();
+      } catch (NumberFormatException e) {
+        throw new DateTimeException("Unrecognized date-time: " + value, e);
+      }
+    }
+    throw new DateTimeException("Unrecognized date-time: " + value);
+  }
+
+  /**
+   * Parses an iCalendar DURATION value, such as "PT45M", "P1DT2H", or "P2W".
+   *
+   * @param value a duration value
+   * @return the duration
+   * @throws DateTimeException if the value cannot be parsed
+   */
+  static Duration parseDuration(String value) {
+    String v = value.startsWith("+") ? value.substring(1) : value;
+    try {
+      if (v.endsWith("W")) {
+        int sign = v.startsWith("-") ? -1 : 1;
+        String weeks = v.substring(v.indexOf('P') + 1, v.length() - 1);
+        return Duration.ofDays(7L * sign * Long.parseLong(weeks));
+      }
+      return Duration.parse(v);
+    } catch (DateTimeParseException | NumberFormatException | IndexOutOfBoundsException e) {
+      throw new DateTimeException("Unrecognized duration: " + value, e);
+    }
+  }
+
+  /**
+   * Adds two longs, saturating rather than overflowing.
+   *
+   * @param a a long
+   * @param b a long
+   * @return the sum of {@code a} and {@code b}, or the nearest long if the sum overflows
+   */
+  private static long saturatedAdd(long a, long b) {
+    long result = a + b;
+    // Overflow iff both arguments have the same sign, and the result has a different sign.
+    if (((a ^ result) & (b ^ result)) < 0) {
+      return a < 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
+    }
+    return result;
+  }
+}
@@ -0,0 +1,321 @@
+package org.plumelib.icalavailable;
+
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.Month;
+import java.time.ZoneId;
+import java.time.format.TextStyle;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Formats times and dates in one time zone and locale, appending to a StringBuilder without
+ * creating any objects. Obtain one with {@link #of}, which caches a ZoneFormatter per time zone and
+ * locale. A ZoneFormatter may be used by several threads at once.
+ *
+ * <p>Formatting by hand, rather than with a {@link java.time.format.DateTimeFormatter}, avoids
+ * creating a ZonedDateTime, a String, and a formatting context for every time printed. The UTC
+ * offset is looked up once per span between two transitions of the time zone, and then reused.
+ */
+@SuppressWarnings("PMD") // todo
+final class ZoneFormatter {
+
+  /** The ZoneFormatters created so far, by time zone and locale. */
+  private static final Map<ZoneId, Map<Locale, ZoneFormatter>> formatters =
+      new ConcurrentHashMap<>();
+
+  // Don't include "Mountain Standard Time" due to Arizona weirdness; we want to know MST vs. MDT.
+  /** Maps a long time zone name to a shorter one. */
+  static final Map<String, String> printedTimezones =
+      Map.of(
+          "Eastern Standard Time", "Eastern",
+          "Central Standard Time", "Central",
+          "Pacific Standard Time", "Pacific");
+
+  /** The time zone. */
+  private final ZoneId zone;
+
+  /** The rules of the time zone. */
+  private final ZoneRules rules;
+
+  /** A short printed representation of the time zone, such as "Eastern". */
+  private final String printedName;
+
+  /** The abbreviated name of each day of the week, indexed by {@code DayOfWeek.getValue() - 1}. */
+  private final String[] dayNames = new String[7];
+
+  /** The abbreviated name of each month, indexed by {@code Month.getValue() - 1}. */
+  private final String[] monthNames = new String[12];
+
+  /**
+   * The UTC offset for the most recently formatted time, and the span of time over which it
+   * applies. Replaced, never mutated, so that threads that race to update it do no harm.
+   */
+  private volatile OffsetSpan lastSpan;
+
+  /** A UTC offset and the span of time over which it applies. Immutable. */
+  private static final class OffsetSpan {
+
+    /** The start of the span, in milliseconds since the epoch. */
+    final long start;
+
+    /** The end (exclusive) of the span, in milliseconds since the epoch. */
+    final long end;
+
+    /** The UTC offset during the span, in milliseconds. */
+    final long offsetMillis;
+
+    /**
+     * Creates a new OffsetSpan.
+     *
+     * @param start the start of the span, in milliseconds since the epoch
+     * @param end the end (exclusive) of the span, in milliseconds since the epoch
+     * @param offsetMillis the UTC offset during the span, in milliseconds
+     */
+    OffsetSpan(long start, long end, long offsetMillis) {
+      this.start = start;
+      this.end = end;
+      this.offsetMillis = offsetMillis;
+    }
+  }
+
+  /**
+   * Creates a new ZoneFormatter.
+   *
+   * @param zone the time zone
+   * @param locale the locale, which determines the names of days and months
+   */
+  @SuppressWarnings("index") // DayOfWeek.getValue() is 1..7, and Month.getValue() is 1..12
+  private ZoneFormatter(ZoneId zone, Locale locale) {
+    this.zone = zone;
+    this.rules = zone.getRules();
+    String name = TimeZone.getTimeZone(zone).getDisplayName(false, TimeZone.LONG, Locale.US);
+    this.printedName = printedTimezones.getOrDefault(name, name);
+    for (DayOfWeek day : DayOfWeek.values()) {
+      dayNames[day.getValue() - 1] = day.getDisplayName(TextStyle.SHORT, locale);
+    }
+    for (Month month : Month.values()) {
+      monthNames[month.getValue() - 1] = month.getDisplayName(TextStyle.SHORT, locale);
+    }
+    // An empty span, so that the first use looks up the offset.
+    this.lastSpan = new OffsetSpan(0, 0, 0);
+  }
+
+  /**
+   * Returns a ZoneFormatter for the given time zone and locale.
+   *
+   * @param zone the time zone
+   * @param locale the locale, which determines the names of days and months
+   * @return a ZoneFormatter for the time zone and locale
+   */
+  static ZoneFormatter of(ZoneId zone, Locale locale) {
+    return formatters
+        .computeIfAbsent(zone, z -> new ConcurrentHashMap<>())
+        .computeIfAbsent(locale, l -> new ZoneFormatter(zone, l));
+  }
+
+  /**
+   * Returns the time zone.
+   *
+   * @return the time zone
+   */
+  ZoneId zone() {
+    return zone;
+  }
+
+  /**
+   * Returns a short printed representation of the time zone, such as "Eastern".
+   *
+   * @return a short printed representation of the time zone
+   */
+  String printedName() {
+    return printedName;
+  }
+
+  /**
+   * Returns the UTC offset at the given time, and the span of time over which it applies.
+   *
+   * @param time a time, in milliseconds since the epoch
+   * @return the UTC offset at the given time, and the span over which it applies
+   */
+  private OffsetSpan span(long time) {
+    Instant instant = Instant.ofEpochMilli(time);
+    long offsetMillis = rules.getOffset(instant).getTotalSeconds() * 1000L;
+    if (rules.isFixedOffset()) {
+      return new OffsetSpan(Long.MIN_VALUE, Long.MAX_VALUE, offsetMillis);
+    }
+    // Transitions are on whole seconds, so one millisecond later is after a transition at "time".
+    ZoneOffsetTransition previous = rules.previousTransition(instant.plusMillis(1));
+    ZoneOffsetTransition next = rules.nextTransition(instant);
+    return new OffsetSpan(
+        previous == null ? Long.MIN_VALUE : previous.toEpochSecond() * 1000,
+        next == null ? Long.MAX_VALUE : next.toEpochSecond() * 1000,
+        offsetMillis);
+  }
+
+  /**
+   * Returns the local time, in milliseconds since the local epoch: that is, the given time plus the
+   * UTC offset at that time.
+   *
+   * @param time a time, in milliseconds since the epoch
+   * @return the local time, in milliseconds since 1970-01-01T00:00 local time
+   */
+  private long localMillis(long time) {
+    OffsetSpan span = lastSpan;
+    if (time < span.start || time >= span.end) {
+      span = span(time);
+      lastSpan = span;
+    }
+    return time + span.offsetMillis;
+  }
+
+  /**
+   * Returns the local date of the given time, as a number of days since 1970-01-01.
+   *
+   * @param time a time, in milliseconds since the epoch
+   * @return the local date, as a number of days since 1970-01-01
+   */
+  long epochDay(long time) {
+    return Math.floorDiv(localMillis(time), AvailabilityQuery.MILLIS_PER_DAY);
+  }
+
+  /**
+   * Appends a time of day, such as "9:30am".
+   *
+   * @param time a time, in milliseconds since the epoch
+   * @param sb where to append the time of day
+   */
+  void appendTime(long time, StringBuilder sb) {
+    long millisOfDay = Math.floorMod(localMillis(time), AvailabilityQuery.MILLIS_PER_DAY);
+    int minuteOfDay = (int) (millisOfDay / (60 * 1000));
+    int hour = minuteOfDay / 60;
+    int minute = minuteOfDay % 60;
+    sb.append(hour % 12 == 0 ? 12 : hour % 12).append(':');
+    if (minute < 10) {
+      sb.append('0');
+    }
+    sb.append(minute).append(hour < 12 ? "am" : "pm");
+  }
+
+  /**
+   * Appends a range of times, such as "9:30am to 11:00am".
+   *
+   * @param start the start of the range, in milliseconds since the epoch
+   * @param end the end of the range, in milliseconds since the epoch
+   * @param sb where to append the range
+   */
+  void appendRange(long start, long end, StringBuilder sb) {
+    appendTime(start, sb);
+    sb.append(" to ");
+    appendTime(end, sb);
+  }
+
+  /**
+   * Appends a date, such as "Tue Nov 17, 2020".
+   *
+   * @param time a time, in milliseconds since the epoch
+   * @param sb where to append the date
+   */
+  @SuppressWarnings("index") // floorMod(_, 7) is an index for dayNames; months are 1..12
+  void appendDate(long time, StringBuilder sb) {
+    long epochDay = epochDay(time);
+    // 1970-01-01 was a Thursday, whose index in dayNames is 3.
+    int dayOfWeek = Math.floorMod(epochDay + 3, 7);
+    long date = civilDate(epochDay);
+    // Don't remove trailing year; it's a good double-check.
+    sb.append(dayNames[dayOfWeek])
+        .append(' ')
+        .append(monthNames[(int) (date / 100 % 100) - 1])
+        .append(' ')
+        .append(date % 100)
+        .append(", ")
+        .append(date / 10000);
+  }
+
+  /**
+   * Appends a time as a UTC date-time in iCalendar's basic format, such as "20201117T143000Z".
+   * Milliseconds are truncated.
+   *
+   * @param time a time, in milliseconds since the epoch
+   * @param sb where to append the date-time
+   */
+  static void appendICalUtc(long time, StringBuilder sb) {
+    appendUtc(time, sb, false);
+  }
+
+  /**
+   * Appends a time as a UTC date-time in ISO-8601 extended format, exactly as {@link
+   * Instant#toString} does, such as "2020-11-17T14:30:00Z".
+   *
+   * @param time a time, in milliseconds since the epoch
+   * @param sb where to append the date-time
+   */
+  static void appendIsoUtc(long time, StringBuilder sb) {
+    appendUtc(time, sb, true);
+  }
+
+  /**
+   * Appends a time as a UTC date-time, in ISO-8601 basic or extended format.
+   *
+   * @param time a time, in milliseconds since the epoch
+   * @param sb where to append the date-time
+   * @param extended if true, use the extended format, with separators and milliseconds (if
+   *     nonzero); if false, use the basic format
+   */
+  private static void appendUtc(long time, StringBuilder sb, boolean extended) {
+    long date = civilDate(Math.floorDiv(time, AvailabilityQuery.MILLIS_PER_DAY));
+    long millisOfDay = Math.floorMod(time, AvailabilityQuery.MILLIS_PER_DAY);
+    String dateSeparator = extended ? "-" : "";
+    String timeSeparator = extended ? ":" : "";
+    sb.append(date / 10000).append(dateSeparator);
+    twoDigits(date / 100 % 100, sb).append(dateSeparator);
+    twoDigits(date % 100, sb).append('T');
+    twoDigits(millisOfDay / (60 * 60 * 1000), sb).append(timeSeparator);
+    twoDigits(millisOfDay / (60 * 1000) % 60, sb).append(timeSeparator);
+    twoDigits(millisOfDay / 1000 % 60, sb);
+    long millis = millisOfDay % 1000;
+    if (extended && millis != 0) {
+      sb.append('.').append(millis < 100 ? "0" : "").append(millis < 10 ? "0" : "").append(millis);
+    }
+    sb.append('Z');
+  }
+
+  /**
+   * Converts a day number to a date in the proleptic Gregorian calendar. The algorithm is the
+   * inverse of days_from_civil in Howard Hinnant's "chrono-Compatible Low-Level Date Algorithms";
+   * it treats each year as beginning on March 1, so that the leap day is the last day of the year.
+   *
+   * @param epochDay a number of days since 1970-01-01, which must be on or after 0000-03-01
+   * @return the date, as the decimal number yyyymmdd
+   */
+  private static long civilDate(long epochDay) {
+    long z = epochDay + 719468;
+    long era = z / 146097;
+    long dayOfEra = z - era * 146097;
+    long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    long shiftedMonth = (5 * dayOfYear + 2) / 153;
+    long day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+    long month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+    long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+    return year * 10000 + month * 100 + day;
+  }
+
+  /**
+   * Appends a number from 0 to 99 as two digits.
+   *
+   * @param n a number from 0 to 99
+   * @param sb where to append the digits
+   * @return {@code sb}
+   */
+  private static StringBuilder twoDigits(long n, StringBuilder sb) {
+    if (n < 10) {
+      sb.append('0');
+    }
+    return sb.append(n);
+  }
+}
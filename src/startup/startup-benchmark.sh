@@ -0,0 +1,52 @@
+#!/bin/bash
+
+# Measures how long ICalAvailable takes to start, run, and exit, which is most of the time of a
+# typical invocation (such as from ical-available.el).  Reports the median wall-clock time, in
+# milliseconds, of several runs of each way of running the program:
+#   jar     java -jar on the fat jar
+#   appcds  the same, with the AppCDS archive built by `./gradlew appCds`
+#   native  the executable built by `./gradlew nativeImage`, if it exists
+# Run it via `./gradlew startupBenchmark`, or directly from the project directory.
+#
+# Usage: startup-benchmark.sh [RUNS]
+
+set -e
+
+runs=${1:-10}
+libs=build/libs
+jar=$(ls "$libs"/*-all.jar)
+archive=$libs/icalavailable.jsa
+native=build/native/icalavailable
+java=${JAVA_HOME:+$JAVA_HOME/bin/}java
+args=(--iCal-URL="file://$PWD/src/startup/training.ics" --date=11/16/2020 --days=10
+  --timezone2=Europe/London)
+
+# Prints the median time, in milliseconds, of $runs runs of the given command.
+median_ms() {
+  local times=()
+  for ((i = 0; i < runs; i++)); do
+    local start end
+    start=$(date +%s%N)
+    "$@" >/dev/null
+    end=$(date +%s%N)
+    times+=("$(((end - start) / 1000000))")
+  done
+  printf '%s\n' "${times[@]}" | sort -n | sed -n "$(((runs + 1) / 2))p"
+}
+
+# One run first, so that every configuration is measured with the files in the OS's cache.
+"$java" -Dical4j.parsing.relaxed=true -jar "$jar" "${args[@]}" >/dev/null
+
+printf '%-8s %6s ms\n' jar "$(median_ms "$java" -Dical4j.parsing.relaxed=true -jar "$jar" "${args[@]}")"
+if [ -f "$archive" ]; then
+  printf '%-8s %6s ms\n' appcds "$(median_ms "$java" -XX:SharedArchiveFile="$archive" \
+    -XX:TieredStopAtLevel=1 -XX:+UseSerialGC -Dical4j.parsing.relaxed=true \
+    -jar "$jar" "${args[@]}")"
+else
+  echo "appcds: no $archive; run ./gradlew appCds"
+fi
+if [ -x "$native" ]; then
+  printf '%-8s %6s ms\n' native "$(median_ms "$native" -Dical4j.parsing.relaxed=true "${args[@]}")"
+else
+  echo "native: no $native; run ./gradlew nativeImage"
+fi
@@ -0,0 +1,151 @@
+package org.plumelib.icalavailable;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+/** Tests the interval arithmetic of {@link BusyIndex} at the boundaries of intervals. */
+@SuppressWarnings("PMD") // todo
+public final class BusyIndexTest {
+
+  /** Creates a new BusyIndexTest. */
+  public BusyIndexTest() {}
+
+  /**
+   * Returns busy times made of the given intervals, which are added in the given order.
+   *
+   * @param intervals alternating start and end times
+   * @return the busy times
+   */
+  static BusyIndex busy(long... intervals) {
+    BusyIndex.Builder builder = new BusyIndex.Builder();
+    for (int i = 0; i + 1 < intervals.length; i += 2) {
+      builder.add(intervals[i], intervals[i + 1]);
+    }
+    return builder.build();
+  }
+
+  /**
+   * Returns the intervals of busy times.
+   *
+   * @param busy busy times
+   * @return the intervals, as alternating start and end times
+   */
+  static long[] intervals(BusyIndex busy) {
+    // The times that differ from no busy times at all are just the busy times.
+    return busy.symmetricDifference(busy());
+  }
+
+  /** Overlapping, touching, nested, and repeated intervals are merged, in any order. */
+  @Test
+  public void buildMerges() {
+    assertArrayEquals(new long[] {0, 20}, intervals(busy(10, 20, 0, 10)));
+    assertArrayEquals(new long[] {0, 100}, intervals(busy(0, 100, 10, 20, 50, 100)));
+    assertArrayEquals(new long[] {0, 15, 30, 40}, intervals(busy(30, 40, 5, 15, 0, 10, 30, 40)));
+    assertArrayEquals(new long[] {0, 10, 11, 20}, intervals(busy(11, 20, 0, 10)));
+  }
+
+  /** Empty and reversed intervals are ignored, and no intervals make no busy times. */
+  @Test
+  public void buildIgnoresEmptyIntervals() {
+    assertEquals(0, busy().size());
+    assertEquals(0, busy(5, 5, 10, 3).size());
+    assertArrayEquals(new long[] {0, 10}, intervals(busy(10, 10, 0, 10, 0, 0)));
+  }
+
+  /** Many intervals, more than the builder first has room for, are all kept. */
+  @Test
+  public void buildGrows() {
+    BusyIndex.Builder builder = new BusyIndex.Builder();
+    BusyIndex.Builder other = new BusyIndex.Builder();
+    for (long i = 0; i < 200; i++) {
+      builder.add(20 * i, 20 * i + 5);
+      other.add(20 * i + 10, 20 * i + 15);
+    }
+    builder.addAll(other);
+    assertEquals(400, builder.build().size());
+  }
+
+  /** Free times are the gaps between busy intervals, cut to the range. */
+  @Test
+  public void freeBetweenBusyTimes() {
+    BusyIndex busy = busy(10, 20, 30, 40);
+    assertArrayEquals(new long[] {0, 10, 20, 30, 40, 50}, busy.free(0, 50, 1));
+    // A range that starts or ends exactly where a busy time ends or starts.
+    assertArrayEquals(new long[] {20, 30}, busy.free(20, 30, 1));
+    assertArrayEquals(new long[] {20, 30}, busy.free(15, 35, 1));
+    // A range within a busy time.
+    assertArrayEquals(new long[] {}, busy.free(12, 18, 1));
+    assertArrayEquals(new long[] {}, busy.free(10, 20, 1));
+    // A range with no busy time.
+    assertArrayEquals(new long[] {50, 60}, busy.free(50, 60, 1));
+    assertArrayEquals(new long[] {0, 100}, busy().free(0, 100, 1));
+  }
+
+  /** An empty range, or no ranges, have no free time. */
+  @Test
+  public void freeEmptyRanges() {
+    BusyIndex busy = busy(10, 20);
+    assertArrayEquals(new long[] {}, busy.free(5, 5, 1));
+    assertArrayEquals(new long[] {}, busy.free(new long[] {}, 1));
+    assertArrayEquals(new long[] {}, busy().free(new long[] {}, 1));
+  }
+
+  /** A free time of exactly the minimum length is kept, and a shorter one is dropped. */
+  @Test
+  public void freeMinLength() {
+    BusyIndex busy = busy(10, 20, 30, 40);
+    assertArrayEquals(new long[] {0, 10, 20, 30, 40, 50}, busy.free(0, 50, 10));
+    assertArrayEquals(new long[] {}, busy.free(0, 50, 11));
+    assertArrayEquals(new long[] {20, 30, 40, 50}, busy.free(1, 50, 10));
+  }
+
+  /** Free times are not merged across ranges that touch, and are found in each range. */
+  @Test
+  public void freeTouchingRanges() {
+    BusyIndex busy = busy(15, 25);
+    assertArrayEquals(
+        new long[] {0, 10, 10, 15, 25, 30}, busy.free(new long[] {0, 10, 10, 20, 20, 30}, 1));
+    assertArrayEquals(new long[] {0, 10, 10, 20}, busy().free(new long[] {0, 10, 10, 20}, 1));
+  }
+
+  /** The symmetric difference of touching, nested, and identical busy times. */
+  @Test
+  public void symmetricDifference() {
+    assertArrayEquals(new long[] {}, busy(0, 10, 20, 30).symmetricDifference(busy(0, 10, 20, 30)));
+    assertArrayEquals(new long[] {}, busy().symmetricDifference(busy()));
+    // Touching: the differences join into one.
+    assertArrayEquals(new long[] {0, 20}, busy(0, 10).symmetricDifference(busy(10, 20)));
+    // Nested.
+    assertArrayEquals(new long[] {0, 10, 20, 100}, busy(0, 100).symmetricDifference(busy(10, 20)));
+    // Sharing an endpoint.
+    assertArrayEquals(new long[] {10, 20}, busy(0, 10).symmetricDifference(busy(0, 20)));
+    assertArrayEquals(new long[] {0, 10}, busy(0, 20).symmetricDifference(busy(10, 20)));
+    // The same either way round.
+    assertArrayEquals(
+        busy(0, 5, 30, 40).symmetricDifference(busy(3, 35)),
+        busy(3, 35).symmetricDifference(busy(0, 5, 30, 40)));
+    assertArrayEquals(
+        new long[] {0, 3, 5, 30, 35, 40}, busy(0, 5, 30, 40).symmetricDifference(busy(3, 35)));
+  }
+
+  /** A range overlaps a time only if they share more than an endpoint. */
+  @Test
+  public void overlapping() {
+    long[] ranges = {0, 10, 10, 20, 30, 40};
+    assertArrayEquals(new long[] {10, 20}, BusyIndex.overlapping(ranges, new long[] {10, 15}));
+    assertArrayEquals(new long[] {0, 10}, BusyIndex.overlapping(ranges, new long[] {5, 10}));
+    assertArrayEquals(
+        new long[] {0, 10, 10, 20}, BusyIndex.overlapping(ranges, new long[] {9, 11}));
+    // Times between and after the ranges, touching them.
+    assertArrayEquals(new long[] {}, BusyIndex.overlapping(ranges, new long[] {20, 30, 40, 50}));
+    // A time within a range, and one that spans several.
+    assertArrayEquals(
+        new long[] {30, 40}, BusyIndex.overlapping(ranges, new long[] {32, 33, 35, 36}));
+    assertArrayEquals(ranges, BusyIndex.overlapping(ranges, new long[] {-5, 50}));
+    // No times, or no ranges.
+    assertArrayEquals(new long[] {}, BusyIndex.overlapping(ranges, new long[] {}));
+    assertArrayEquals(new long[] {}, BusyIndex.overlapping(new long[] {}, new long[] {0, 50}));
+  }
+}
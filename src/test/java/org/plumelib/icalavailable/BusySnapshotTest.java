@@ -0,0 +1,196 @@
+package org.plumelib.icalavailable;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Tests the file format of {@link BusySnapshot} and {@link BusyIndex#write}. */
+@SuppressWarnings({
+  "PMD", // todo
+  // JUnit sets the @TempDir field before each test.
+  "initializedfields:contracts.postcondition",
+  "nullness:initialization.fields.uninitialized",
+})
+public final class BusySnapshotTest {
+
+  /** The start of the window. */
+  static final long WINDOW_START = 1_600_000_000_000L;
+
+  /** The end of the window. */
+  static final long WINDOW_END = WINDOW_START + 10 * AvailabilityQuery.MILLIS_PER_DAY;
+
+  /** The URLs of the calendars. */
+  static final List<String> URLS = List.of("https://example.com/a.ics", "file:///tmp/bé.ics");
+
+  /** The directory that holds the snapshot file. */
+  @TempDir Path directory;
+
+  /** Creates a new BusySnapshotTest. */
+  public BusySnapshotTest() {}
+
+  /**
+   * Returns busy times made of the given intervals.
+   *
+   * @param intervals alternating start and end times, relative to {@link #WINDOW_START}
+   * @return the busy times
+   */
+  static BusyIndex busy(long... intervals) {
+    BusyIndex.Builder builder = new BusyIndex.Builder();
+    for (int i = 0; i + 1 < intervals.length; i += 2) {
+      builder.add(WINDOW_START + intervals[i], WINDOW_START + intervals[i + 1]);
+    }
+    return builder.build();
+  }
+
+  /**
+   * Returns the hashes of the calendars.
+   *
+   * @return the hashes of the calendars
+   */
+  static List<byte[]> hashes() {
+    return List.of(
+        BusySnapshot.hash("A".getBytes(StandardCharsets.UTF_8)),
+        BusySnapshot.hash("B".getBytes(StandardCharsets.UTF_8)));
+  }
+
+  /**
+   * Writes a snapshot of two calendars, one of which has no busy times.
+   *
+   * @return the snapshot file
+   * @throws IOException if the file cannot be written
+   */
+  Path writeSnapshot() throws IOException {
+    Path file = directory.resolve("snapshot.bin");
+    new BusySnapshot(
+            WINDOW_START,
+            WINDOW_END,
+            URLS,
+            hashes(),
+            List.of(busy(0, 1000, 5000, 9000, 20_000, 20_001), busy()))
+        .write(file);
+    return file;
+  }
+
+  /**
+   * A snapshot reads back as the same calendars, window, and busy times.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void roundTrip() throws IOException {
+    BusySnapshot read = BusySnapshot.read(writeSnapshot());
+    if (read == null) {
+      throw new AssertionError("snapshot was not read back");
+    }
+    assertTrue(read.matches(URLS, hashes(), WINDOW_START, WINDOW_END));
+    assertFalse(read.matches(URLS, hashes(), WINDOW_START - 1, WINDOW_END));
+    assertFalse(
+        read.matches(URLS, List.of(hashes().get(1), hashes().get(0)), WINDOW_START, WINDOW_END));
+    List<BusyIndex> busyTimes = read.busyTimes();
+    assertEquals(2, busyTimes.size());
+    BusyIndex expected = busy(0, 1000, 5000, 9000, 20_000, 20_001);
+    assertEquals(expected.size(), busyTimes.get(0).size());
+    assertEquals(0, expected.symmetricDifference(busyTimes.get(0)).length);
+    assertEquals(0, busyTimes.get(1).size());
+  }
+
+  /**
+   * A BusyIndex reads back from a buffer as the same intervals, leaving the buffer just past them.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void busyIndexRoundTrip() throws IOException {
+    BusyIndex busy = busy(0, 10, 20, 30, 40, 50);
+    ByteBuffer buffer = ByteBuffer.allocate(busy.serializedSize() + 1);
+    busy.write(buffer);
+    assertEquals(busy.serializedSize(), buffer.position());
+    buffer.put((byte) 7).flip();
+    BusyIndex read = BusyIndex.read(buffer);
+    assertEquals(0, busy.symmetricDifference(read).length);
+    assertEquals(7, buffer.get());
+  }
+
+  /**
+   * A missing file is not a snapshot.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void missingFile() throws IOException {
+    assertNull(BusySnapshot.read(directory.resolve("no-such-file")));
+  }
+
+  /**
+   * A file that is cut short at any point is rejected.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void truncatedFile() throws IOException {
+    Path file = writeSnapshot();
+    byte[] contents = Files.readAllBytes(file);
+    for (int length = 0; length < contents.length; length++) {
+      Files.write(file, Arrays.copyOf(contents, length));
+      assertNull(BusySnapshot.read(file), "truncated to " + length + " bytes");
+    }
+  }
+
+  /**
+   * A file of another version is rejected, even if its checksum is right.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void wrongVersion() throws IOException {
+    Path file = writeSnapshot();
+    ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(file));
+    contents.putInt(Long.BYTES, BusySnapshot.VERSION + 1);
+    CRC32 crc = new CRC32();
+    crc.update(contents.duplicate().position(0).limit(contents.limit() - Integer.BYTES));
+    contents.putInt(contents.limit() - Integer.BYTES, (int) crc.getValue());
+    Files.write(file, contents.array());
+    assertNull(BusySnapshot.read(file));
+  }
+
+  /**
+   * A file with a corrupted byte is rejected.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  @SuppressWarnings("index") // the snapshot file is not empty
+  public void corruptedByte() throws IOException {
+    Path file = writeSnapshot();
+    byte[] contents = Files.readAllBytes(file);
+    // A byte of the busy times, past the header and the first URL.
+    contents[contents.length / 2] ^= 0x10;
+    Files.write(file, contents);
+    assertNull(BusySnapshot.read(file));
+  }
+
+  /** Busy intervals that are not sorted and disjoint are rejected by {@link BusyIndex#read}. */
+  @Test
+  public void unsortedIntervals() {
+    ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + 4 * Long.BYTES);
+    buffer.putInt(2).putLong(30).putLong(10).putLong(40).putLong(20).flip();
+    try {
+      BusyIndex.read(buffer);
+      throw new AssertionError("read unsorted intervals");
+    } catch (IOException e) {
+      assertTrue(e.getMessage() != null && e.getMessage().contains("not sorted"));
+    }
+  }
+}
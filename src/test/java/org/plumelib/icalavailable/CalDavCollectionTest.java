@@ -0,0 +1,515 @@
+package org.plumelib.icalavailable;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.Component;
+import net.fortuna.ical4j.model.component.VEvent;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.junit.jupiter.api.Test;
+
+/** Tests {@link CalDavCollection} against a fake CalDAV server. */
+@SuppressWarnings("PMD") // todo
+public final class CalDavCollectionTest {
+
+  /** The path of the collection on the server. */
+  static final String PATH = "/dav/cal/";
+
+  /** Creates a new CalDavCollectionTest. */
+  public CalDavCollectionTest() {}
+
+  /**
+   * A calendar collection on a fake CalDAV server. Its sync tokens are "t" followed by the number
+   * of changes so far.
+   */
+  static final class FakeCollection {
+
+    /** The calendar data of each resource, by name. Guarded by this. */
+    final Map<String, String> resources = new TreeMap<>();
+
+    /** The ETag of each resource, by name. Guarded by this. */
+    final Map<String, String> etags = new TreeMap<>();
+
+    /** The name of the resource changed by each change, in order. Guarded by this. */
+    final List<String> log = new ArrayList<>();
+
+    /** The most members in one sync-collection response. Guarded by this. */
+    int pageSize = Integer.MAX_VALUE;
+
+    /**
+     * The status with which to answer an incremental sync-collection report, or 0 to answer it.
+     * Guarded by this.
+     */
+    int incrementalStatus = 0;
+
+    /** If true, cut the next incremental sync-collection response short. Guarded by this. */
+    boolean truncateIncremental = false;
+
+    /** The names of the resources that a calendar-multiget response leaves out. Guarded by this. */
+    final Set<String> omitted = new HashSet<>();
+
+    /**
+     * The names of the resources that a calendar-multiget response reports as not found, as if they
+     * were deleted after they were listed. Guarded by this.
+     */
+    final Set<String> notFound = new HashSet<>();
+
+    /**
+     * If true, a calendar-multiget response names each resource by a full URL with its name
+     * percent-encoded, rather than by the href in the request. Guarded by this.
+     */
+    boolean fullUrls = false;
+
+    /** The server. */
+    final StubServer server;
+
+    /**
+     * Creates a new, empty collection on the given server.
+     *
+     * @param server the server
+     */
+    FakeCollection(StubServer server) {
+      this.server = server;
+      server.handle(PATH, this::handle);
+    }
+
+    /**
+     * Returns the URL of the collection, as the program names it.
+     *
+     * @return the URL of the collection
+     */
+    String url() {
+      return CalDavCollection.PREFIX + server.url(PATH);
+    }
+
+    /**
+     * Adds or changes a resource.
+     *
+     * @param name the name of the resource
+     * @param uid the UID of its event
+     */
+    synchronized void put(String name, String uid) {
+      log.add(name);
+      resources.put(name, event(uid));
+      etags.put(name, "\"" + log.size() + "\"");
+    }
+
+    /**
+     * Deletes a resource.
+     *
+     * @param name the name of the resource
+     */
+    synchronized void delete(String name) {
+      log.add(name);
+      resources.remove(name);
+      etags.remove(name);
+    }
+
+    /**
+     * Answers a REPORT request.
+     *
+     * @param request the request
+     * @param exchange the exchange
+     * @throws IOException if the response cannot be sent
+     */
+    @SuppressWarnings({
+      "index", // the client asks only for members of the collection
+      "nullness:argument", // group 1 of each pattern takes part in every match
+      "nullness:dereference.of.nullable"
+    })
+    synchronized void handle(StubServer.Request request, HttpExchange exchange) throws IOException {
+      if (request.body.contains("sync-collection")) {
+        Matcher token = Pattern.compile("<D:sync-token>(.*)</D:sync-token>").matcher(request.body);
+        String since = token.find() ? token.group(1) : "";
+        syncCollection(since.isEmpty() ? -1 : Integer.parseInt(since.substring(1)), exchange);
+      } else {
+        List<String> names = new ArrayList<>();
+        Matcher href = Pattern.compile("<D:href>(.*?)</D:href>").matcher(request.body);
+        while (href.find()) {
+          String path = URI.create(href.group(1)).getPath();
+          names.add(path.substring(PATH.length()));
+        }
+        multiget(names, exchange);
+      }
+    }
+
+    /**
+     * Answers a sync-collection report.
+     *
+     * @param since the number of changes as of the client's sync token, or -1 to list everything
+     * @param exchange the exchange
+     * @throws IOException if the response cannot be sent
+     */
+    private void syncCollection(int since, HttpExchange exchange) throws IOException {
+      if (since >= 0 && incrementalStatus != 0) {
+        String body =
+            incrementalStatus == 403
+                ? "<D:error xmlns:D=\"DAV:\"><D:valid-sync-token/></D:error>"
+                : "";
+        StubServer.respond(exchange, incrementalStatus, body);
+        return;
+      }
+      // The changed names, each in the order of its first change since the token.
+      Set<String> changed = new LinkedHashSet<>();
+      int next = Math.max(since, 0);
+      for (; next < log.size(); next++) {
+        if (changed.size() == pageSize && !changed.contains(log.get(next))) {
+          break;
+        }
+        changed.add(log.get(next));
+      }
+      StringBuilder body = new StringBuilder();
+      for (String name : changed) {
+        String etag = etags.get(name);
+        if (etag != null) {
+          body.append(member(PATH + encode(name), etag, null));
+        } else if (since >= 0) {
+          body.append(gone(PATH + encode(name)));
+        }
+      }
+      if (next < log.size()) {
+        body.append(
+            "<D:response><D:href>"
+                + PATH
+                + "</D:href><D:status>HTTP/1.1 507 Insufficient Storage</D:status></D:response>");
+      }
+      String response = multistatus(body + "<D:sync-token>t" + next + "</D:sync-token>");
+      if (since >= 0 && truncateIncremental) {
+        truncateIncremental = false;
+        response = response.substring(0, response.length() / 2);
+      }
+      StubServer.respond(exchange, 207, response);
+    }
+
+    /**
+     * Answers a calendar-multiget report.
+     *
+     * @param names the names of the requested resources
+     * @param exchange the exchange
+     * @throws IOException if the response cannot be sent
+     */
+    private void multiget(List<String> names, HttpExchange exchange) throws IOException {
+      StringBuilder body = new StringBuilder();
+      for (String name : names) {
+        if (omitted.contains(name)) {
+          continue;
+        }
+        String href = fullUrls ? server.url(PATH + encodeAll(name)) : PATH + encode(name);
+        String etag = etags.get(name);
+        String data = resources.get(name);
+        body.append(
+            etag == null || data == null || notFound.contains(name)
+                ? gone(href)
+                : member(href, etag, data));
+      }
+      StubServer.respond(exchange, 207, multistatus(body.toString()));
+    }
+  }
+
+  /**
+   * Returns a calendar resource.
+   *
+   * @param uid the UID of its event
+   * @return a calendar resource with one event
+   */
+  static String event(String uid) {
+    return """
+    BEGIN:VCALENDAR
+    VERSION:2.0
+    PRODID:-//test//EN
+    BEGIN:VEVENT
+    UID:%s
+    DTSTART:20201117T140000Z
+    DTEND:20201117T150000Z
+    END:VEVENT
+    END:VCALENDAR
+    """
+        .formatted(uid);
+  }
+
+  /**
+   * Returns a multistatus response.
+   *
+   * @param contents the responses and sync token
+   * @return a multistatus response
+   */
+  static String multistatus(String contents) {
+    return "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+        + "<D:multistatus xmlns:D=\"DAV:\" xmlns:C=\"urn:ietf:params:xml:ns:caldav\">"
+        + contents
+        + "</D:multistatus>";
+  }
+
+  /**
+   * Returns the response for a member that exists.
+   *
+   * @param href the href of the member
+   * @param etag the ETag of the member
+   * @param data the calendar data of the member, or null to omit it
+   * @return the response for the member
+   */
+  static String member(String href, String etag, @Nullable String data) {
+    return "<D:response><D:href>"
+        + href
+        + "</D:href><D:propstat><D:prop><D:getetag>"
+        + etag.replace("\"", "&quot;")
+        + "</D:getetag>"
+        + (data == null ? "" : "<C:calendar-data>" + data + "</C:calendar-data>")
+        + "</D:prop><D:status>HTTP/1.1 200 OK</D:status></D:propstat></D:response>";
+  }
+
+  /**
+   * Returns the response for a member that does not exist.
+   *
+   * @param href the href of the member
+   * @return the response for the member
+   */
+  static String gone(String href) {
+    return "<D:response><D:href>"
+        + href
+        + "</D:href><D:status>HTTP/1.1 404 Not Found</D:status></D:response>";
+  }
+
+  /**
+   * Percent-encodes the spaces in a name.
+   *
+   * @param name a name
+   * @return the name, with each space percent-encoded
+   */
+  static String encode(String name) {
+    return name.replace(" ", "%20");
+  }
+
+  /**
+   * Percent-encodes every character of a name, as a server may.
+   *
+   * @param name a name, in ASCII
+   * @return the name, with every character percent-encoded
+   */
+  static String encodeAll(String name) {
+    StringBuilder result = new StringBuilder();
+    for (int i = 0; i < name.length(); i++) {
+      result.append(String.format("%%%02x", (int) name.charAt(i)));
+    }
+    return result.toString();
+  }
+
+  /**
+   * Syncs a collection, and returns the UIDs of its events.
+   *
+   * @param collection the collection
+   * @return the UIDs of the events of the collection
+   * @throws IOException if the collection cannot be read
+   */
+  static Set<String> sync(FakeCollection collection) throws IOException {
+    Calendar calendar =
+        new CalendarFetcher(Duration.ofSeconds(10)).fetchAll(List.of(collection.url())).get(0);
+    List<VEvent> events = calendar.getComponents(Component.VEVENT);
+    Set<String> result = new TreeSet<>();
+    for (VEvent event : events) {
+      result.add(event.getUid().getValue());
+    }
+    return result;
+  }
+
+  /**
+   * Returns the kinds of the requests that the server has received, such as "sync t3" or "multiget
+   * a.ics b.ics".
+   *
+   * @param server the server
+   * @return the kinds of the requests, in order
+   */
+  static List<String> requests(StubServer server) {
+    List<String> result = new ArrayList<>();
+    for (StubServer.Request request : server.requests()) {
+      if (request.body.contains("sync-collection")) {
+        Matcher token = Pattern.compile("<D:sync-token>(.*)</D:sync-token>").matcher(request.body);
+        result.add(("sync " + (token.find() ? token.group(1) : "")).trim());
+      } else {
+        StringBuilder kind = new StringBuilder("multiget");
+        Matcher href = Pattern.compile("<D:href>" + PATH + "(.*?)</D:href>").matcher(request.body);
+        while (href.find()) {
+          kind.append(' ').append(href.group(1));
+        }
+        result.add(kind.toString());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * The first sync lists and fetches everything; a later one sends the token and fetches only what
+   * changed.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void initialAndIncrementalSync() throws IOException {
+    try (StubServer server = new StubServer()) {
+      FakeCollection collection = new FakeCollection(server);
+      collection.put("a.ics", "A");
+      collection.put("b.ics", "B");
+      collection.put("c.ics", "C");
+      assertEquals(Set.of("A", "B", "C"), sync(collection));
+      assertEquals(List.of("sync", "multiget a.ics b.ics c.ics"), sortMultigets(requests(server)));
+
+      collection.put("b.ics", "B2");
+      collection.delete("c.ics");
+      collection.put("d.ics", "D");
+      assertEquals(Set.of("A", "B2", "D"), sync(collection));
+      assertEquals(
+          List.of("sync t3", "multiget b.ics d.ics"),
+          sortMultigets(requests(server)).subList(2, 4));
+
+      // Nothing changed, so nothing is fetched.
+      assertEquals(Set.of("A", "B2", "D"), sync(collection));
+      assertEquals(List.of("sync t6"), requests(server).subList(4, 5));
+      assertEquals(5, server.requests().size());
+    }
+  }
+
+  /**
+   * A listing that the server cuts short with a 507 member is continued with the new token.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void truncatedListingIsContinued() throws IOException {
+    try (StubServer server = new StubServer()) {
+      FakeCollection collection = new FakeCollection(server);
+      synchronized (collection) {
+        collection.pageSize = 2;
+      }
+      for (String uid : List.of("A", "B", "C", "D", "E")) {
+        collection.put(uid.toLowerCase(Locale.ROOT) + ".ics", uid);
+      }
+      assertEquals(Set.of("A", "B", "C", "D", "E"), sync(collection));
+      assertEquals(
+          List.of("sync", "sync t2", "sync t4", "multiget a.ics b.ics c.ics d.ics e.ics"),
+          sortMultigets(requests(server)));
+    }
+  }
+
+  /**
+   * Sorts the hrefs of each multiget, whose order does not matter.
+   *
+   * @param requests the kinds of requests, as returned by {@link #requests}
+   * @return the kinds of requests, with the hrefs of each multiget sorted
+   */
+  static List<String> sortMultigets(List<String> requests) {
+    List<String> result = new ArrayList<>();
+    for (String request : requests) {
+      if (request.startsWith("multiget ")) {
+        result.add(
+            "multiget "
+                + String.join(" ", new TreeSet<>(List.of(request.substring(9).split(" ")))));
+      } else {
+        result.add(request);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * An incremental sync that the server refuses, because the token is no longer valid, cannot
+   * produce (507), or cuts short falls back to a full listing.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void invalidIncrementalSyncFallsBackToFullListing() throws IOException {
+    for (int status : new int[] {403, 507, 0}) {
+      try (StubServer server = new StubServer()) {
+        FakeCollection collection = new FakeCollection(server);
+        collection.put("a.ics", "A");
+        collection.put("b.ics", "B");
+        sync(collection);
+        collection.put("b.ics", "B2");
+        collection.delete("a.ics");
+        collection.put("c.ics", "C");
+        synchronized (collection) {
+          collection.incrementalStatus = status;
+          collection.truncateIncremental = status == 0;
+        }
+        assertEquals(Set.of("B2", "C"), sync(collection), "status " + status);
+        assertEquals(
+            List.of("sync t2", "sync", "multiget b.ics c.ics"),
+            sortMultigets(requests(server)).subList(2, 5),
+            "status " + status);
+      }
+    }
+  }
+
+  /**
+   * A multiget member is matched to its request however its href is written, and a resource that
+   * the multiget reports as not found is forgotten.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void multigetNormalizedHrefsAndNotFound() throws IOException {
+    try (StubServer server = new StubServer()) {
+      FakeCollection collection = new FakeCollection(server);
+      synchronized (collection) {
+        collection.fullUrls = true;
+      }
+      collection.put("a b.ics", "A");
+      collection.put("c.ics", "C");
+      assertEquals(Set.of("A", "C"), sync(collection));
+
+      collection.put("c.ics", "C2");
+      synchronized (collection) {
+        collection.notFound.add("c.ics");
+      }
+      assertEquals(Set.of("A"), sync(collection));
+    }
+  }
+
+  /**
+   * A resource that the calendar-multiget leaves out is an error, and the collection is not
+   * changed; once the server answers, the next sync fetches it.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void multigetMissingMemberIsAnError() throws IOException {
+    try (StubServer server = new StubServer()) {
+      FakeCollection collection = new FakeCollection(server);
+      collection.put("a.ics", "A");
+      collection.put("b.ics", "B");
+      assertEquals(Set.of("A", "B"), sync(collection));
+
+      collection.put("a.ics", "A2");
+      collection.put("b.ics", "B2");
+      synchronized (collection) {
+        collection.omitted.add("b.ics");
+      }
+      IOException e = assertThrows(IOException.class, () -> sync(collection));
+      assertTrue(String.valueOf(e.getMessage()).contains("b.ics"), e.toString());
+
+      synchronized (collection) {
+        collection.omitted.clear();
+      }
+      assertEquals(Set.of("A2", "B2"), sync(collection));
+      List<String> requests = sortMultigets(requests(server));
+      assertEquals("sync t2", requests.get(requests.size() - 2));
+    }
+  }
+}
@@ -0,0 +1,232 @@
+package org.plumelib.icalavailable;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Properties;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Tests {@link CalendarCache}, through {@link CalendarFetcher}, against a local HTTP server. */
+@SuppressWarnings({
+  "PMD", // todo
+  // JUnit sets the @TempDir field before each test.
+  "initializedfields:contracts.postcondition",
+  "nullness:initialization.fields.uninitialized",
+})
+public final class CalendarCacheTest {
+
+  /** A calendar feed. */
+  static final byte[] FEED =
+      """
+      BEGIN:VCALENDAR
+      VERSION:2.0
+      PRODID:-//test//EN
+      BEGIN:VEVENT
+      UID:1
+      DTSTART:20201117T140000Z
+      DTEND:20201117T150000Z
+      END:VEVENT
+      END:VCALENDAR
+      """
+          .getBytes(StandardCharsets.UTF_8);
+
+  /** The ETag that the server sends with {@link #FEED}. */
+  static final String ETAG = "\"v1\"";
+
+  /** The Last-Modified header that the server sends with {@link #FEED}. */
+  static final String LAST_MODIFIED = "Tue, 17 Nov 2020 14:00:00 GMT";
+
+  /** The Last-Modified header, in milliseconds since the epoch. */
+  static final long LAST_MODIFIED_MILLIS = 1605621600000L;
+
+  /** The cache directory. */
+  @TempDir Path directory;
+
+  /** Creates a new CalendarCacheTest. */
+  public CalendarCacheTest() {}
+
+  /**
+   * Serves {@link #FEED} with validators, and answers a conditional request that names them with
+   * 304.
+   *
+   * @param server the server
+   */
+  static void serveFeed(StubServer server) {
+    server.handle(
+        "/feed.ics",
+        (request, exchange) -> {
+          if (ETAG.equals(request.header("If-None-Match"))) {
+            StubServer.respond(exchange, 304, new byte[0]);
+            return;
+          }
+          exchange.getResponseHeaders().set("ETag", ETAG);
+          exchange.getResponseHeaders().set("Last-Modified", LAST_MODIFIED);
+          StubServer.respond(exchange, 200, FEED);
+        });
+  }
+
+  /**
+   * Reads a feed through a cache.
+   *
+   * @param cache the cache
+   * @param url the URL of the feed
+   * @return the contents of the feed
+   * @throws IOException if the feed cannot be read
+   */
+  static byte[] read(CalendarCache cache, String url) throws IOException {
+    FeedContents contents =
+        new CalendarFetcher(Duration.ofSeconds(10), cache, Long.MIN_VALUE, Long.MAX_VALUE)
+            .read(url);
+    try (InputStream in = contents.open()) {
+      return in.readAllBytes();
+    }
+  }
+
+  /**
+   * Reads the metadata file of a cached feed.
+   *
+   * @param url the URL of the feed
+   * @return the metadata
+   * @throws IOException if the file cannot be read
+   */
+  Properties meta(String url) throws IOException {
+    Properties result = new Properties();
+    try (Reader reader =
+        Files.newBufferedReader(
+            directory.resolve(CalendarCache.key(url) + ".properties"), StandardCharsets.UTF_8)) {
+      result.load(reader);
+    }
+    return result;
+  }
+
+  /**
+   * A 200 response is stored with its validators.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void storesBodyAndValidators() throws IOException {
+    try (StubServer server = new StubServer()) {
+      serveFeed(server);
+      String url = server.url("/feed.ics");
+      CalendarCache cache = new CalendarCache(directory, Duration.ZERO, false);
+      assertArrayEquals(FEED, read(cache, url));
+      assertArrayEquals(
+          FEED, Files.readAllBytes(directory.resolve(CalendarCache.key(url) + ".ics")));
+      Properties meta = meta(url);
+      assertEquals(url, meta.getProperty("url"));
+      assertEquals(ETAG, meta.getProperty("etag"));
+      assertEquals(Long.toString(LAST_MODIFIED_MILLIS), meta.getProperty("last-modified"));
+    }
+  }
+
+  /**
+   * An expired copy is revalidated, and a 304 serves the cached copy.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void notModifiedServesCachedCopy() throws IOException {
+    try (StubServer server = new StubServer()) {
+      serveFeed(server);
+      String url = server.url("/feed.ics");
+      CalendarCache cache = new CalendarCache(directory, Duration.ZERO, false);
+      read(cache, url);
+      assertArrayEquals(FEED, read(cache, url));
+      List<StubServer.Request> requests = server.requests();
+      assertEquals(2, requests.size());
+      assertNull(requests.get(0).header("If-None-Match"));
+      assertEquals(ETAG, requests.get(1).header("If-None-Match"));
+      assertEquals(LAST_MODIFIED, requests.get(1).header("If-Modified-Since"));
+    }
+  }
+
+  /**
+   * A copy younger than the time-to-live is used without a request.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void withinTtlSkipsRequest() throws IOException {
+    try (StubServer server = new StubServer()) {
+      serveFeed(server);
+      String url = server.url("/feed.ics");
+      CalendarCache cache = new CalendarCache(directory, Duration.ofHours(1), false);
+      read(cache, url);
+      assertArrayEquals(FEED, read(cache, url));
+      assertEquals(1, server.requests().size());
+    }
+  }
+
+  /**
+   * Offline, a cached copy is served however old, without a request.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void offlineServesCachedCopy() throws IOException {
+    try (StubServer server = new StubServer()) {
+      serveFeed(server);
+      String url = server.url("/feed.ics");
+      read(new CalendarCache(directory, Duration.ZERO, false), url);
+      assertArrayEquals(FEED, read(new CalendarCache(directory, Duration.ZERO, true), url));
+      assertEquals(1, server.requests().size());
+    }
+  }
+
+  /**
+   * Offline, a feed that is not cached cannot be read, and no request is made.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void offlineWithoutCachedCopyFails() throws IOException {
+    try (StubServer server = new StubServer()) {
+      serveFeed(server);
+      String url = server.url("/feed.ics");
+      CalendarCache cache = new CalendarCache(directory, Duration.ZERO, true);
+      assertThrows(IOException.class, () -> read(cache, url));
+      assertEquals(0, server.requests().size());
+    }
+  }
+
+  /**
+   * A corrupt metadata file is a cache miss: the feed is fetched again, unconditionally.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void corruptMetadataIsCacheMiss() throws IOException {
+    try (StubServer server = new StubServer()) {
+      serveFeed(server);
+      String url = server.url("/feed.ics");
+      CalendarCache cache = new CalendarCache(directory, Duration.ofHours(1), false);
+      read(cache, url);
+      Properties corrupt = meta(url);
+      corrupt.setProperty("fetched", "not a number");
+      try (Writer writer =
+          Files.newBufferedWriter(
+              directory.resolve(CalendarCache.key(url) + ".properties"), StandardCharsets.UTF_8)) {
+        corrupt.store(writer, null);
+      }
+      assertArrayEquals(FEED, read(cache, url));
+      List<StubServer.Request> requests = server.requests();
+      assertEquals(2, requests.size());
+      assertNull(requests.get(1).header("If-None-Match"));
+      assertTrue(meta(url).getProperty("fetched", "").matches("[0-9]+"));
+    }
+  }
+}
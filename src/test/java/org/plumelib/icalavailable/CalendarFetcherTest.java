@@ -0,0 +1,391 @@
+package org.plumelib.icalavailable;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import net.fortuna.ical4j.model.Component;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Tests {@link CalendarFetcher} against a local HTTP server. */
+@SuppressWarnings({
+  "PMD", // todo
+  // JUnit sets the @TempDir field before each test.
+  "initializedfields:contracts.postcondition",
+  "nullness:initialization.fields.uninitialized",
+})
+public final class CalendarFetcherTest {
+
+  /** A calendar feed. */
+  static final byte[] FEED = CalendarCacheTest.FEED;
+
+  /** The directory of the cache, for the tests that use one. */
+  @TempDir Path directory;
+
+  /** Creates a new CalendarFetcherTest. */
+  public CalendarFetcherTest() {}
+
+  /**
+   * Returns a fetcher that does not cache feeds.
+   *
+   * @param timeout how long to wait for any one calendar
+   * @return a fetcher
+   */
+  static CalendarFetcher fetcher(Duration timeout) {
+    return new CalendarFetcher(timeout, null, Long.MIN_VALUE, Long.MAX_VALUE);
+  }
+
+  /**
+   * Returns a fetcher that holds at most 1024 bytes of a feed in memory, and reads at most the
+   * given number of bytes of a feed.
+   *
+   * @param maxDownloadSize the most bytes of a feed to read
+   * @param cache the cache, or null
+   * @return a fetcher
+   */
+  static CalendarFetcher limitedFetcher(long maxDownloadSize, @Nullable CalendarCache cache) {
+    Duration timeout = Duration.ofSeconds(10);
+    return new CalendarFetcher(
+        timeout,
+        timeout,
+        cache,
+        Long.MIN_VALUE,
+        Long.MAX_VALUE,
+        true,
+        1024,
+        maxDownloadSize,
+        Integer.MAX_VALUE);
+  }
+
+  /**
+   * Asserts that reading a feed fails because it is too large.
+   *
+   * @param fetcher the fetcher
+   * @param url the URL of the feed
+   */
+  static void assertTooLarge(CalendarFetcher fetcher, String url) {
+    IOException e =
+        assertThrows(
+            IOException.class,
+            () -> assertTimeoutPreemptively(Duration.ofSeconds(10), () -> read(fetcher, url)));
+    assertTrue(String.valueOf(e.getMessage()).contains("larger than the limit"), e.toString());
+  }
+
+  /**
+   * Reads one feed, without parsing it.
+   *
+   * @param fetcher the fetcher
+   * @param url the URL of the feed
+   * @return the contents of the feed, decoded
+   * @throws IOException if the feed cannot be read
+   */
+  static byte[] read(CalendarFetcher fetcher, String url) throws IOException {
+    FeedContents contents = fetcher.readAll(List.of(url)).get(0);
+    try (InputStream in = contents.open()) {
+      return in.readAllBytes();
+    }
+  }
+
+  /**
+   * Serves {@link #FEED}, encoded with the given content coding.
+   *
+   * @param server the server
+   * @param encoding the value of the Content-Encoding header
+   * @param body {@link #FEED}, encoded
+   */
+  static void serveEncoded(StubServer server, String encoding, byte[] body) {
+    server.handle(
+        "/feed.ics",
+        (request, exchange) -> {
+          exchange.getResponseHeaders().set("Content-Encoding", encoding);
+          StubServer.respond(exchange, 200, body);
+        });
+  }
+
+  /**
+   * Compresses {@link #FEED}.
+   *
+   * @param out the stream that compresses what is written to it, which is closed
+   * @param compressed the stream to which {@code out} writes
+   * @return {@link #FEED}, compressed
+   * @throws IOException if the feed cannot be compressed
+   */
+  static byte[] compress(OutputStream out, ByteArrayOutputStream compressed) throws IOException {
+    try (out) {
+      out.write(FEED);
+    }
+    return compressed.toByteArray();
+  }
+
+  /**
+   * A gzip-encoded feed is decoded, and the request asks for compression.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void gzip() throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    byte[] body = compress(new GZIPOutputStream(compressed), compressed);
+    try (StubServer server = new StubServer()) {
+      serveEncoded(server, "gzip", body);
+      String url = server.url("/feed.ics");
+      assertEquals(
+          1,
+          fetcher(Duration.ofSeconds(10))
+              .fetchAll(List.of(url))
+              .get(0)
+              .getComponents(Component.VEVENT)
+              .size());
+      assertEquals("gzip, deflate", server.requests().get(0).header("Accept-Encoding"));
+    }
+  }
+
+  /**
+   * A deflate-encoded feed in the zlib format, as the standard requires, is decoded.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void deflateZlib() throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    byte[] body = compress(new DeflaterOutputStream(compressed), compressed);
+    try (StubServer server = new StubServer()) {
+      serveEncoded(server, "deflate", body);
+      assertArrayEquals(FEED, read(fetcher(Duration.ofSeconds(10)), server.url("/feed.ics")));
+    }
+  }
+
+  /**
+   * A deflate-encoded feed in the raw deflate format, as some servers send, is decoded.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void deflateRaw() throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    byte[] body;
+    try {
+      body = compress(new DeflaterOutputStream(compressed, deflater), compressed);
+    } finally {
+      deflater.end();
+    }
+    try (StubServer server = new StubServer()) {
+      serveEncoded(server, "deflate", body);
+      assertArrayEquals(FEED, read(fetcher(Duration.ofSeconds(10)), server.url("/feed.ics")));
+    }
+  }
+
+  /**
+   * A response other than 2xx is an error that names the URL and the status.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void errorStatus() throws IOException {
+    try (StubServer server = new StubServer()) {
+      server.handle("/missing.ics", (request, exchange) -> StubServer.respond(exchange, 404, "no"));
+      server.handle("/feed.ics", (request, exchange) -> StubServer.respond(exchange, 200, FEED));
+      String missing = server.url("/missing.ics");
+      CalendarFetcher fetcher = fetcher(Duration.ofSeconds(10));
+
+      IOException e = assertThrows(IOException.class, () -> read(fetcher, missing));
+      String message = String.valueOf(e.getMessage());
+      assertTrue(message.contains(missing) && message.contains("404"), message);
+
+      // With several URLs, each failure is one suppressed exception.
+      e =
+          assertThrows(
+              IOException.class, () -> fetcher.readAll(List.of(server.url("/feed.ics"), missing)));
+      Throwable[] failures = e.getSuppressed();
+      assertEquals(1, failures.length);
+      for (Throwable failure : failures) {
+        assertTrue(String.valueOf(failure.getMessage()).contains(missing));
+      }
+    }
+  }
+
+  /**
+   * Fetchers share one HTTP client, so a later fetch reuses the connection of an earlier one.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void sharedClientReusesConnection() throws IOException {
+    try (StubServer server = new StubServer()) {
+      server.handle("/feed.ics", (request, exchange) -> StubServer.respond(exchange, 200, FEED));
+      String url = server.url("/feed.ics");
+      assertArrayEquals(FEED, read(fetcher(Duration.ofSeconds(10)), url));
+      assertArrayEquals(FEED, read(fetcher(Duration.ofSeconds(10)), url));
+      List<StubServer.Request> requests = server.requests();
+      assertEquals(2, requests.size());
+      assertEquals(requests.get(0).remotePort, requests.get(1).remotePort);
+    }
+  }
+
+  /**
+   * Serves half of {@link #FEED} and then stops sending until the server is closed.
+   *
+   * @param server the server
+   * @param path the path at which to stall
+   */
+  static void stallMidBody(StubServer server, String path) {
+    server.handle(
+        path,
+        (request, exchange) -> {
+          exchange.sendResponseHeaders(200, FEED.length);
+          // StubServer closes the exchange, and with it this stream.
+          @SuppressWarnings("resourceleak:required.method.not.called")
+          OutputStream out = exchange.getResponseBody();
+          out.write(Arrays.copyOf(FEED, FEED.length / 2));
+          out.flush();
+          server.awaitClose();
+        });
+  }
+
+  /**
+   * A server that stops sending in the middle of the body fails the fetch once the timeout passes,
+   * even for a single URL.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void stallMidBodyTimesOut() throws IOException {
+    try (StubServer server = new StubServer()) {
+      stallMidBody(server, "/feed.ics");
+      String url = server.url("/feed.ics");
+      // Without a deadline on the body, the fetch would wait until the server is closed.
+      IOException e =
+          assertThrows(
+              IOException.class,
+              () ->
+                  assertTimeoutPreemptively(
+                      Duration.ofSeconds(10),
+                      () -> fetcher(Duration.ofMillis(500)).fetchAll(List.of(url))));
+      assertTrue(String.valueOf(e.getMessage()).contains("timed out"), e.toString());
+    }
+  }
+
+  /**
+   * The timeout bounds the whole call, not each URL: many stalled URLs, more than are fetched at
+   * once, fail together once the timeout passes.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void stalledUrlsShareOneDeadline() throws IOException {
+    try (StubServer server = new StubServer()) {
+      // A feed that is fetched before the stalled ones is read.
+      server.handle("/feed.ics", (request, exchange) -> StubServer.respond(exchange, 200, FEED));
+      List<String> urls = new ArrayList<>();
+      urls.add(server.url("/feed.ics"));
+      for (int i = 0; i < CalendarFetcher.MAX_CONCURRENT_FETCHES + 2; i++) {
+        stallMidBody(server, "/stall" + i + ".ics");
+        urls.add(server.url("/stall" + i + ".ics"));
+      }
+      CalendarFetcher fetcher = fetcher(Duration.ofMillis(500));
+      long start = System.nanoTime();
+      // With a timeout for each URL in turn, this would take at least ten times as long.
+      IOException e =
+          assertThrows(
+              IOException.class,
+              () -> assertTimeoutPreemptively(Duration.ofSeconds(10), () -> fetcher.readAll(urls)));
+      long elapsed = System.nanoTime() - start;
+      assertTrue(elapsed < Duration.ofMillis(2500).toNanos(), elapsed / 1_000_000 + " ms");
+      Throwable[] failures = e.getSuppressed();
+      assertEquals(CalendarFetcher.MAX_CONCURRENT_FETCHES + 2, failures.length, e.toString());
+      for (Throwable failure : failures) {
+        assertTrue(String.valueOf(failure.getMessage()).contains("timed out"), failure.toString());
+      }
+    }
+  }
+
+  /**
+   * A feed of exactly the maximum download size is read, and a larger one fails.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void maxDownloadSize() throws IOException {
+    try (StubServer server = new StubServer()) {
+      server.handle("/feed.ics", (request, exchange) -> StubServer.respond(exchange, 200, FEED));
+      String url = server.url("/feed.ics");
+      assertArrayEquals(FEED, read(limitedFetcher(FEED.length, null), url));
+      assertTooLarge(limitedFetcher(FEED.length - 1, null), url);
+    }
+  }
+
+  /**
+   * The maximum download size counts decompressed bytes, so a small gzip body that expands hugely
+   * fails, whether or not the feed is cached.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void gzipBombFails() throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+      byte[] zeros = new byte[1 << 20];
+      for (int i = 0; i < 64; i++) {
+        out.write(zeros);
+      }
+    }
+    try (StubServer server = new StubServer()) {
+      server.handle(
+          "/bomb.ics",
+          (request, exchange) -> {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            StubServer.respond(exchange, 200, compressed.toByteArray());
+          });
+      String url = server.url("/bomb.ics");
+      assertTooLarge(limitedFetcher(1 << 20, null), url);
+      assertTooLarge(
+          limitedFetcher(1 << 20, new CalendarCache(directory, Duration.ZERO, false)), url);
+    }
+  }
+
+  /**
+   * A response that never ends fails once it passes the maximum download size, rather than filling
+   * the disk.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void endlessResponseFails() throws IOException {
+    try (StubServer server = new StubServer()) {
+      server.handle(
+          "/endless.ics",
+          (request, exchange) -> {
+            exchange.sendResponseHeaders(200, 0);
+            // StubServer closes the exchange, and with it this stream.
+            @SuppressWarnings("resourceleak:required.method.not.called")
+            OutputStream out = exchange.getResponseBody();
+            byte[] chunk = new byte[1 << 16];
+            try {
+              while (true) {
+                out.write(chunk);
+              }
+            } catch (IOException e) {
+              // The client has given up.
+            }
+          });
+      assertTooLarge(limitedFetcher(1 << 20, null), server.url("/endless.ics"));
+    }
+  }
+}
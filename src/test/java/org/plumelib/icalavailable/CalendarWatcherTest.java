@@ -0,0 +1,273 @@
+package org.plumelib.icalavailable;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import net.fortuna.ical4j.data.CalendarBuilder;
+import net.fortuna.ical4j.data.ParserException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Tests the incremental refresh of {@link CalendarWatcher}, and the helpers it uses. */
+@SuppressWarnings({
+  "PMD", // todo
+  // JUnit sets the @TempDir field before each test.
+  "initializedfields:contracts.postcondition",
+  "nullness:initialization.fields.uninitialized",
+})
+public final class CalendarWatcherTest {
+
+  /** Milliseconds per hour. */
+  static final long HOUR = 3_600_000;
+
+  /** Five days from Monday 2024-03-04, with business hours from 9am to 5pm UTC. */
+  static final AvailabilityQuery QUERY =
+      new AvailabilityQuery(
+          LocalDate.of(2024, 3, 4),
+          5,
+          AvailabilityQuery.parseBusinessHours("9am-5pm"),
+          AvailabilityQuery.WEEKDAYS,
+          ZoneOffset.UTC,
+          null);
+
+  /** Midnight UTC at the start of 2024-03-04. */
+  static final long MONDAY =
+      LocalDate.of(2024, 3, 4).atStartOfDay(ZoneOffset.UTC).toEpochSecond() * 1000;
+
+  /** The directory that holds the calendars. */
+  @TempDir Path directory;
+
+  /** Creates a new CalendarWatcherTest. */
+  public CalendarWatcherTest() {}
+
+  /**
+   * Returns a calendar made of the given events.
+   *
+   * @param events the content lines of each event, without BEGIN and END
+   * @return the text of the calendar
+   */
+  static String calendar(String... events) {
+    List<String> lines = new ArrayList<>();
+    lines.add("BEGIN:VCALENDAR");
+    lines.add("VERSION:2.0");
+    lines.add("PRODID:-//test//test//EN");
+    for (String event : events) {
+      lines.add("BEGIN:VEVENT");
+      lines.add("DTSTAMP:20240101T000000Z");
+      lines.addAll(Arrays.asList(event.split("\n", -1)));
+      lines.add("END:VEVENT");
+    }
+    lines.add("END:VCALENDAR");
+    return String.join("\r\n", lines) + "\r\n";
+  }
+
+  /**
+   * Returns the content lines of a simple event.
+   *
+   * @param uid the UID of the event
+   * @param start the start of the event, such as "20240304T100000Z"
+   * @param end the end of the event
+   * @return the content lines of the event, separated by newlines
+   */
+  static String event(String uid, String start, String end) {
+    return "UID:" + uid + "\nDTSTART:" + start + "\nDTEND:" + end;
+  }
+
+  /**
+   * Returns the versions of the series of a calendar.
+   *
+   * @param text the text of the calendar
+   * @return the version of each series, in order
+   * @throws IOException if the calendar cannot be parsed
+   */
+  static List<String> versions(String text) throws IOException {
+    List<String> result = new ArrayList<>();
+    try {
+      for (RecurrenceExpander.Series series :
+          RecurrenceExpander.series(List.of(new CalendarBuilder().build(new StringReader(text))))) {
+        result.add(CalendarWatcher.version(series));
+      }
+    } catch (ParserException e) {
+      throw new IOException(e);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the free times after a full computation, by a new watcher.
+   *
+   * @param urls the URLs of the calendars
+   * @return the free times, as alternating start and end times
+   * @throws IOException if the calendars cannot be read
+   */
+  static long[] fullRecompute(List<String> urls) throws IOException {
+    CalendarWatcher watcher = new CalendarWatcher(urls, () -> QUERY, Duration.ofHours(1));
+    watcher.refresh(QUERY);
+    return watcher.free();
+  }
+
+  /**
+   * After each edit of a calendar, an incremental refresh gives the same free times as computing
+   * them from scratch.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void incrementalRefreshMatchesFullRecompute() throws IOException {
+    Path a = directory.resolve("a.ics");
+    Path b = directory.resolve("b.ics");
+    List<String> urls = List.of(a.toUri().toString(), b.toUri().toString());
+    String weekly =
+        "UID:weekly\nDTSTART:20240101T140000Z\nDTEND:20240101T150000Z\nRRULE:FREQ=DAILY";
+    List<String[]> editsOfA =
+        List.of(
+            new String[] {
+              event("one", "20240304T100000Z", "20240304T110000Z"),
+              event("two", "20240306T090000Z", "20240306T120000Z"),
+              weekly
+            },
+            // Move one event, keep the others.
+            new String[] {
+              event("one", "20240305T100000Z", "20240305T110000Z"),
+              event("two", "20240306T090000Z", "20240306T120000Z"),
+              weekly
+            },
+            // Change the recurring series, and add an override of one instance.
+            new String[] {
+              event("one", "20240305T100000Z", "20240305T110000Z"),
+              event("two", "20240306T090000Z", "20240306T120000Z"),
+              weekly.replace("FREQ=DAILY", "FREQ=DAILY;INTERVAL=2") + "\nSEQUENCE:1",
+              "UID:weekly\nRECURRENCE-ID:20240305T140000Z\nDTSTART:20240305T160000Z\n"
+                  + "DTEND:20240305T170000Z\nSEQUENCE:1"
+            },
+            // Remove an event, and one that touches a business-hour boundary.
+            new String[] {
+              event("two", "20240306T090000Z", "20240306T120000Z"),
+              event("edge", "20240307T170000Z", "20240307T180000Z")
+            },
+            // Remove everything.
+            new String[] {});
+    Files.writeString(
+        b, calendar(event("b", "20240304T103000Z", "20240304T130000Z")), StandardCharsets.UTF_8);
+
+    CalendarWatcher watcher = new CalendarWatcher(urls, () -> QUERY, Duration.ofHours(1));
+    long[] previous = null;
+    for (String[] events : editsOfA) {
+      Files.writeString(a, calendar(events), StandardCharsets.UTF_8);
+      watcher.refresh(QUERY);
+      long[] free = watcher.free();
+      assertArrayEquals(fullRecompute(urls), free, Arrays.toString(events));
+      if (previous != null) {
+        assertFalse(Arrays.equals(previous, free), "the edit changed nothing");
+      }
+      previous = free;
+    }
+  }
+
+  /** The free times outside the changed ranges are kept, including those that touch them. */
+  @Test
+  public void outside() {
+    long[] slots = {0, 10, 10, 20, 30, 40, 50, 60};
+    assertArrayEquals(
+        new long[] {0, 10, 30, 40, 50, 60}, CalendarWatcher.outside(slots, new long[] {10, 20}));
+    assertArrayEquals(
+        new long[] {0, 10, 10, 20}, CalendarWatcher.outside(slots, new long[] {25, 60}));
+    assertArrayEquals(slots, CalendarWatcher.outside(slots, new long[] {}));
+    assertArrayEquals(new long[] {}, CalendarWatcher.outside(slots, new long[] {0, 60}));
+    assertArrayEquals(new long[] {}, CalendarWatcher.outside(new long[] {}, new long[] {0, 60}));
+  }
+
+  /** Merging interleaves two sets of slots in order. */
+  @Test
+  public void merge() {
+    assertArrayEquals(
+        new long[] {0, 10, 10, 20, 30, 40, 50, 60},
+        CalendarWatcher.merge(new long[] {10, 20, 50, 60}, new long[] {0, 10, 30, 40}));
+    assertArrayEquals(new long[] {0, 10}, CalendarWatcher.merge(new long[] {}, new long[] {0, 10}));
+    assertArrayEquals(new long[] {0, 10}, CalendarWatcher.merge(new long[] {0, 10}, new long[] {}));
+    assertArrayEquals(new long[] {}, CalendarWatcher.merge(new long[] {}, new long[] {}));
+  }
+
+  /** Changes are grouped by date, with each removal before an addition at the same start. */
+  @Test
+  public void formatChanges() {
+    long[] before = {MONDAY + 9 * HOUR, MONDAY + 17 * HOUR, MONDAY + 33 * HOUR, MONDAY + 41 * HOUR};
+    long[] after = {
+      MONDAY + 9 * HOUR,
+      MONDAY + 10 * HOUR,
+      MONDAY + 11 * HOUR,
+      MONDAY + 17 * HOUR,
+      MONDAY + 33 * HOUR,
+      MONDAY + 41 * HOUR
+    };
+    String nl = System.lineSeparator();
+    assertEquals("", CalendarWatcher.formatChanges(before, before, MONDAY, QUERY));
+    String changes = CalendarWatcher.formatChanges(before, after, MONDAY, QUERY);
+    assertEquals(
+        String.join(
+            nl,
+            "",
+            "Changes at Mon Mar 4, 2024 12:00am:",
+            "",
+            "Mon Mar 4, 2024:",
+            "- 9:00am to 5:00pm",
+            "+ 9:00am to 10:00am",
+            "+ 11:00am to 5:00pm",
+            ""),
+        changes);
+    assertEquals(
+        String.join(
+            nl,
+            "",
+            "Changes at Mon Mar 4, 2024 12:00am:",
+            "",
+            "Mon Mar 4, 2024:",
+            "- 9:00am to 10:00am",
+            "+ 9:00am to 5:00pm",
+            "- 11:00am to 5:00pm",
+            ""),
+        CalendarWatcher.formatChanges(after, before, MONDAY, QUERY));
+  }
+
+  /**
+   * The version of a series ignores DTSTAMP, and otherwise changes with any property unless the
+   * event has a SEQUENCE or LAST-MODIFIED, in which case only those (and RECURRENCE-ID) count.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void version() throws IOException {
+    String plain = event("x", "20240304T100000Z", "20240304T110000Z");
+    String version = versions(calendar(plain)).get(0);
+    assertEquals(
+        version,
+        versions(calendar(plain).replace("DTSTAMP:20240101T000000Z", "DTSTAMP:20240202T000000Z"))
+            .get(0));
+    assertNotEquals(version, versions(calendar(plain.replace("T110000Z", "T120000Z"))).get(0));
+
+    String sequenced = plain + "\nSEQUENCE:1";
+    String sequencedVersion = versions(calendar(sequenced)).get(0);
+    assertEquals(sequencedVersion, versions(calendar(sequenced + "\nSUMMARY:renamed")).get(0));
+    assertNotEquals(
+        sequencedVersion, versions(calendar(sequenced.replace("SEQUENCE:1", "SEQUENCE:2"))).get(0));
+
+    // An override is part of the version of its series.
+    String master = "UID:r\nDTSTART:20240304T100000Z\nDTEND:20240304T110000Z\nRRULE:FREQ=DAILY";
+    String override =
+        "UID:r\nRECURRENCE-ID:20240305T100000Z\nDTSTART:20240305T120000Z\nDTEND:20240305T130000Z";
+    assertNotEquals(versions(calendar(master)).get(0), versions(calendar(master, override)).get(0));
+  }
+}
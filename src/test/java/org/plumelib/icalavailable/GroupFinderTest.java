@@ -0,0 +1,176 @@
+package org.plumelib.icalavailable;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/** Tests {@link GroupFinder}. */
+@SuppressWarnings("PMD") // todo
+public final class GroupFinderTest {
+
+  /** Milliseconds per minute. */
+  static final long MINUTE = 60_000;
+
+  /** Milliseconds per hour. */
+  static final long HOUR = 60 * MINUTE;
+
+  /** A Monday, with business hours from 9am to 5pm UTC. */
+  static final AvailabilityQuery QUERY =
+      new AvailabilityQuery(
+          LocalDate.of(2024, 3, 4),
+          1,
+          AvailabilityQuery.parseBusinessHours("9am-5pm"),
+          AvailabilityQuery.WEEKDAYS,
+          ZoneOffset.UTC,
+          null);
+
+  /** The start of the day of {@link #QUERY}. */
+  static final long DAY =
+      LocalDate.of(2024, 3, 4).atStartOfDay(ZoneOffset.UTC).toEpochSecond() * 1000;
+
+  /** The length of a slot, for {@link SlotGrid}. */
+  static final long SLOT = 15 * MINUTE;
+
+  /** Creates a new GroupFinderTest. */
+  public GroupFinderTest() {}
+
+  /**
+   * Returns the busy times of an attendee who is free only between the given hours of the day.
+   *
+   * @param from the hour at which the attendee becomes free
+   * @param to the hour at which the attendee stops being free
+   * @return the busy times
+   */
+  static BusyIndex freeBetween(int from, int to) {
+    BusyIndex.Builder builder = new BusyIndex.Builder();
+    builder.add(DAY, DAY + from * HOUR);
+    builder.add(DAY + to * HOUR, DAY + 24 * HOUR);
+    return builder.build();
+  }
+
+  /**
+   * Describes times in a form that is easy to compare, such as "9:00-12:00 [0, 1]".
+   *
+   * @param slots the times
+   * @param attendees the number of attendees
+   * @return a description of each time
+   */
+  static List<String> describe(List<GroupFinder.GroupSlot> slots, int attendees) {
+    List<String> result = new ArrayList<>();
+    for (GroupFinder.GroupSlot slot : slots) {
+      List<Integer> free = new ArrayList<>();
+      for (int a = 0; a < attendees; a++) {
+        if (slot.isFree(a)) {
+          free.add(a);
+        }
+      }
+      result.add(clock(slot.start()) + "-" + clock(slot.end()) + " " + free);
+    }
+    return result;
+  }
+
+  /**
+   * Formats a time of {@link #DAY} as hours and minutes.
+   *
+   * @param time a time, in milliseconds since the epoch
+   * @return the time, such as "9:00"
+   */
+  static String clock(long time) {
+    long minutes = (time - DAY) / MINUTE;
+    return String.format("%d:%02d", minutes / 60, minutes % 60);
+  }
+
+  /**
+   * A and B are free from 9 to 12 and C from 10 to 11. A time when two are free is not cut into
+   * pieces where C becomes free and busy again.
+   */
+  @Test
+  public void quorumTimeSpansChangesOfOthers() {
+    GroupFinder finder =
+        new GroupFinder(List.of(freeBetween(9, 12), freeBetween(9, 12), freeBetween(10, 11)));
+    assertEquals(
+        List.of("9:00-12:00 [0, 1]", "10:00-11:00 [0, 1, 2]"),
+        describe(finder.available(QUERY, 2, 0), 3));
+    assertEquals(
+        List.of("9:00-12:00 [0, 1]"), describe(finder.available(QUERY, 2, 120 * MINUTE), 3));
+    assertEquals(List.of("10:00-11:00 [0, 1, 2]"), describe(finder.available(QUERY, 3, 0), 3));
+    // The best time is the one when the most are free; with a longer meeting, it is 9 to 12.
+    assertEquals(
+        List.of("10:00-11:00 [0, 1, 2]"),
+        describe(GroupFinder.best(finder.available(QUERY, 2, 0), 1), 3));
+  }
+
+  /**
+   * Staggered free times give one time for each set of attendees that are free together, as long as
+   * possible.
+   */
+  @Test
+  public void staggeredFreeTimes() {
+    GroupFinder finder =
+        new GroupFinder(List.of(freeBetween(9, 13), freeBetween(10, 14), freeBetween(11, 15)));
+    assertEquals(
+        List.of(
+            "9:00-13:00 [0]",
+            "10:00-13:00 [0, 1]",
+            "10:00-14:00 [1]",
+            "11:00-13:00 [0, 1, 2]",
+            "11:00-14:00 [1, 2]",
+            "11:00-15:00 [2]"),
+        describe(finder.available(QUERY, 1, 0), 3));
+    assertEquals(
+        List.of("10:00-13:00 [0, 1]", "11:00-13:00 [0, 1, 2]", "11:00-14:00 [1, 2]"),
+        describe(finder.available(QUERY, 2, 0), 3));
+  }
+
+  /** A time when attendees are free is cut at the ends of the business hours. */
+  @Test
+  public void businessHoursBound() {
+    GroupFinder finder = new GroupFinder(List.of(freeBetween(0, 24), freeBetween(8, 10)));
+    assertEquals(
+        List.of("9:00-10:00 [0, 1]", "9:00-17:00 [0]"), describe(finder.available(QUERY, 1, 0), 2));
+  }
+
+  /** With slots, a time when two are free is not cut into pieces either. */
+  @Test
+  public void slotQuorumTimeSpansChangesOfOthers() {
+    GroupFinder finder =
+        new GroupFinder(List.of(freeBetween(9, 12), freeBetween(9, 12), freeBetween(10, 11)));
+    assertEquals(
+        List.of("9:00-12:00 [0, 1]", "10:00-11:00 [0, 1, 2]"),
+        describe(finder.available(QUERY, 2, 0, SLOT), 3));
+    assertEquals(
+        List.of("9:00-12:00 [0, 1]"), describe(finder.available(QUERY, 2, 120 * MINUTE, SLOT), 3));
+  }
+
+  /** When every busy time is a whole number of slots, slots give exactly the exact times. */
+  @Test
+  public void slotsMatchExactTimes() {
+    Random random = new Random(42);
+    for (int trial = 0; trial < 50; trial++) {
+      int attendees = 1 + random.nextInt(6);
+      List<BusyIndex> busy = new ArrayList<>();
+      for (int a = 0; a < attendees; a++) {
+        BusyIndex.Builder builder = new BusyIndex.Builder();
+        for (int e = random.nextInt(8); e > 0; e--) {
+          long start = DAY + 8 * HOUR + random.nextInt(40) * SLOT;
+          builder.add(start, start + (1 + random.nextInt(8)) * SLOT);
+        }
+        busy.add(builder.build());
+      }
+      GroupFinder finder = new GroupFinder(busy);
+      for (int quorum = 1; quorum <= attendees; quorum++) {
+        for (long minLength : new long[] {0, SLOT, 4 * SLOT}) {
+          assertEquals(
+              describe(finder.available(QUERY, quorum, minLength), attendees),
+              describe(finder.available(QUERY, quorum, minLength, SLOT), attendees),
+              "trial " + trial + ", quorum " + quorum + ", minLength " + minLength);
+        }
+      }
+    }
+  }
+}
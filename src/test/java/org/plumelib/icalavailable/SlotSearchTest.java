@@ -0,0 +1,201 @@
+package org.plumelib.icalavailable;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+
+/** Tests that {@link SlotSearch} compiles only the chunks it needs, and finds the right times. */
+@SuppressWarnings("PMD") // todo
+public final class SlotSearchTest {
+
+  /** Milliseconds per hour. */
+  static final long HOUR = 3_600_000;
+
+  /** Thirty days from Monday 2024-03-04, with business hours from 9am to 5pm UTC. */
+  static final AvailabilityQuery QUERY =
+      new AvailabilityQuery(
+          LocalDate.of(2024, 3, 4),
+          30,
+          AvailabilityQuery.parseBusinessHours("9am-5pm"),
+          AvailabilityQuery.WEEKDAYS,
+          ZoneOffset.UTC,
+          null);
+
+  /** Midnight UTC at the start of 2024-03-04. */
+  static final long MONDAY =
+      LocalDate.of(2024, 3, 4).atStartOfDay(ZoneOffset.UTC).toEpochSecond() * 1000;
+
+  /** Creates a new SlotSearchTest. */
+  public SlotSearchTest() {}
+
+  /** Returns the given busy times, and records each window that it is asked for. */
+  static final class CountingBusyTimes implements SlotSearch.BusyTimes {
+
+    /** The busy times to return. */
+    private final BusyIndex busy;
+
+    /** The windows asked for, as alternating start and end times. */
+    final List<Long> windows = new ArrayList<>();
+
+    /**
+     * Creates a new CountingBusyTimes.
+     *
+     * @param busy the busy times to return
+     */
+    CountingBusyTimes(BusyIndex busy) {
+      this.busy = busy;
+    }
+
+    @Override
+    public BusyIndex within(long windowStart, long windowEnd) {
+      windows.add(windowStart);
+      windows.add(windowEnd);
+      return busy;
+    }
+
+    /**
+     * Returns the number of chunks compiled.
+     *
+     * @return the number of calls to {@link #within}
+     */
+    int calls() {
+      return windows.size() / 2;
+    }
+  }
+
+  /**
+   * Adds busy times of an hour a day, from 10am to 11am, on each of the given days of the query.
+   *
+   * @param builder the busy times to add to
+   * @param days the days, counted from the first day of the query
+   * @return the builder
+   */
+  static BusyIndex.Builder busyMornings(BusyIndex.Builder builder, int... days) {
+    for (int day : days) {
+      long midnight = MONDAY + day * 24L * HOUR;
+      builder.add(midnight + 10 * HOUR, midnight + 11 * HOUR);
+    }
+    return builder;
+  }
+
+  /**
+   * Returns free times as alternating start and end times, which are easy to compare.
+   *
+   * @param slots the free times
+   * @return the start and end of each free time, in order
+   */
+  @SuppressWarnings("index") // result has two elements for each slot
+  static long[] times(List<Slot> slots) {
+    long[] result = new long[slots.size() * 2];
+    for (int i = 0; i < slots.size(); i++) {
+      result[2 * i] = slots.get(i).start();
+      result[2 * i + 1] = slots.get(i).end();
+    }
+    return result;
+  }
+
+  /**
+   * Searches the query, using the busy times of the stub.
+   *
+   * @param busyTimes the stub
+   * @param limit the number of free times wanted
+   * @return the first free times, at most {@code limit} of them
+   */
+  static List<Slot> search(SlotSearch.BusyTimes busyTimes, long limit) {
+    return new SlotSearch(QUERY, AvailabilityEngine.MIN_FREE_MILLIS, busyTimes)
+        .stream().limit(limit).collect(Collectors.toList());
+  }
+
+  /**
+   * When the first chunk holds enough free times, only it is compiled, and the times are the first
+   * ones that {@link AvailabilityEngine#available} finds.
+   */
+  @Test
+  public void limitSatisfiedInFirstChunk() {
+    BusyIndex busy = busyMornings(new BusyIndex.Builder(), 0, 1, 2, 8, 20).build();
+    List<Slot> all = new AvailabilityEngine(busy).available(QUERY);
+    CountingBusyTimes stub = new CountingBusyTimes(busy);
+    SlotSearch search = new SlotSearch(QUERY, AvailabilityEngine.MIN_FREE_MILLIS, stub);
+    List<Slot> first = search.stream().limit(5).collect(Collectors.toList());
+
+    assertArrayEquals(times(all.subList(0, 5)), times(first));
+    assertEquals(1, stub.calls());
+    // The first chunk is the first week, whose business hours run from Monday 9am to Friday 5pm.
+    assertEquals(List.of(MONDAY + 9 * HOUR, MONDAY + (4 * 24 + 17) * HOUR), stub.windows);
+    // Two free times a day on Monday to Wednesday; the fifth is on Wednesday.
+    assertEquals(3, search.daysSearched());
+  }
+
+  /**
+   * When the first chunk has too few free times, the next chunk is compiled, and no others; it is
+   * twice as long as the first.
+   */
+  @Test
+  public void limitSatisfiedInSecondChunk() {
+    BusyIndex.Builder builder = new BusyIndex.Builder();
+    // Busy all of the first week.
+    builder.add(MONDAY, MONDAY + 7 * 24 * HOUR);
+    BusyIndex busy = busyMornings(builder, 7, 8).build();
+    List<Slot> all = new AvailabilityEngine(busy).available(QUERY);
+    CountingBusyTimes stub = new CountingBusyTimes(busy);
+
+    assertArrayEquals(times(all.subList(0, 3)), times(search(stub, 3)));
+    assertEquals(2, stub.calls());
+    assertEquals(
+        List.of(
+            MONDAY + 9 * HOUR,
+            MONDAY + (4 * 24 + 17) * HOUR,
+            MONDAY + (7 * 24 + 9) * HOUR,
+            MONDAY + (18 * 24 + 17) * HOUR),
+        stub.windows);
+  }
+
+  /**
+   * A search that runs to the end of the query finds exactly the times of {@link
+   * AvailabilityEngine#available}, compiling chunks of 7, 14, and then the remaining 9 days.
+   */
+  @Test
+  public void wholeQueryMatchesEngine() {
+    BusyIndex busy =
+        busyMornings(new BusyIndex.Builder(), 0, 3, 6, 9, 12, 15, 18, 21, 24, 27, 29).build();
+    CountingBusyTimes stub = new CountingBusyTimes(busy);
+
+    assertArrayEquals(
+        times(new AvailabilityEngine(busy).available(QUERY)), times(search(stub, Long.MAX_VALUE)));
+    assertEquals(3, stub.calls());
+    // Each chunk starts on the Monday after the one before ends.
+    assertEquals(
+        List.of(
+            MONDAY + 9 * HOUR,
+            MONDAY + (4 * 24 + 17) * HOUR,
+            MONDAY + (7 * 24 + 9) * HOUR,
+            MONDAY + (18 * 24 + 17) * HOUR,
+            MONDAY + (21 * 24 + 9) * HOUR,
+            MONDAY + (29 * 24 + 17) * HOUR),
+        stub.windows);
+  }
+
+  /**
+   * When no time is free, the search covers every day, compiles each chunk once, and finds nothing,
+   * as {@link AvailabilityEngine#available} does.
+   */
+  @Test
+  public void nothingFree() {
+    BusyIndex.Builder builder = new BusyIndex.Builder();
+    builder.add(MONDAY, MONDAY + 30 * 24 * HOUR);
+    BusyIndex busy = builder.build();
+    CountingBusyTimes stub = new CountingBusyTimes(busy);
+    SlotSearch search = new SlotSearch(QUERY, AvailabilityEngine.MIN_FREE_MILLIS, stub);
+
+    assertEquals(0, search.stream().limit(1).count());
+    assertEquals(0, new AvailabilityEngine(busy).available(QUERY).size());
+    assertEquals(3, stub.calls());
+    assertEquals(30, search.daysSearched());
+  }
+}
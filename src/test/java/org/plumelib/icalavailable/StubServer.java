@@ -0,0 +1,220 @@
+package org.plumelib.icalavailable;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.checkerframework.checker.lock.qual.GuardSatisfied;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * A local HTTP server for tests. Each request is answered by the handler registered for the longest
+ * matching path prefix, and is recorded, with its body, before the handler runs.
+ */
+@SuppressWarnings("PMD") // todo
+final class StubServer implements AutoCloseable {
+
+  /** Answers a request. */
+  @FunctionalInterface
+  interface Handler {
+    /**
+     * Answers a request.
+     *
+     * @param request the request
+     * @param exchange the exchange, through which to send the response
+     * @throws IOException if the response cannot be sent
+     */
+    void handle(Request request, HttpExchange exchange) throws IOException;
+  }
+
+  /** A request that the server received. */
+  static final class Request {
+
+    /** The method, such as "GET". */
+    final String method;
+
+    /** The path and query. */
+    final String path;
+
+    /** The request headers. */
+    final Headers headers;
+
+    /** The body, as UTF-8. */
+    final String body;
+
+    /** The client's port, which identifies the connection on which the request arrived. */
+    final int remotePort;
+
+    /**
+     * Creates a new Request.
+     *
+     * @param method the method
+     * @param path the path and query
+     * @param headers the request headers
+     * @param body the body, as UTF-8
+     * @param remotePort the client's port
+     */
+    Request(String method, String path, Headers headers, String body, int remotePort) {
+      this.method = method;
+      this.path = path;
+      this.headers = headers;
+      this.body = body;
+      this.remotePort = remotePort;
+    }
+
+    /**
+     * Returns the first value of a request header.
+     *
+     * @param name the name of the header
+     * @return the first value of the header, or null if there is none
+     */
+    @Nullable String header(String name) {
+      return headers.getFirst(name);
+    }
+  }
+
+  /** The server. */
+  private final HttpServer server;
+
+  /** The threads that run the handlers. */
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  /** Released when the server is closed, to end handlers that stall. */
+  private final CountDownLatch closed = new CountDownLatch(1);
+
+  /** The requests received so far, in order. Guarded by itself. */
+  private final List<Request> requests = new ArrayList<>();
+
+  /**
+   * Creates and starts a new StubServer on a free port of the loopback interface.
+   *
+   * @throws IOException if the server cannot be started
+   */
+  StubServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  /**
+   * Registers the handler for a path prefix.
+   *
+   * @param path the path prefix, such as "/calendar.ics"
+   * @param handler answers requests for paths that start with {@code path}
+   */
+  void handle(String path, Handler handler) {
+    server.createContext(
+        path,
+        exchange -> {
+          String body;
+          try (InputStream in = exchange.getRequestBody()) {
+            body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+          }
+          Request request =
+              new Request(
+                  exchange.getRequestMethod(),
+                  exchange.getRequestURI().toString(),
+                  exchange.getRequestHeaders(),
+                  body,
+                  exchange.getRemoteAddress().getPort());
+          synchronized (requests) {
+            requests.add(request);
+          }
+          try {
+            handler.handle(request, exchange);
+          } finally {
+            exchange.close();
+          }
+        });
+  }
+
+  /**
+   * Returns the URL of a path on this server.
+   *
+   * @param path a path, such as "/calendar.ics"
+   * @return the URL of the path
+   */
+  String url(String path) {
+    return "http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + port() + path;
+  }
+
+  /**
+   * Returns the port on which this server listens.
+   *
+   * @return the port on which this server listens
+   */
+  int port() {
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * Returns the requests received so far.
+   *
+   * @return the requests received so far, in order
+   */
+  List<Request> requests() {
+    synchronized (requests) {
+      return new ArrayList<>(requests);
+    }
+  }
+
+  /**
+   * Blocks until this server is closed. A handler calls this to stall.
+   *
+   * @throws IOException if interrupted
+   */
+  void awaitClose() throws IOException {
+    try {
+      closed.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted", e);
+    }
+  }
+
+  /**
+   * Sends a complete response.
+   *
+   * @param exchange the exchange
+   * @param status the status code
+   * @param body the body, which is empty for a 304
+   * @throws IOException if the response cannot be sent
+   */
+  static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+    exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+    if (body.length != 0) {
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    }
+  }
+
+  /**
+   * Sends a complete response.
+   *
+   * @param exchange the exchange
+   * @param status the status code
+   * @param body the body, which is sent as UTF-8
+   * @throws IOException if the response cannot be sent
+   */
+  static void respond(HttpExchange exchange, int status, String body) throws IOException {
+    respond(exchange, status, body.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Override
+  public void close(@GuardSatisfied StubServer this) {
+    closed.countDown();
+    server.stop(0);
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,306 @@
+package org.plumelib.icalavailable;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/** Tests which events {@link WindowFilterReader} keeps, and that it passes everything else. */
+@SuppressWarnings("PMD") // todo
+public final class WindowFilterReaderTest {
+
+  /** The start of the window: 2024-03-04 at midnight UTC. */
+  static final long WINDOW_START =
+      LocalDate.of(2024, 3, 4).atStartOfDay(ZoneOffset.UTC).toEpochSecond() * 1000;
+
+  /** The end of the window: a day after its start. */
+  static final long WINDOW_END = WINDOW_START + AvailabilityQuery.MILLIS_PER_DAY;
+
+  /** Creates a new WindowFilterReaderTest. */
+  public WindowFilterReaderTest() {}
+
+  /**
+   * Returns the lines of an event.
+   *
+   * @param uid the UID of the event
+   * @param properties the other content lines of the event
+   * @return the lines of the event, from BEGIN to END
+   */
+  static List<String> event(String uid, String... properties) {
+    List<String> result = new ArrayList<>();
+    result.add("BEGIN:VEVENT");
+    result.add("UID:" + uid);
+    result.addAll(Arrays.asList(properties));
+    result.add("END:VEVENT");
+    return result;
+  }
+
+  /**
+   * Returns a calendar made of the given components.
+   *
+   * @param components the lines of each component
+   * @return the text of the calendar, with CRLF line terminators
+   */
+  @SafeVarargs
+  static String calendar(List<String>... components) {
+    List<String> lines = new ArrayList<>();
+    lines.add("BEGIN:VCALENDAR");
+    lines.add("VERSION:2.0");
+    for (List<String> component : components) {
+      lines.addAll(component);
+    }
+    lines.add("END:VCALENDAR");
+    return String.join("\r\n", lines) + "\r\n";
+  }
+
+  /**
+   * Reads all the text of a reader, a few characters at a time.
+   *
+   * @param reader the reader, which is not closed
+   * @return the text of the reader
+   * @throws IOException if the text cannot be read
+   */
+  @SuppressWarnings("index") // read returns at most the length of the buffer, or -1
+  static String readAll(WindowFilterReader reader) throws IOException {
+    StringBuilder result = new StringBuilder();
+    char[] buffer = new char[7];
+    int n;
+    while ((n = reader.read(buffer, 0, buffer.length)) != -1) {
+      result.append(buffer, 0, n);
+    }
+    return result.toString();
+  }
+
+  /**
+   * Filters a calendar to the window.
+   *
+   * @param calendar the text of the calendar
+   * @return the filtered text
+   * @throws IOException if the text cannot be read
+   */
+  static String filter(String calendar) throws IOException {
+    try (WindowFilterReader reader =
+        new WindowFilterReader(new StringReader(calendar), WINDOW_START, WINDOW_END)) {
+      return readAll(reader);
+    }
+  }
+
+  /**
+   * Returns the UIDs of the events in iCalendar text.
+   *
+   * @param text unfolded iCalendar text
+   * @return the UIDs, in order
+   */
+  static List<String> uids(String text) {
+    List<String> result = new ArrayList<>();
+    for (String line : text.split("\r\n", -1)) {
+      if (line.startsWith("UID:")) {
+        result.add(line.substring("UID:".length()));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Events inside and outside the window are kept and dropped, and the output is the input with the
+   * dropped events removed.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void keepsEventsInWindow() throws IOException {
+    List<String> inside = event("inside", "DTSTART:20240304T090000Z", "DTEND:20240304T100000Z");
+    List<String> before = event("before", "DTSTART:20200101T090000Z", "DTEND:20200101T100000Z");
+    List<String> after = event("after", "DTSTART:20300101T090000", "DURATION:PT1H");
+    assertEquals(calendar(inside), filter(calendar(before, inside, after)));
+    try (WindowFilterReader reader =
+        new WindowFilterReader(
+            new StringReader(calendar(before, inside, after)), WINDOW_START, WINDOW_END)) {
+      readAll(reader);
+      assertEquals(1, reader.eventsKept());
+      assertEquals(2, reader.eventsDropped());
+    }
+  }
+
+  /**
+   * Recurring masters and their overrides are kept even when they start long before the window.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void keepsRecurringEventsOutsideWindow() throws IOException {
+    String text =
+        filter(
+            calendar(
+                event("rrule", "DTSTART:20200101T090000Z", "RRULE:FREQ=WEEKLY"),
+                event("rdate", "DTSTART:20200101T090000Z", "RDATE:20200108T090000Z"),
+                event(
+                    "override",
+                    "RECURRENCE-ID:20200108T090000Z",
+                    "DTSTART:20200108T100000Z",
+                    "DTEND:20200108T110000Z"),
+                event(
+                    "rrule-param",
+                    "DTSTART;TZID=Europe/Paris:20200101T090000",
+                    "RRULE;X-A=B:FREQ=DAILY"),
+                event("plain", "DTSTART:20200101T090000Z")));
+    assertEquals(List.of("rrule", "rdate", "override", "rrule-param"), uids(text));
+  }
+
+  /**
+   * DTSTART and DTEND lines that are folded are unfolded before their times are read, and the
+   * output is unfolded.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void foldedLines() throws IOException {
+    String text =
+        filter(
+            calendar(
+                // Folded in the parameter, and with a tab.
+                event(
+                    "folded-out",
+                    "DTSTART;TZID=America/New_Yo",
+                    " rk:20200101T090000",
+                    "DTEND;TZID=America/New_York:2020010",
+                    "\t1T100000"),
+                event(
+                    "folded-in",
+                    "DTSTART:2024030",
+                    " 4T090000Z",
+                    "DTEND:20240304T1",
+                    " 00000Z",
+                    "SUMMARY:A long",
+                    "  summary")));
+    assertEquals(List.of("folded-in"), uids(text));
+    assertTrue(text.contains("\r\nDTSTART:20240304T090000Z\r\n"), text);
+    assertTrue(text.contains("\r\nSUMMARY:A long summary\r\n"), text);
+  }
+
+  /**
+   * An all-day event without DTEND lasts one day, and one with DTEND ends at the start of that day.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void allDayEvents() throws IOException {
+    String text =
+        filter(
+            calendar(
+                event("on-day", "DTSTART;VALUE=DATE:20240304"),
+                // Without DTEND, lasts until 2024-03-03, the start of the widened window.
+                event("day-at-edge", "DTSTART;VALUE=DATE:20240302"),
+                event("day-before", "DTSTART;VALUE=DATE:20240301"),
+                event("days-before", "DTSTART;VALUE=DATE:20240229", "DTEND;VALUE=DATE:20240302"),
+                event("days-over", "DTSTART;VALUE=DATE:20240201", "DTEND;VALUE=DATE:20240401"),
+                event("day-after", "DTSTART;VALUE=DATE:20240307")));
+    assertEquals(List.of("on-day", "day-at-edge", "days-over"), uids(text));
+  }
+
+  /**
+   * The window is widened by exactly one day on each side, and an event that touches the widened
+   * window is kept.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void slackEdges() throws IOException {
+    String text =
+        filter(
+            calendar(
+                event("ends-at-edge", "DTSTART:20240302T230000Z", "DTEND:20240303T000000Z"),
+                event("ends-before-edge", "DTSTART:20240302T230000Z", "DTEND:20240302T235959Z"),
+                event("starts-at-edge", "DTSTART:20240306T000000Z", "DTEND:20240306T010000Z"),
+                event("starts-after-edge", "DTSTART:20240306T000001Z", "DTEND:20240306T010000Z"),
+                event("duration-to-edge", "DTSTART:20240302T000000Z", "DURATION:P1D"),
+                event("duration-short", "DTSTART:20240302T000000Z", "DURATION:PT23H59M")));
+    assertEquals(List.of("ends-at-edge", "starts-at-edge", "duration-to-edge"), uids(text));
+  }
+
+  /**
+   * Events whose times cannot be read are kept, so that the parser can decide.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void keepsEventsWithUnknownTimes() throws IOException {
+    String text =
+        filter(
+            calendar(
+                event("no-dtstart", "SUMMARY:x"),
+                event("bad-dtstart", "DTSTART:yesterday"),
+                event("bad-duration", "DTSTART:20200101T090000Z", "DURATION:a while")));
+    assertEquals(List.of("no-dtstart", "bad-dtstart", "bad-duration"), uids(text));
+  }
+
+  /**
+   * VTIMEZONE and other components, and the properties of an event's subcomponents, pass through
+   * unchanged.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void passesTimeZonesThrough() throws IOException {
+    List<String> timezone =
+        List.of(
+            "BEGIN:VTIMEZONE",
+            "TZID:America/New_York",
+            "BEGIN:STANDARD",
+            "DTSTART:19701101T020000",
+            "RRULE:FREQ=YEARLY;BYMONTH=11;BYDAY=1SU",
+            "TZOFFSETFROM:-0400",
+            "TZOFFSETTO:-0500",
+            "END:STANDARD",
+            "END:VTIMEZONE");
+    List<String> todo = List.of("BEGIN:VTODO", "UID:todo", "DTSTART:20200101T090000Z", "END:VTODO");
+    // The alarm's TRIGGER and the event's DTSTART are both read at the right level.
+    List<String> withAlarm =
+        event(
+            "alarm",
+            "DTSTART:20240304T090000Z",
+            "BEGIN:VALARM",
+            "DTSTART:20200101T090000Z",
+            "TRIGGER:-PT15M",
+            "END:VALARM",
+            "DTEND:20240304T100000Z");
+    String input = calendar(timezone, todo, withAlarm);
+    assertEquals(input, filter(input));
+  }
+
+  /**
+   * Keeping more than the most events throws, and {@link WindowFilterReader#eventsKept} then
+   * exceeds the limit. Dropped events do not count.
+   *
+   * @throws IOException if the test fails
+   */
+  @Test
+  public void maxEvents() throws IOException {
+    String input =
+        calendar(
+            event("a", "DTSTART:20240304T090000Z"),
+            event("old", "DTSTART:20200101T090000Z"),
+            event("b", "DTSTART:20240304T100000Z"),
+            event("c", "DTSTART:20240304T110000Z"));
+    try (WindowFilterReader reader =
+        new WindowFilterReader(new StringReader(input), WINDOW_START, WINDOW_END, 3)) {
+      assertEquals(List.of("a", "b", "c"), uids(readAll(reader)));
+      assertEquals(3, reader.eventsKept());
+    }
+    try (WindowFilterReader reader =
+        new WindowFilterReader(new StringReader(input), WINDOW_START, WINDOW_END, 2)) {
+      IOException e = assertThrows(IOException.class, () -> readAll(reader));
+      assertEquals("More than 2 events", e.getMessage());
+      assertEquals(3, reader.eventsKept());
+      assertEquals(1, reader.eventsDropped());
+    }
+  }
+}